@@ -53,6 +53,7 @@ import org.apache.commons.math3.optim.univariate.UnivariatePointValuePair;
 import org.micromanager.AutofocusPlugin;
 import org.micromanager.Studio;
 import org.micromanager.imageprocessing.ImgSharpnessAnalysis;
+import org.micromanager.imageprocessing.PipelinedFocusSearch;
 import org.micromanager.internal.utils.AutofocusBase;
 import org.micromanager.internal.utils.MDUtils;
 import org.micromanager.internal.utils.MMException;
@@ -65,7 +66,8 @@ import org.scijava.plugin.Plugin;
 import org.scijava.plugin.SciJavaPlugin;
 
 /**
- * Arthur Edelstein's Autofocus plugin using the Brent Optimizer.
+ * Arthur Edelstein's Autofocus plugin using the Brent Optimizer, or optionally
+ * a pipelined coarse-to-fine grid search (see PipelinedFocusSearch).
  */
 @Plugin(type = AutofocusPlugin.class)
 public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJavaPlugin {
@@ -82,6 +84,10 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
    private static final String[] SHOWVALUES = {"Yes", "No"};
    private static final String FFT_UPPER_CUTOFF = "FFTUpperCutoff(%)";
    private static final String FFT_LOWER_CUTOFF = "FFTLowerCutoff(%)";
+   private static final String SEARCH_METHOD = "SearchMethod";
+   private static final String BRENT = "Brent";
+   private static final String PIPELINED_GRID = "PipelinedGrid";
+   private static final String[] SEARCH_METHODS = {BRENT, PIPELINED_GRID};
 
    private final ImgSharpnessAnalysis fcsAnalysis_ = new ImgSharpnessAnalysis();
    private final BrentFocusOptimizer afOptimizer_;
@@ -90,6 +96,8 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
    private double exposure_ = 100;
    private boolean displayImages_ = false;
    private double cropFactor_ = 1;
+   private boolean pipelinedSearch_ = false;
+   private int imageCount_ = 0;
 
 
    public OughtaFocus() {
@@ -115,6 +123,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
               ImgSharpnessAnalysis.Method.getNames()
       );
       super.createProperty(CHANNEL, "");
+      super.createProperty(SEARCH_METHOD, BRENT, SEARCH_METHODS);
    }
 
    @Override
@@ -139,6 +148,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
                ImgSharpnessAnalysis.Method.valueOf(getPropertyValue(SCORING_METHOD)));
          displayImages_ = getPropertyValue(SHOW_IMAGES).contentEquals("Yes");
          afOptimizer_.setDisplayImages(displayImages_);
+         pipelinedSearch_ = getPropertyValue(SEARCH_METHOD).contentEquals(PIPELINED_GRID);
       } catch (MMException | ParseException ex) {
          studio_.logs().logError(ex);
       }
@@ -170,7 +180,13 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       final double oldExposure = core.getExposure();
       core.setExposure(exposure_);
 
-      final double z = afOptimizer_.runAutofocusAlgorithm();
+      final double z;
+      if (pipelinedSearch_) {
+         z = runPipelinedSearch(core);
+      } else {
+         z = afOptimizer_.runAutofocusAlgorithm();
+         imageCount_ = afOptimizer_.getImageCount();
+      }
 
       if (cropFactor_ < 1.0) {
          studio_.app().setROI(oldROI);
@@ -185,6 +201,35 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       return z;
    }
 
+   /**
+    * Searches with PipelinedFocusSearch, which scores each image while the
+    * stage moves to and the camera exposes the next one.
+    */
+   private double runPipelinedSearch(final CMMCore core) throws Exception {
+      final long startTimeMs = System.currentTimeMillis();
+      final double startZ = core.getPosition(core.getFocusDevice());
+      PipelinedFocusSearch search = new PipelinedFocusSearch(
+            new CoreFocusHardware(core), fcsAnalysis_::compute);
+      search.setScoreListener((int imageNr, double z, double score) ->
+            studio_.logs().logMessage("OughtaFocus: image=" + imageNr
+                  + ", t=" + (System.currentTimeMillis() - startTimeMs)
+                  + ", z=" + TextUtils.FMT2.format(z)
+                  + ", score=" + TextUtils.FMT2.format(score)));
+      try {
+         final double z = search.search(startZ, afOptimizer_.getSearchRange(),
+               afOptimizer_.getAbsoluteTolerance());
+         studio_.logs().logMessage("OughtaFocus pipelined search: images="
+               + search.getImageCount()
+               + ", speculative=" + search.getSpeculativeImageCount()
+               + ", z=" + TextUtils.FMT2.format(z)
+               + ", dz=" + TextUtils.FMT2.format(z - startZ)
+               + ", t=" + (System.currentTimeMillis() - startTimeMs));
+         return z;
+      } finally {
+         imageCount_ = search.getImageCount();
+      }
+   }
+
    @Override
    public double incrementalFocus() throws Exception {
       throw new UnsupportedOperationException("Not supported yet.");
@@ -192,7 +237,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
 
    @Override
    public int getNumberOfImages() {
-      return afOptimizer_.getImageCount();
+      return imageCount_;
    }
 
    @Override
@@ -288,6 +333,46 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
    }
 
 
+   /**
+    * Lets PipelinedFocusSearch drive the default focus device and camera.
+    */
+   private class CoreFocusHardware implements PipelinedFocusSearch.FocusHardware {
+      private final CMMCore core_;
+
+      CoreFocusHardware(CMMCore core) {
+         core_ = core;
+      }
+
+      @Override
+      public void setPosition(double z) throws Exception {
+         try {
+            core_.setPosition(z);
+            core_.waitForDevice(core_.getFocusDevice());
+         } catch (Exception e) {
+            String zString = new DecimalFormat("0.00#").format(z);
+            throw new Exception(e.getMessage() + ". Position: " + zString, e);
+         }
+      }
+
+      @Override
+      public ImageProcessor snapImage() throws Exception {
+         core_.waitForDevice(core_.getCameraDevice());
+         core_.snapImage();
+         final TaggedImage img = core_.getTaggedImage();
+         if (displayImages_) {
+            SwingUtilities.invokeLater(() -> {
+               try {
+                  studio_.live().displayImage(studio_.data().convertTaggedImage(img));
+               } catch (JSONException | IllegalArgumentException e) {
+                  studio_.logs().showError(e);
+               }
+            });
+         }
+         return BrentFocusOptimizer.makeMonochromeProcessor(core_,
+               BrentFocusOptimizer.getMonochromePixels(img));
+      }
+   }
+
    /**
     * This class uses the Brent Method alongside control of MMStudio's default camera
     * and Z-stage to perform autofocusing. The Brent Method optimizer will try to maximize
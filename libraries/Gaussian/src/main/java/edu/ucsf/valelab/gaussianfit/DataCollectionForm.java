@@ -2326,40 +2326,55 @@ public class DataCollectionForm extends JFrame {
          @Override
          public void run() {
 
-            List<SpotData> correctedData =
-                  Collections.synchronizedList(new ArrayList<SpotData>());
-            Iterator it = rowData.spotList_.iterator();
-            int frameNr = 0;
-            while (it.hasNext()) {
-               SpotData gs = (SpotData) it.next();
-               if (gs.getFrame() != frameNr) {
-                  frameNr = gs.getFrame();
-                  ij.IJ.showStatus("Executing color correction...");
-                  ij.IJ.showProgress(frameNr, rowData.nrFrames_);
+            // Transform all channel 1 spots in one batch
+            int nrChannel1 = 0;
+            for (SpotData gs : rowData.spotList_) {
+               if (gs.getChannel() == 1) {
+                  nrChannel1++;
                }
+            }
+            double[] xs = new double[nrChannel1];
+            double[] ys = new double[nrChannel1];
+            int i = 0;
+            for (SpotData gs : rowData.spotList_) {
                if (gs.getChannel() == 1) {
-                  Point2D.Double point = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                  try {
-                     Point2D.Double corPoint = c2t_.transform(point);
-                     SpotData gsn = new SpotData(gs);
-                     if (corPoint != null) {
-                        gsn.setXCenter(corPoint.x);
-                        gsn.setYCenter(corPoint.y);
-                        correctedData.add(gsn);
-                     } else {
-                        ReportingUtils.logError(
-                              "Failed to match spot in channel 1, at "
-                                    + gs.getX() + "-" + gs.getY() + ", micron: "
-                                    + gs.getXCenter() + "-" + gs.getYCenter());
-                     }
+                  xs[i] = gs.getXCenter();
+                  ys[i] = gs.getYCenter();
+                  i++;
+               }
+            }
+            ij.IJ.showStatus("Executing color correction...");
+            double[][] corrected;
+            try {
+               corrected = c2t_.transform(xs, ys);
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex);
+               semaphore_.release();
+               return;
+            }
 
-                  } catch (Exception ex) {
-                     ReportingUtils.logError(ex);
+            List<SpotData> correctedData =
+                  Collections.synchronizedList(new ArrayList<SpotData>(rowData.spotList_.size()));
+            i = 0;
+            for (SpotData gs : rowData.spotList_) {
+               if (gs.getChannel() == 1) {
+                  double x = corrected[0][i];
+                  double y = corrected[1][i];
+                  i++;
+                  if (!Double.isNaN(x) && !Double.isNaN(y)) {
+                     SpotData gsn = new SpotData(gs);
+                     gsn.setXCenter(x);
+                     gsn.setYCenter(y);
+                     correctedData.add(gsn);
+                  } else {
+                     ReportingUtils.logError(
+                           "Failed to match spot in channel 1, at "
+                                 + gs.getX() + "-" + gs.getY() + ", micron: "
+                                 + gs.getXCenter() + "-" + gs.getYCenter());
                   }
                } else if (gs.getChannel() == 2) {
                   correctedData.add(gs);
                }
-
             }
 
             // Add transformed data to data overview window
@@ -0,0 +1,320 @@
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Estimates the drift of a sample from its spots, by cross-correlating
+ * images of groups of frames (bins).
+ *
+ * <p>Each bin is correlated with the next few bins, rather than only with
+ * the first one.  The drift of the bins is the least squares fit to all
+ * these pairwise shifts, after leaving out pairs that do not agree with the
+ * others.  Bins are rendered and transformed on several threads, and only
+ * the transforms of the bins that are being correlated are kept in memory.
+ *
+ * <p>Spots are spread over the 4 nearest pixels of a zero padded square
+ * image with a size that is a power of 2, so that images of any size can be
+ * transformed with ImageJ's FHT.
+ */
+public final class DriftEstimator {
+   // correlation peaks are searched in a square of twice this size around
+   // the center
+   private static final int SEARCH_RADIUS = 16;
+
+   private final double factor_;
+   private final int width_;
+   private final int height_;
+   private final int size_;
+   private final int maxPairDistance_;
+   private final int nrThreads_;
+
+   /**
+    * @param factor          rendered pixels per nm
+    * @param width           width of the area with spots, in rendered pixels
+    * @param height          height of the area with spots, in rendered pixels
+    * @param maxPairDistance number of following bins each bin is correlated
+    *                        with
+    * @param nrThreads       number of threads to use
+    */
+   public DriftEstimator(double factor, int width, int height, int maxPairDistance,
+         int nrThreads) {
+      factor_ = factor;
+      width_ = width;
+      height_ = height;
+      int size = 1;
+      while (size < Math.max(width, height)) {
+         size *= 2;
+      }
+      size_ = size;
+      maxPairDistance_ = Math.max(1, maxPairDistance);
+      nrThreads_ = Math.max(1, nrThreads);
+   }
+
+   /**
+    * @param bins spots of each bin, in order
+    * @return drift in x and y (in nm) of each bin relative to the first bin
+    */
+   public double[][] estimate(final List<List<SpotData>> bins)
+         throws InterruptedException, ExecutionException {
+      final int nrBins = bins.size();
+      if (nrBins < 2) {
+         return new double[nrBins][2];
+      }
+      List<double[]> pairs = new ArrayList<double[]>();
+      ExecutorService executor = Executors.newFixedThreadPool(nrThreads_);
+      ArrayDeque<Future<double[]>> inFlight = new ArrayDeque<Future<double[]>>();
+      try {
+         // transforms of the bins that still have to be correlated with
+         // earlier bins
+         List<Future<FHT>> transforms = new ArrayList<Future<FHT>>(nrBins);
+         for (int b = 0; b < nrBins; b++) {
+            transforms.add(null);
+         }
+         for (int i = 0; i < nrBins; i++) {
+            int last = Math.min(nrBins - 1, i + maxPairDistance_);
+            for (int b = i == 0 ? 0 : last; b <= last; b++) {
+               if (transforms.get(b) == null) {
+                  transforms.set(b, executor.submit(transform(bins.get(b))));
+               }
+            }
+            // transforms are submitted before the correlations that use them
+            for (int j = i + 1; j <= last; j++) {
+               inFlight.add(executor.submit(
+                     correlate(i, transforms.get(i), j, transforms.get(j))));
+            }
+            transforms.set(i, null);
+            while (inFlight.size() > 2 * nrThreads_ * maxPairDistance_) {
+               pairs.add(inFlight.poll().get());
+            }
+         }
+         while (!inFlight.isEmpty()) {
+            pairs.add(inFlight.poll().get());
+         }
+      } finally {
+         for (Future<double[]> future : inFlight) {
+            future.cancel(true);
+         }
+         executor.shutdown();
+      }
+      return solve(nrBins, pairs, 1.0 / factor_);
+   }
+
+   private Callable<FHT> transform(final List<SpotData> spots) {
+      return new Callable<FHT>() {
+         @Override
+         public FHT call() {
+            float[] pixels = new float[size_ * size_];
+            for (SpotData spot : spots) {
+               double x = factor_ * spot.getXCenter();
+               double y = factor_ * spot.getYCenter();
+               int x0 = (int) Math.floor(x);
+               int y0 = (int) Math.floor(y);
+               if (x0 < 0 || y0 < 0 || x0 + 1 >= width_ || y0 + 1 >= height_) {
+                  continue;
+               }
+               float fx = (float) (x - x0);
+               float fy = (float) (y - y0);
+               int index = y0 * size_ + x0;
+               pixels[index] += (1 - fx) * (1 - fy);
+               pixels[index + 1] += fx * (1 - fy);
+               pixels[index + size_] += (1 - fx) * fy;
+               pixels[index + size_ + 1] += fx * fy;
+            }
+            FHT fht = new FHT(new FloatProcessor(size_, size_, pixels), false);
+            fht.setShowProgress(false);
+            fht.transform();
+            return fht;
+         }
+      };
+   }
+
+   /**
+    * @return first bin, second bin, and shift in x and y (in nm) of the
+    *     second bin relative to the first
+    */
+   private Callable<double[]> correlate(final int first, final Future<FHT> firstTransform,
+         final int second, final Future<FHT> secondTransform) {
+      return new Callable<double[]>() {
+         @Override
+         public double[] call() throws InterruptedException, ExecutionException {
+            FHT m = firstTransform.get().conjugateMultiply(secondTransform.get());
+            m.setShowProgress(false);
+            m.inverseTransform();
+            m.swapQuadrants();
+            float[] c = (float[]) m.getPixels();
+
+            int half = size_ / 2;
+            int radius = Math.min(SEARCH_RADIUS, half - 1);
+            int peak = half * size_ + half;
+            for (int y = half - radius; y <= half + radius; y++) {
+               for (int x = half - radius; x <= half + radius; x++) {
+                  if (c[y * size_ + x] > c[peak]) {
+                     peak = y * size_ + x;
+                  }
+               }
+            }
+            double x = peak % size_ + peakOffset(c[peak - 1], c[peak], c[peak + 1]);
+            double y = peak / size_
+                  + peakOffset(c[peak - size_], c[peak], c[peak + size_]);
+            return new double[] {first, second, (half - x) / factor_, (half - y) / factor_};
+         }
+      };
+   }
+
+   /**
+    * Position of a peak relative to its highest sample, from a Gaussian
+    * through the three samples around it, or a parabola when they are not
+    * all positive.
+    */
+   static double peakOffset(double before, double at, double after) {
+      double offset;
+      if (before > 0 && at > 0 && after > 0) {
+         double lb = Math.log(before);
+         double la = Math.log(at);
+         double lf = Math.log(after);
+         offset = (lb - lf) / (2 * (lb - 2 * la + lf));
+      } else {
+         offset = (before - after) / (2 * (before - 2 * at + after));
+      }
+      if (Double.isNaN(offset) || Math.abs(offset) > 1) {
+         return 0.0;
+      }
+      return offset;
+   }
+
+   /**
+    * Finds the drift of each bin that best fits the measured pairwise
+    * shifts.  As long as the pair of bins that fits worst is off by more than
+    * maxError, it is left out and the drift is fitted again.  Pairs of bins
+    * next to each other are always used, so that all bins stay connected.
+    *
+    * @param nrBins   number of bins
+    * @param pairs    first bin, second bin, and shift in x and y of the
+    *                 second bin relative to the first
+    * @param maxError largest error of pairs that are used
+    * @return drift in x and y of each bin relative to the first bin
+    */
+   static double[][] solve(int nrBins, List<double[]> pairs, double maxError) {
+      boolean[] used = new boolean[pairs.size()];
+      Arrays.fill(used, true);
+      while (true) {
+         double[][] drift = leastSquares(nrBins, pairs, used);
+         int worst = -1;
+         double worstError = maxError;
+         for (int k = 0; k < pairs.size(); k++) {
+            double[] pair = pairs.get(k);
+            int i = (int) pair[0];
+            int j = (int) pair[1];
+            if (!used[k] || j - i == 1) {
+               continue;
+            }
+            double error = Math.hypot(drift[j][0] - drift[i][0] - pair[2],
+                  drift[j][1] - drift[i][1] - pair[3]);
+            if (error > worstError) {
+               worst = k;
+               worstError = error;
+            }
+         }
+         if (worst < 0) {
+            return drift;
+         }
+         used[worst] = false;
+      }
+   }
+
+   /**
+    * Solves the normal equations for the drift of bins 1 to nrBins - 1, with
+    * the drift of bin 0 fixed at 0.
+    */
+   private static double[][] leastSquares(int nrBins, List<double[]> pairs, boolean[] used) {
+      int n = nrBins - 1;
+      double[][] a = new double[n][n];
+      double[][] b = new double[n][2];
+      for (int k = 0; k < pairs.size(); k++) {
+         if (!used[k]) {
+            continue;
+         }
+         double[] pair = pairs.get(k);
+         int i = (int) pair[0] - 1;
+         int j = (int) pair[1] - 1;
+         for (int d = 0; d < 2; d++) {
+            if (i >= 0) {
+               b[i][d] -= pair[2 + d];
+            }
+            b[j][d] += pair[2 + d];
+         }
+         a[j][j] += 1;
+         if (i >= 0) {
+            a[i][i] += 1;
+            a[i][j] -= 1;
+            a[j][i] -= 1;
+         }
+      }
+      // Gaussian elimination, the matrix is symmetric and positive definite
+      // as long as all bins are connected to bin 0
+      for (int p = 0; p < n; p++) {
+         for (int r = p + 1; r < n; r++) {
+            if (a[r][p] == 0.0) {
+               continue;
+            }
+            double f = a[r][p] / a[p][p];
+            for (int c = p; c < n; c++) {
+               a[r][c] -= f * a[p][c];
+            }
+            b[r][0] -= f * b[p][0];
+            b[r][1] -= f * b[p][1];
+         }
+      }
+      double[][] drift = new double[nrBins][2];
+      for (int p = n - 1; p >= 0; p--) {
+         for (int d = 0; d < 2; d++) {
+            double sum = b[p][d];
+            for (int c = p + 1; c < n; c++) {
+               sum -= a[p][c] * drift[c + 1][d];
+            }
+            drift[p + 1][d] = sum / a[p][p];
+         }
+      }
+      return drift;
+   }
+
+   /**
+    * Interpolates the drift linearly between the centers of the bins.
+    * Frames before the center of the first bin get the drift of the first
+    * bin, and frames after the center of the last bin that of the last bin.
+    *
+    * @param drift        drift in x and y of each bin
+    * @param framesPerBin number of frames in a bin
+    * @param nrFrames     number of frames
+    * @return drift in x ([0][frame - 1]) and y ([1][frame - 1]) of each frame
+    */
+   public static double[][] perFrame(double[][] drift, int framesPerBin, int nrFrames) {
+      double[][] result = new double[2][nrFrames];
+      for (int f = 0; f < nrFrames; f++) {
+         double position = (f + 0.5) / framesPerBin - 0.5;
+         int bin = (int) Math.floor(position);
+         for (int d = 0; d < 2; d++) {
+            if (bin < 0) {
+               result[d][f] = drift[0][d];
+            } else if (bin >= drift.length - 1) {
+               result[d][f] = drift[drift.length - 1][d];
+            } else {
+               double w = position - bin;
+               result[d][f] = (1 - w) * drift[bin][d] + w * drift[bin + 1][d];
+            }
+         }
+      }
+      return result;
+   }
+}
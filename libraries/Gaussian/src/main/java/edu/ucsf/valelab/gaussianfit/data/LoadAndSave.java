@@ -32,13 +32,9 @@ package edu.ucsf.valelab.gaussianfit.data;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.EXTENSION;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 
-import com.google.protobuf.ExtensionRegistry;
-import com.google.protobuf.InvalidProtocolBufferException;
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.LittleEndianDataInputStream;
-import edu.ucsf.valelab.tsf.MMLocM;
 import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
-import ij.process.ImageProcessor;
 import java.awt.Cursor;
 import java.awt.FileDialog;
 import java.io.BufferedInputStream;
@@ -54,9 +50,7 @@ import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFrame;
@@ -86,7 +80,7 @@ public class LoadAndSave {
          ij.IJ.showStatus("Loading data..");
          caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-         List<SpotData> spotList = new ArrayList<SpotData>();
+         SpotStore spotStore = new SpotStore();
 
          float pixelSize = (float) 160.0; // how do we get this from the file?
 
@@ -164,7 +158,7 @@ public class LoadAndSave {
                gsd.setData(intensity, b, pixelSize * xc, pixelSize * yc, 0.0, w, ax, phi, c);
                gsd.setZCenter(zc);
                gsd.setOriginalPosition(x, y, z);
-               spotList.add(gsd);
+               spotStore.add(gsd);
                nr++;
             }
          }
@@ -176,7 +170,7 @@ public class LoadAndSave {
                      .setColColorRef("").setWidth(256).setHeight(256)
                      .setPixelSizeNm(pixelSize).setZStackStepSizeNm(0.0f)
                      .setShape(3).setHalfSize(2).setNrFrames(1).setNrSlices(1)
-                     .setNrPositions(1).setMaxNrSpots(nr).setSpotList(spotList)
+                     .setNrPositions(1).setMaxNrSpots(nr).setSpotList(spotStore.asList())
                      .setIsTrack(false).setCoordinate(DataCollectionForm.Coordinates.NM)
                      .setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
          DataCollectionForm.getInstance().addSpotData(builder);
@@ -244,7 +238,7 @@ public class LoadAndSave {
          String head = fr.readLine();
          String[] headers = head.split("\t");
          String spot;
-         List<SpotData> spotList = new ArrayList<SpotData>();
+         SpotStore spotStore = new SpotStore();
          double maxZ = Double.NEGATIVE_INFINITY;
          double minZ = Double.POSITIVE_INFINITY;
 
@@ -301,7 +295,7 @@ public class LoadAndSave {
                   minZ = zc;
                }
             }
-            spotList.add(gsd);
+            spotStore.add(gsd);
 
          }
 
@@ -325,8 +319,8 @@ public class LoadAndSave {
                .setNrFrames(Integer.parseInt(infoMap.get("nr_frames")))
                .setNrSlices(Integer.parseInt(infoMap.get("nr_slices")))
                .setNrPositions(Integer.parseInt(infoMap.get("nr_pos")))
-               .setMaxNrSpots(spotList.size())
-               .setSpotList(spotList)
+               .setMaxNrSpots(spotStore.size())
+               .setSpotList(spotStore.asList())
                .setCoordinate(DataCollectionForm.Coordinates.NM)
                .setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
          DataCollectionForm.getInstance().addSpotData(builder);
@@ -359,6 +353,8 @@ public class LoadAndSave {
 
          FileInputStream fi = new FileInputStream(selectedFile);
          DataInputStream di = new DataInputStream(fi);
+         long start;
+         long end;
 
          // the new file format has an initial 0, then the offset (in long)
          // to the position of spotList
@@ -368,24 +364,18 @@ public class LoadAndSave {
             fi.close();
             fi = new FileInputStream(selectedFile);
             psl = TaggedSpotsProtos.SpotList.parseDelimitedFrom(fi);
+            // spots follow the spotList
+            start = fi.getChannel().position();
+            end = fi.getChannel().size();
          } else {
             // TODO: evaluate after creating code writing this format
             long offset = di.readLong();
             fi.skip(offset);
             psl = TaggedSpotsProtos.SpotList.parseDelimitedFrom(fi);
-            fi.close();
-            fi = new FileInputStream(selectedFile);
-            fi.skip(12); // size of int + size of long
+            start = 12; // size of int + size of long
+            end = 12 + offset;
          }
-         ExtensionRegistry registry = ExtensionRegistry.newInstance();
          int appId = psl.getApplicationId();
-         if (appId == MMAPPID) {
-            registry.add(MMLocM.intensityAperture);
-            registry.add(MMLocM.intensityBackground);
-            registry.add(MMLocM.intensityRatio);
-            registry.add(MMLocM.mSigma);
-            registry.add(MMLocM.integralApertureSigma);
-         }
          String name = psl.getName();
          String title = psl.getName();
          int width = psl.getNrPixelsX();
@@ -403,72 +393,34 @@ public class LoadAndSave {
          int nrSlices = psl.getNrSlices();
          int nrPositions = psl.getNrPos();
          boolean isTrack = psl.getIsTrack();
-         long expectedSpots = psl.getNrSpots();
-         long esf = expectedSpots / 100;
-         long maxNrSpots = 0;
-         boolean hasZ = false;
-         double maxZ = Double.NEGATIVE_INFINITY;
-         double minZ = Double.POSITIVE_INFINITY;
-
-         ArrayList<SpotData> spotList = new ArrayList<SpotData>();
-         TaggedSpotsProtos.Spot pSpot;
-         while (fi.available() > 0 && (expectedSpots == 0 || maxNrSpots < expectedSpots)) {
-
-            try {
-               pSpot = TaggedSpotsProtos.Spot.parseDelimitedFrom(fi, registry);
-
-               SpotData gSpot = new SpotData((ImageProcessor) null, pSpot.getChannel(),
-                     pSpot.getSlice(), pSpot.getFrame(), pSpot.getPos(),
-                     pSpot.getMolecule(), pSpot.getXPosition(), pSpot.getYPosition());
-               gSpot.setData(pSpot.getIntensity(), pSpot.getBackground(), pSpot.getX(),
-                     pSpot.getY(), 0.0, pSpot.getWidth(), pSpot.getA(), pSpot.getTheta(),
-                     pSpot.getXPrecision());
-               if (appId == MMAPPID) {
-                  gSpot.addKeyValue(SpotData.Keys.APERTUREINTENSITY,
-                        pSpot.getExtension(MMLocM.intensityAperture));
-                  gSpot.addKeyValue(SpotData.Keys.APERTUREBACKGROUND,
-                        pSpot.getExtension(MMLocM.intensityBackground));
-                  gSpot.addKeyValue(SpotData.Keys.INTENSITYRATIO,
-                        pSpot.getExtension(MMLocM.intensityRatio));
-                  gSpot.addKeyValue(SpotData.Keys.MSIGMA,
-                        pSpot.getExtension(MMLocM.mSigma));
-                  if (pSpot.hasExtension(MMLocM.integralApertureSigma)) {
-                     gSpot.addKeyValue(SpotData.Keys.INTEGRALAPERTURESIGMA,
-                           pSpot.getExtension(MMLocM.integralApertureSigma));
-                  }
-               }
-               if (pSpot.hasZ()) {
-                  double zc = pSpot.getZ();
-                  gSpot.setZCenter(zc);
-                  hasZ = true;
-                  if (zc > maxZ) {
-                     maxZ = zc;
-                  }
-                  if (zc < minZ) {
-                     minZ = zc;
-                  }
-               }
-               maxNrSpots++;
-               if ((esf > 0) && ((maxNrSpots % esf) == 0)) {
-                  ij.IJ.showProgress((double) maxNrSpots / (double) expectedSpots);
-               }
-
-               spotList.add(gSpot);
-            } catch (InvalidProtocolBufferException ipbe) {
-               spotsMissedWithErrors++;
-               ReportingUtils.logError("ProtocolBuffer Exception: " + ipbe.getMessage());
-            }
+         final long expectedSpots = psl.getNrSpots();
+
+         TsfSpotStream.Result spots;
+         try {
+            spots = TsfSpotStream.read(fi.getChannel(), start, end, expectedSpots,
+                  appId == MMAPPID, new TsfSpotStream.ProgressListener() {
+                     @Override
+                     public void progress(long nrSpots) {
+                        ij.IJ.showStatus("Loaded " + nrSpots + " spots..");
+                        if (expectedSpots > 0) {
+                           ij.IJ.showProgress((double) nrSpots / (double) expectedSpots);
+                        }
+                     }
+                  });
+         } finally {
+            fi.close();
          }
+         spotsMissedWithErrors = spots.nrFailed_;
 
          RowData.Builder builder = new RowData.Builder();
          builder.setName(name).setTitle(title).setWidth(width).setHeight(height)
                  .setPixelSizeNm(pixelSize).setZStackStepSizeNm(0.0f).setShape(shape)
                  .setHalfSize(halfSize).setNrChannels(nrChannels)
                  .setNrFrames(nrFrames).setNrSlices(nrSlices)
-                 .setNrPositions(nrPositions).setMaxNrSpots(maxNrSpots)
-                 .setSpotList(spotList).setIsTrack(isTrack)
+                 .setNrPositions(nrPositions).setMaxNrSpots(spots.store_.size())
+                 .setSpotList(spots.store_.asList()).setIsTrack(isTrack)
                  .setCoordinate(DataCollectionForm.Coordinates.NM)
-                 .setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
+                 .setHasZ(spots.hasZ_).setMinZ(spots.minZ_).setMaxZ(spots.maxZ_);
          DataCollectionForm.getInstance().addSpotData(builder);
 
       } catch (FileNotFoundException ex) {
@@ -577,61 +529,14 @@ public class LoadAndSave {
                      fo.write(0);
                   }
 
-                  int counter = 0;
-                  for (SpotData gd : rowData[rowNr].spotList_) {
-
-                     if ((counter % 1000) == 0) {
-                        ij.IJ.showStatus("Saving spotData...");
-                        ij.IJ.showProgress(counter, rowData[rowNr].spotList_.size());
+                  final RowData row = rowData[rowNr];
+                  ij.IJ.showStatus("Saving spotData...");
+                  TsfSpotStream.write(row, fo, new TsfSpotStream.ProgressListener() {
+                     @Override
+                     public void progress(long nrSpots) {
+                        ij.IJ.showProgress((double) nrSpots / row.spotList_.size());
                      }
-
-                     if (gd != null) {
-                        TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot
-                              .newBuilder();
-                        // TODO: precede all these calls with check for presence of member
-                        // or be OK with default values?
-                        spotBuilder.setMolecule(counter)
-                                    .setFrame(gd.getFrame())
-                              .setChannel(gd.getChannel())
-                              .setPos(gd.getPosition())
-                              .setSlice(gd.getSlice())
-                              .setX((float) gd.getXCenter())
-                              .setY((float) gd.getYCenter())
-                              .setIntensity((float) gd.getIntensity())
-                              .setBackground((float) gd.getBackground())
-                              .setXPosition(gd.getX())
-                              .setYPosition(gd.getY())
-                              .setWidth((float) gd.getWidth())
-                              .setA((float) gd.getA())
-                              .setTheta((float) gd.getTheta())
-                              .setXPrecision((float) gd.getSigma())
-                              .setExtension(MMLocM.intensityAperture,
-                                    gd.getValue(SpotData.Keys.APERTUREINTENSITY, -1.0)
-                                          .floatValue())
-                              .setExtension(MMLocM.intensityBackground,
-                                    gd.getValue(SpotData.Keys.APERTUREBACKGROUND, -1.0)
-                                                .floatValue())
-                              .setExtension(MMLocM.intensityRatio,
-                                    gd.getValue(SpotData.Keys.INTENSITYRATIO, -1.0)
-                                          .floatValue())
-                              .setExtension(MMLocM.mSigma,
-                                    gd.getValue(SpotData.Keys.MSIGMA, -1.0).floatValue())
-                              .setExtension(MMLocM.integralApertureSigma,
-                                    gd.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA, -1.0)
-                                          .floatValue()
-                              );
-
-                        if (rowData[rowNr].hasZ_) {
-                           spotBuilder.setZ((float) gd.getZCenter());
-                        }
-
-                        TaggedSpotsProtos.Spot spot = spotBuilder.build();
-
-                        // write message size and message
-                        spot.writeDelimitedTo(fo);
-                        counter++;
-                     }
-                  }
+                  });
 
                   FileChannel fc = fo.getChannel();
                   long offset = fc.position();
@@ -38,6 +38,7 @@ import edu.ucsf.valelab.gaussianfit.DataCollectionForm.Coordinates;
 import edu.ucsf.valelab.gaussianfit.utils.ListUtils;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -189,7 +190,9 @@ public class RowData {
 
    }
 
+   // read-only views of the spots in store_
    public final List<SpotData> spotList_;
+   private final SpotStore store_;
    private Map<Integer, List<SpotData>> frameIndexSpotList_;
    private Map<ImageIndex, List<SpotData>> indexedSpotList_;
    public final ArrayList<Double> timePoints_;
@@ -238,7 +241,10 @@ public class RowData {
       nrSlices_ = b.nrSlices_;
       nrPositions_ = b.nrPositions_;
       maxNrSpots_ = b.maxNrSpots_;
-      spotList_ = new ArrayList<SpotData>(b.spotList_);
+      // shares the store with the row this was copied from, like the
+      // spots themselves were shared before
+      store_ = SpotStore.of(b.spotList_);
+      spotList_ = store_.asList();
       if (b.timePoints_ != null) {
          timePoints_ = new ArrayList<Double>(b.timePoints_);
       } else {
@@ -310,26 +316,73 @@ public class RowData {
          nr = nrFrames_;
       }
 
-      frameIndexSpotList_ = new HashMap<Integer, List<SpotData>>(nr);
-      indexedSpotList_ = new HashMap<ImageIndex, List<SpotData>>();
-
-      for (SpotData spot : spotList_) {
-         int frameIndex = spot.getSlice();
-         if (useFrames) {
-            frameIndex = spot.getFrame();
-         }
-         if (frameIndexSpotList_.get(frameIndex) == null) {
-            frameIndexSpotList_.put(frameIndex, new ArrayList<SpotData>());
+      // row indices by key, the first element is the number of rows
+      Map<Integer, int[]> frameRows = new HashMap<Integer, int[]>(nr);
+      Map<ImageIndex, int[]> imageRows = new HashMap<ImageIndex, int[]>();
+      ImageIndex lastIndex = null;
+      int[] lastRows = null;
+      int lastFrame = 0;
+      int lastSlice = 0;
+      int lastChannel = 0;
+      int lastPosition = 0;
+
+      for (int row = 0; row < store_.size(); row++) {
+         int frame = store_.getInt(row, SpotStore.FRAME);
+         int slice = store_.getInt(row, SpotStore.SLICE);
+         int channel = store_.getInt(row, SpotStore.CHANNEL);
+         int position = store_.getInt(row, SpotStore.POSITION);
+         Integer frameIndex = useFrames ? frame : slice;
+         frameRows.put(frameIndex, append(frameRows.get(frameIndex), row));
+
+         // spots of the same image are usually next to each other
+         if (lastIndex == null || frame != lastFrame || slice != lastSlice
+               || channel != lastChannel || position != lastPosition) {
+            if (lastIndex != null) {
+               imageRows.put(lastIndex, lastRows);
+            }
+            lastIndex = new ImageIndex(frame, slice, channel, position);
+            lastRows = imageRows.get(lastIndex);
+            lastFrame = frame;
+            lastSlice = slice;
+            lastChannel = channel;
+            lastPosition = position;
          }
-         frameIndexSpotList_.get(frameIndex).add(spot);
+         lastRows = append(lastRows, row);
+      }
+      if (lastIndex != null) {
+         imageRows.put(lastIndex, lastRows);
+      }
 
-         ImageIndex ii = new ImageIndex(spot.getFrame(), spot.getSlice(),
-               spot.getChannel(), spot.getPosition());
-         if (indexedSpotList_.get(ii) == null) {
-            indexedSpotList_.put(ii, new ArrayList<SpotData>());
-         }
-         indexedSpotList_.get(ii).add(spot);
+      frameIndexSpotList_ = new HashMap<Integer, List<SpotData>>(frameRows.size());
+      for (Map.Entry<Integer, int[]> entry : frameRows.entrySet()) {
+         frameIndexSpotList_.put(entry.getKey(), rows(entry.getValue()));
+      }
+      indexedSpotList_ = new HashMap<ImageIndex, List<SpotData>>(imageRows.size());
+      for (Map.Entry<ImageIndex, int[]> entry : imageRows.entrySet()) {
+         indexedSpotList_.put(entry.getKey(), rows(entry.getValue()));
+      }
+   }
+
+   private static int[] append(int[] rows, int row) {
+      if (rows == null) {
+         rows = new int[8];
+      } else if (rows[0] + 1 == rows.length) {
+         rows = Arrays.copyOf(rows, 2 * rows.length);
       }
+      rows[0]++;
+      rows[rows[0]] = row;
+      return rows;
+   }
+
+   private List<SpotData> rows(int[] rows) {
+      return store_.rows(Arrays.copyOfRange(rows, 1, rows[0] + 1));
+   }
+
+   /**
+    * @return store with the spots of this row
+    */
+   public SpotStore getSpotStore() {
+      return store_;
    }
 
    public Map<Integer, List<SpotData>> getSpotListIndexedByFrame() {
@@ -359,10 +412,12 @@ public class RowData {
     * @return desired spot or null if not found
     */
    public SpotData get(int frame, int channel, double xPos, double yPos) {
-      for (SpotData spot : spotList_) {
-         if (spot.getFrame() == frame && spot.getChannel() == channel
-               && spot.getXCenter() == xPos && spot.getYCenter() == yPos) {
-            return spot;
+      for (int row = 0; row < store_.size(); row++) {
+         if (store_.getInt(row, SpotStore.FRAME) == frame
+               && store_.getInt(row, SpotStore.CHANNEL) == channel
+               && store_.getDouble(row, SpotStore.X_CENTER) == xPos
+               && store_.getDouble(row, SpotStore.Y_CENTER) == yPos) {
+            return store_.get(row);
          }
       }
 
@@ -41,6 +41,10 @@ import java.util.Set;
 /**
  * Data structure to internally store fit data.
  *
+ * <p>A SpotData either holds its own values, or is a view of a row of a
+ * {@link SpotStore}, in which case reading and changing values reads and
+ * changes the store.  Views do not keep an ImageProcessor in the store.
+ *
  * <p>Also contains utility functions to generate an ImageJ ImageProcessor containing
  * the spot in the image.
  *
@@ -101,10 +105,13 @@ public class SpotData implements PointData {
    private double sigma_;     // Estimate of error in localization based on Web et al. formula
    // that uses # of photons, background and width of gaussian
 
-   public int nrLinks_;       // number of frames/slices in which this spot was found
-   public int originalFrame_; // original first frame/slice in which this spot was found
+   private int nrLinks_;       // number of frames/slices in which this spot was found
+   private int originalFrame_; // original first frame/slice in which this spot was found
    // Map of keys/values that can be used to extend what we store in the SpotData
    private final Map<String, Double> keyValue_;
+   // store and row that this is a view of, or null
+   private final SpotStore store_;
+   private final int row_;
 
    public SpotData(ImageProcessor ip, int channel, int slice, int frame,
          int position, int nr, int x, int y) {
@@ -117,36 +124,64 @@ public class SpotData implements PointData {
       x_ = x;
       y_ = y;
       keyValue_ = new HashMap<String, Double>();
+      store_ = null;
+      row_ = -1;
+   }
+
+   /**
+    * View of a row of a store.
+    */
+   SpotData(SpotStore store, int row) {
+      store_ = store;
+      row_ = row;
+      frame_ = store.getInt(row, SpotStore.FRAME);
+      channel_ = store.getInt(row, SpotStore.CHANNEL);
+      slice_ = store.getInt(row, SpotStore.SLICE);
+      nr_ = store.getInt(row, SpotStore.NR);
+      x_ = store.getInt(row, SpotStore.X);
+      y_ = store.getInt(row, SpotStore.Y);
+      keyValue_ = null;
    }
 
 
    /**
     * Copy constructor.  Copies frame, slice, channel, position ,  x,  y, intensity, background,
-    * width, a, theta and sigma!
+    * width, a, theta, sigma, number of links and original frame!
     *
     * @param spot
     */
    public SpotData(SpotData spot) {
-      frame_ = spot.frame_;
-      slice_ = spot.slice_;
-      channel_ = spot.channel_;
-      position_ = spot.position_;
-      nr_ = spot.nr_;
-      x_ = spot.x_;
-      y_ = spot.y_;
-      intensity_ = spot.intensity_;
-      background_ = spot.background_;
-      xCenter_ = spot.xCenter_;
-      yCenter_ = spot.yCenter_;
-      zCenter_ = spot.zCenter_;
-      xOri_ = spot.xOri_;
-      yOri_ = spot.yOri_;
-      zOri_ = spot.zOri_;
-      width_ = spot.width_;
-      a_ = spot.a_;
-      theta_ = spot.theta_;
-      sigma_ = spot.sigma_;
-      keyValue_ = new HashMap<String, Double>(spot.keyValue_);
+      frame_ = spot.getFrame();
+      slice_ = spot.getSlice();
+      channel_ = spot.getChannel();
+      position_ = spot.getPosition();
+      nr_ = spot.getNr();
+      x_ = spot.getX();
+      y_ = spot.getY();
+      nrLinks_ = spot.getNrLinks();
+      originalFrame_ = spot.getOriginalFrame();
+      intensity_ = spot.getIntensity();
+      background_ = spot.getBackground();
+      xCenter_ = spot.getXCenter();
+      yCenter_ = spot.getYCenter();
+      zCenter_ = spot.getZCenter();
+      xOri_ = spot.getXOri();
+      yOri_ = spot.geYOri();
+      zOri_ = spot.getZOri();
+      width_ = spot.getWidth();
+      a_ = spot.getA();
+      theta_ = spot.getTheta();
+      sigma_ = spot.getSigma();
+      if (spot.store_ == null) {
+         keyValue_ = new HashMap<String, Double>(spot.keyValue_);
+      } else {
+         keyValue_ = new HashMap<String, Double>();
+         for (String key : spot.getKeys()) {
+            keyValue_.put(key, spot.getValue(key));
+         }
+      }
+      store_ = null;
+      row_ = -1;
    }
 
    public void setData(double intensity,
@@ -158,6 +193,17 @@ public class SpotData implements PointData {
          double a,
          double theta,
          double sigma) {
+      if (store_ != null) {
+         store_.setDouble(row_, SpotStore.INTENSITY, intensity);
+         store_.setDouble(row_, SpotStore.BACKGROUND, background);
+         store_.setDouble(row_, SpotStore.X_CENTER, xCenter);
+         store_.setDouble(row_, SpotStore.Y_CENTER, yCenter);
+         store_.setDouble(row_, SpotStore.WIDTH, width);
+         store_.setDouble(row_, SpotStore.A, a);
+         store_.setDouble(row_, SpotStore.THETA, theta);
+         store_.setDouble(row_, SpotStore.SIGMA, sigma);
+         return;
+      }
       intensity_ = intensity;
       background_ = background;
       xCenter_ = xCenter;
@@ -169,30 +215,50 @@ public class SpotData implements PointData {
    }
 
    public void addKeyValue(String key, double value) {
+      if (store_ != null) {
+         store_.putValue(row_, key, value);
+         return;
+      }
       keyValue_.put(key, value);
    }
 
    public Double getValue(String key) {
+      if (store_ != null) {
+         return store_.getValue(row_, key);
+      }
       return keyValue_.get(key);
    }
 
    public Double getValue(String key, double fallbackValue) {
-      if (keyValue_.containsKey(key)) {
-         return keyValue_.get(key);
+      Double value = getValue(key);
+      if (value != null) {
+         return value;
       }
       return fallbackValue;
    }
 
    public String[] getKeys() {
+      if (store_ != null) {
+         return store_.getKeys(row_);
+      }
       Set<String> keys = keyValue_.keySet();
       return keys.toArray(new String[keys.size()]);
    }
 
    public boolean hasKey(String key) {
+      if (store_ != null) {
+         return store_.hasKey(row_, key);
+      }
       return keyValue_.containsKey(key);
    }
 
    public void setOriginalPosition(double xPos, double yPos, double zPos) {
+      if (store_ != null) {
+         store_.setDouble(row_, SpotStore.X_ORI, xPos);
+         store_.setDouble(row_, SpotStore.Y_ORI, yPos);
+         store_.setDouble(row_, SpotStore.Z_ORI, zPos);
+         return;
+      }
       xOri_ = xPos;
       yOri_ = yPos;
       zOri_ = zPos;
@@ -219,13 +285,56 @@ public class SpotData implements PointData {
    }
 
    public int getPosition() {
+      if (store_ != null) {
+         return store_.getInt(row_, SpotStore.POSITION);
+      }
       return position_;
    }
 
    public void setPosition(int position) {
+      if (store_ != null) {
+         store_.setInt(row_, SpotStore.POSITION, position);
+         return;
+      }
       position_ = position;
    }
 
+   /**
+    * @return number of frames/slices in which this spot was found
+    */
+   public int getNrLinks() {
+      if (store_ != null) {
+         return store_.getInt(row_, SpotStore.NR_LINKS);
+      }
+      return nrLinks_;
+   }
+
+   public void setNrLinks(int nrLinks) {
+      if (store_ != null) {
+         store_.setInt(row_, SpotStore.NR_LINKS, nrLinks);
+         return;
+      }
+      nrLinks_ = nrLinks;
+   }
+
+   /**
+    * @return original first frame/slice in which this spot was found
+    */
+   public int getOriginalFrame() {
+      if (store_ != null) {
+         return store_.getInt(row_, SpotStore.ORIGINAL_FRAME);
+      }
+      return originalFrame_;
+   }
+
+   public void setOriginalFrame(int originalFrame) {
+      if (store_ != null) {
+         store_.setInt(row_, SpotStore.ORIGINAL_FRAME, originalFrame);
+         return;
+      }
+      originalFrame_ = originalFrame;
+   }
+
    public int getNr() {
       return nr_;
    }
@@ -239,62 +348,110 @@ public class SpotData implements PointData {
    }
 
    public double getIntensity() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.INTENSITY);
+      }
       return intensity_;
    }
 
    public double getBackground() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.BACKGROUND);
+      }
       return background_;
    }
 
    public double getXCenter() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.X_CENTER);
+      }
       return xCenter_;
    }
 
    public void setXCenter(double x) {
+      if (store_ != null) {
+         store_.setDouble(row_, SpotStore.X_CENTER, x);
+         return;
+      }
       xCenter_ = x;
    }
 
    public double getYCenter() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.Y_CENTER);
+      }
       return yCenter_;
    }
 
    public void setYCenter(double y) {
+      if (store_ != null) {
+         store_.setDouble(row_, SpotStore.Y_CENTER, y);
+         return;
+      }
       yCenter_ = y;
    }
 
    public double getZCenter() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.Z_CENTER);
+      }
       return zCenter_;
    }
 
    public void setZCenter(double z) {
+      if (store_ != null) {
+         store_.setDouble(row_, SpotStore.Z_CENTER, z);
+         return;
+      }
       zCenter_ = z;
    }
 
    public double getXOri() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.X_ORI);
+      }
       return xOri_;
    }
 
    public double geYOri() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.Y_ORI);
+      }
       return yOri_;
    }
 
    public double getZOri() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.Z_ORI);
+      }
       return zOri_;
    }
 
    public double getWidth() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.WIDTH);
+      }
       return width_;
    }
 
    public double getA() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.A);
+      }
       return a_;
    }
 
    public double getTheta() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.THETA);
+      }
       return theta_;
    }
 
    public double getSigma() {
+      if (store_ != null) {
+         return store_.getDouble(row_, SpotStore.SIGMA);
+      }
       return sigma_;
    }
 
@@ -351,7 +508,28 @@ public class SpotData implements PointData {
 
    @Override
    public Point2D.Double getPoint() {
-      return new Point2D.Double(xCenter_, yCenter_);
+      return new Point2D.Double(getXCenter(), getYCenter());
+   }
+
+   /**
+    * Views are equal when they show the same row of the same store, other
+    * spots are only equal to themselves.
+    */
+   @Override
+   public boolean equals(Object obj) {
+      if (store_ == null || !(obj instanceof SpotData)) {
+         return this == obj;
+      }
+      SpotData other = (SpotData) obj;
+      return other.store_ == store_ && other.row_ == row_;
+   }
+
+   @Override
+   public int hashCode() {
+      if (store_ == null) {
+         return System.identityHashCode(this);
+      }
+      return 31 * System.identityHashCode(store_) + row_;
    }
 
 }
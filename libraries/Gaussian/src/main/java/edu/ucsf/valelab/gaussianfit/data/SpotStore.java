@@ -0,0 +1,372 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Column store for spots.  Every property of the spots is kept in its own
+ * primitive array, so that millions of spots take much less memory than
+ * SpotData objects do, and give the garbage collector nothing to do.
+ *
+ * <p>Rows are kept in chunks of at most 65536 rows, so that adding rows never
+ * copies more than one chunk.  Values of other keys (see SpotData.Keys) are
+ * kept in side columns, one per key, that only use memory in chunks that
+ * have rows with the key.
+ *
+ * <p>Spots are read and changed through SpotData views of a row, see
+ * {@link #get(int)} and {@link #asList()}.  Rows have to be added from one
+ * thread, before the store is shared.  After that, rows can be read and
+ * changed from several threads.
+ */
+public final class SpotStore {
+   private static final int CHUNK_BITS = 16;
+   private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+   private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+   private static final int MIN_CAPACITY = 16;
+
+   // double columns
+   static final int INTENSITY = 0;
+   static final int BACKGROUND = 1;
+   static final int X_CENTER = 2;
+   static final int Y_CENTER = 3;
+   static final int Z_CENTER = 4;
+   static final int X_ORI = 5;
+   static final int Y_ORI = 6;
+   static final int Z_ORI = 7;
+   static final int WIDTH = 8;
+   static final int A = 9;
+   static final int THETA = 10;
+   static final int SIGMA = 11;
+   private static final int NR_DOUBLES = 12;
+
+   // int columns
+   static final int FRAME = 0;
+   static final int SLICE = 1;
+   static final int CHANNEL = 2;
+   static final int POSITION = 3;
+   static final int NR = 4;
+   static final int X = 5;
+   static final int Y = 6;
+   static final int NR_LINKS = 7;
+   static final int ORIGINAL_FRAME = 8;
+   private static final int NR_INTS = 9;
+
+   // [chunk][column][row in chunk]
+   private double[][][] doubles_ = new double[0][][];
+   private int[][][] ints_ = new int[0][][];
+   private int size_ = 0;
+   // side columns by key, in the order in which the keys were first used
+   private final Map<String, KeyColumn> keyColumns_ = new LinkedHashMap<String, KeyColumn>();
+   private final List<SpotData> list_ = new SpotList(null);
+
+   private static final class KeyColumn {
+      // [chunk][row in chunk], null for chunks without the key
+      double[][] values_ = new double[0][];
+      final BitSet rows_ = new BitSet();
+   }
+
+   public SpotStore() {
+   }
+
+   /**
+    * Creates a store with copies of the given spots.
+    *
+    * @param spots spots to copy
+    */
+   public SpotStore(Collection<SpotData> spots) {
+      addAll(spots);
+   }
+
+   /**
+    * Returns the store behind a list of spots, if the list is the whole of
+    * {@link #asList()} of a store, or a new store with copies of the spots
+    * otherwise.
+    *
+    * @param spots list of spots
+    * @return store with these spots
+    */
+   public static SpotStore of(List<SpotData> spots) {
+      if (spots instanceof SpotList && ((SpotList) spots).rows_ == null) {
+         return ((SpotList) spots).store();
+      }
+      return new SpotStore(spots);
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   /**
+    * Adds a copy of the spot as a new row.  The ImageProcessor of the spot is
+    * not copied.
+    *
+    * @param spot spot to copy
+    * @return index of the new row
+    */
+   public int add(SpotData spot) {
+      int row = size_;
+      grow(row);
+      size_++;
+      int[][] ints = ints_[row >>> CHUNK_BITS];
+      int i = row & CHUNK_MASK;
+      ints[FRAME][i] = spot.getFrame();
+      ints[SLICE][i] = spot.getSlice();
+      ints[CHANNEL][i] = spot.getChannel();
+      ints[POSITION][i] = spot.getPosition();
+      ints[NR][i] = spot.getNr();
+      ints[X][i] = spot.getX();
+      ints[Y][i] = spot.getY();
+      ints[NR_LINKS][i] = spot.getNrLinks();
+      ints[ORIGINAL_FRAME][i] = spot.getOriginalFrame();
+      double[][] doubles = doubles_[row >>> CHUNK_BITS];
+      doubles[INTENSITY][i] = spot.getIntensity();
+      doubles[BACKGROUND][i] = spot.getBackground();
+      doubles[X_CENTER][i] = spot.getXCenter();
+      doubles[Y_CENTER][i] = spot.getYCenter();
+      doubles[Z_CENTER][i] = spot.getZCenter();
+      doubles[X_ORI][i] = spot.getXOri();
+      doubles[Y_ORI][i] = spot.geYOri();
+      doubles[Z_ORI][i] = spot.getZOri();
+      doubles[WIDTH][i] = spot.getWidth();
+      doubles[A][i] = spot.getA();
+      doubles[THETA][i] = spot.getTheta();
+      doubles[SIGMA][i] = spot.getSigma();
+      for (String key : spot.getKeys()) {
+         putValue(row, key, spot.getValue(key));
+      }
+      return row;
+   }
+
+   public void addAll(Collection<SpotData> spots) {
+      for (SpotData spot : spots) {
+         add(spot);
+      }
+   }
+
+   /**
+    * Adds copies of all rows of another store, a column at a time.  The
+    * other store should not be changed while this runs.
+    *
+    * @param other store to copy the rows of
+    */
+   public void addAll(SpotStore other) {
+      int row = 0;
+      while (row < other.size_) {
+         grow(size_);
+         int chunk = size_ >>> CHUNK_BITS;
+         int i = size_ & CHUNK_MASK;
+         int otherChunk = row >>> CHUNK_BITS;
+         int otherI = row & CHUNK_MASK;
+         int n = Math.min(doubles_[chunk][0].length - i,
+               Math.min(other.size_ - row, other.doubles_[otherChunk][0].length - otherI));
+         for (int c = 0; c < NR_DOUBLES; c++) {
+            System.arraycopy(other.doubles_[otherChunk][c], otherI, doubles_[chunk][c], i, n);
+         }
+         for (int c = 0; c < NR_INTS; c++) {
+            System.arraycopy(other.ints_[otherChunk][c], otherI, ints_[chunk][c], i, n);
+         }
+         int first = size_;
+         size_ += n;
+         for (Map.Entry<String, KeyColumn> entry : other.keyColumns_.entrySet()) {
+            KeyColumn column = entry.getValue();
+            for (int r = column.rows_.nextSetBit(row); r >= 0 && r < row + n;
+                  r = column.rows_.nextSetBit(r + 1)) {
+               putValue(first + r - row, entry.getKey(),
+                     column.values_[r >>> CHUNK_BITS][r & CHUNK_MASK]);
+            }
+         }
+         row += n;
+      }
+   }
+
+   /**
+    * Makes sure there is room for the given row.  Chunks start small and
+    * double in size until they are full, so that small stores stay small.
+    */
+   private void grow(int row) {
+      int chunk = row >>> CHUNK_BITS;
+      int i = row & CHUNK_MASK;
+      if (chunk == doubles_.length) {
+         int capacity = chunk == 0 ? MIN_CAPACITY : CHUNK_SIZE;
+         doubles_ = Arrays.copyOf(doubles_, chunk + 1);
+         doubles_[chunk] = new double[NR_DOUBLES][capacity];
+         ints_ = Arrays.copyOf(ints_, chunk + 1);
+         ints_[chunk] = new int[NR_INTS][capacity];
+      } else if (i == doubles_[chunk][0].length) {
+         int capacity = Math.min(CHUNK_SIZE, 2 * i);
+         for (int c = 0; c < NR_DOUBLES; c++) {
+            doubles_[chunk][c] = Arrays.copyOf(doubles_[chunk][c], capacity);
+         }
+         for (int c = 0; c < NR_INTS; c++) {
+            ints_[chunk][c] = Arrays.copyOf(ints_[chunk][c], capacity);
+         }
+      }
+   }
+
+   /**
+    * @param row index of the row
+    * @return view of the row, changes to the view change the store
+    */
+   public SpotData get(int row) {
+      if (row < 0 || row >= size_) {
+         throw new IndexOutOfBoundsException("Row " + row + " of " + size_);
+      }
+      return new SpotData(this, row);
+   }
+
+   /**
+    * @return read-only list with views of all rows, that grows with the store
+    */
+   public List<SpotData> asList() {
+      return list_;
+   }
+
+   /**
+    * @param rows indices of the rows
+    * @return read-only list with views of the given rows
+    */
+   public List<SpotData> rows(int[] rows) {
+      return new SpotList(rows);
+   }
+
+   double getDouble(int row, int column) {
+      return doubles_[row >>> CHUNK_BITS][column][row & CHUNK_MASK];
+   }
+
+   void setDouble(int row, int column, double value) {
+      doubles_[row >>> CHUNK_BITS][column][row & CHUNK_MASK] = value;
+   }
+
+   int getInt(int row, int column) {
+      return ints_[row >>> CHUNK_BITS][column][row & CHUNK_MASK];
+   }
+
+   void setInt(int row, int column, int value) {
+      ints_[row >>> CHUNK_BITS][column][row & CHUNK_MASK] = value;
+   }
+
+   /**
+    * Subtracts the drift of their frame (or slice) from the x and y centers
+    * of all rows, a chunk at a time.
+    *
+    * @param bySlice whether the drift is given per slice rather than per
+    *                frame
+    * @param dx      drift in x of frame 1, 2, ...; lower frames get the
+    *                first value and higher frames the last value
+    * @param dy      drift in y of frame 1, 2, ...
+    */
+   public void subtractDrift(boolean bySlice, double[] dx, double[] dy) {
+      int last = dx.length - 1;
+      for (int chunk = 0; chunk < doubles_.length; chunk++) {
+         int n = Math.min(doubles_[chunk][0].length, size_ - (chunk << CHUNK_BITS));
+         int[] frames = ints_[chunk][bySlice ? SLICE : FRAME];
+         double[] xs = doubles_[chunk][X_CENTER];
+         double[] ys = doubles_[chunk][Y_CENTER];
+         for (int i = 0; i < n; i++) {
+            int f = Math.min(last, Math.max(0, frames[i] - 1));
+            xs[i] -= dx[f];
+            ys[i] -= dy[f];
+         }
+      }
+   }
+
+   synchronized void putValue(int row, String key, double value) {
+      KeyColumn column = keyColumns_.get(key);
+      if (column == null) {
+         column = new KeyColumn();
+         keyColumns_.put(key, column);
+      }
+      int chunk = row >>> CHUNK_BITS;
+      if (chunk >= column.values_.length) {
+         column.values_ = Arrays.copyOf(column.values_, doubles_.length);
+      }
+      int capacity = doubles_[chunk][0].length;
+      if (column.values_[chunk] == null) {
+         column.values_[chunk] = new double[capacity];
+      } else if (column.values_[chunk].length < capacity) {
+         column.values_[chunk] = Arrays.copyOf(column.values_[chunk], capacity);
+      }
+      column.values_[chunk][row & CHUNK_MASK] = value;
+      column.rows_.set(row);
+   }
+
+   synchronized Double getValue(int row, String key) {
+      KeyColumn column = keyColumns_.get(key);
+      if (column == null || !column.rows_.get(row)) {
+         return null;
+      }
+      return column.values_[row >>> CHUNK_BITS][row & CHUNK_MASK];
+   }
+
+   synchronized boolean hasKey(int row, String key) {
+      KeyColumn column = keyColumns_.get(key);
+      return column != null && column.rows_.get(row);
+   }
+
+   synchronized String[] getKeys(int row) {
+      List<String> keys = new ArrayList<String>();
+      for (Map.Entry<String, KeyColumn> entry : keyColumns_.entrySet()) {
+         if (entry.getValue().rows_.get(row)) {
+            keys.add(entry.getKey());
+         }
+      }
+      return keys.toArray(new String[keys.size()]);
+   }
+
+   /**
+    * Estimates the memory used by the arrays of the store.
+    *
+    * @return size in bytes
+    */
+   public synchronized long getMemorySize() {
+      long bytes = 0;
+      for (int chunk = 0; chunk < doubles_.length; chunk++) {
+         bytes += (long) doubles_[chunk][0].length * (8 * NR_DOUBLES + 4 * NR_INTS);
+      }
+      for (KeyColumn column : keyColumns_.values()) {
+         for (double[] values : column.values_) {
+            if (values != null) {
+               bytes += 8L * values.length;
+            }
+         }
+         bytes += column.rows_.size() / 8;
+      }
+      return bytes;
+   }
+
+   /**
+    * List of views of the rows of the store.
+    */
+   private final class SpotList extends AbstractList<SpotData> implements RandomAccess {
+      // indices of the rows in the list, or null for all rows
+      private final int[] rows_;
+
+      SpotList(int[] rows) {
+         rows_ = rows;
+      }
+
+      SpotStore store() {
+         return SpotStore.this;
+      }
+
+      @Override
+      public SpotData get(int index) {
+         if (rows_ == null) {
+            return SpotStore.this.get(index);
+         }
+         return SpotStore.this.get(rows_[index]);
+      }
+
+      @Override
+      public int size() {
+         return rows_ == null ? size_ : rows_.length;
+      }
+   }
+}
@@ -0,0 +1,384 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.ucsf.valelab.tsf.MMLocM;
+import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
+import ij.process.ImageProcessor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Reads and writes the spots of Tagged Spot Files (.tsf) on several threads.
+ *
+ * <p>In a .tsf file, every spot is a protocol buffer message preceded by its
+ * length.  The reader maps the file into memory a large window at a time,
+ * walks the lengths to cut the spots into chunks, and decodes the chunks in parallel into a
+ * SpotStore.  The writer encodes chunks of rows in parallel.  Both keep
+ * the order of the spots, and keep only a few chunks in memory at once.
+ */
+public final class TsfSpotStream {
+   // spots per chunk
+   private static final int CHUNK_SPOTS = 1 << 14;
+   // largest part of the file mapped at once
+   private static final long MAX_MAPPED = 1L << 26;
+
+   /**
+    * Receives the number of spots read or written so far.
+    */
+   public interface ProgressListener {
+      void progress(long nrSpots);
+   }
+
+   /**
+    * Spots read from a file, with their z range.
+    */
+   public static final class Result {
+      public final SpotStore store_ = new SpotStore();
+      public long nrFailed_ = 0;
+      public boolean hasZ_ = false;
+      public double minZ_ = Double.POSITIVE_INFINITY;
+      public double maxZ_ = Double.NEGATIVE_INFINITY;
+
+      private void add(Result chunk) {
+         store_.addAll(chunk.store_);
+         nrFailed_ += chunk.nrFailed_;
+         hasZ_ |= chunk.hasZ_;
+         minZ_ = Math.min(minZ_, chunk.minZ_);
+         maxZ_ = Math.max(maxZ_, chunk.maxZ_);
+      }
+   }
+
+   private TsfSpotStream() {
+   }
+
+   private static int nrThreads() {
+      return Math.max(1, Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * Reads the spots from a part of a file.
+    *
+    * @param channel       open file
+    * @param start         position of the first spot in the file
+    * @param end           position after the last spot in the file
+    * @param expectedSpots number of spots to read at most, or 0 for all
+    * @param mmExtensions  whether the spots have the extensions of this
+    *                      application, see MMLocM
+    * @param listener      is told after each chunk how many spots were read,
+    *                      may be null
+    * @return the spots
+    * @throws IOException when the file can not be read
+    */
+   public static Result read(FileChannel channel, long start, long end, long expectedSpots,
+         boolean mmExtensions, ProgressListener listener) throws IOException {
+      return read(channel, start, end, expectedSpots, mmExtensions, listener, MAX_MAPPED);
+   }
+
+   /**
+    * As {@link #read(FileChannel, long, long, long, boolean, ProgressListener)},
+    * mapping at most maxMapped bytes of the file at once.
+    */
+   static Result read(FileChannel channel, long start, long end, long expectedSpots,
+         boolean mmExtensions, ProgressListener listener, long maxMapped) throws IOException {
+      final ExtensionRegistry registry = ExtensionRegistry.newInstance();
+      if (mmExtensions) {
+         registry.add(MMLocM.intensityAperture);
+         registry.add(MMLocM.intensityBackground);
+         registry.add(MMLocM.intensityRatio);
+         registry.add(MMLocM.mSigma);
+         registry.add(MMLocM.integralApertureSigma);
+      }
+      Result result = new Result();
+      int nrThreads = nrThreads();
+      ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+      ArrayDeque<Future<Result>> inFlight = new ArrayDeque<Future<Result>>();
+      try {
+         long position = start;
+         long nrSpots = 0;
+         // mapped part of the file, cut into chunks until a chunk runs past its end
+         MappedByteBuffer window = null;
+         long windowStart = start;
+         while (position < end && (expectedSpots == 0 || nrSpots < expectedSpots)) {
+            int maxSpots = CHUNK_SPOTS;
+            if (expectedSpots > 0) {
+               maxSpots = (int) Math.min(maxSpots, expectedSpots - nrSpots);
+            }
+            if (window == null) {
+               window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                     Math.min(end - position, maxMapped));
+               windowStart = position;
+            }
+            ByteBuffer buffer = window.duplicate();
+            buffer.position((int) (position - windowStart));
+            buffer = buffer.slice();
+            // offsets of the spots in the buffer, and the end of the last one
+            int[] offsets = new int[maxSpots + 1];
+            int count = cut(buffer, offsets, maxSpots);
+            if (count < maxSpots && position > windowStart
+                  && windowStart + window.limit() < end) {
+               // the chunk continues after the window, map the next window from here
+               window = null;
+               continue;
+            }
+            if (count == 0) {
+               if (end - position > maxMapped) {
+                  throw new IOException("Spot at " + position + " is larger than "
+                        + maxMapped + " bytes");
+               }
+               // the file ends in the middle of a spot
+               result.nrFailed_++;
+               ReportingUtils.logError("Truncated spot at " + position);
+               break;
+            }
+            final byte[] data = new byte[offsets[count]];
+            buffer.get(data);
+            final int[] chunkOffsets = offsets;
+            final int chunkCount = count;
+            final boolean mm = mmExtensions;
+            inFlight.add(executor.submit(new Callable<Result>() {
+               @Override
+               public Result call() {
+                  return decode(data, chunkOffsets, chunkCount, registry, mm);
+               }
+            }));
+            position += offsets[count];
+            nrSpots += count;
+            while (inFlight.size() >= 2 * nrThreads) {
+               take(inFlight, result, listener);
+            }
+         }
+         while (!inFlight.isEmpty()) {
+            take(inFlight, result, listener);
+         }
+      } finally {
+         for (Future<Result> future : inFlight) {
+            future.cancel(true);
+         }
+         executor.shutdown();
+      }
+      return result;
+   }
+
+   private static void take(ArrayDeque<Future<Result>> inFlight, Result result,
+         ProgressListener listener) throws IOException {
+      try {
+         result.add(inFlight.poll().get());
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while reading spots");
+      } catch (ExecutionException ee) {
+         throw new IOException("Failed to read spots", ee.getCause());
+      }
+      if (listener != null) {
+         listener.progress(result.store_.size());
+      }
+   }
+
+   /**
+    * Finds up to maxSpots whole spots at the start of the buffer.
+    *
+    * @param offsets receives the offset of each spot, and after the last
+    *                spot the offset of its end
+    * @return number of spots found
+    */
+   private static int cut(ByteBuffer buffer, int[] offsets, int maxSpots) {
+      int limit = buffer.limit();
+      int offset = 0;
+      int count = 0;
+      while (count < maxSpots && offset < limit) {
+         // length of the message as a varint
+         int length = 0;
+         int p = offset;
+         int shift = 0;
+         boolean complete = false;
+         while (p < limit && shift < 35) {
+            byte b = buffer.get(p++);
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+            if (b >= 0) {
+               complete = true;
+               break;
+            }
+         }
+         if (!complete || length < 0 || (long) p + length > limit) {
+            break;
+         }
+         offsets[count++] = offset;
+         offset = p + length;
+      }
+      offsets[count] = offset;
+      return count;
+   }
+
+   private static Result decode(byte[] data, int[] offsets, int count,
+         ExtensionRegistry registry, boolean mmExtensions) {
+      Result result = new Result();
+      for (int i = 0; i < count; i++) {
+         // skip the length
+         int p = offsets[i];
+         while (data[p] < 0) {
+            p++;
+         }
+         p++;
+         try {
+            TaggedSpotsProtos.Spot pSpot = TaggedSpotsProtos.Spot.PARSER.parseFrom(
+                  data, p, offsets[i + 1] - p, registry);
+            result.store_.add(toSpotData(pSpot, mmExtensions, result));
+         } catch (InvalidProtocolBufferException ipbe) {
+            result.nrFailed_++;
+            ReportingUtils.logError("ProtocolBuffer Exception: " + ipbe.getMessage());
+         }
+      }
+      return result;
+   }
+
+   private static SpotData toSpotData(TaggedSpotsProtos.Spot pSpot, boolean mmExtensions,
+         Result result) {
+      SpotData gSpot = new SpotData((ImageProcessor) null, pSpot.getChannel(),
+            pSpot.getSlice(), pSpot.getFrame(), pSpot.getPos(),
+            pSpot.getMolecule(), pSpot.getXPosition(), pSpot.getYPosition());
+      gSpot.setData(pSpot.getIntensity(), pSpot.getBackground(), pSpot.getX(),
+            pSpot.getY(), 0.0, pSpot.getWidth(), pSpot.getA(), pSpot.getTheta(),
+            pSpot.getXPrecision());
+      if (mmExtensions) {
+         gSpot.addKeyValue(SpotData.Keys.APERTUREINTENSITY,
+               pSpot.getExtension(MMLocM.intensityAperture));
+         gSpot.addKeyValue(SpotData.Keys.APERTUREBACKGROUND,
+               pSpot.getExtension(MMLocM.intensityBackground));
+         gSpot.addKeyValue(SpotData.Keys.INTENSITYRATIO,
+               pSpot.getExtension(MMLocM.intensityRatio));
+         gSpot.addKeyValue(SpotData.Keys.MSIGMA,
+               pSpot.getExtension(MMLocM.mSigma));
+         if (pSpot.hasExtension(MMLocM.integralApertureSigma)) {
+            gSpot.addKeyValue(SpotData.Keys.INTEGRALAPERTURESIGMA,
+                  pSpot.getExtension(MMLocM.integralApertureSigma));
+         }
+      }
+      if (pSpot.hasZ()) {
+         double zc = pSpot.getZ();
+         gSpot.setZCenter(zc);
+         result.hasZ_ = true;
+         result.minZ_ = Math.min(result.minZ_, zc);
+         result.maxZ_ = Math.max(result.maxZ_, zc);
+      }
+      return gSpot;
+   }
+
+   /**
+    * Writes the spots of a row, each preceded by its length.  The spots are
+    * numbered in the order in which they are written.
+    *
+    * @param rowData  row with the spots to write
+    * @param out      stream to write to
+    * @param listener is told after each chunk how many spots were written,
+    *                 may be null
+    * @return number of spots written
+    * @throws IOException when the spots can not be written
+    */
+   public static long write(final RowData rowData, OutputStream out,
+         ProgressListener listener) throws IOException {
+      final int size = rowData.spotList_.size();
+      int nrThreads = nrThreads();
+      ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+      ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+      long written = 0;
+      try {
+         for (int from = 0; from < size; from += CHUNK_SPOTS) {
+            final int first = from;
+            final int last = Math.min(size, from + CHUNK_SPOTS);
+            inFlight.add(executor.submit(new Callable<byte[]>() {
+               @Override
+               public byte[] call() throws IOException {
+                  return encode(rowData, first, last);
+               }
+            }));
+            while (inFlight.size() >= 2 * nrThreads) {
+               written = put(inFlight, out, listener, written, size);
+            }
+         }
+         while (!inFlight.isEmpty()) {
+            written = put(inFlight, out, listener, written, size);
+         }
+      } finally {
+         for (Future<byte[]> future : inFlight) {
+            future.cancel(true);
+         }
+         executor.shutdown();
+      }
+      return written;
+   }
+
+   /**
+    * Writes the oldest chunk.
+    *
+    * @return number of spots written after this chunk
+    */
+   private static long put(ArrayDeque<Future<byte[]>> inFlight, OutputStream out,
+         ProgressListener listener, long written, int size) throws IOException {
+      byte[] data;
+      try {
+         data = inFlight.poll().get();
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while writing spots");
+      } catch (ExecutionException ee) {
+         throw new IOException("Failed to write spots", ee.getCause());
+      }
+      out.write(data);
+      written = Math.min(size, written + CHUNK_SPOTS);
+      if (listener != null) {
+         listener.progress(written);
+      }
+      return written;
+   }
+
+   private static byte[] encode(RowData rowData, int first, int last) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(64 * (last - first));
+      for (int i = first; i < last; i++) {
+         SpotData gd = rowData.spotList_.get(i);
+         TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
+         spotBuilder.setMolecule(i)
+               .setFrame(gd.getFrame())
+               .setChannel(gd.getChannel())
+               .setPos(gd.getPosition())
+               .setSlice(gd.getSlice())
+               .setX((float) gd.getXCenter())
+               .setY((float) gd.getYCenter())
+               .setIntensity((float) gd.getIntensity())
+               .setBackground((float) gd.getBackground())
+               .setXPosition(gd.getX())
+               .setYPosition(gd.getY())
+               .setWidth((float) gd.getWidth())
+               .setA((float) gd.getA())
+               .setTheta((float) gd.getTheta())
+               .setXPrecision((float) gd.getSigma())
+               .setExtension(MMLocM.intensityAperture,
+                     gd.getValue(SpotData.Keys.APERTUREINTENSITY, -1.0).floatValue())
+               .setExtension(MMLocM.intensityBackground,
+                     gd.getValue(SpotData.Keys.APERTUREBACKGROUND, -1.0).floatValue())
+               .setExtension(MMLocM.intensityRatio,
+                     gd.getValue(SpotData.Keys.INTENSITYRATIO, -1.0).floatValue())
+               .setExtension(MMLocM.mSigma,
+                     gd.getValue(SpotData.Keys.MSIGMA, -1.0).floatValue())
+               .setExtension(MMLocM.integralApertureSigma,
+                     gd.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA, -1.0).floatValue());
+         if (rowData.hasZ_) {
+            spotBuilder.setZ((float) gd.getZCenter());
+         }
+         spotBuilder.build().writeDelimitedTo(out);
+      }
+      return out.toByteArray();
+   }
+}
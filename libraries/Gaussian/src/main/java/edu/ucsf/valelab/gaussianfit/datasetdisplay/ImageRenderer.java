@@ -46,12 +46,20 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * @author Nico Stuurman
  */
 public class ImageRenderer {
 
+   // below this number of spots, sorting them into tiles costs more than it saves
+   private static final int MIN_TILED_SPOTS = 50000;
+
    private final int[][] iceLut_ = new int[256][];
    static int[][] zLut_ = new int[256][];
 
@@ -68,6 +76,18 @@ public class ImageRenderer {
    public static ImageProcessor renderData(final RowData rowData,
          final int method, final double magnification, Rectangle rect,
          final SpotDataFilter sf) {
+      boolean tiled = Runtime.getRuntime().availableProcessors() > 1
+            && rowData.spotList_.size() >= MIN_TILED_SPOTS;
+      return renderData(rowData, method, magnification, rect, sf, tiled);
+   }
+
+   /**
+    * As {@link #renderData(RowData, int, double, Rectangle, SpotDataFilter)},
+    * drawing tile by tile in parallel, or in a single loop over the spots.
+    */
+   static ImageProcessor renderData(final RowData rowData,
+         final int method, final double magnification, Rectangle rect,
+         final SpotDataFilter sf, final boolean tiled) {
 
       ImageProcessor ip = null;
 
@@ -88,64 +108,53 @@ public class ImageRenderer {
       final int height = rect.height;
       final int fullWidth = (int) (rowData.width_ * magnification);
       final int fullHeight = (int) (rowData.height_ * magnification);
-      int endx = rect.x + rect.width;
-      int endy = rect.y + rect.height;
       final int size = width * height;
       double factor = magnification / rowData.pixelSizeNm_;
 
       try {
          if (method == 0) {
+            final SpotTiles.Footprint footprint = pixelFootprint(factor, rect);
             if (!rowData.hasZ_) {
                ip = new ShortProcessor(width, height);
-               short[] pixels = new short[size];
+               final short[] pixels = new short[size];
                ip.setPixels(pixels);
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixels[index] != -1) {
-                              pixels[index] += 1;
-                           }
+               render(rowData.spotList_, sf, width, height, footprint, tiled, new Painter() {
+                  @Override
+                  public void paint(SpotData spot, int[] box, Rectangle tile) {
+                     int index = (box[1] * width) + box[0];
+                     if (index < size && index > 0) {
+                        if (pixels[index] != -1) {
+                           pixels[index] += 1;
                         }
                      }
                   }
-               }
+               });
             } else if (rowData.hasZ_) {
                ShortProcessor[] sp = new ShortProcessor[3];
-               short[][] pixels = new short[3][size];
+               final short[][] pixels = new short[3][size];
                for (int i = 0; i < 3; i++) {
                   sp[i] = new ShortProcessor(width, height);
                   sp[i].setPixels(pixels[i]);
                }
-               double spread = rowData.maxZ_ - rowData.minZ_;
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
-                           if (zIndex < 0) {
-                              zIndex = 0;
-                           }
-                           if (zIndex > 255) {
-                              zIndex = 255;
-                           }
-                           for (int i = 0; i < 3; i++) {
-                              pixels[i][index] += zLut_[zIndex][i];
-                           }
+               final double spread = rowData.maxZ_ - rowData.minZ_;
+               render(rowData.spotList_, sf, width, height, footprint, tiled, new Painter() {
+                  @Override
+                  public void paint(SpotData spot, int[] box, Rectangle tile) {
+                     int index = (box[1] * width) + box[0];
+                     if (index < size && index > 0) {
+                        int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
+                        if (zIndex < 0) {
+                           zIndex = 0;
+                        }
+                        if (zIndex > 255) {
+                           zIndex = 255;
+                        }
+                        for (int i = 0; i < 3; i++) {
+                           pixels[i][index] += zLut_[zIndex][i];
                         }
                      }
                   }
-               }
+               });
                // we have 3 ShortProcessors.  Combine into a color image:
                final ColorProcessor cp = new ColorProcessor(width, height);
                byte[][] colorPixels = new byte[3][];
@@ -172,108 +181,72 @@ public class ImageRenderer {
          } else if (method == 1 || method == 2) {  // Gaussian and normalized Gaussian
 
             // determines whether gaussians should be normalized by their total intensity
-            boolean normalize = false;
-            if (method == 2) {
-               normalize = true;
-            }
+            final boolean normalize = method == 2;
 
             ip = new FloatProcessor(width, height);
-            float[] pixels = new float[size];
+            final float[] pixels = new float[size];
             ip.setPixels(pixels);
+            final Rectangle r = rect;
 
             ij.IJ.showStatus("Rendering Image...");
-            int updateQuantum = rowData.spotList_.size() / 100;
-            int counter = 0;
-            int spotsUsed = 0;
-            for (SpotData spot : rowData.spotList_) {
-               if (counter % updateQuantum == 0) {
-                  ij.IJ.showProgress(counter, rowData.spotList_.size());
-               }
-
-               if (sf.filter(spot)) {
-
-                  // cover 3 * precision
-                  int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
-                  if (halfWidth == 0) {
-                     halfWidth = 2;
-                  }
-
-                  /*
-                   * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sigy^2))+b
-                   * A = params[INT]  (amplitude)
-                   * b = params[BGR]  (background)
-                   * xc = params[XC]
-                   * yc = params[YC]
-                   * sig = params[S]
-                   *
-                   */
-                  int xc = (int) (factor * spot.getXCenter());
-                  int yc = (int) (factor * spot.getYCenter());
-                  //int xc = (int) Math.round(spot.getXCenter() / renderedPixelInNm);
-                  //int yc = (int) Math.round(spot.getYCenter() / renderedPixelInNm);
-
-                  if (xc > rect.x + halfWidth && xc < endx - halfWidth
-                        && yc > rect.y + halfWidth && yc < endy - halfWidth) {
-
-                     if (xc > halfWidth && xc < (fullWidth - halfWidth)
-                           && yc > halfWidth && yc < (fullHeight - halfWidth)) {
-                        counter++;
-                        spotsUsed++;
+            int spotsUsed = render(rowData.spotList_, sf, width, height,
+                  gaussianFootprint(factor, renderedPixelInNm, rect, fullWidth, fullHeight),
+                  tiled, new Painter() {
+                     @Override
+                     public void paint(SpotData spot, int[] box, Rectangle tile) {
+                        /*
+                         * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sigy^2))+b
+                         * A = params[INT]  (amplitude)
+                         * b = params[BGR]  (background)
+                         * xc = params[XC]
+                         * yc = params[YC]
+                         * sig = params[S]
+                         *
+                         */
+                        double[] parms = {1.0, 0.0,
+                              spot.getXCenter() / renderedPixelInNm,
+                              spot.getYCenter() / renderedPixelInNm,
+                              spot.getSigma() / renderedPixelInNm};
+                        // the whole box is needed for the total, only the
+                        // part in this tile is drawn
                         double totalInt = 0.0;
-                        int xStart = xc - halfWidth;
-                        int xEnd = xc + halfWidth;
-                        int yStart = yc - halfWidth;
-                        int yEnd = yc + halfWidth;
-                        float[][] boxPixels = new float[xEnd - xStart][yEnd - yStart];
+                        if (normalize) {
+                           for (int x = box[0]; x < box[2]; x++) {
+                              for (int y = box[1]; y < box[3]; y++) {
+                                 totalInt += GaussianUtils.gaussian(parms, x + r.x, y + r.y);
+                              }
+                           }
+                           if (!(totalInt > 0)) {
+                              return;
+                           }
+                        }
+                        int xStart = Math.max(box[0], tile.x);
+                        int xEnd = Math.min(box[2], tile.x + tile.width);
+                        int yStart = Math.max(box[1], tile.y);
+                        int yEnd = Math.min(box[3], tile.y + tile.height);
                         for (int x = xStart; x < xEnd; x++) {
                            for (int y = yStart; y < yEnd; y++) {
-                              double[] parms = {1.0, 0.0,
-                                    spot.getXCenter() / renderedPixelInNm,
-                                    spot.getYCenter() / renderedPixelInNm,
-                                    spot.getSigma() / renderedPixelInNm};
-                              double val = GaussianUtils.gaussian(parms, x, y);
-                              totalInt += val;
+                              double val = GaussianUtils.gaussian(parms, x + r.x, y + r.y);
                               if (normalize) {
-                                 boxPixels[x - xStart][y - yStart] = (float) val;
+                                 pixels[y * width + x] += (float) ((float) val / totalInt);
                               } else {
-                                 ip.setf(x, y, ip.getf(x, y) + (float) val);
+                                 pixels[y * width + x] += (float) val;
                               }
                            }
                         }
-                        // normalize if requested
-                        if (normalize && totalInt > 0) {
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 boxPixels[x - xStart][y - yStart] /= totalInt;
-                                 if (boxPixels[x - xStart][y - yStart] != boxPixels[x - xStart][y
-                                       - yStart]) {
-                                    System.out.println("<0");
-                                 }
-                              }
-                           }
-                           // now add to the image
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 try {
-                                    ip.setf(x - rect.x, y - rect.y,
-                                          ip.getf(x - rect.x, y - rect.y) + boxPixels[x - xStart][y
-                                                - yStart]);
-                                 } catch (Exception ex) {
-                                    System.out.println("Exception");
-                                 }
-                              }
-                           }
-                        }
-
                      }
-                  }
-               }
-            }
+                  });
 
             ij.IJ.showProgress(1);
             ij.IJ.showStatus("Rendered image using " + spotsUsed + " spots.");
 
          }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         ip = null;
+      } catch (ExecutionException ee) {
+         ij.IJ.log("Failed to render image: " + ee.getCause());
+         ip = null;
       } catch (java.lang.OutOfMemoryError ome) {
          // report out of memory
          ij.IJ.showMessage("Out of Memory", "Not enought memory to draw image at this resolution");
@@ -294,6 +267,130 @@ public class ImageRenderer {
    }
 
 
+
+   /**
+    * Draws a spot on part of the rendered image.
+    */
+   private interface Painter {
+      /**
+       * @param spot spot to draw
+       * @param box  pixels of the spot, see SpotTiles.Footprint
+       * @param tile part of the rendered image to draw on, other parts may be
+       *             drawn on at the same time
+       */
+      void paint(SpotData spot, int[] box, Rectangle tile);
+   }
+
+   /**
+    * Draws the spots tile by tile on the common fork/join pool.  Each pixel
+    * belongs to one tile, and is drawn by one thread.  When not tiled, the
+    * whole image is drawn in a single loop over the spots.
+    *
+    * @return number of spots drawn
+    */
+   private static int render(final List<SpotData> spots, final SpotDataFilter sf, int width,
+         int height, final SpotTiles.Footprint footprint, boolean tiled, final Painter painter)
+         throws InterruptedException, ExecutionException {
+      if (!tiled) {
+         Rectangle bounds = new Rectangle(0, 0, width, height);
+         int[] box = new int[4];
+         int nrSpots = 0;
+         for (SpotData spot : spots) {
+            if (sf.filter(spot) && footprint.bounds(spot, box)) {
+               painter.paint(spot, box, bounds);
+               nrSpots++;
+            }
+         }
+         return nrSpots;
+      }
+      // the filter is only needed to decide which tiles a spot goes to
+      final SpotTiles tiles = new SpotTiles(spots, width, height, new SpotTiles.Footprint() {
+         @Override
+         public boolean bounds(SpotData spot, int[] box) {
+            return sf.filter(spot) && footprint.bounds(spot, box);
+         }
+      });
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < tiles.getNrTiles(); t++) {
+         final int tile = t;
+         futures.add(ForkJoinPool.commonPool().submit(new Runnable() {
+            @Override
+            public void run() {
+               Rectangle bounds = tiles.getTile(tile);
+               int[] box = new int[4];
+               for (int i : tiles.getSpots(tile)) {
+                  SpotData spot = spots.get(i);
+                  if (footprint.bounds(spot, box)) {
+                     painter.paint(spot, box, bounds);
+                  }
+               }
+            }
+         }));
+      }
+      for (int t = 0; t < futures.size(); t++) {
+         futures.get(t).get();
+         ij.IJ.showProgress(t + 1, futures.size());
+      }
+      return tiles.getNrSpots();
+   }
+
+   /**
+    * Single pixel of each spot inside the rectangle.
+    */
+   private static SpotTiles.Footprint pixelFootprint(final double factor, final Rectangle rect) {
+      final int endx = rect.x + rect.width;
+      final int endy = rect.y + rect.height;
+      return new SpotTiles.Footprint() {
+         @Override
+         public boolean bounds(SpotData spot, int[] box) {
+            int x = (int) (factor * spot.getXCenter());
+            int y = (int) (factor * spot.getYCenter());
+            if (x > rect.x && x < endx && y > rect.y && y < endy) {
+               box[0] = x - rect.x;
+               box[1] = y - rect.y;
+               box[2] = box[0] + 1;
+               box[3] = box[1] + 1;
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
+   /**
+    * Box of 4 sigma around each spot that fits in the rectangle and in the
+    * full image.
+    */
+   private static SpotTiles.Footprint gaussianFootprint(final double factor,
+         final double renderedPixelInNm, final Rectangle rect, final int fullWidth,
+         final int fullHeight) {
+      final int endx = rect.x + rect.width;
+      final int endy = rect.y + rect.height;
+      return new SpotTiles.Footprint() {
+         @Override
+         public boolean bounds(SpotData spot, int[] box) {
+            // cover 3 * precision
+            int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
+            if (halfWidth == 0) {
+               halfWidth = 2;
+            }
+            int xc = (int) (factor * spot.getXCenter());
+            int yc = (int) (factor * spot.getYCenter());
+            if (xc > rect.x + halfWidth && xc < endx - halfWidth
+                  && yc > rect.y + halfWidth && yc < endy - halfWidth
+                  && xc > halfWidth && xc < (fullWidth - halfWidth)
+                  && yc > halfWidth && yc < (fullHeight - halfWidth)) {
+               box[0] = xc - halfWidth - rect.x;
+               box[1] = yc - halfWidth - rect.y;
+               box[2] = xc + halfWidth - rect.x;
+               box[3] = yc + halfWidth - rect.y;
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
    /**
     * Renders spotdata using various renderModes
     *
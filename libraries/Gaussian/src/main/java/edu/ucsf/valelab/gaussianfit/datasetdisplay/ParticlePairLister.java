@@ -30,14 +30,14 @@ package edu.ucsf.valelab.gaussianfit.datasetdisplay;
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.ResultsTableListener;
 import edu.ucsf.valelab.gaussianfit.Terms;
-import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.fitting.FittingException;
 import edu.ucsf.valelab.gaussianfit.fitting.Gaussian1DFitter;
 import edu.ucsf.valelab.gaussianfit.fitting.P2DEcdfFitter;
 import edu.ucsf.valelab.gaussianfit.fitting.P2DFitter;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
-import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPointByData;
+import edu.ucsf.valelab.gaussianfit.spotoperations.SpotGridIndex;
+import edu.ucsf.valelab.gaussianfit.spotoperations.SpotLinker;
 import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
 import edu.ucsf.valelab.gaussianfit.utils.ListUtils;
 import edu.ucsf.valelab.gaussianfit.utils.NumberUtils;
@@ -53,11 +53,9 @@ import java.awt.event.KeyListener;
 import java.awt.event.MouseListener;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
 import org.apache.commons.math3.exception.NumberIsTooLargeException;
 import org.apache.commons.math3.exception.TooManyEvaluationsException;
 import org.micromanager.internal.MMStudio;
@@ -233,124 +231,38 @@ public class ParticlePairLister {
                rowCounter++;
                ij.IJ.showStatus("Creating Pairs for row " + rowCounter);
 
-               Map<Integer, ArrayList<ArrayList<GsSpotPair>>> spotPairsByFrame
-                     = new HashMap<Integer, ArrayList<ArrayList<GsSpotPair>>>();
-
-               // index spots by position
-               Map<Integer, ArrayList<SpotData>> spotListsByPosition = new HashMap<>();
-               // and keep track of the positions that are actually used
-               List<Integer> positions = new ArrayList<Integer>();
-               for (SpotData spot : dc.getSpotData(row).spotList_) {
-                  if (positions.indexOf(spot.getPosition()) == -1) {
-                     positions.add(spot.getPosition());
-                  }
-                  if (spotListsByPosition.get(spot.getPosition()) == null) {
-                     spotListsByPosition.put(spot.getPosition(), new ArrayList<>());
-                  }
-                  spotListsByPosition.get(spot.getPosition()).add(spot);
-               }
-               Collections.sort(positions);
-               final int maxPos = positions.get(positions.size() - 1);
-
-               // First go through all frames to find all pairs, organize by position
-               for (int pos : positions) {
-                  spotPairsByFrame.put(pos, new ArrayList<ArrayList<GsSpotPair>>());
-
-                  for (int frame = 1; frame <= dc.getSpotData(row).nrFrames_; frame++) {
-
-                     ij.IJ.showProgress(pos * dc.getSpotData(row).nrFrames_ + frame,
-                           maxPos * dc.getSpotData(row).nrFrames_);
-
-                     spotPairsByFrame.get(pos).add(new ArrayList<GsSpotPair>());
-
-                     // Get points from both channels as ArrayLists   
-                     ArrayList<SpotData> gsCh1 = new ArrayList<SpotData>();
-                     ArrayList<SpotData> gsCh2 = new ArrayList<SpotData>();
-                     ArrayList<Point2D.Double> xyPointsCh2 = new ArrayList<Point2D.Double>();
-                     for (SpotData gs : spotListsByPosition.get(pos)) {
-                        if (gs.getFrame() == frame) {
-                           if (gs.getChannel() == 1) {
-                              gsCh1.add(gs);
-                           } else if (gs.getChannel() == 2) {
-                              gsCh2.add(gs);
-                              Point2D.Double point = new Point2D.Double(
-                                    gs.getXCenter(), gs.getYCenter());
-                              xyPointsCh2.add(point);
-                           }
-                        }
-                     }
-
-                     if (xyPointsCh2.isEmpty()) {
-                        //MMStudio.getInstance().alerts().postAlert("No points found error", null,
-                        //        "Pairs function in Localization plugin: no points found in second
-                        //        channel in frame "
-                        //        + frame);
-                        continue;
-                     }
-
-                     // Find matching points in the two ArrayLists
-                     Iterator it2 = gsCh1.iterator();
-                     NearestPoint2D np = new NearestPoint2D(xyPointsCh2, maxDistanceNm_);
-                     while (it2.hasNext()) {
-                        SpotData ch1Spot = (SpotData) it2.next();
-                        Point2D.Double pCh1 = new Point2D.Double(
-                              ch1Spot.getXCenter(), ch1Spot.getYCenter());
-                        Point2D.Double pCh2 = np.findKDWSE(pCh1);
-                        if (pCh2 != null) {
-                           // find this point in the ch2 spot list
-                           SpotData ch2Spot = null;
-                           for (int i = 0; i < gsCh2.size() && ch2Spot == null; i++) {
-                              if (pCh2.x == gsCh2.get(i).getXCenter()
-                                    && pCh2.y == gsCh2.get(i).getYCenter()) {
-                                 ch2Spot = gsCh2.get(i);
-                              }
-                           }
-                           if (ch2Spot != null) {
-                              GsSpotPair pair = new GsSpotPair(ch1Spot, ch2Spot, pCh1, pCh2);
-                              spotPairsByFrame.get(pos).get(frame - 1).add(pair);
-                           } else {
-                              // this should never happen!
-                              System.out.println("Failed to find spot");
-                           }
-                        }
-                     }
-                  }
-               } // end of for (int pos : positions)
+               final SpotPairs pairs = findPairs(dc.getSpotData(row).spotList_,
+                     dc.getSpotData(row).nrFrames_, maxDistanceNm_);
 
                if (showPairs_) {
                   ResultsTable pairTable = new ResultsTable();
                   pairTable.setPrecision(2);
-                  for (int pos : positions) {
-                     for (ArrayList<GsSpotPair> pairList : spotPairsByFrame.get(pos)) {
-                        for (GsSpotPair pair : pairList) {
-                           pairTable.incrementCounter();
-                           pairTable.addValue(Terms.FRAME, pair.getFirstSpot().getFrame());
-                           pairTable.addValue(Terms.SLICE, pair.getFirstSpot().getSlice());
-                           pairTable.addValue(Terms.CHANNEL, pair.getFirstSpot().getSlice());
-                           pairTable.addValue(Terms.POSITION, pair.getFirstSpot().getPosition());
-                           pairTable.addValue(Terms.XPIX, pair.getFirstSpot().getX());
-                           pairTable.addValue(Terms.YPIX, pair.getFirstSpot().getY());
-                           pairTable.addValue("X1", pair.getFirstSpot().getXCenter());
-                           pairTable.addValue("Y1", pair.getFirstSpot().getYCenter());
-                           if (pair.getFirstSpot().hasKey(SpotData.Keys.INTEGRALAPERTURESIGMA)) {
-                              pairTable.addValue("Sigma1", pair.getFirstSpot()
-                                      .getValue(SpotData.Keys.INTEGRALAPERTURESIGMA));
-                           }
-                           pairTable.addValue("X2", pair.getSecondSpot().getXCenter());
-                           pairTable.addValue("Y2", pair.getSecondSpot().getYCenter());
-                           if (pair.getSecondSpot().hasKey(SpotData.Keys.INTEGRALAPERTURESIGMA)) {
-                              pairTable.addValue("Sigma2", pair.getSecondSpot()
-                                      .getValue(SpotData.Keys.INTEGRALAPERTURESIGMA));
-                           }
-                           double d2 = NearestPoint2D
-                                 .distance2(pair.getFirstPoint(), pair.getSecondPoint());
-                           double d = Math.sqrt(d2);
-                           pairTable.addValue("Distance", d);
-                           pairTable.addValue("Orientation (sine)",
-                                 NearestPoint2D
-                                       .orientation(pair.getFirstPoint(), pair.getSecondPoint()));
-                        }
+                  for (int pair = 0; pair < pairs.size(); pair++) {
+                     SpotData firstSpot = pairs.getFirstSpot(pair);
+                     SpotData secondSpot = pairs.getSecondSpot(pair);
+                     pairTable.incrementCounter();
+                     pairTable.addValue(Terms.FRAME, firstSpot.getFrame());
+                     pairTable.addValue(Terms.SLICE, firstSpot.getSlice());
+                     pairTable.addValue(Terms.CHANNEL, firstSpot.getSlice());
+                     pairTable.addValue(Terms.POSITION, firstSpot.getPosition());
+                     pairTable.addValue(Terms.XPIX, firstSpot.getX());
+                     pairTable.addValue(Terms.YPIX, firstSpot.getY());
+                     pairTable.addValue("X1", pairs.getX1(pair));
+                     pairTable.addValue("Y1", pairs.getY1(pair));
+                     if (firstSpot.hasKey(SpotData.Keys.INTEGRALAPERTURESIGMA)) {
+                        pairTable.addValue("Sigma1", firstSpot
+                                .getValue(SpotData.Keys.INTEGRALAPERTURESIGMA));
                      }
+                     pairTable.addValue("X2", pairs.getX2(pair));
+                     pairTable.addValue("Y2", pairs.getY2(pair));
+                     if (secondSpot.hasKey(SpotData.Keys.INTEGRALAPERTURESIGMA)) {
+                        pairTable.addValue("Sigma2", secondSpot
+                                .getValue(SpotData.Keys.INTEGRALAPERTURESIGMA));
+                     }
+                     pairTable.addValue("Distance", pairs.getDistance(pair));
+                     pairTable.addValue("Orientation (sine)", NearestPoint2D.orientation(
+                           new Point2D.Double(pairs.getX1(pair), pairs.getY1(pair)),
+                           new Point2D.Double(pairs.getX2(pair), pairs.getY2(pair))));
                   }
                   //  show Pairs panel and attach listener
                   TextPanel tp;
@@ -384,51 +296,7 @@ public class ParticlePairLister {
                // We have all pairs, assemble in tracks
                ij.IJ.showStatus("Analyzing pairs for row " + rowCounter);
 
-               ArrayList<ArrayList<GsSpotPair>> tracks = new ArrayList<ArrayList<GsSpotPair>>();
-
-               for (int pos : positions) {
-                  // prepare NearestPoint objects to speed up finding closest pair 
-                  ArrayList<NearestPointByData> npsp = new ArrayList<NearestPointByData>();
-                  for (int frame = 1; frame <= dc.getSpotData(row).nrFrames_; frame++) {
-                     npsp.add(new NearestPointByData(
-                           spotPairsByFrame.get(pos).get(frame - 1), maxDistanceNm_));
-                  }
-
-                  for (int firstFrame = 1; firstFrame <= dc.getSpotData(row).nrFrames_;
-                        firstFrame++) {
-                     Iterator<GsSpotPair> iSpotPairs = spotPairsByFrame.get(pos).get(firstFrame - 1)
-                           .iterator();
-                     while (iSpotPairs.hasNext()) {
-                        GsSpotPair spotPair = iSpotPairs.next();
-
-                        if (!spotPair.partOfTrack()) {
-                           for (int frame = firstFrame; frame <= dc.getSpotData(row).nrFrames_;
-                                 frame++) {
-                              if (!spotPair.partOfTrack()
-                                    && spotPair.getFirstSpot().getFrame() == frame) {
-                                 ArrayList<GsSpotPair> track = new ArrayList<GsSpotPair>();
-                                 track.add(spotPair);
-                                 spotPair.useInTrack(true);
-                                 int searchInFrame = frame + 1;
-                                 while (searchInFrame <= dc.getSpotData(row).nrFrames_) {
-                                    GsSpotPair newSpotPair = (GsSpotPair) npsp
-                                          .get(searchInFrame - 1).findKDWSE(
-                                                new Point2D.Double(spotPair.getFirstPoint().getX(),
-                                                      spotPair.getFirstPoint().getY()));
-                                    if (newSpotPair != null && !newSpotPair.partOfTrack()) {
-                                       newSpotPair.useInTrack(true);
-                                       spotPair = newSpotPair;
-                                       track.add(spotPair);
-                                    }
-                                    searchInFrame++;
-                                 }
-                                 tracks.add(track);
-                              }
-                           }
-                        }
-                     }
-                  }
-               }  // end of assembling tracks.  
+               List<int[]> tracks = findTracks(pairs, maxDistanceNm_);
 
                if (tracks.isEmpty()) {
                   MMStudio.getInstance().alerts().postAlert("P2D fit error",
@@ -444,74 +312,73 @@ public class ParticlePairLister {
                   Arrow.setDefaultWidth(0.5);
                }
 
-               Iterator<ArrayList<GsSpotPair>> itTracks = tracks.iterator();
+               int nrPairsInTracks = 0;
+               for (int[] track : tracks) {
+                  nrPairsInTracks += track.length;
+               }
                int spotId = 0;
-               List<Double> allDistances = new ArrayList<Double>(
-                     tracks.size() * dc.getSpotData(row).nrFrames_);
-               List<Double> allSigmas = new ArrayList<Double>(
-                     tracks.size() * dc.getSpotData(row).nrFrames_);
-               List<Double> sigmasFirstSpot = new ArrayList<Double>(
-                     tracks.size() * dc.getSpotData(row).nrFrames_);
-               List<Double> sigmasSecondSpot = new ArrayList<Double>(
-                     tracks.size() * dc.getSpotData(row).nrFrames_);
-               List<Double> vectorDistances = new ArrayList<Double>(
-                     tracks.size());
-               while (itTracks.hasNext()) {
-                  ArrayList<GsSpotPair> track = itTracks.next();
-                  ArrayList<Double> distances = new ArrayList<Double>();
-                  ArrayList<Double> xDiff = new ArrayList<Double>();
-                  ArrayList<Double> yDiff = new ArrayList<Double>();
-                  ArrayList<Double> sigmas = new ArrayList<Double>();
-                  for (GsSpotPair pair : track) {
-                     double distance = Math.sqrt(
-                           NearestPoint2D.distance2(pair.getFirstPoint(), pair.getSecondPoint()));
-                     distances.add(distance);
-                     allDistances.add(distance);
-                     xDiff.add(pair.getFirstPoint().getX() - pair.getSecondPoint().getX());
-                     yDiff.add(pair.getFirstPoint().getY() - pair.getSecondPoint().getY());
-                     if (pair.getFirstSpot().hasKey(SpotData.Keys.INTEGRALAPERTURESIGMA)
-                           && pair.getSecondSpot().hasKey(SpotData.Keys.INTEGRALAPERTURESIGMA)) {
-                        double sigma1 = pair.getFirstSpot()
-                              .getValue(SpotData.Keys.INTEGRALAPERTURESIGMA);
-                        double sigma2 = pair.getSecondSpot()
-                              .getValue(SpotData.Keys.INTEGRALAPERTURESIGMA);
+               double[] allDistances = new double[nrPairsInTracks];
+               double[] allSigmas = new double[nrPairsInTracks];
+               double[] sigmasFirstSpot = new double[nrPairsInTracks];
+               double[] sigmasSecondSpot = new double[nrPairsInTracks];
+               int nrDistances = 0;
+               int nrSigmas = 0;
+               List<Double> vectorDistances = new ArrayList<Double>(tracks.size());
+               for (int[] track : tracks) {
+                  final int firstDistance = nrDistances;
+                  final int firstSigma = nrSigmas;
+                  double xDiffSum = 0.0;
+                  double yDiffSum = 0.0;
+                  for (int pair : track) {
+                     allDistances[nrDistances++] = pairs.getDistance(pair);
+                     xDiffSum += pairs.getX1(pair) - pairs.getX2(pair);
+                     yDiffSum += pairs.getY1(pair) - pairs.getY2(pair);
+                     SpotData firstSpot = pairs.getFirstSpot(pair);
+                     SpotData secondSpot = pairs.getSecondSpot(pair);
+                     if (firstSpot.hasKey(SpotData.Keys.INTEGRALAPERTURESIGMA)
+                           && secondSpot.hasKey(SpotData.Keys.INTEGRALAPERTURESIGMA)) {
+                        double sigma1 = firstSpot.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA);
+                        double sigma2 = secondSpot.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA);
                         double sigma = Math.sqrt(sigma1 * sigma1
                               + sigma2 * sigma2
                               + registrationError_ * registrationError_);
-                        sigmas.add(sigma);
-                        allSigmas.add(sigma);
-                        sigmasFirstSpot.add(sigma1);
-                        sigmasSecondSpot.add(sigma2);
+                        allSigmas[nrSigmas] = sigma;
+                        sigmasFirstSpot[nrSigmas] = sigma1;
+                        sigmasSecondSpot[nrSigmas] = sigma2;
+                        nrSigmas++;
                      }
                   }
-                  GsSpotPair pair = track.get(0);
+                  final double xDiffAvg = xDiffSum / track.length;
+                  final double yDiffAvg = yDiffSum / track.length;
+                  SpotData firstSpot = pairs.getFirstSpot(track[0]);
                   rt2.incrementCounter();
                   rt2.addValue("Row ID", dc.getSpotData(row).id_);
                   rt2.addValue("Spot ID", spotId);
-                  rt2.addValue(Terms.FRAME, pair.getFirstSpot().getFrame());
-                  rt2.addValue(Terms.SLICE, pair.getFirstSpot().getSlice());
-                  rt2.addValue(Terms.CHANNEL, pair.getFirstSpot().getSlice());
-                  rt2.addValue(Terms.POSITION, pair.getFirstSpot().getPosition());
-                  rt2.addValue(Terms.XPIX, pair.getFirstSpot().getX());
-                  rt2.addValue(Terms.YPIX, pair.getFirstSpot().getY());
-                  rt2.addValue("n", track.size());
+                  rt2.addValue(Terms.FRAME, firstSpot.getFrame());
+                  rt2.addValue(Terms.SLICE, firstSpot.getSlice());
+                  rt2.addValue(Terms.CHANNEL, firstSpot.getSlice());
+                  rt2.addValue(Terms.POSITION, firstSpot.getPosition());
+                  rt2.addValue(Terms.XPIX, firstSpot.getX());
+                  rt2.addValue(Terms.YPIX, firstSpot.getY());
+                  rt2.addValue("n", track.length);
 
                   // Average of Euclidean distances in this strack
-                  double avg = ListUtils.listAvg(distances);
+                  double[] distances = Arrays.copyOfRange(allDistances, firstDistance,
+                        nrDistances);
+                  double avg = ListUtils.avg(distances);
                   rt2.addValue("Distance-Avg", avg);
                   // Standard Deviation of Euclidean distances in this track
-                  double std = ListUtils.listStdDev(distances, avg);
+                  double std = ListUtils.stdDev(distances, avg);
                   rt2.addValue("Distance-StdDev", std);
 
                   // Average of weighted sigmas: Sqrt(sigma1(^2) + sigma2(^2) in this track
-                  if (sigmas.size() > 0) {
-                     double avgSigma = ListUtils.listAvg(sigmas);
+                  if (nrSigmas > firstSigma) {
+                     double avgSigma = ListUtils.avg(
+                           Arrays.copyOfRange(allSigmas, firstSigma, nrSigmas));
                      rt2.addValue("Distance Uncertainty", avgSigma);
                   }
                   // only needed when using p2d - multiframe
                   if (p2dDistanceCalc_ && !p2dSingleFrames_) {
-                     double xDiffAvg = ListUtils.listAvg(xDiff);
-                     double yDiffAvg = ListUtils.listAvg(yDiff);
                      double vectorDistanceAvg = (Math.sqrt(xDiffAvg * xDiffAvg
                              + yDiffAvg * yDiffAvg));
                      vectorDistances.add(vectorDistanceAvg);
@@ -523,12 +390,12 @@ public class ParticlePairLister {
                      double mag = 100.0;  // factor that sets magnification of the arrow
                      double factor = mag * 1 / dc
                            .getSpotData(row).pixelSizeNm_;  // factor relating mag and pixelSize
-                     int xStart = track.get(0).getFirstSpot().getX();
-                     int yStart = track.get(0).getFirstSpot().getY();
+                     int xStart = firstSpot.getX();
+                     int yStart = firstSpot.getY();
 
                      Arrow arrow = new Arrow(xStart, yStart,
-                           xStart + (factor * ListUtils.listAvg(xDiff)),
-                           yStart + (factor * ListUtils.listAvg(yDiff)));
+                           xStart + (factor * xDiffAvg),
+                           yStart + (factor * yDiffAvg));
                      arrow.setHeadSize(3);
                      arrow.setOutline(false);
                      if (siPlus != null && siPlus.getOverlay() == null) {
@@ -539,6 +406,9 @@ public class ParticlePairLister {
                   }
                   spotId++;
                }
+               allSigmas = Arrays.copyOf(allSigmas, nrSigmas);
+               sigmasFirstSpot = Arrays.copyOf(sigmasFirstSpot, nrSigmas);
+               sigmasSecondSpot = Arrays.copyOf(sigmasSecondSpot, nrSigmas);
 
                if (showOverlay_) {
                   if (siPlus != null) {
@@ -547,20 +417,13 @@ public class ParticlePairLister {
                }
 
                if (showXYHistogram_) {
-                  List<Double> xDiff = new ArrayList<Double>();
-                  List<Double> yDiff = new ArrayList<Double>();
-                  for (int pos : positions) {
-                     for (ArrayList<GsSpotPair> pairList : spotPairsByFrame.get(pos)) {
-                        for (GsSpotPair pair : pairList) {
-                           xDiff.add(pair.getFirstPoint().getX()
-                                   - pair.getSecondPoint().getX());
-                           yDiff.add(pair.getFirstPoint().getY()
-                                   - pair.getSecondPoint().getY());
-                        }
-                     }
+                  double[] xDiffArray = new double[pairs.size()];
+                  double[] yDiffArray = new double[pairs.size()];
+                  for (int pair = 0; pair < pairs.size(); pair++) {
+                     xDiffArray[pair] = pairs.getX1(pair) - pairs.getX2(pair);
+                     yDiffArray[pair] = pairs.getY1(pair) - pairs.getY2(pair);
                   }
                   try {
-                     double[] xDiffArray = ListUtils.toArray(xDiff);
                      double[] xGaussian = fitGaussianToData(xDiffArray,
                            -maxDistanceNm_,
                            maxDistanceNm_);
@@ -570,7 +433,6 @@ public class ParticlePairLister {
                            -5.0 * xGaussian[1],
                            5.0 * xGaussian[1],
                            xGaussian, 50, 300);
-                     double[] yDiffArray = ListUtils.toArray(yDiff);
                      double[] yGaussian = fitGaussianToData(yDiffArray,
                            -maxDistanceNm_,
                            maxDistanceNm_);
@@ -624,9 +486,9 @@ public class ParticlePairLister {
 
                ////////////////// Single frame calculations ////////////////////
 
-               if (p2dDistanceCalc_ && p2dSingleFrames_ && allDistances.size() > 0) {
-                  double[] d = ListUtils.toArray(allDistances);
-                  double[] sigmas = ListUtils.toArray(allSigmas);
+               if (p2dDistanceCalc_ && p2dSingleFrames_ && allDistances.length > 0) {
+                  double[] d = allDistances;
+                  double[] sigmas = allSigmas;
                   if (d.length != sigmas.length) {
                      ReportingUtils.showError(
                            "Internal Error: number of distances and sigmas not identical\n"
@@ -638,11 +500,11 @@ public class ParticlePairLister {
                   P2DFitter p2df = new P2DFitter(d, sigmas, true, false, maxDistanceNm_);
 
                   // Generate a population average of the distance sigma
-                  double distMean = ListUtils.listAvg(allDistances);
-                  double sfsAvg = ListUtils.listAvg(sigmasFirstSpot);
-                  double sSsAvg = ListUtils.listAvg(sigmasSecondSpot);
-                  double sfsStdDev = ListUtils.listStdDev(sigmasFirstSpot, sfsAvg);
-                  double sSsStdDev = ListUtils.listStdDev(sigmasSecondSpot, sSsAvg);
+                  double distMean = ListUtils.avg(allDistances);
+                  double sfsAvg = ListUtils.avg(sigmasFirstSpot);
+                  double sSsAvg = ListUtils.avg(sigmasSecondSpot);
+                  double sfsStdDev = ListUtils.stdDev(sigmasFirstSpot, sfsAvg);
+                  double sSsStdDev = ListUtils.stdDev(sigmasSecondSpot, sSsAvg);
                   double distStd = Math.sqrt(sfsAvg * sfsAvg + sSsAvg * sSsAvg
                         + sfsStdDev * sfsStdDev + sSsStdDev * sSsStdDev
                         + registrationError_ * registrationError_);
@@ -698,7 +560,7 @@ public class ParticlePairLister {
                      }
                      */
                      String msg1 = "P2D fit for " + dc.getSpotData(row).getName();
-                     String msg2 = "n = " + allDistances.size() + ", mu = "
+                     String msg2 = "n = " + allDistances.length + ", mu = "
                            + NumberUtils.doubleToDisplayString(mu, 2)
                            + "\u00b1" // +-
                            + NumberUtils.doubleToDisplayString(fisherStdDev, 2)
@@ -710,7 +572,7 @@ public class ParticlePairLister {
                      MMStudio.getInstance().alerts().postAlert("Gaussian distribution for "
                                  + dc.getSpotData(row).getName(),
                            null,
-                           "n = " + allDistances.size()
+                           "n = " + allDistances.length
                                  + ", avg = "
                                  + NumberUtils.doubleToDisplayString(distMean, 2)
                                  + " nm, std = "
@@ -743,7 +605,7 @@ public class ParticlePairLister {
                      rt3.addValue("Fit Sigma", fittedSigma);
                      rt3.addValue("Sigma from data", "yes");
                      rt3.addValue("Registration error", registrationError_);
-                     rt3.addValue("n", allDistances.size());
+                     rt3.addValue("n", allDistances.length);
                      rt3.addValue("Frames", dc.getSpotData(row).nrFrames_);
                      rt3.addValue("Positions", dc.getSpotData(row).nrPositions_);
                      rt3.addValue("mu", mu);
@@ -773,7 +635,7 @@ public class ParticlePairLister {
 
                /////////////////// P2D - Multi-Frame ////////////////////////
 
-               if (p2dDistanceCalc_ && !p2dSingleFrames_ && allDistances.size() > 0) {
+               if (p2dDistanceCalc_ && !p2dSingleFrames_ && allDistances.length > 0) {
                   double[] p2dfResult = {0.0, 0.0};
                   try {
                      p2dfResult = p2dLeastSquareFit(vectorDistances, maxDistanceNm_);
@@ -875,7 +737,7 @@ public class ParticlePairLister {
                   ij.IJ.showStatus("");
 
                   String msg1 = "P2D fit for " + dc.getSpotData(row).getName();
-                  String msg2 = "n = " + allDistances.size() + ", mu = "
+                  String msg2 = "n = " + allDistances.length + ", mu = "
                         + NumberUtils.doubleToDisplayString(mu, 2)
                         // + "\u00b1"
                         //+ NumberUtils.doubleToDisplayString(fisherStdDev, 2)
@@ -899,7 +761,7 @@ public class ParticlePairLister {
                   rt3.addValue("Vect. Dist.", useVect);
                   rt3.addValue("Fit Sigma", "no");
                   rt3.addValue("Sigma from data", "no");
-                  rt3.addValue("n", allDistances.size());
+                  rt3.addValue("n", allDistances.length);
                   rt3.addValue("Frames", dc.getSpotData(row).nrFrames_);
                   rt3.addValue("Positions", dc.getSpotData(row).nrPositions_);
                   rt3.addValue("mu", mu);
@@ -926,6 +788,329 @@ public class ParticlePairLister {
 
    }
 
+   /**
+    * Pairs every spot in channel 1 with the closest spot in channel 2 of the same frame and
+    * position, closer than maxDistance.  Slices are not taken into account.
+    *
+    * <p>Spots are sorted by position and frame in a single pass.  Each frame then gets a
+    * SpotGridIndex over its channel 2 spots, which returns the index of the matching spot directly.
+    * Frames are independent, so they are processed in parallel.
+    *
+    * @param spots       spots of both channels
+    * @param nrFrames    spots in frames 1 to nrFrames are paired
+    * @param maxDistance maximum distance between the spots of a pair
+    * @return pairs, ordered by position, frame and the order of the channel 1 spots in spots
+    */
+   public static SpotPairs findPairs(final List<SpotData> spots, final int nrFrames,
+         final double maxDistance) {
+      final int n = spots.size();
+      final double[] xs = new double[n];
+      final double[] ys = new double[n];
+      final boolean[] isChannel1 = new boolean[n];
+      int[] frameOf = new int[n];
+      int[] positionOf = new int[n];
+      for (int i = 0; i < n; i++) {
+         SpotData spot = spots.get(i);
+         xs[i] = spot.getXCenter();
+         ys[i] = spot.getYCenter();
+         isChannel1[i] = spot.getChannel() == 1;
+         frameOf[i] = spot.getChannel() == 1 || spot.getChannel() == 2 ? spot.getFrame() : 0;
+         positionOf[i] = spot.getPosition();
+      }
+      final int[] positions = distinctSorted(positionOf);
+
+      // counting sort of the spot indices by position and frame, keeping their order
+      final int nrGroups = positions.length * nrFrames;
+      final int[] groupStart = new int[nrGroups + 1];
+      int[] groupOf = new int[n];
+      for (int i = 0; i < n; i++) {
+         if (frameOf[i] < 1 || frameOf[i] > nrFrames) {
+            groupOf[i] = -1;
+            continue;
+         }
+         groupOf[i] = Arrays.binarySearch(positions, positionOf[i]) * nrFrames + frameOf[i] - 1;
+         groupStart[groupOf[i] + 1]++;
+      }
+      for (int g = 0; g < nrGroups; g++) {
+         groupStart[g + 1] += groupStart[g];
+      }
+      final int[] order = new int[groupStart[nrGroups]];
+      int[] fill = Arrays.copyOf(groupStart, nrGroups);
+      for (int i = 0; i < n; i++) {
+         if (groupOf[i] >= 0) {
+            order[fill[groupOf[i]]++] = i;
+         }
+      }
+
+      int nrTasks = Math.min(nrGroups, 4 * Runtime.getRuntime().availableProcessors());
+      List<Callable<SpotPairs>> tasks = new ArrayList<Callable<SpotPairs>>(nrTasks);
+      for (int t = 0; t < nrTasks; t++) {
+         final int firstGroup = (int) ((long) nrGroups * t / nrTasks);
+         final int lastGroup = (int) ((long) nrGroups * (t + 1) / nrTasks);
+         tasks.add(new Callable<SpotPairs>() {
+            @Override
+            public SpotPairs call() {
+               return pairGroups(firstGroup, lastGroup, groupStart, order, isChannel1,
+                     xs, ys, maxDistance);
+            }
+         });
+      }
+
+      SpotPairs pairs = new SpotPairs(spots, positions, nrFrames, xs, ys,
+            groupStart[nrGroups] / 2 + 1);
+      for (SpotPairs part : SpotLinker.runInParallel(tasks)) {
+         pairs.append(part);
+      }
+      return pairs;
+   }
+
+   /**
+    * Pairs the spots in groups firstGroup up to lastGroup.
+    *
+    * @return pairs, with the group boundaries relative to firstGroup
+    */
+   private static SpotPairs pairGroups(int firstGroup, int lastGroup, int[] groupStart,
+         int[] order, boolean[] isChannel1, double[] xs, double[] ys, double maxDistance) {
+      SpotPairs pairs = new SpotPairs(null, null, lastGroup - firstGroup, xs, ys,
+            (groupStart[lastGroup] - groupStart[firstGroup]) / 2 + 1);
+      double[] xsCh2 = new double[16];
+      double[] ysCh2 = new double[16];
+      int[] spotsCh2 = new int[16];
+      for (int g = firstGroup; g < lastGroup; g++) {
+         int nrCh2 = 0;
+         for (int k = groupStart[g]; k < groupStart[g + 1]; k++) {
+            int i = order[k];
+            if (!isChannel1[i]) {
+               if (nrCh2 == spotsCh2.length) {
+                  xsCh2 = Arrays.copyOf(xsCh2, 2 * nrCh2);
+                  ysCh2 = Arrays.copyOf(ysCh2, 2 * nrCh2);
+                  spotsCh2 = Arrays.copyOf(spotsCh2, 2 * nrCh2);
+               }
+               xsCh2[nrCh2] = xs[i];
+               ysCh2[nrCh2] = ys[i];
+               spotsCh2[nrCh2] = i;
+               nrCh2++;
+            }
+         }
+         if (nrCh2 > 0) {
+            SpotGridIndex index = new SpotGridIndex(xsCh2, ysCh2, nrCh2, maxDistance);
+            for (int k = groupStart[g]; k < groupStart[g + 1]; k++) {
+               int i = order[k];
+               if (isChannel1[i]) {
+                  int match = index.nearest(xs[i], ys[i]);
+                  if (match >= 0) {
+                     pairs.add(i, spotsCh2[match]);
+                  }
+               }
+            }
+         }
+         pairs.endGroup(g - firstGroup);
+      }
+      return pairs;
+   }
+
+   private static int[] distinctSorted(int[] values) {
+      int[] sorted = values.clone();
+      Arrays.sort(sorted);
+      int nrDistinct = 0;
+      for (int i = 0; i < sorted.length; i++) {
+         if (i == 0 || sorted[i] != sorted[i - 1]) {
+            sorted[nrDistinct++] = sorted[i];
+         }
+      }
+      return Arrays.copyOf(sorted, nrDistinct);
+   }
+
+   /**
+    * Assembles pairs into tracks.  Every pair that is not yet part of a track starts a new one,
+    * which is extended with the pair in each following frame whose channel 1 spot is closest to
+    * that of the last pair in the track, if that pair is not yet part of a track.
+    *
+    * <p>Positions are independent, so they are processed in parallel.  Every frame gets a
+    * SpotGridIndex over the channel 1 spots of its pairs.
+    *
+    * @param pairs       pairs from {@link #findPairs(List, int, double)}
+    * @param maxDistance maximum distance between pairs in the same track
+    * @return tracks, as the indices of their pairs.  Tracks are ordered by position and first
+    *     frame.
+    */
+   public static List<int[]> findTracks(final SpotPairs pairs, final double maxDistance) {
+      List<Callable<List<int[]>>> tasks = new ArrayList<Callable<List<int[]>>>();
+      for (int p = 0; p < pairs.positions_.length; p++) {
+         final int position = p;
+         tasks.add(new Callable<List<int[]>>() {
+            @Override
+            public List<int[]> call() {
+               return tracksInPosition(pairs, position, maxDistance);
+            }
+         });
+      }
+      List<int[]> tracks = new ArrayList<int[]>();
+      for (List<int[]> tracksInPosition : SpotLinker.runInParallel(tasks)) {
+         tracks.addAll(tracksInPosition);
+      }
+      return tracks;
+   }
+
+   private static List<int[]> tracksInPosition(SpotPairs pairs, int position,
+         double maxDistance) {
+      final int nrFrames = pairs.nrFrames_;
+      final int firstGroup = position * nrFrames;
+      final int firstPair = pairs.groupStart_[firstGroup];
+      SpotGridIndex[] frameIndices = new SpotGridIndex[nrFrames];
+      for (int f = 0; f < nrFrames; f++) {
+         int start = pairs.groupStart_[firstGroup + f];
+         int end = pairs.groupStart_[firstGroup + f + 1];
+         double[] xs = new double[end - start];
+         double[] ys = new double[end - start];
+         for (int i = start; i < end; i++) {
+            xs[i - start] = pairs.getX1(i);
+            ys[i - start] = pairs.getY1(i);
+         }
+         frameIndices[f] = new SpotGridIndex(xs, ys, xs.length, maxDistance);
+      }
+
+      List<int[]> tracks = new ArrayList<int[]>();
+      boolean[] partOfTrack = new boolean[pairs.groupStart_[firstGroup + nrFrames] - firstPair];
+      int[] track = new int[nrFrames];
+      for (int f = 0; f < nrFrames; f++) {
+         for (int i = pairs.groupStart_[firstGroup + f];
+               i < pairs.groupStart_[firstGroup + f + 1]; i++) {
+            if (partOfTrack[i - firstPair]) {
+               continue;
+            }
+            partOfTrack[i - firstPair] = true;
+            int length = 0;
+            track[length++] = i;
+            int last = i;
+            for (int searchInFrame = f + 1; searchInFrame < nrFrames; searchInFrame++) {
+               int match = frameIndices[searchInFrame].nearest(pairs.getX1(last),
+                     pairs.getY1(last));
+               if (match >= 0) {
+                  match += pairs.groupStart_[firstGroup + searchInFrame];
+                  if (!partOfTrack[match - firstPair]) {
+                     partOfTrack[match - firstPair] = true;
+                     track[length++] = match;
+                     last = match;
+                  }
+               }
+            }
+            tracks.add(Arrays.copyOf(track, length));
+         }
+      }
+      return tracks;
+   }
+
+   /**
+    * Pairs of a spot in channel 1 and one in channel 2, stored as the indices of the spots in
+    * parallel arrays.  Pairs of the same position and frame are stored consecutively.
+    */
+   public static final class SpotPairs {
+      private final List<SpotData> spots_;
+      private final int[] positions_;
+      private final int nrFrames_;
+      private final double[] xs_;
+      private final double[] ys_;
+      // pairs groupStart_[g] .. groupStart_[g + 1] are in position g / nrFrames_,
+      // frame g % nrFrames_ + 1
+      private final int[] groupStart_;
+      private int[] firstSpots_;
+      private int[] secondSpots_;
+      private int size_;
+      private int nrGroups_;
+
+      private SpotPairs(List<SpotData> spots, int[] positions, int nrFrames, double[] xs,
+            double[] ys, int capacity) {
+         spots_ = spots;
+         positions_ = positions;
+         nrFrames_ = nrFrames;
+         xs_ = xs;
+         ys_ = ys;
+         groupStart_ = new int[(positions == null ? 1 : positions.length) * nrFrames + 1];
+         firstSpots_ = new int[capacity];
+         secondSpots_ = new int[capacity];
+      }
+
+      private void add(int firstSpot, int secondSpot) {
+         if (size_ == firstSpots_.length) {
+            firstSpots_ = Arrays.copyOf(firstSpots_, 2 * size_);
+            secondSpots_ = Arrays.copyOf(secondSpots_, 2 * size_);
+         }
+         firstSpots_[size_] = firstSpot;
+         secondSpots_[size_] = secondSpot;
+         size_++;
+      }
+
+      private void endGroup(int group) {
+         groupStart_[group + 1] = size_;
+         nrGroups_ = group + 1;
+      }
+
+      private void append(SpotPairs other) {
+         for (int i = 0; i < other.size_; i++) {
+            add(other.firstSpots_[i], other.secondSpots_[i]);
+         }
+         int offset = groupStart_[nrGroups_];
+         for (int g = 0; g < other.nrGroups_; g++) {
+            groupStart_[nrGroups_ + g + 1] = offset + other.groupStart_[g + 1];
+         }
+         nrGroups_ += other.nrGroups_;
+      }
+
+      /**
+       * @return number of pairs
+       */
+      public int size() {
+         return size_;
+      }
+
+      /**
+       * @param pair index of the pair
+       * @return index of the channel 1 spot in the list of spots that was paired
+       */
+      public int getFirstSpotIndex(int pair) {
+         return firstSpots_[pair];
+      }
+
+      /**
+       * @param pair index of the pair
+       * @return index of the channel 2 spot in the list of spots that was paired
+       */
+      public int getSecondSpotIndex(int pair) {
+         return secondSpots_[pair];
+      }
+
+      public SpotData getFirstSpot(int pair) {
+         return spots_.get(firstSpots_[pair]);
+      }
+
+      public SpotData getSecondSpot(int pair) {
+         return spots_.get(secondSpots_[pair]);
+      }
+
+      public double getX1(int pair) {
+         return xs_[firstSpots_[pair]];
+      }
+
+      public double getY1(int pair) {
+         return ys_[firstSpots_[pair]];
+      }
+
+      public double getX2(int pair) {
+         return xs_[secondSpots_[pair]];
+      }
+
+      public double getY2(int pair) {
+         return ys_[secondSpots_[pair]];
+      }
+
+      public double getDistance(int pair) {
+         double dx = getX1(pair) - getX2(pair);
+         double dy = getY1(pair) - getY2(pair);
+         return Math.sqrt((dx * dx) + (dy * dy));
+      }
+   }
+
    /**
     * Fits a list of numbers to a Gaussian function using Maximum Likelihood
     *
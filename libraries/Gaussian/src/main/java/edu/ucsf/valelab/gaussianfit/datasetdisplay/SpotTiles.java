@@ -0,0 +1,177 @@
+package edu.ucsf.valelab.gaussianfit.datasetdisplay;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Spots sorted by the square tiles of a rendered image that they touch, so
+ * that the tiles can be rendered independently of each other.
+ *
+ * <p>Within a tile, spots keep the order of the spot list, so that every
+ * pixel adds up the spots in the same order as a single loop over the list
+ * would.
+ */
+final class SpotTiles {
+   // side of the tiles, in rendered pixels
+   static final int TILE_SIZE = 256;
+   // spots per task when sorting the spots
+   private static final int SPOTS_PER_TASK = 1 << 16;
+
+   /**
+    * Part of the rendered image that a spot is drawn on.
+    */
+   interface Footprint {
+      /**
+       * @param spot spot to draw
+       * @param box  receives the first x, first y, last x + 1 and last y + 1
+       *             of the pixels of the spot
+       * @return false when the spot is not drawn
+       */
+      boolean bounds(SpotData spot, int[] box);
+   }
+
+   private final int width_;
+   private final int height_;
+   private final int tilesX_;
+   private final int tilesY_;
+   // indices in the spot list per tile
+   private final int[][] spots_;
+   private final int nrSpots_;
+
+   /**
+    * Sorts the spots on the common fork/join pool.
+    *
+    * @param spots     spots to sort
+    * @param width     width of the rendered image
+    * @param height    height of the rendered image
+    * @param footprint where each spot is drawn
+    */
+   SpotTiles(final List<SpotData> spots, int width, int height, final Footprint footprint)
+         throws InterruptedException, ExecutionException {
+      width_ = width;
+      height_ = height;
+      tilesX_ = Math.max(1, (width + TILE_SIZE - 1) / TILE_SIZE);
+      tilesY_ = Math.max(1, (height + TILE_SIZE - 1) / TILE_SIZE);
+      final int nrTiles = tilesX_ * tilesY_;
+
+      List<Callable<int[][]>> tasks = new ArrayList<Callable<int[][]>>();
+      for (int start = 0; start < spots.size(); start += SPOTS_PER_TASK) {
+         final int first = start;
+         final int last = Math.min(spots.size(), start + SPOTS_PER_TASK);
+         tasks.add(new Callable<int[][]>() {
+            @Override
+            public int[][] call() {
+               return sort(spots, first, last, footprint, nrTiles);
+            }
+         });
+      }
+      List<int[][]> parts = new ArrayList<int[][]>();
+      for (Future<int[][]> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+         parts.add(future.get());
+      }
+
+      // concatenate the parts in order, the first element of each list is
+      // the number of spots in it
+      spots_ = new int[nrTiles][];
+      int nrSpots = 0;
+      for (int t = 0; t < nrTiles; t++) {
+         int count = 0;
+         for (int[][] part : parts) {
+            if (part[t] != null) {
+               count += part[t][0];
+            }
+         }
+         spots_[t] = new int[count];
+         int offset = 0;
+         for (int[][] part : parts) {
+            if (part[t] != null) {
+               System.arraycopy(part[t], 1, spots_[t], offset, part[t][0]);
+               offset += part[t][0];
+            }
+         }
+      }
+      for (int[][] part : parts) {
+         nrSpots += part[nrTiles][0];
+      }
+      nrSpots_ = nrSpots;
+   }
+
+   private int[][] sort(List<SpotData> spots, int first, int last, Footprint footprint,
+         int nrTiles) {
+      // one list per tile, and the number of spots drawn
+      int[][] result = new int[nrTiles + 1][];
+      result[nrTiles] = new int[1];
+      int[] box = new int[4];
+      for (int i = first; i < last; i++) {
+         if (!footprint.bounds(spots.get(i), box)) {
+            continue;
+         }
+         result[nrTiles][0]++;
+         int tx0 = tileX(box[0]);
+         int tx1 = tileX(box[2] - 1);
+         int ty0 = tileY(box[1]);
+         int ty1 = tileY(box[3] - 1);
+         for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+               int t = ty * tilesX_ + tx;
+               result[t] = append(result[t], i);
+            }
+         }
+      }
+      return result;
+   }
+
+   private static int[] append(int[] list, int value) {
+      if (list == null) {
+         list = new int[16];
+      } else if (list[0] + 1 == list.length) {
+         list = Arrays.copyOf(list, 2 * list.length);
+      }
+      list[0]++;
+      list[list[0]] = value;
+      return list;
+   }
+
+   private int tileX(int x) {
+      return Math.max(0, Math.min(tilesX_ - 1, x / TILE_SIZE));
+   }
+
+   private int tileY(int y) {
+      return Math.max(0, Math.min(tilesY_ - 1, y / TILE_SIZE));
+   }
+
+   int getNrTiles() {
+      return spots_.length;
+   }
+
+   /**
+    * @return pixels of tile t in the rendered image
+    */
+   Rectangle getTile(int t) {
+      int x = (t % tilesX_) * TILE_SIZE;
+      int y = (t / tilesX_) * TILE_SIZE;
+      return new Rectangle(x, y, Math.min(TILE_SIZE, width_ - x),
+            Math.min(TILE_SIZE, height_ - y));
+   }
+
+   /**
+    * @return indices in the spot list of the spots touching tile t, in order
+    */
+   int[] getSpots(int t) {
+      return spots_[t];
+   }
+
+   /**
+    * @return number of spots that are drawn
+    */
+   int getNrSpots() {
+      return nrSpots_;
+   }
+}
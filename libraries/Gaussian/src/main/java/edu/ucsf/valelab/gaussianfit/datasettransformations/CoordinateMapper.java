@@ -34,10 +34,16 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.commons.math.linear.Array2DRowRealMatrix;
 import org.apache.commons.math.linear.DecompositionSolver;
 import org.apache.commons.math.linear.LUDecompositionImpl;
@@ -74,6 +80,13 @@ public class CoordinateMapper {
    private int pieceWiseAffineMaxControlPoints_ = 100;
    private double pieceWiseAffineMaxDistance_ = 5000.0;
 
+   // Number of control points considered for each point by LWM
+   private static final int LWM_NEIGHBORS = 20;
+   // Upper limit of the number of cells used by the batch transform
+   private static final int MAX_CELLS = 1 << 22;
+   // Upper limit of the number of piecewise affine transforms cached per thread
+   private static final int MAX_CACHED_TRANSFORMS = 1024;
+
    /**
     * Shorthand name
     */
@@ -247,7 +260,8 @@ public class CoordinateMapper {
          ExponentPairs exponentPairs = polynomialExponents(order);
          List<Point2D.Double> neighbors = kdTree.nearestNeighbor(srcPoint,
                exponentPairs.size(), true);
-         rnormalized = neighbors.get(0).distance(srcPoint);
+         // neighbors are ordered nearest first, and the nearest is srcPoint itself
+         rnormalized = neighbors.get(neighbors.size() - 1).distance(srcPoint);
          polynomialCoefficients = fitPolynomial(exponentPairs, selectPoints(pointMap, neighbors));
       }
    }
@@ -338,17 +352,16 @@ public class CoordinateMapper {
     */
    public static Point2D.Double computeTransformation(EnhancedKDTree kdTree,
          Point2D.Double testPoint, ControlPoints controlPoints, ExponentPairs exponentPairs) {
-      final List<Point2D.Double> neighbors = kdTree.nearestNeighbor(testPoint, 20, false);
+      final List<Point2D.Double> neighbors =
+            kdTree.nearestNeighbor(testPoint, LWM_NEIGHBORS, false);
       double sumWeights = 0;
       double sumWeightedPolyX = 0;
       double sumWeightedPolyY = 0;
-      int count = 0;
       for (Point2D.Double srcPoint : neighbors) {
          final ControlPoint controlPoint = controlPoints.get(srcPoint);
          final double r = testPoint.distance(controlPoint.point) / controlPoint.rnormalized;
          final double weight = weightFunction(r);
          if (weight > 0) {
-            count++;
             sumWeights += weight;
             sumWeightedPolyX += weight * evaluatePolynomial(testPoint.x, testPoint.y,
                   controlPoint.polynomialCoefficients.polyX, exponentPairs);
@@ -356,7 +369,6 @@ public class CoordinateMapper {
                   controlPoint.polynomialCoefficients.polyY, exponentPairs);
          }
       }
-      System.out.println("Used " + count + "  controlpoints in computeTransform");
       return new Point2D.Double(sumWeightedPolyX / sumWeights,
             sumWeightedPolyY / sumWeights);
    }
@@ -492,16 +504,7 @@ public class CoordinateMapper {
       }
       if (method_ == AFFINE) {
          try {
-            if (cleanedPointMap_ == null) {
-               cleanedPointMap_ = makeCleanedPointMap();
-               af_ = generateAffineTransformFromPointPairs(cleanedPointMap_);
-               if (log_) {
-                  logAffineTransform(af_);
-               }
-               ij.IJ.log("Used " + cleanedPointMap_.size()
-                     + " spot pairs to calculate 2C reference");
-            }
-            return (Point2D.Double) af_.transform(srcTestPoint, null);
+            return (Point2D.Double) cleanedAffineTransform().transform(srcTestPoint, null);
          } catch (Exception ex) {
             return null;
          }
@@ -528,6 +531,401 @@ public class CoordinateMapper {
       return null;
    }
 
+   /**
+    * Transforms many points at once.  Gives the same results as calling
+    * {@link #transform(Point2D.Double)} for each point, up to rounding errors.
+    *
+    * <p>For LWM and piecewise affine, points are grouped in square cells that
+    * are small compared to the distance between control points.  The control
+    * points that can be among the nearest neighbors of any point in a cell
+    * are looked up once per cell, and when all points in a cell have the same
+    * neighbors, which is usually the case, the local transform is fitted once
+    * for the whole cell.  Cells are processed in parallel.</p>
+    *
+    * @param xs x coordinates of the points to be transformed
+    * @param ys y coordinates of the points to be transformed
+    * @return array {x, y} of the transformed coordinates, which are NaN for
+    *     points that could not be transformed
+    */
+   public double[][] transform(double[] xs, double[] ys) {
+      if (xs.length != ys.length) {
+         throw new IllegalArgumentException("xs and ys differ in length");
+      }
+      final double[] outX = new double[xs.length];
+      final double[] outY = new double[ys.length];
+      Arrays.fill(outX, Double.NaN);
+      Arrays.fill(outY, Double.NaN);
+      if (method_ == LWM || method_ == PIECEWISEAFFINE) {
+         transformByCell(xs, ys, outX, outY);
+      } else {
+         AffineTransform af = null;
+         try {
+            if (method_ == AFFINE) {
+               af = cleanedAffineTransform();
+            } else if (method_ == NONRFEFLECTIVESIMILARITY) {
+               af = rbAf_;
+            }
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex, "Failed to calculate affine transform");
+         }
+         if (af != null) {
+            final Point2D.Double point = new Point2D.Double();
+            for (int i = 0; i < xs.length; i++) {
+               point.setLocation(xs[i], ys[i]);
+               af.transform(point, point);
+               outX[i] = point.x;
+               outY[i] = point.y;
+            }
+         }
+      }
+      return new double[][] {outX, outY};
+   }
+
+   private void transformByCell(final double[] xs, final double[] ys,
+         final double[] outX, final double[] outY) {
+      final Point2D.Double[] controls = kdTree_.points_;
+      if (controls.length == 0) {
+         return;
+      }
+      double minX = Double.POSITIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < xs.length; i++) {
+         if (isFinite(xs[i]) && isFinite(ys[i])) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+         }
+      }
+      if (minX > maxX) {
+         return;
+      }
+
+      // Cells of a quarter of the average distance between control points
+      // usually lie between the same nearest neighbors
+      double cMinX = Double.POSITIVE_INFINITY;
+      double cMinY = Double.POSITIVE_INFINITY;
+      double cMaxX = Double.NEGATIVE_INFINITY;
+      double cMaxY = Double.NEGATIVE_INFINITY;
+      for (Point2D.Double control : controls) {
+         cMinX = Math.min(cMinX, control.x);
+         cMinY = Math.min(cMinY, control.y);
+         cMaxX = Math.max(cMaxX, control.x);
+         cMaxY = Math.max(cMaxY, control.y);
+      }
+      double spacing = Math.sqrt(Math.max(cMaxX - cMinX, 1e-9)
+            * Math.max(cMaxY - cMinY, 1e-9) / controls.length);
+      double cellSize = spacing / 4.0;
+      while ((Math.floor((maxX - minX) / cellSize) + 1)
+            * (Math.floor((maxY - minY) / cellSize) + 1) > MAX_CELLS) {
+         cellSize *= 2.0;
+      }
+      final int nx = (int) Math.floor((maxX - minX) / cellSize) + 1;
+      final int ny = (int) Math.floor((maxY - minY) / cellSize) + 1;
+
+      // Sort the points by cell
+      final int[] cellOf = new int[xs.length];
+      final int[] cellStart = new int[nx * ny + 1];
+      for (int i = 0; i < xs.length; i++) {
+         if (isFinite(xs[i]) && isFinite(ys[i])) {
+            int cx = Math.min(nx - 1, (int) ((xs[i] - minX) / cellSize));
+            int cy = Math.min(ny - 1, (int) ((ys[i] - minY) / cellSize));
+            cellOf[i] = cy * nx + cx;
+            cellStart[cellOf[i] + 1]++;
+         } else {
+            cellOf[i] = -1;
+         }
+      }
+      int nrCells = 0;
+      for (int c = 0; c < nx * ny; c++) {
+         if (cellStart[c + 1] > 0) {
+            nrCells++;
+         }
+         cellStart[c + 1] += cellStart[c];
+      }
+      final int[] order = new int[cellStart[nx * ny]];
+      final int[] fill = Arrays.copyOf(cellStart, nx * ny);
+      for (int i = 0; i < xs.length; i++) {
+         if (cellOf[i] >= 0) {
+            order[fill[cellOf[i]]++] = i;
+         }
+      }
+      final int[] cells = new int[nrCells];
+      for (int c = 0, j = 0; c < nx * ny; c++) {
+         if (cellStart[c + 1] > cellStart[c]) {
+            cells[j++] = c;
+         }
+      }
+
+      final int nrThreads = Runtime.getRuntime().availableProcessors();
+      final int chunk = Math.max(1, nrCells / (8 * nrThreads));
+      ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+      try {
+         List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int first = 0; first < nrCells; first += chunk) {
+            final int from = first;
+            final int to = Math.min(nrCells, first + chunk);
+            futures.add(executor.submit(new Runnable() {
+               @Override
+               public void run() {
+                  CellTransformer transformer = new CellTransformer(xs, ys, outX, outY);
+                  for (int j = from; j < to; j++) {
+                     int c = cells[j];
+                     transformer.transformCell(order, cellStart[c], cellStart[c + 1]);
+                  }
+               }
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+         throw new RuntimeException(ex.getCause());
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   private static boolean isFinite(double d) {
+      return !Double.isNaN(d) && !Double.isInfinite(d);
+   }
+
+   /**
+    * Transforms the points of one cell at a time.  Not thread safe.
+    */
+   private final class CellTransformer {
+      private final double[] xs_;
+      private final double[] ys_;
+      private final double[] outX_;
+      private final double[] outY_;
+      private final Point2D.Double[] controls_ = kdTree_.points_;
+      private final double[] centerDistances_ = new double[controls_.length];
+      private final double[] sortedDistances_ = new double[controls_.length];
+      private final int[] candidates_ = new int[controls_.length];
+      private final double[] candidateDistances_ = new double[controls_.length];
+      private final int[] byDistance_ = new int[controls_.length];
+      private final Map<BitSet, AffineTransform> localTransforms_ =
+            new HashMap<BitSet, AffineTransform>();
+      private final Point2D.Double point_ = new Point2D.Double();
+      private ControlPoint[] lwmControlPoints_;
+      private final double[] terms_ = new double[exponentPairs_.size()];
+      private final double[] xPowers_ = new double[order_ + 1];
+      private final double[] yPowers_ = new double[order_ + 1];
+
+      CellTransformer(double[] xs, double[] ys, double[] outX, double[] outY) {
+         xs_ = xs;
+         ys_ = ys;
+         outX_ = outX;
+         outY_ = outY;
+      }
+
+      void transformCell(int[] order, int start, int end) {
+         final int k = Math.min(controls_.length, method_ == LWM
+               ? LWM_NEIGHBORS : pieceWiseAffineMaxControlPoints_);
+         // Center of the points in the cell, and their largest distance to it
+         double cx = 0;
+         double cy = 0;
+         for (int j = start; j < end; j++) {
+            cx += xs_[order[j]];
+            cy += ys_[order[j]];
+         }
+         cx /= (end - start);
+         cy /= (end - start);
+         double radius = 0;
+         for (int j = start; j < end; j++) {
+            double dx = xs_[order[j]] - cx;
+            double dy = ys_[order[j]] - cy;
+            radius = Math.max(radius, Math.sqrt(dx * dx + dy * dy));
+         }
+
+         // The k nearest neighbors of a point at most radius away from the
+         // center are at most d_k + 2 * radius away from the center, where
+         // d_k is the distance of the k-th nearest neighbor of the center.
+         for (int q = 0; q < controls_.length; q++) {
+            double dx = controls_[q].x - cx;
+            double dy = controls_[q].y - cy;
+            centerDistances_[q] = Math.sqrt(dx * dx + dy * dy);
+            sortedDistances_[q] = centerDistances_[q];
+         }
+         Arrays.sort(sortedDistances_);
+         double reach = sortedDistances_[k - 1] + 2 * radius;
+         reach += 1e-9 * Math.max(1.0, reach);
+         int nrCandidates = 0;
+         for (int q = 0; q < controls_.length; q++) {
+            if (centerDistances_[q] <= reach) {
+               candidates_[nrCandidates++] = q;
+            }
+         }
+         // When there are only k candidates, all points have the same neighbors
+         final boolean shared = nrCandidates == k;
+
+         if (method_ == LWM) {
+            transformLWM(order, start, end, nrCandidates, k);
+         } else {
+            BitSet cellNeighbors = null;
+            if (shared) {
+               // Same neighbors within the maximum distance for all points?
+               cellNeighbors = new BitSet(controls_.length);
+               for (int j = 0; j < nrCandidates && cellNeighbors != null; j++) {
+                  double d = centerDistances_[candidates_[j]];
+                  if (d + radius <= pieceWiseAffineMaxDistance_) {
+                     cellNeighbors.set(candidates_[j]);
+                  } else if (d - radius <= pieceWiseAffineMaxDistance_) {
+                     cellNeighbors = null;
+                  }
+               }
+            }
+            transformPiecewiseAffine(order, start, end, nrCandidates, k, cellNeighbors);
+         }
+         // Neighboring cells often share local transforms
+         if (localTransforms_.size() > MAX_CACHED_TRANSFORMS) {
+            localTransforms_.clear();
+         }
+      }
+
+      /**
+       * Orders the candidates by distance to the point, nearest first.
+       */
+      private void sortCandidates(int nrCandidates, double x, double y) {
+         for (int j = 0; j < nrCandidates; j++) {
+            final int q = candidates_[j];
+            final double dx = controls_[q].x - x;
+            final double dy = controls_[q].y - y;
+            final double d2 = dx * dx + dy * dy;
+            // insertion sort; there are only a few more candidates than k
+            int n = j;
+            while (n > 0 && candidateDistances_[n - 1] > d2) {
+               candidateDistances_[n] = candidateDistances_[n - 1];
+               byDistance_[n] = byDistance_[n - 1];
+               n--;
+            }
+            candidateDistances_[n] = d2;
+            byDistance_[n] = q;
+         }
+      }
+
+      /**
+       * Same as CoordinateMapper.powerTerms, without calling Math.pow.
+       */
+      private void powerTerms(double x, double y) {
+         xPowers_[0] = 1.0;
+         yPowers_[0] = 1.0;
+         for (int e = 1; e <= order_; e++) {
+            xPowers_[e] = xPowers_[e - 1] * x;
+            yPowers_[e] = yPowers_[e - 1] * y;
+         }
+         for (int t = 0; t < terms_.length; t++) {
+            ExponentPair pair = exponentPairs_.get(t);
+            terms_[t] = xPowers_[pair.xExponent] * yPowers_[pair.yExponent];
+         }
+      }
+
+      private void transformLWM(int[] order, int start, int end, int nrCandidates, int k) {
+         if (lwmControlPoints_ == null) {
+            lwmControlPoints_ = new ControlPoint[controls_.length];
+            for (int q = 0; q < controls_.length; q++) {
+               lwmControlPoints_[q] = controlPoints_.get(controls_[q]);
+            }
+         }
+         for (int j = start; j < end; j++) {
+            final int i = order[j];
+            final double x = xs_[i];
+            final double y = ys_[i];
+            point_.setLocation(x, y);
+            if (nrCandidates > k) {
+               sortCandidates(nrCandidates, x, y);
+            }
+            powerTerms(x, y);
+            double sumWeights = 0;
+            double sumWeightedPolyX = 0;
+            double sumWeightedPolyY = 0;
+            for (int n = 0; n < k; n++) {
+               final ControlPoint controlPoint = lwmControlPoints_[
+                     nrCandidates > k ? byDistance_[n] : candidates_[n]];
+               final double r = point_.distance(controlPoint.point) / controlPoint.rnormalized;
+               final double weight = weightFunction(r);
+               if (weight > 0) {
+                  sumWeights += weight;
+                  sumWeightedPolyX += weight
+                        * dot(controlPoint.polynomialCoefficients.polyX, terms_);
+                  sumWeightedPolyY += weight
+                        * dot(controlPoint.polynomialCoefficients.polyY, terms_);
+               }
+            }
+            outX_[i] = sumWeightedPolyX / sumWeights;
+            outY_[i] = sumWeightedPolyY / sumWeights;
+         }
+      }
+
+      private void transformPiecewiseAffine(int[] order, int start, int end, int nrCandidates,
+            int k, BitSet cellNeighbors) {
+         final double maxDistanceSquare =
+               pieceWiseAffineMaxDistance_ * pieceWiseAffineMaxDistance_;
+         for (int j = start; j < end; j++) {
+            final int i = order[j];
+            point_.setLocation(xs_[i], ys_[i]);
+            BitSet neighbors = cellNeighbors;
+            if (neighbors == null) {
+               neighbors = new BitSet(controls_.length);
+               if (nrCandidates > k) {
+                  sortCandidates(nrCandidates, point_.x, point_.y);
+               }
+               for (int n = 0; n < k; n++) {
+                  int q = nrCandidates > k ? byDistance_[n] : candidates_[n];
+                  if (NearestPoint2D.distance2(point_, controls_[q]) <= maxDistanceSquare) {
+                     neighbors.set(q);
+                  }
+               }
+            }
+            if (neighbors.cardinality() <= 10) {
+               continue;
+            }
+            AffineTransform af = localTransforms_.get(neighbors);
+            if (af == null) {
+               List<Point2D.Double> nearestNeighbors = new ArrayList<Point2D.Double>();
+               for (int q = neighbors.nextSetBit(0); q >= 0; q = neighbors.nextSetBit(q + 1)) {
+                  nearestNeighbors.add(controls_[q]);
+               }
+               af = generateAffineTransformFromPointPairs(
+                     selectPoints(pointMap_, nearestNeighbors));
+               localTransforms_.put(neighbors, af);
+            }
+            af.transform(point_, point_);
+            outX_[i] = point_.x;
+            outY_[i] = point_.y;
+         }
+      }
+   }
+
+   private static double dot(double[] coeffs, double[] terms) {
+      double result = 0;
+      for (int i = 0; i < coeffs.length; ++i) {
+         result += coeffs[i] * terms[i];
+      }
+      return result;
+   }
+
+   /**
+    * Affine transform calculated from the point pairs that remain after
+    * removing outliers.  Calculated on first use.
+    */
+   private synchronized AffineTransform cleanedAffineTransform() {
+      if (cleanedPointMap_ == null) {
+         cleanedPointMap_ = makeCleanedPointMap();
+         af_ = generateAffineTransformFromPointPairs(cleanedPointMap_);
+         if (log_) {
+            logAffineTransform(af_);
+         }
+         ij.IJ.log("Used " + cleanedPointMap_.size()
+               + " spot pairs to calculate 2C reference");
+      }
+      return af_;
+   }
+
    public void setMethod(int method) {
       method_ = method;
    }
@@ -29,12 +29,12 @@ either expressed or implied, of the FreeBSD Project.
 
 package edu.ucsf.valelab.gaussianfit.datasettransformations;
 
-import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
-
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.algorithm.DriftEstimator;
 import edu.ucsf.valelab.gaussianfit.algorithm.JitterDetector;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Point;
@@ -43,6 +43,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import javax.swing.JOptionPane;
 
 /**
@@ -63,9 +64,10 @@ public class DriftCorrector {
    }
 
    /**
-    * Creates a new data set that is corrected for motion blur Correction is performed by projecting
-    * a number of images onto a 2D scattergram and using cross-correlation between them to find the
-    * displacement
+    * Creates a new data set that is corrected for drift.  Spots of a number of
+    * frames are projected onto 2D scattergrams (bins), the drift of each bin is
+    * found by cross-correlating the bins with each other (see DriftEstimator),
+    * and the drift of each frame is interpolated between the bins.
     *
     * @param rowData
     */
@@ -74,6 +76,8 @@ public class DriftCorrector {
       // TODO: instead of a fixed number of frames, go for a certain number of spots
       // Number of frames could be limited as well
       final int framesToCombine = 200;
+      // number of following bins that each bin is correlated with
+      final int binsToCorrelate = 4;
 
       if (rowData.spotList_.size() <= 1) {
          return;
@@ -94,209 +98,50 @@ public class DriftCorrector {
             int width = mag * rowData.width_;
             int height = mag * rowData.height_;
 
-            int size = width * height;
-
-            // TODO: add 0 padding to deal with aberrant image sizes
-            if ((width != height) || ((width & (width - 1)) != 0)) {
-               JOptionPane.showMessageDialog(getInstance(),
-                     "Magnified image is not a square with a size that is a power of 2");
-               ij.IJ.showStatus(" ");
+            // TODO: what if we should go through nrSlices instead of nrFrames?
+            boolean useSlices = rowData.nrFrames_ / framesToCombine == 0;
+            final int nrImages = useSlices ? rowData.nrSlices_ : rowData.nrFrames_;
+            int nrOfTests = (nrImages + framesToCombine - 1) / framesToCombine;
+            if (nrOfTests < 2) {
+               ij.IJ.showStatus("Not enough frames for jitter correction");
                return;
             }
 
-            // TODO: what if we should go through nrSlices instead of nrFrames?
-            boolean useSlices = false;
-            int nrOfTests = rowData.nrFrames_ / framesToCombine;
-            if (nrOfTests == 0) {
-               useSlices = true;
-               nrOfTests = rowData.nrSlices_ / framesToCombine;
-               if (rowData.nrSlices_ % framesToCombine > 0) {
-                  nrOfTests++;
-               }
-            } else {
-               if (rowData.nrFrames_ % framesToCombine > 0) {
-                  nrOfTests++;
-               }
+            // rows of the spots in each bin
+            SpotStore store = rowData.getSpotStore();
+            int[] binOfRow = new int[store.size()];
+            int[] binSizes = new int[nrOfTests];
+            for (int row = 0; row < store.size(); row++) {
+               SpotData spot = store.get(row);
+               int j = ((useSlices ? spot.getSlice() : spot.getFrame()) - 1) / framesToCombine;
+               binOfRow[row] = Math.min(nrOfTests - 1, Math.max(0, j));
+               binSizes[binOfRow[row]]++;
             }
-
-            // storage of stage movement data
-            class StageMovementData {
-
-               Point2D.Double pos_;
-               Point frameRange_;
-
-               StageMovementData(Point2D.Double pos, Point frameRange) {
-                  pos_ = pos;
-                  frameRange_ = frameRange;
-               }
+            int[][] binRows = new int[nrOfTests][];
+            for (int j = 0; j < nrOfTests; j++) {
+               binRows[j] = new int[binSizes[j]];
+               binSizes[j] = 0;
+            }
+            for (int row = 0; row < binOfRow.length; row++) {
+               binRows[binOfRow[row]][binSizes[binOfRow[row]]++] = row;
+            }
+            List<List<SpotData>> bins = new ArrayList<List<SpotData>>(nrOfTests);
+            for (int j = 0; j < nrOfTests; j++) {
+               bins.add(store.rows(binRows[j]));
             }
 
-            ArrayList<StageMovementData> stagePos = new ArrayList<>();
+            double factor = (double) mag / rowData.pixelSizeNm_;
 
             try {
-               // make imageprocessors for all the images that we will generate
-               ImageProcessor[] ip = new ImageProcessor[nrOfTests];
-               byte[][] pixels = new byte[nrOfTests][width * height];
-
-               for (int i = 0; i < nrOfTests; i++) {
-                  ip[i] = new ByteProcessor(width, height);
-                  ip[i].setPixels(pixels[i]);
-               }
-
-               double factor = (double) mag / rowData.pixelSizeNm_;
-
-               // make 2D scattergrams of all pixelData
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixels[j][index] != -1) {
-                        pixels[j][index] += 1;
-                     }
-                  }
-
-               }
-
-               JitterDetector jd = new JitterDetector(ip[0]);
-
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-
-               jd.getJitter(ip[0], fp);
-
-               for (int i = 1; i < ip.length; i++) {
-                  ij.IJ.showStatus("Executing jitter correction..." + i);
-                  ij.IJ.showProgress(i, ip.length);
-                  int spotCount = 0;
-                  for (int j = 0; j < ip[i].getPixelCount(); j++) {
-                     spotCount += ip[i].get(j);
-                  }
-
-                  jd.getJitter(ip[i], com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
-                  stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                        new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("i: " + i + " nSpots: " + spotCount + " X: " + x + " Y: " + y);
-               }
-
-            } catch (OutOfMemoryError ex) {
-               // not enough memory to allocate all images in one go
-               // we need to cycle through all gaussian spots cycle by cycle
-
-               double factor = (double) mag / rowData.pixelSizeNm_;
+               ij.IJ.showStatus("Executing jitter correction...");
+               double[][] drift = new DriftEstimator(factor, width, height, binsToCorrelate,
+                     Runtime.getRuntime().availableProcessors()).estimate(bins);
 
-               ImageProcessor ipRef = new ByteProcessor(width, height);
-               byte[] pixelsRef = new byte[width * height];
-               ipRef.setPixels(pixelsRef);
-
-               // take the first image as reference
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  if (j == 0) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     int index = (y * width) + x;
-                     if (index < size && index > 0) {
-                        if (pixelsRef[index] != -1) {
-                           pixelsRef[index] += 1;
-                        }
-                     }
-                  }
-               }
-
-               JitterDetector jd = new JitterDetector(ipRef);
-
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               jd.getJitter(ipRef, fp);
-
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-               ImageProcessor ipTest = new ByteProcessor(width, height);
-               byte[] pixelsTest = new byte[width * height];
-               ipTest.setPixels(pixelsTest);
-
-               for (int i = 1; i < nrOfTests; i++) {
-                  ij.IJ.showStatus("Executing jitter correction..." + i);
-                  ij.IJ.showProgress(i, nrOfTests);
-                  for (int p = 0; p < size; p++) {
-                     ipTest.set(p, 0);
-                  }
-
-                  for (SpotData spot : rowData.spotList_) {
-                     int j;
-                     if (useSlices) {
-                        j = (spot.getSlice() - 1) / framesToCombine;
-                     } else {
-                        j = (spot.getFrame() - 1) / framesToCombine;
-                     }
-                     if (j == i) {
-                        int x = (int) (factor * spot.getXCenter());
-                        int y = (int) (factor * spot.getYCenter());
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixelsTest[index] != -1) {
-                              pixelsTest[index] += 1;
-                           }
-                        }
-                     }
-                  }
-
-                  jd.getJitter(ipTest, com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  double timePoint = i;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
-                  stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                        new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("X: " + x + " Y: " + y);
-               }
-
-            }
-
-            try {
                // Assemble stage movement data into a track
                List<SpotData> stageMovementData = new ArrayList<SpotData>();
-               SpotData sm = new SpotData(null, 1, 1, 1, 1, 1, 1, 1);
-               sm.setData(0, 0, 0, 0, 0.0, 0, 0, 0, 0);
-               stageMovementData.add(sm);
-
-               // calculate moving average for stageposition
-               ArrayList<StageMovementData> stagePosMA = new ArrayList<StageMovementData>();
-               int windowSize = 5;
-               for (int i = 0; i < stagePos.size() - windowSize; i++) {
-                  Point2D.Double avg = new Point2D.Double(0.0, 0.0);
-                  for (int j = 0; j < windowSize; j++) {
-                     avg.x += stagePos.get(i + j).pos_.x;
-                     avg.y += stagePos.get(i + j).pos_.y;
-                  }
-                  avg.x /= windowSize;
-                  avg.y /= windowSize;
-
-                  stagePosMA.add(new StageMovementData(avg, stagePos.get(i).frameRange_));
-               }
-
-               for (int i = 0; i < stagePosMA.size(); i++) {
-                  StageMovementData smd = stagePosMA.get(i);
-                  SpotData s =
-                        new SpotData(null, 1, 1, i + 2, 1, 1, 1, 1);
-                  s.setData(0, 0, smd.pos_.x, smd.pos_.y, 0.0, 0, 0, 0, 0);
+               for (int i = 0; i < drift.length; i++) {
+                  SpotData s = new SpotData(null, 1, 1, i + 1, 1, 1, 1, 1);
+                  s.setData(0, 0, drift[i][0], drift[i][1], 0.0, 0, 0, 0, 0);
                   stageMovementData.add(s);
                }
 
@@ -305,7 +150,7 @@ public class DriftCorrector {
                ArrayList<Double> timePoints = null;
                if (rowData.timePoints_ != null) {
                   timePoints = new ArrayList<Double>();
-                  int tp = framesToCombine;
+                  int tp = 0;
                   while (tp < rowData.timePoints_.size()) {
                      timePoints.add(rowData.timePoints_.get(tp));
                      tp += framesToCombine;
@@ -323,57 +168,24 @@ public class DriftCorrector {
                ij.IJ.showStatus("Assembling jitter corrected dataset...");
                ij.IJ.showProgress(1);
 
-               List<SpotData> correctedData = new ArrayList<SpotData>();
-               Iterator it = rowData.spotList_.iterator();
-
-               int testNr = 0;
-               StageMovementData smd = stagePosMA.get(0);
-               int counter = 0;
-               while (it.hasNext()) {
-                  counter++;
-                  SpotData gs = (SpotData) it.next();
-                  int test;
-                  if (useSlices) {
-                     test = gs.getSlice();
-                  } else {
-                     test = gs.getFrame();
-                  }
-                  if (test != testNr) {
-                     testNr = test - 1;
-                  }
-                  boolean found = false;
-                  if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                     found = true;
-                  }
-                  if (!found) {
-                     for (int i = 0; i < stagePosMA.size() && !found; i++) {
-                        smd = stagePosMA.get(i);
-                        if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                           found = true;
-                        }
-                     }
-                  }
-                  if (found) {
-                     Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
-                           gs.getYCenter() - smd.pos_.y);
-                     SpotData gsn = new SpotData(gs);
-                     gsn.setXCenter(point.x);
-                     gsn.setYCenter(point.y);
-                     correctedData.add(gsn);
-                  } else {
-                     correctedData.add(gs);
-                  }
-
-
-               }
+               double[][] frameDrift = DriftEstimator.perFrame(drift, framesToCombine,
+                     nrImages);
+               SpotStore correctedData = new SpotStore();
+               correctedData.addAll(store);
+               correctedData.subtractDrift(useSlices, frameDrift[0], frameDrift[1]);
 
                // Add transformed data to data overview window
                builder = rowData.copy();
                builder.setName(rowData.getName() + "-Jitter-Correct")
-                           .setSpotList(correctedData);
+                           .setSpotList(correctedData.asList());
                DataCollectionForm.getInstance().addSpotData(builder);
 
                ij.IJ.showStatus("Finished jitter correction");
+            } catch (InterruptedException ie) {
+               Thread.currentThread().interrupt();
+               ij.IJ.showStatus("Jitter correction was interrupted");
+            } catch (ExecutionException ee) {
+               ij.IJ.error("Jitter correction failed: " + ee.getCause());
             } catch (OutOfMemoryError oom) {
                System.gc();
                ij.IJ.error("Out of Memory");
@@ -0,0 +1,247 @@
+/*
+ * Uniform grid spatial index to find nearest neighbors among a fixed set of points
+ * <p>
+ * <p>
+ * Copyright (c) 2024, Regents of the University of California All rights reserved.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * <p>
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer. 2. Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * <p>
+ * The views and conclusions contained in the software and documentation are those of the authors
+ * and should not be interpreted as representing official policies, either expressed or implied, of
+ * the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import java.util.List;
+
+/**
+ * Finds the closest point within a maximum distance among a fixed set of points.
+ *
+ * <p>Points are bucketed into a uniform grid with roughly one point per cell.  Construction is
+ * linear in the number of points, and a query only visits the rings of cells around the query
+ * point that can still hold a closer point than the best one found so far.  This makes it much
+ * cheaper than a KD tree when a new index is needed for every frame, as in spot linking.
+ *
+ * <p>Points are identified by their index in the arrays handed to the constructor.  Results are
+ * the same as those of {@link NearestPointByData#findKDWSE}: the squared distance has to be
+ * strictly smaller than the squared maximum distance.  When several points are at exactly the same
+ * distance, the one with the lowest index is returned.
+ *
+ * <p>Instances are immutable after construction and can be queried from multiple threads.
+ */
+public class SpotGridIndex {
+
+   private final double[] xs_;
+   private final double[] ys_;
+   private final double maxDistanceSquared_;
+   private final double minX_;
+   private final double minY_;
+   private final double cellSize_;
+   private final int nx_;
+   private final int ny_;
+   private final int maxRing_;
+   // point indices, sorted by cell
+   private final int[] cellItems_;
+   // cellItems_[cellStart_[c] .. cellStart_[c + 1]) are the points in cell c
+   private final int[] cellStart_;
+
+   /**
+    * Builds the index.  The arrays are used directly and should not be modified afterwards.
+    *
+    * @param xs          x coordinates of the points
+    * @param ys          y coordinates of the points
+    * @param n           number of points (xs and ys can be larger)
+    * @param maxDistance points farther away than this are never returned
+    */
+   public SpotGridIndex(double[] xs, double[] ys, int n, double maxDistance) {
+      xs_ = xs;
+      ys_ = ys;
+      maxDistanceSquared_ = maxDistance * maxDistance;
+
+      double minX = Double.POSITIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < n; i++) {
+         minX = Math.min(minX, xs[i]);
+         minY = Math.min(minY, ys[i]);
+         maxX = Math.max(maxX, xs[i]);
+         maxY = Math.max(maxY, ys[i]);
+      }
+      if (n == 0) {
+         minX = minY = maxX = maxY = 0.0;
+      }
+      minX_ = minX;
+      minY_ = minY;
+      double width = maxX - minX;
+      double height = maxY - minY;
+      // Aim for about one point per cell.  The other two terms bound the number of cells to
+      // about 3n for elongated point clouds, and keep the number of rings a query has to visit
+      // small when the search radius is large.
+      double cellSize = Math.sqrt(width * height / Math.max(n, 1));
+      cellSize = Math.max(cellSize, Math.max(width, height) / Math.max(n, 1));
+      if (maxDistance > 0 && !Double.isInfinite(maxDistance)) {
+         cellSize = Math.max(cellSize, maxDistance / 4.0);
+      }
+      if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+         cellSize = 1.0;
+      }
+      cellSize_ = cellSize;
+      nx_ = (int) Math.floor(width / cellSize) + 1;
+      ny_ = (int) Math.floor(height / cellSize) + 1;
+      maxRing_ = Double.isInfinite(maxDistance) ? Integer.MAX_VALUE - 1
+            : (int) Math.min(Math.ceil(maxDistance / cellSize) + 1, Integer.MAX_VALUE - 1);
+
+      // counting sort of the point indices by cell
+      int nrCells = nx_ * ny_;
+      cellStart_ = new int[nrCells + 1];
+      int[] cellOf = new int[n];
+      for (int i = 0; i < n; i++) {
+         cellOf[i] = cellY(ys[i]) * nx_ + cellX(xs[i]);
+         cellStart_[cellOf[i] + 1]++;
+      }
+      for (int c = 0; c < nrCells; c++) {
+         cellStart_[c + 1] += cellStart_[c];
+      }
+      cellItems_ = new int[n];
+      int[] fill = new int[nrCells];
+      for (int i = 0; i < n; i++) {
+         int c = cellOf[i];
+         cellItems_[cellStart_[c] + fill[c]] = i;
+         fill[c]++;
+      }
+   }
+
+   /**
+    * Builds an index over the centers of the given spots.
+    *
+    * @param spots       spots to be indexed.  Indices returned by nearest refer to this list.
+    * @param maxDistance points farther away than this are never returned
+    * @return index over the spots
+    */
+   public static SpotGridIndex fromSpots(List<SpotData> spots, double maxDistance) {
+      int n = spots.size();
+      double[] xs = new double[n];
+      double[] ys = new double[n];
+      for (int i = 0; i < n; i++) {
+         SpotData spot = spots.get(i);
+         xs[i] = spot.getXCenter();
+         ys[i] = spot.getYCenter();
+      }
+      return new SpotGridIndex(xs, ys, n, maxDistance);
+   }
+
+   /**
+    * Finds the point closest to the given position.
+    *
+    * @param x x coordinate of the query position
+    * @param y y coordinate of the query position
+    * @return index of the closest point, or -1 if no point is closer than the maximum distance
+    */
+   public int nearest(double x, double y) {
+      int cx = cellX(x);
+      int cy = cellY(y);
+      int best = -1;
+      double bestD2 = maxDistanceSquared_;
+      // rings closer than this do not overlap the grid
+      int firstRing = Math.max(Math.max(-cx, cx - (nx_ - 1)), Math.max(-cy, cy - (ny_ - 1)));
+      firstRing = Math.max(firstRing, 0);
+      for (int ring = firstRing; ring <= maxRing_; ring++) {
+         int x0 = cx - ring;
+         int x1 = cx + ring;
+         int y0 = cy - ring;
+         int y1 = cy + ring;
+         for (int gy = Math.max(y0, 0); gy <= Math.min(y1, ny_ - 1); gy++) {
+            if (gy == y0 || gy == y1) {
+               // top and bottom row of the ring are scanned completely
+               for (int gx = Math.max(x0, 0); gx <= Math.min(x1, nx_ - 1); gx++) {
+                  best = scanCell(gy * nx_ + gx, x, y, best);
+               }
+            } else {
+               // other rows only at both ends
+               if (x0 >= 0) {
+                  best = scanCell(gy * nx_ + x0, x, y, best);
+               }
+               if (x1 != x0 && x1 < nx_) {
+                  best = scanCell(gy * nx_ + x1, x, y, best);
+               }
+            }
+            if (best >= 0) {
+               bestD2 = distanceSquared(best, x, y);
+            }
+         }
+         // Anything in the next ring is at least ring * cellSize away, which is too far when it
+         // can not be closer than the best point or the maximum distance
+         double reach = ring * cellSize_;
+         if (best >= 0 ? bestD2 < reach * reach : bestD2 <= reach * reach) {
+            break;
+         }
+         if (x0 <= 0 && y0 <= 0 && x1 >= nx_ - 1 && y1 >= ny_ - 1) {
+            // all cells have been visited
+            break;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * @return number of points in the index
+    */
+   public int size() {
+      return cellItems_.length;
+   }
+
+   private int scanCell(int c, double x, double y, int best) {
+      double bestD2 = best >= 0 ? distanceSquared(best, x, y) : maxDistanceSquared_;
+      for (int k = cellStart_[c]; k < cellStart_[c + 1]; k++) {
+         int i = cellItems_[k];
+         double d2 = distanceSquared(i, x, y);
+         if (d2 < bestD2 || (d2 == bestD2 && best >= 0 && i < best)) {
+            best = i;
+            bestD2 = d2;
+         }
+      }
+      return best;
+   }
+
+   private double distanceSquared(int i, double x, double y) {
+      double dx = xs_[i] - x;
+      double dy = ys_[i] - y;
+      return dx * dx + dy * dy;
+   }
+
+   private int cellX(double x) {
+      return clampToInt(Math.floor((x - minX_) / cellSize_));
+   }
+
+   private int cellY(double y) {
+      return clampToInt(Math.floor((y - minY_) / cellSize_));
+   }
+
+   private static int clampToInt(double v) {
+      if (v > Integer.MAX_VALUE / 4) {
+         return Integer.MAX_VALUE / 4;
+      }
+      if (v < Integer.MIN_VALUE / 4) {
+         return Integer.MIN_VALUE / 4;
+      }
+      return (int) v;
+   }
+}
@@ -31,17 +31,20 @@ package edu.ucsf.valelab.gaussianfit.spotoperations;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
-import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.data.TrackData;
-import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.JOptionPane;
 
 /**
@@ -50,6 +53,12 @@ import javax.swing.JOptionPane;
  * coordinates (frame, channel, position) of the first spot of the track.  Its position is averaged
  * and the intensity is summed.
  *
+ * <p>Every (position, channel, slice) combination is linked independently, so these are
+ * processed in parallel.  Within each, the spots of every frame are put in a SpotGridIndex once,
+ * and spots that were claimed by a track are marked by their index in the frame, which keeps the
+ * work per frame linear in the number of spots.  Results are merged in the same order in which a
+ * single thread would produce them.
+ *
  * @author nico
  */
 public class SpotLinker {
@@ -69,77 +78,7 @@ public class SpotLinker {
    public static void link(RowData rowData, double maxDistance) {
       try {
          ij.IJ.showStatus("Linking spotData...");
-         boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
-         int nr = rowData.nrSlices_;
-         if (useFrames) {
-            nr = rowData.nrFrames_;
-         }
-
-         // linked spots go here:
-         List<SpotData> destList = new ArrayList<SpotData>();
-         // maintain active tracks here
-         List<List<SpotData>> tracks =
-               new ArrayList<List<SpotData>>();
-         for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
-            for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
-               for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           ArrayList<GsSpotPair> gsSpots = new ArrayList<GsSpotPair>();
-                           for (SpotData spot : spots) {
-                              gsSpots.add(new GsSpotPair(spot, null,
-                                    new Point2D.Double(spot.getXCenter(), spot.getYCenter()),
-                                    new Point2D.Double(0.0, 0.0)));
-                           }
-                           NearestPointByData nsp = new NearestPointByData(gsSpots, maxDistance);
-                           List<List<SpotData>> removedTracks =
-                                 new ArrayList<List<SpotData>>();
-                           for (List<SpotData> track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              GsSpotPair newSpot = ((GsSpotPair) nsp.findKDWSE(new Point2D.Double(
-                                    tSpot.getXCenter(), tSpot.getYCenter()))).copy();
-                              if (newSpot == null) {
-                                 // track could not be extended, finalize it
-                                 linkSpots(track, destList, useFrames);
-                                 // and remove from the list of tracks
-                                 // to avoid a concurrent modification exception
-                                 // the removal needs to be a two step process
-                                 removedTracks.add(track);
-                              } else {
-                                 track.add(newSpot.getFirstSpot());
-                                 markedSpots.add(newSpot.getFirstSpot());
-                              }
-                           }
-                           // second part of removing tracks
-                           for (List<SpotData> track : removedTracks) {
-                              tracks.remove(track);
-                           }
-                        }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              List<SpotData> track = new ArrayList<SpotData>();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
-                        }
-                     }
-                  }
-                  // add tracks that made it to the end to destination list
-                  for (List<SpotData> track : tracks) {
-                     linkSpots(track, destList, useFrames);
-                  }
-                  tracks.clear();
-               }
-            }
-         }
+         List<SpotData> destList = linkedSpots(rowData, maxDistance);
 
          // Add destList to rowData
          RowData.Builder builder = rowData.copy();
@@ -153,6 +92,93 @@ public class SpotLinker {
       }
    }
 
+   /**
+    * Does the work for {@link #link(RowData, double)}, without adding the result to the
+    * DataCollectionForm.
+    *
+    * @param rowData     spots to be linked
+    * @param maxDistance Maximum distance between spots in consecutive frames
+    * @return linked spots, one per track
+    */
+   public static List<SpotData> linkedSpots(final RowData rowData, final double maxDistance) {
+      final boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
+      List<Callable<List<SpotData>>> tasks = new ArrayList<Callable<List<SpotData>>>();
+      for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
+         for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
+            for (int s = 1; s <= rowData.nrSlices_; s++) {
+               final List<List<SpotData>> frames = framesOf(rowData, pos, ch, s);
+               tasks.add(new Callable<List<SpotData>>() {
+                  @Override
+                  public List<SpotData> call() {
+                     return linkPartition(frames, maxDistance, useFrames);
+                  }
+               });
+            }
+         }
+      }
+      List<SpotData> destList = new ArrayList<SpotData>();
+      for (List<SpotData> linked : runInParallel(tasks)) {
+         destList.addAll(linked);
+      }
+      return destList;
+   }
+
+   /**
+    * Links spots in a single position/channel/slice.
+    *
+    * @param frames    spots in every frame, null for frames without spots
+    * @param maxDistance Maximum distance between spots in consecutive frames
+    * @param useFrames - whether or not the single axis of the image stack lies about its identity
+    * @return linked spots, in the order in which tracks ended
+    */
+   private static List<SpotData> linkPartition(List<List<SpotData>> frames,
+         double maxDistance, boolean useFrames) {
+      // linked spots go here:
+      List<SpotData> destList = new ArrayList<SpotData>();
+      // maintain active tracks here
+      List<List<SpotData>> tracks = new ArrayList<List<SpotData>>();
+      for (List<SpotData> spots : frames) {
+         if (spots == null) {
+            continue;
+         }
+         // keep track of spots in this frame added to tracks
+         boolean[] marked = new boolean[spots.size()];
+         // go through all tracks to see if they can be extended
+         if (tracks.size() > 0) {
+            SpotGridIndex index = SpotGridIndex.fromSpots(spots, maxDistance);
+            List<List<SpotData>> continuedTracks =
+                  new ArrayList<List<SpotData>>(tracks.size());
+            for (List<SpotData> track : tracks) {
+               SpotData tSpot = track.get(track.size() - 1);
+               int found = index.nearest(tSpot.getXCenter(), tSpot.getYCenter());
+               if (found < 0) {
+                  // track could not be extended, finalize it
+                  linkSpots(track, destList, useFrames);
+               } else {
+                  track.add(spots.get(found));
+                  marked[found] = true;
+                  continuedTracks.add(track);
+               }
+            }
+            tracks = continuedTracks;
+         }
+         // go through spots and start a new track with any spot
+         // that was not part of a track
+         for (int i = 0; i < spots.size(); i++) {
+            if (!marked[i]) {
+               List<SpotData> track = new ArrayList<SpotData>();
+               track.add(spots.get(i));
+               tracks.add(track);
+            }
+         }
+      }
+      // add tracks that made it to the end to destination list
+      for (List<SpotData> track : tracks) {
+         linkSpots(track, destList, useFrames);
+      }
+      return destList;
+   }
+
    /**
     * Given a list of linked spots, create a single spot entry that will be added to the destination
     * list
@@ -220,11 +246,11 @@ public class SpotLinker {
       final double stdDevY = Math.sqrt(1.0 / (n - 1) * sumy);
 
       sp.setData(intensity, background, xCenter, yCenter, 0.0, width, a, theta, sigma);
-      sp.originalFrame_ = source.get(0).getFrame();
+      sp.setOriginalFrame(source.get(0).getFrame());
       if (!useFrames) {
-         sp.originalFrame_ = source.get(0).getSlice();
+         sp.setOriginalFrame(source.get(0).getSlice());
       }
-      sp.nrLinks_ = n;
+      sp.setNrLinks(n);
 
       sp.addKeyValue(SpotData.Keys.N, n);
       sp.addKeyValue(SpotData.Keys.STDDEV, stdDev);
@@ -260,142 +286,215 @@ public class SpotLinker {
       int trackNr = 0;
       try {
          ij.IJ.showStatus("Extracting tracks...");
+         for (List<SpotData> track : findTracks(rowData, minNr, nrMissing, maxDistance,
+               minTotalDistance, combineChannels, maxPairDistance)) {
+            writeTrack(rowData, track, trackNr);
+            trackNr++;
+         }
+         ij.IJ.showStatus("Extracted " + trackNr + " tracks");
+      } catch (OutOfMemoryError oome) {
+         JOptionPane.showMessageDialog(getInstance(), "Out of memory");
+      }
 
-         // maintain active tracks here
-         List<Integer> trackIndex;
-         Map<List<Integer>, List<TrackData>> trackMap = new HashMap<>();
+      return trackNr;
+   }
+
+   /**
+    * Does the work for {@link #extractTracks}, without adding the tracks to the
+    * DataCollectionForm.  Parameters are the same as for extractTracks.
+    *
+    * @return tracks, in the order in which they should be numbered
+    */
+   public static List<List<SpotData>> findTracks(final RowData rowData, final int minNr,
+         final int nrMissing, final double maxDistance, final double minTotalDistance,
+         final boolean combineChannels, final double maxPairDistance) {
+      List<List<SpotData>> result = new ArrayList<List<SpotData>>();
+
+      List<List<Integer>> trackIndices = new ArrayList<List<Integer>>();
+      List<Callable<TrackSearch>> tasks = new ArrayList<Callable<TrackSearch>>();
+      for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
+         for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
+            for (int s = 1; s <= rowData.nrSlices_; s++) {
+               trackIndices.add(Collections.unmodifiableList(Arrays.asList(pos, ch, s)));
+               final List<List<SpotData>> frames = framesOf(rowData, pos, ch, s);
+               tasks.add(new Callable<TrackSearch>() {
+                  @Override
+                  public TrackSearch call() {
+                     return searchTracks(frames, minNr, nrMissing, maxDistance,
+                           minTotalDistance);
+                  }
+               });
+            }
+         }
+      }
+      List<TrackSearch> searches = runInParallel(tasks);
+
+      // Tracks that ended during the search are numbered first, in the order in
+      // which they were found
+      Map<List<Integer>, List<TrackData>> trackMap = new HashMap<>();
+      for (int i = 0; i < searches.size(); i++) {
+         for (TrackData track : searches.get(i).finished_) {
+            result.add(track.getList());
+         }
+         trackMap.put(trackIndices.get(i), searches.get(i).active_);
+      }
+
+      // take average position of track in first channel
+      // if average position of closest track in another channel is within
+      // maxPairDistance, combine the tracks
+      List<Integer> trackIndex;
+      if (combineChannels) {
          for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
-            for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
-               for (int s = 1; s <= rowData.nrSlices_; s++) {
+            for (int s = 1; s <= rowData.nrSlices_; s++) {
+               Map<Integer, List<TrackData>> tracksByChannel =
+                     new HashMap<Integer, List<TrackData>>();
+               Map<Integer, NearestPointByData> npsByChannel =
+                     new HashMap<Integer, NearestPointByData>();
+               for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
                   trackIndex = Collections.unmodifiableList(Arrays.asList(pos, ch, s));
-                  List<TrackData> tracks =
-                        new ArrayList<TrackData>();
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           NearestPointByData nsp = new NearestPointByData(spots, maxDistance);
-                           List<TrackData> removedTracks =
-                                 new ArrayList<TrackData>();
-                           for (TrackData track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              SpotData newSpot = (SpotData) nsp.findKDWSE(new Point2D.Double(
-                                    tSpot.getXCenter(), tSpot.getYCenter()));
-                              if (newSpot == null || markedSpots.contains(newSpot)) {
-                                 track.addMissing();
-                                 if (track.missingMoreThan(nrMissing)) {
-                                    // track could not be extended, finalize it
-                                    // Write out the track:
-                                    if (track.size() > minNr
-                                            && track.get(0).distance(track.get(track.size() - 1))
-                                                > minTotalDistance) {
-                                       writeTrack(rowData, track.getList(), trackNr);
-                                       trackNr++;
-                                       // and remove from the list of tracks
-                                       // to avoid a concurrent modification exception
-                                       // the removal needs to be a two step process
-                                       removedTracks.add(track);
-                                    }
-                                 }
-                              } else {
-                                 track.resetMissing();
-                                 track.add(newSpot);
-                                 markedSpots.add(newSpot);
-                              }
-                           }
-                           // second part of removing tracks
-                           for (TrackData track : removedTracks) {
-                              tracks.remove(track);
-                           }
-                        }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a previous track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              TrackData track = new TrackData();
-                              track.add(spot);
-                              tracks.add(track);
+                  tracksByChannel.put(ch, trackMap.get(trackIndex));
+                  npsByChannel.put(ch, new NearestPointByData(
+                        trackMap.get(trackIndex), maxPairDistance));
+               }
+               for (TrackData track : tracksByChannel.get(1)) {
+                  if (isLongEnough(track, minNr, minTotalDistance)) {
+                     for (int ch = 2; ch <= rowData.nrChannels_; ch++) {
+                        TrackData closestTrack =
+                              (TrackData) npsByChannel.get(ch).findKDWSE(track.getPoint());
+                        if (closestTrack != null) {
+                           if (isLongEnough(closestTrack, minNr, minTotalDistance)) {
+                              track.add(closestTrack);
+                              trackMap.remove(Collections.unmodifiableList(
+                                    Arrays.asList(pos, ch, s)));
                            }
                         }
                      }
                   }
-
-                  // add tracks that made it to the end to destination list 
-                  trackMap.put(trackIndex, tracks);
-
                }
             }
          }
+      }
 
-         // take average position of track in first channel
-         // if average position of closest track in another channel is within
-         // maxPairDistance, combine the tracks 
-         if (combineChannels) {
-            for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
-               for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  Map<Integer, List<TrackData>> tracksByChannel =
-                        new HashMap<Integer, List<TrackData>>();
-                  Map<Integer, NearestPointByData> npsByChannel =
-                        new HashMap<Integer, NearestPointByData>();
-                  for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
-                     trackIndex = Collections.unmodifiableList(Arrays.asList(pos, ch, s));
-                     tracksByChannel.put(ch, trackMap.get(trackIndex));
-                     npsByChannel.put(ch, new NearestPointByData(
-                           trackMap.get(trackIndex), maxPairDistance));
-                  }
-                  for (TrackData track : tracksByChannel.get(1)) {
-                     if (track.size() > minNr
-                           && track.get(0).distance(track.get(track.size() - 1))
-                           > minTotalDistance) {
-                        for (int ch = 2; ch <= rowData.nrChannels_; ch++) {
-                           TrackData closestTrack =
-                                 (TrackData) npsByChannel.get(ch).findKDWSE(track.getPoint());
-                           if (closestTrack != null) {
-                              if (closestTrack.size() > minNr
-                                    && closestTrack.get(0).distance(
-                                    closestTrack.get(closestTrack.size() - 1))
-                                    > minTotalDistance) {
-                                 track.add(closestTrack);
-                                 trackMap.remove(Collections.unmodifiableList(
-                                       Arrays.asList(pos, ch, s)));
-                              }
-                           }
-                        }
-                     }
-                  }
+      for (List<Integer> index : trackIndices) {
+         List<TrackData> tracks = trackMap.get(index);
+         if (tracks != null) {
+            for (TrackData track : tracks) {
+               if (isLongEnough(track, minNr, minTotalDistance)) {
+                  result.add(track.getList());
                }
             }
          }
+      }
+      return result;
+   }
 
-         for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
-            for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
-               for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  trackIndex = Collections.unmodifiableList(Arrays.asList(pos, ch, s));
-                  List<TrackData> tracks = trackMap.get(trackIndex);
-                  if (tracks != null) {
-                     for (TrackData track : tracks) {
-                        if (track.size() > minNr
-                              && track.get(0).distance(track.get(track.size() - 1))
-                              > minTotalDistance) {
-                           writeTrack(rowData, track.getList(), trackNr);
-                           trackNr++;
-                        }
-                     }
+   /**
+    * Outcome of the track search in a single position/channel/slice.
+    */
+   private static class TrackSearch {
+      // tracks that were written out because they could not be extended
+      final List<TrackData> finished_ = new ArrayList<TrackData>();
+      // tracks that were still being followed at the end
+      List<TrackData> active_ = new ArrayList<TrackData>();
+   }
+
+   private static TrackSearch searchTracks(List<List<SpotData>> frames, int minNr,
+         int nrMissing, double maxDistance, double minTotalDistance) {
+      TrackSearch search = new TrackSearch();
+      for (List<SpotData> spots : frames) {
+         if (spots == null) {
+            continue;
+         }
+         // keep track of spots in this frame added to tracks
+         boolean[] marked = new boolean[spots.size()];
+         // go through all tracks to see if they can be extended
+         if (search.active_.size() > 0) {
+            SpotGridIndex index = SpotGridIndex.fromSpots(spots, maxDistance);
+            List<TrackData> continuedTracks = new ArrayList<TrackData>(search.active_.size());
+            for (TrackData track : search.active_) {
+               SpotData tSpot = track.get(track.size() - 1);
+               int found = index.nearest(tSpot.getXCenter(), tSpot.getYCenter());
+               if (found < 0 || marked[found]) {
+                  track.addMissing();
+                  if (track.missingMoreThan(nrMissing)
+                        && isLongEnough(track, minNr, minTotalDistance)) {
+                     // track could not be extended, finalize it
+                     search.finished_.add(track);
+                     continue;
                   }
+               } else {
+                  track.resetMissing();
+                  track.add(spots.get(found));
+                  marked[found] = true;
                }
+               continuedTracks.add(track);
             }
+            search.active_ = continuedTracks;
          }
+         // go through spots and start a new track with any spot
+         // that was not part of a previous track
+         for (int i = 0; i < spots.size(); i++) {
+            if (!marked[i]) {
+               TrackData track = new TrackData();
+               track.add(spots.get(i));
+               search.active_.add(track);
+            }
+         }
+      }
+      return search;
+   }
 
-         ij.IJ.showStatus("Extracted " + trackNr + " tracks");
-      } catch (OutOfMemoryError oome) {
-         JOptionPane.showMessageDialog(getInstance(), "Out of memory");
+   private static boolean isLongEnough(TrackData track, int minNr, double minTotalDistance) {
+      return track.size() > minNr
+            && track.get(0).distance(track.get(track.size() - 1)) > minTotalDistance;
+   }
+
+   /**
+    * Collects the spots of all frames of a single position/channel/slice.
+    * Done on the calling thread, since RowData indexes itself lazily.
+    */
+   private static List<List<SpotData>> framesOf(RowData rowData, int pos, int ch, int s) {
+      List<List<SpotData>> frames = new ArrayList<List<SpotData>>(rowData.nrFrames_);
+      for (int f = 1; f <= rowData.nrFrames_; f++) {
+         frames.add(rowData.get(f, s, ch, pos));
       }
+      return frames;
+   }
 
-      return trackNr;
+   /**
+    * Runs the tasks on a thread pool with one thread per processor.
+    *
+    * @param tasks independent tasks
+    * @return results, in the order of the tasks
+    */
+   public static <T> List<T> runInParallel(List<Callable<T>> tasks) {
+      List<T> results = new ArrayList<T>(tasks.size());
+      if (tasks.size() == 1) {
+         try {
+            results.add(tasks.get(0).call());
+         } catch (Exception ex) {
+            throw new RuntimeException(ex);
+         }
+         return results;
+      }
+      int nrThreads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nrThreads));
+      try {
+         for (Future<T> future : executor.invokeAll(tasks)) {
+            results.add(future.get());
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(ex);
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof OutOfMemoryError) {
+            throw (OutOfMemoryError) ex.getCause();
+         }
+         throw new RuntimeException(ex.getCause());
+      } finally {
+         executor.shutdown();
+      }
+      return results;
    }
 
    private static void writeTrack(RowData rowData, List<SpotData> track, int trackNr) {
@@ -0,0 +1,404 @@
+package org.micromanager.imageprocessing;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Estimates the translation of a rectangular region between frames by phase
+ * correlation.
+ *
+ * <p>The region is mean subtracted, multiplied with a Hann window and zero
+ * padded to power of two dimensions.  The shift is the position of the peak
+ * of the inverse Fourier transform of the normalized cross power spectrum,
+ * refined to sub-pixel precision by fitting a parabola through the peak and
+ * its neighbors in x and in y.
+ *
+ * <p>All tables (bit reversal, twiddle factors, window) and work buffers are
+ * allocated once, for the region size given to the constructor, so that
+ * measuring does not allocate.  The transform of the last measured frame is
+ * kept, and can become the reference for the next measurements without
+ * being transformed again.
+ *
+ * <p>Not thread safe.
+ */
+public final class PhaseCorrelator {
+   private final int regionWidth_;
+   private final int regionHeight_;
+   private final int width_;
+   private final int height_;
+   private final float[] window_;
+   private final int[] bitReverseX_;
+   private final int[] bitReverseY_;
+   private final double[] cosX_;
+   private final double[] sinX_;
+   private final double[] cosY_;
+   private final double[] sinY_;
+   private double[] refRe_;
+   private double[] refIm_;
+   private double[] curRe_;
+   private double[] curIm_;
+   private final double[] corrRe_;
+   private final double[] corrIm_;
+   private final double[] columnRe_;
+   private final double[] columnIm_;
+   private boolean hasReference_ = false;
+   private boolean hasCurrent_ = false;
+   private double peakValue_;
+
+   /**
+    * @param regionWidth  width of the compared region in pixels
+    * @param regionHeight height of the compared region in pixels
+    */
+   public PhaseCorrelator(int regionWidth, int regionHeight) {
+      if (regionWidth < 4 || regionHeight < 4) {
+         throw new IllegalArgumentException("Region should be at least 4x4 pixels");
+      }
+      regionWidth_ = regionWidth;
+      regionHeight_ = regionHeight;
+      width_ = nextPowerOfTwo(regionWidth);
+      height_ = nextPowerOfTwo(regionHeight);
+
+      window_ = new float[regionWidth * regionHeight];
+      for (int y = 0; y < regionHeight; y++) {
+         double wy = 0.5 - 0.5 * Math.cos(2 * Math.PI * (y + 0.5) / regionHeight);
+         for (int x = 0; x < regionWidth; x++) {
+            double wx = 0.5 - 0.5 * Math.cos(2 * Math.PI * (x + 0.5) / regionWidth);
+            window_[y * regionWidth + x] = (float) (wx * wy);
+         }
+      }
+      bitReverseX_ = bitReverseTable(width_);
+      bitReverseY_ = bitReverseTable(height_);
+      cosX_ = new double[width_ / 2];
+      sinX_ = new double[width_ / 2];
+      twiddles(width_, cosX_, sinX_);
+      cosY_ = new double[height_ / 2];
+      sinY_ = new double[height_ / 2];
+      twiddles(height_, cosY_, sinY_);
+
+      int n = width_ * height_;
+      refRe_ = new double[n];
+      refIm_ = new double[n];
+      curRe_ = new double[n];
+      curIm_ = new double[n];
+      corrRe_ = new double[n];
+      corrIm_ = new double[n];
+      columnRe_ = new double[height_];
+      columnIm_ = new double[height_];
+   }
+
+   /**
+    * @return width of the region this correlator was made for
+    */
+   public int getRegionWidth() {
+      return regionWidth_;
+   }
+
+   /**
+    * @return height of the region this correlator was made for
+    */
+   public int getRegionHeight() {
+      return regionHeight_;
+   }
+
+   /**
+    * @return largest shift that can be measured unambiguously
+    */
+   public int getMaxShift() {
+      return Math.min(width_, height_) / 2 - 1;
+   }
+
+   /**
+    * Forgets the reference frame.
+    */
+   public void reset() {
+      hasReference_ = false;
+      hasCurrent_ = false;
+   }
+
+   /**
+    * @return true when there is a frame to measure against
+    */
+   public boolean hasReference() {
+      return hasReference_;
+   }
+
+   /**
+    * Makes the given frame the one that following frames are compared with.
+    *
+    * @param pixels     byte[], short[] (both unsigned) or float[] pixels of the frame
+    * @param imageWidth width of the frame
+    * @param region     region to compare.  Its size has to be the one given
+    *                   to the constructor.
+    */
+   public void setReference(Object pixels, int imageWidth, Rectangle region) {
+      transform(pixels, imageWidth, region);
+      updateReference();
+   }
+
+   /**
+    * Makes the frame given to the last call of measure the reference.  This
+    * is cheap, since its transform is kept.
+    */
+   public void updateReference() {
+      if (!hasCurrent_) {
+         throw new IllegalStateException("No frame was measured since the last reference");
+      }
+      double[] swap = refRe_;
+      refRe_ = curRe_;
+      curRe_ = swap;
+      swap = refIm_;
+      refIm_ = curIm_;
+      curIm_ = swap;
+      hasReference_ = true;
+      hasCurrent_ = false;
+   }
+
+   /**
+    * Measures how far the contents of the region moved relative to the
+    * reference frame.
+    *
+    * @param pixels     byte[], short[] (both unsigned) or float[] pixels of the frame
+    * @param imageWidth width of the frame
+    * @param region     region to compare.  Its size has to be the one given
+    *                   to the constructor.
+    * @param maxShift   peaks further away than this are ignored
+    * @param result     receives {dx, dy} in pixels, positive when the contents
+    *                   moved right or down
+    * @return false, leaving result untouched, when there is no reference yet
+    */
+   public boolean measure(Object pixels, int imageWidth, Rectangle region, int maxShift,
+         double[] result) {
+      transform(pixels, imageWidth, region);
+      if (!hasReference_) {
+         return false;
+      }
+      // normalized cross power spectrum, conj(reference) * current
+      for (int i = 0; i < corrRe_.length; i++) {
+         double re = refRe_[i] * curRe_[i] + refIm_[i] * curIm_[i];
+         double im = refRe_[i] * curIm_[i] - refIm_[i] * curRe_[i];
+         double magnitude = Math.sqrt(re * re + im * im);
+         if (magnitude > 1e-12) {
+            corrRe_[i] = re / magnitude;
+            corrIm_[i] = im / magnitude;
+         } else {
+            corrRe_[i] = 0.0;
+            corrIm_[i] = 0.0;
+         }
+      }
+      fft2d(corrRe_, corrIm_, true);
+      findPeak(Math.min(maxShift, getMaxShift()), result);
+      return true;
+   }
+
+   /**
+    * Measures the movement since the previous frame, and makes this frame
+    * the reference for the next call.
+    *
+    * @param pixels     byte[], short[] (both unsigned) or float[] pixels of the frame
+    * @param imageWidth width of the frame
+    * @param region     region to compare
+    * @param maxShift   peaks further away than this are ignored
+    * @param result     receives {dx, dy} in pixels
+    * @return false for the first frame
+    */
+   public boolean shift(Object pixels, int imageWidth, Rectangle region, int maxShift,
+         double[] result) {
+      boolean measured = measure(pixels, imageWidth, region, maxShift, result);
+      updateReference();
+      return measured;
+   }
+
+   /**
+    * @return height of the correlation peak found by the last measurement,
+    *     between 0 and 1.  Low values mean the shift is unreliable.
+    */
+   public double getPeakValue() {
+      return peakValue_;
+   }
+
+   /**
+    * Copies the correlation surface around zero shift, as computed by the
+    * last measurement.
+    *
+    * @param out   receives (2 * range + 1)^2 values, row by row, with zero
+    *              shift in the center
+    * @param range largest shift to copy
+    */
+   public void getCorrelation(float[] out, int range) {
+      int size = 2 * range + 1;
+      for (int dy = -range; dy <= range; dy++) {
+         for (int dx = -range; dx <= range; dx++) {
+            out[(dy + range) * size + dx + range] = (float) corrRe_[index(dx, dy)];
+         }
+      }
+   }
+
+   private void transform(Object pixels, int imageWidth, Rectangle region) {
+      if (region.width != regionWidth_ || region.height != regionHeight_) {
+         throw new IllegalArgumentException("Region size changed");
+      }
+      load(pixels, imageWidth, region, curRe_, curIm_);
+      fft2d(curRe_, curIm_, false);
+      hasCurrent_ = true;
+   }
+
+   private void load(Object pixels, int imageWidth, Rectangle region, double[] re,
+         double[] im) {
+      Arrays.fill(re, 0.0);
+      Arrays.fill(im, 0.0);
+      double sum = 0.0;
+      for (int y = 0; y < regionHeight_; y++) {
+         int offset = (region.y + y) * imageWidth + region.x;
+         int row = y * width_;
+         if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int x = 0; x < regionWidth_; x++) {
+               re[row + x] = p[offset + x] & 0xff;
+            }
+         } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int x = 0; x < regionWidth_; x++) {
+               re[row + x] = p[offset + x] & 0xffff;
+            }
+         } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int x = 0; x < regionWidth_; x++) {
+               re[row + x] = p[offset + x];
+            }
+         } else {
+            throw new IllegalArgumentException("Unsupported pixel type");
+         }
+         for (int x = 0; x < regionWidth_; x++) {
+            sum += re[row + x];
+         }
+      }
+      double mean = sum / (regionWidth_ * regionHeight_);
+      for (int y = 0; y < regionHeight_; y++) {
+         int row = y * width_;
+         for (int x = 0; x < regionWidth_; x++) {
+            re[row + x] = (re[row + x] - mean) * window_[y * regionWidth_ + x];
+         }
+      }
+   }
+
+   private void findPeak(int range, double[] result) {
+      int bestX = 0;
+      int bestY = 0;
+      double best = Double.NEGATIVE_INFINITY;
+      for (int dy = -range; dy <= range; dy++) {
+         for (int dx = -range; dx <= range; dx++) {
+            double v = corrRe_[index(dx, dy)];
+            if (v > best) {
+               best = v;
+               bestX = dx;
+               bestY = dy;
+            }
+         }
+      }
+      peakValue_ = best / (width_ * height_);
+      result[0] = bestX + parabolicOffset(corrRe_[index(bestX - 1, bestY)], best,
+            corrRe_[index(bestX + 1, bestY)]);
+      result[1] = bestY + parabolicOffset(corrRe_[index(bestX, bestY - 1)], best,
+            corrRe_[index(bestX, bestY + 1)]);
+   }
+
+   private static double parabolicOffset(double left, double center, double right) {
+      double denominator = left - 2 * center + right;
+      if (denominator >= 0) {
+         return 0.0;
+      }
+      double offset = 0.5 * (left - right) / denominator;
+      return Math.max(-0.5, Math.min(0.5, offset));
+   }
+
+   /**
+    * Index of the given (possibly negative) shift in the wrapped around
+    * correlation surface.
+    */
+   private int index(int dx, int dy) {
+      int x = dx & (width_ - 1);
+      int y = dy & (height_ - 1);
+      return y * width_ + x;
+   }
+
+   private void fft2d(double[] re, double[] im, boolean inverse) {
+      for (int y = 0; y < height_; y++) {
+         fft(re, im, y * width_, width_, bitReverseX_, cosX_, sinX_, inverse);
+      }
+      for (int x = 0; x < width_; x++) {
+         for (int y = 0; y < height_; y++) {
+            columnRe_[y] = re[y * width_ + x];
+            columnIm_[y] = im[y * width_ + x];
+         }
+         fft(columnRe_, columnIm_, 0, height_, bitReverseY_, cosY_, sinY_, inverse);
+         for (int y = 0; y < height_; y++) {
+            re[y * width_ + x] = columnRe_[y];
+            im[y * width_ + x] = columnIm_[y];
+         }
+      }
+   }
+
+   /**
+    * In place iterative radix 2 transform of n values starting at offset.
+    * The inverse is not scaled.
+    */
+   private static void fft(double[] re, double[] im, int offset, int n,
+         int[] bitReverse, double[] cos, double[] sin, boolean inverse) {
+      for (int i = 0; i < n; i++) {
+         int j = bitReverse[i];
+         if (j > i) {
+            int a = offset + i;
+            int b = offset + j;
+            double t = re[a];
+            re[a] = re[b];
+            re[b] = t;
+            t = im[a];
+            im[a] = im[b];
+            im[b] = t;
+         }
+      }
+      double sign = inverse ? 1.0 : -1.0;
+      for (int size = 2; size <= n; size <<= 1) {
+         int half = size >> 1;
+         int step = n / size;
+         for (int start = 0; start < n; start += size) {
+            for (int k = 0; k < half; k++) {
+               double wr = cos[k * step];
+               double wi = sign * sin[k * step];
+               int a = offset + start + k;
+               int b = a + half;
+               double tr = wr * re[b] - wi * im[b];
+               double ti = wr * im[b] + wi * re[b];
+               re[b] = re[a] - tr;
+               im[b] = im[a] - ti;
+               re[a] += tr;
+               im[a] += ti;
+            }
+         }
+      }
+   }
+
+   private static int[] bitReverseTable(int n) {
+      int bits = Integer.numberOfTrailingZeros(n);
+      int[] table = new int[n];
+      for (int i = 0; i < n; i++) {
+         table[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+      }
+      return table;
+   }
+
+   private static void twiddles(int n, double[] cos, double[] sin) {
+      for (int k = 0; k < n / 2; k++) {
+         cos[k] = Math.cos(2 * Math.PI * k / n);
+         sin[k] = Math.sin(2 * Math.PI * k / n);
+      }
+   }
+
+   private static int nextPowerOfTwo(int n) {
+      int p = 1;
+      while (p < n) {
+         p <<= 1;
+      }
+      return p;
+   }
+}
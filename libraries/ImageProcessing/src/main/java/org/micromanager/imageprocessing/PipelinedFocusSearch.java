@@ -0,0 +1,311 @@
+package org.micromanager.imageprocessing;
+
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Coarse-to-fine grid search for the position of best focus, that scores
+ * images on a background thread while the hardware moves to, and exposes,
+ * the next position.
+ *
+ * <p>Each pass samples a fixed number of equally spaced positions.  The next
+ * pass samples the same number of positions between the neighbors of the
+ * best position found so far, so that (with an odd number of points per
+ * pass) three of its positions are already known and only the others need
+ * to be imaged.  The search stops once the spacing is at or below the
+ * tolerance.
+ *
+ * <p>While the last images of a pass are being scored, the search guesses
+ * the outcome from the scores that are already known and images the first
+ * position of the next pass.  When the guess turns out to be wrong, that
+ * image is not wasted: all scores are cached by Z position for the duration
+ * of the search and are used by later passes when they sample the same
+ * position.
+ *
+ * <p>The hardware is only ever accessed from the thread calling
+ * {@link #search}.  The scoring function is called on a single background
+ * thread, one image at a time.
+ */
+public class PipelinedFocusSearch {
+
+   /**
+    * Hardware used by the search.  Implementations are called from a single
+    * thread.
+    */
+   public interface FocusHardware {
+      /**
+       * Moves the focus drive and waits until it has settled.
+       *
+       * @param z position in microns
+       * @throws Exception when the position can not be set
+       */
+      void setPosition(double z) throws Exception;
+
+      /**
+       * Exposes and reads out an image at the current position.
+       *
+       * @return monochrome image.  It is not used by the hardware afterwards.
+       * @throws Exception when no image could be acquired
+       */
+      ImageProcessor snapImage() throws Exception;
+   }
+
+   /**
+    * Is told about every score, for logging or display.
+    */
+   public interface ScoreListener {
+      /**
+       * Called on the scoring thread after an image has been scored.
+       *
+       * @param imageNr number of the image within the current search, starting at 0
+       * @param z       position at which the image was taken
+       * @param score   focus score of the image
+       */
+      void scored(int imageNr, double z, double score);
+   }
+
+   private final FocusHardware hardware_;
+   private final Function<ImageProcessor, Double> scorer_;
+   private final TreeMap<Double, Future<Double>> scores_ = new TreeMap<>();
+   private int pointsPerPass_ = 7;
+   private boolean pipelined_ = true;
+   private ScoreListener listener_;
+   private int imageCount_;
+   private int speculativeImageCount_;
+   private double currentZ_;
+   private double cacheResolution_;
+
+   /**
+    * @param hardware moves the focus drive and takes images
+    * @param scorer   returns larger values for sharper images
+    */
+   public PipelinedFocusSearch(FocusHardware hardware, Function<ImageProcessor, Double> scorer) {
+      hardware_ = hardware;
+      scorer_ = scorer;
+   }
+
+   /**
+    * Sets the number of positions sampled in every pass.  Odd numbers let
+    * consecutive passes share three positions.
+    *
+    * @param points at least 3
+    */
+   public void setPointsPerPass(int points) {
+      if (points < 3) {
+         throw new IllegalArgumentException("Need at least 3 points per pass");
+      }
+      pointsPerPass_ = points;
+   }
+
+   public int getPointsPerPass() {
+      return pointsPerPass_;
+   }
+
+   /**
+    * When switched off, each image is scored before the hardware moves on,
+    * and nothing is imaged speculatively.  Useful for comparison.
+    *
+    * @param pipelined whether to overlap scoring with acquisition
+    */
+   public void setPipelined(boolean pipelined) {
+      pipelined_ = pipelined;
+   }
+
+   public boolean isPipelined() {
+      return pipelined_;
+   }
+
+   public void setScoreListener(ScoreListener listener) {
+      listener_ = listener;
+   }
+
+   /**
+    * @return number of images taken by the last search
+    */
+   public int getImageCount() {
+      return imageCount_;
+   }
+
+   /**
+    * @return number of images the last search took ahead of knowing whether
+    *     they were needed, and turned out not to be
+    */
+   public int getSpeculativeImageCount() {
+      return speculativeImageCount_;
+   }
+
+   /**
+    * Finds the position of best focus.  The hardware is left at the last
+    * position that was imaged, not at the returned position.
+    *
+    * @param center    middle of the search range, usually the current position
+    * @param range     full width of the search range
+    * @param tolerance spacing of positions in the final pass
+    * @return position with the highest score
+    * @throws Exception when the hardware or the scoring function fails
+    */
+   public double search(double center, double range, double tolerance) throws Exception {
+      if (!(tolerance > 0)) {
+         throw new IllegalArgumentException("Tolerance should be larger than 0");
+      }
+      scores_.clear();
+      imageCount_ = 0;
+      speculativeImageCount_ = 0;
+      currentZ_ = center;
+      // positions closer together than this are the same position
+      cacheResolution_ = Math.min(tolerance, Math.abs(range)) * 1e-3;
+
+      final double minZ = center - Math.abs(range) / 2;
+      final double maxZ = center + Math.abs(range) / 2;
+      ExecutorService scoringThread = pipelined_
+            ? Executors.newSingleThreadExecutor(r -> {
+               Thread t = new Thread(r, "Focus scoring");
+               t.setDaemon(true);
+               return t;
+            })
+            : null;
+      try {
+         double lo = minZ;
+         double hi = maxZ;
+         Double speculated = null;
+         while (true) {
+            double step = (hi - lo) / (pointsPerPass_ - 1);
+            for (double z : ordered(grid(lo, hi))) {
+               if (speculated != null && sameZ(z, speculated)) {
+                  speculated = null;
+               }
+               measure(z, scoringThread);
+            }
+            if (speculated != null) {
+               speculativeImageCount_++;
+               speculated = null;
+            }
+            boolean lastPass = step <= tolerance || hi - lo <= cacheResolution_;
+            if (!lastPass && pipelined_) {
+               // Guess the next pass from what has been scored so far, and
+               // image its first new position while the scoring catches up.
+               double guess = best(lo, hi, true);
+               if (!Double.isNaN(guess)) {
+                  for (double z : ordered(grid(Math.max(minZ, guess - step),
+                        Math.min(maxZ, guess + step)))) {
+                     if (!isKnown(z)) {
+                        measure(z, scoringThread);
+                        speculated = z;
+                        break;
+                     }
+                  }
+               }
+            }
+            double best = best(lo, hi, false);
+            if (lastPass) {
+               return best;
+            }
+            lo = Math.max(minZ, best - step);
+            hi = Math.min(maxZ, best + step);
+         }
+      } finally {
+         if (scoringThread != null) {
+            scoringThread.shutdownNow();
+         }
+      }
+   }
+
+   private List<Double> grid(double lo, double hi) {
+      List<Double> grid = new ArrayList<>(pointsPerPass_);
+      for (int i = 0; i < pointsPerPass_; i++) {
+         grid.add(i == pointsPerPass_ - 1 ? hi : lo + i * (hi - lo) / (pointsPerPass_ - 1));
+      }
+      return grid;
+   }
+
+   /**
+    * Visits the grid starting at the end closest to where the hardware is.
+    */
+   private List<Double> ordered(List<Double> grid) {
+      if (Math.abs(grid.get(grid.size() - 1) - currentZ_) < Math.abs(grid.get(0) - currentZ_)) {
+         Collections.reverse(grid);
+      }
+      return grid;
+   }
+
+   private void measure(final double z, ExecutorService scoringThread) throws Exception {
+      if (isKnown(z)) {
+         return;
+      }
+      hardware_.setPosition(z);
+      currentZ_ = z;
+      final ImageProcessor image = hardware_.snapImage();
+      final int imageNr = imageCount_++;
+      if (scoringThread != null) {
+         scores_.put(z, scoringThread.submit(() -> score(imageNr, z, image)));
+      } else {
+         scores_.put(z, CompletableFuture.completedFuture(score(imageNr, z, image)));
+      }
+   }
+
+   private double score(int imageNr, double z, ImageProcessor image) {
+      double score = scorer_.apply(image);
+      if (listener_ != null) {
+         listener_.scored(imageNr, z, score);
+      }
+      return score;
+   }
+
+   private boolean isKnown(double z) {
+      Map.Entry<Double, Future<Double>> below = scores_.floorEntry(z);
+      if (below != null && sameZ(below.getKey(), z)) {
+         return true;
+      }
+      Map.Entry<Double, Future<Double>> above = scores_.ceilingEntry(z);
+      return above != null && sameZ(above.getKey(), z);
+   }
+
+   private boolean sameZ(double z1, double z2) {
+      return Math.abs(z1 - z2) <= cacheResolution_;
+   }
+
+   /**
+    * Returns the position with the highest score within [lo, hi].
+    *
+    * @param onlyAvailable skip positions that are still being scored rather
+    *                      than waiting for them
+    * @return best position, or NaN when nothing has been scored yet
+    */
+   private double best(double lo, double hi, boolean onlyAvailable) throws Exception {
+      double bestZ = Double.NaN;
+      double bestScore = Double.NEGATIVE_INFINITY;
+      for (Map.Entry<Double, Future<Double>> entry
+            : scores_.subMap(lo - cacheResolution_, true, hi + cacheResolution_, true)
+            .entrySet()) {
+         Future<Double> future = entry.getValue();
+         if (onlyAvailable && !future.isDone()) {
+            continue;
+         }
+         double score;
+         try {
+            score = future.get();
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+               throw (Exception) cause;
+            }
+            throw e;
+         }
+         if (Double.isNaN(bestZ) || score > bestScore) {
+            bestZ = entry.getKey();
+            bestScore = score;
+         }
+      }
+      return bestZ;
+   }
+}
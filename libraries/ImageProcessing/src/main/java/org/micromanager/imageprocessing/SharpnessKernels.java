@@ -0,0 +1,464 @@
+package org.micromanager.imageprocessing;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.stream.IntStream;
+
+/**
+ * Sharpness metrics computed straight from the pixel arrays of 8 and 16 bit
+ * images.
+ *
+ * <p>Metrics read the image once, a band of rows at a time, without copying
+ * or modifying it.  Filters that ImageJ would apply to a copy of the whole
+ * image (edge detection, sharpening, 3x3 convolutions) are evaluated on a
+ * few rows at a time, with ImageJ's rounding, clipping and handling of edge
+ * pixels, so that results are the same as those of the ImageProcessor based
+ * implementations in {@link ImgSharpnessAnalysis}.
+ *
+ * <p>Rows are unpacked into int arrays with one extra pixel on each side,
+ * copied from the edge pixel, which is how ImageJ's 3x3 filters treat pixels
+ * outside of the image.  Pixel x of the image is at index x + 1.
+ *
+ * <p>Bands are processed in parallel for large images.  Band boundaries only
+ * depend on the image size, and partial sums are combined in band order, so
+ * that results do not depend on the number of processors.
+ */
+final class SharpnessKernels {
+   private static final int BAND_HEIGHT = 32;
+   private static final long MIN_PARALLEL_PIXELS = 256 * 256;
+
+   private SharpnessKernels() {
+   }
+
+   /**
+    * @param proc image to be analyzed
+    * @return true when the kernels give the same result for this image as
+    *     the ImageProcessor based implementations
+    */
+   static boolean supports(ImageProcessor proc) {
+      if (!(proc instanceof ByteProcessor || proc instanceof ShortProcessor)) {
+         return false;
+      }
+      if (proc.getWidth() < 3 || proc.getHeight() < 3 || proc.getMask() != null) {
+         return false;
+      }
+      Rectangle roi = proc.getRoi();
+      return roi.x == 0 && roi.y == 0
+            && roi.width == proc.getWidth() && roi.height == proc.getHeight();
+   }
+
+   static double mean(ImageProcessor proc) {
+      final Pixels px = new Pixels(proc);
+      long[] acc = reduce(px, 1, (y0, y1, sums) -> {
+         int[] row = px.newRow();
+         for (int y = y0; y < y1; y++) {
+            px.row(y, row);
+            sums[0] += rowSum(row);
+         }
+      });
+      return (double) acc[0] / px.count();
+   }
+
+   static double normalizedStdDev(ImageProcessor proc) {
+      double[] meanAndStdDev = meanAndStdDev(proc);
+      return meanAndStdDev[1] / meanAndStdDev[0];
+   }
+
+   static double normalizedVariance(ImageProcessor proc) {
+      double[] meanAndStdDev = meanAndStdDev(proc);
+      return (meanAndStdDev[1] * meanAndStdDev[1]) / meanAndStdDev[0];
+   }
+
+   /**
+    * Mean and (sample) standard deviation, calculated like ImageStatistics
+    * does.
+    */
+   private static double[] meanAndStdDev(ImageProcessor proc) {
+      final Pixels px = new Pixels(proc);
+      long[] acc = reduce(px, 2, (y0, y1, sums) -> {
+         int[] row = px.newRow();
+         int w = px.width;
+         for (int y = y0; y < y1; y++) {
+            px.row(y, row);
+            long sum = 0;
+            long sum2 = 0;
+            for (int x = 1; x <= w; x++) {
+               int v = row[x];
+               sum += v;
+               sum2 += (long) v * v;
+            }
+            sums[0] += sum;
+            sums[1] += sum2;
+         }
+      });
+      double n = px.count();
+      double sum = acc[0];
+      double sum2 = acc[1];
+      double stdDev = (n * sum2 - sum * sum) / n;
+      stdDev = stdDev > 0.0 && n > 1.0 ? Math.sqrt(stdDev / (n - 1.0)) : 0.0;
+      return new double[] {sum / n, stdDev};
+   }
+
+   /**
+    * Mean of the Sobel edge map (ImageProcessor.findEdges) over the mean
+    * intensity.
+    */
+   static double edges(ImageProcessor proc) {
+      final Pixels px = new Pixels(proc);
+      long[] acc = reduce(px, 2, (y0, y1, sums) -> {
+         int[][] rows = {px.newRow(), px.newRow(), px.newRow()};
+         px.row(y0 - 1, rows[0]);
+         px.row(y0, rows[1]);
+         for (int y = y0; y < y1; y++) {
+            px.row(y + 1, rows[2]);
+            sums[0] += rowSum(rows[1]);
+            sums[1] += edgeRowSum(rows[0], rows[1], rows[2], px.width, px.maxValue);
+            rotate(rows);
+         }
+      });
+      return ((double) acc[1] / px.count()) / ((double) acc[0] / px.count());
+   }
+
+   /**
+    * Like {@link #edges}, with the image sharpened (ImageProcessor.sharpen)
+    * before edge detection.
+    */
+   static double sharpEdges(ImageProcessor proc) {
+      final Pixels px = new Pixels(proc);
+      long[] acc = reduce(px, 2, (y0, y1, sums) -> {
+         final int w = px.width;
+         // rows y - 2 ... y + 2 of the original, y - 1 ... y + 1 sharpened
+         int[][] in = {px.newRow(), px.newRow(), px.newRow(), px.newRow()};
+         int[][] sharp = {px.newRow(), px.newRow(), px.newRow()};
+         int[] next = px.newRow();
+         px.row(y0 - 2, in[0]);
+         px.row(y0 - 1, in[1]);
+         px.row(y0, in[2]);
+         px.row(y0 + 1, in[3]);
+         // The sharpened image has its own edge pixels: the row above the
+         // first one is a copy of the first sharpened row.
+         if (y0 == 0) {
+            sharpenRow(in[1], in[2], in[3], sharp[0], w, px.maxValue);
+         } else {
+            sharpenRow(in[0], in[1], in[2], sharp[0], w, px.maxValue);
+         }
+         sharpenRow(in[1], in[2], in[3], sharp[1], w, px.maxValue);
+         for (int y = y0; y < y1; y++) {
+            sums[0] += rowSum(in[2]);
+            if (y + 1 < px.height) {
+               px.row(y + 2, next);
+               sharpenRow(in[2], in[3], next, sharp[2], w, px.maxValue);
+            } else {
+               System.arraycopy(sharp[1], 0, sharp[2], 0, w + 2);
+            }
+            sums[1] += edgeRowSum(sharp[0], sharp[1], sharp[2], w, px.maxValue);
+            int[] recycled = in[0];
+            in[0] = in[1];
+            in[1] = in[2];
+            in[2] = in[3];
+            in[3] = next;
+            next = recycled;
+            rotate(sharp);
+         }
+      });
+      return ((double) acc[1] / px.count()) / ((double) acc[0] / px.count());
+   }
+
+   /**
+    * Laplace-like filter of Redondo et al., see
+    * {@link ImgSharpnessAnalysis#computeRedondo}.
+    */
+   static double redondo(ImageProcessor proc) {
+      final Pixels px = new Pixels(proc);
+      long[] acc = reduce(px, 1, (y0, y1, sums) -> {
+         final int w = px.width;
+         int first = Math.max(y0, 1);
+         int last = Math.min(y1, px.height - 1);
+         if (first >= last) {
+            return;
+         }
+         int[][] rows = {px.newRow(), px.newRow(), px.newRow()};
+         px.row(first - 1, rows[0]);
+         px.row(first, rows[1]);
+         for (int y = first; y < last; y++) {
+            px.row(y + 1, rows[2]);
+            final int[] up = rows[0];
+            final int[] center = rows[1];
+            final int[] down = rows[2];
+            long sum = 0;
+            // image pixels 1 ... w - 2
+            for (int x = 2; x < w; x++) {
+               long p = center[x + 1] + up[x] + down[x] - 3L * center[x - 1];
+               sum += p * p;
+            }
+            sums[0] += sum;
+            rotate(rows);
+         }
+      });
+      return acc[0];
+   }
+
+   /**
+    * Sum of the squared responses of the horizontal and vertical Sobel
+    * kernels, each clipped to the range of the pixel type as
+    * ImageProcessor.convolve3x3 does.
+    */
+   static double tenengrad(ImageProcessor proc) {
+      final Pixels px = new Pixels(proc);
+      long[] acc = reduce(px, 1, (y0, y1, sums) -> {
+         final int w = px.width;
+         final int max = px.maxValue;
+         int[][] rows = {px.newRow(), px.newRow(), px.newRow()};
+         px.row(y0 - 1, rows[0]);
+         px.row(y0, rows[1]);
+         for (int y = y0; y < y1; y++) {
+            px.row(y + 1, rows[2]);
+            final int[] up = rows[0];
+            final int[] center = rows[1];
+            final int[] down = rows[2];
+            long sum = 0;
+            for (int x = 1; x <= w; x++) {
+               // {-1, 0, 1, -2, 0, 2, -1, 0, 1}
+               int gx = clip(up[x + 1] - up[x - 1] + 2 * (center[x + 1] - center[x - 1])
+                     + down[x + 1] - down[x - 1], max);
+               // {1, 2, 1, 0, 0, 0, -1, -2, -1}
+               int gy = clip(up[x - 1] + 2 * up[x] + up[x + 1]
+                     - down[x - 1] - 2 * down[x] - down[x + 1], max);
+               sum += (long) gx * gx + (long) gy * gy;
+            }
+            sums[0] += sum;
+            rotate(rows);
+         }
+      });
+      return acc[0];
+   }
+
+   /**
+    * Volath's autocorrelation, see {@link ImgSharpnessAnalysis#computeVolath}.
+    */
+   static double volath(ImageProcessor proc) {
+      final Pixels px = new Pixels(proc);
+      long[] acc = reduce(px, 1, (y0, y1, sums) -> {
+         final int w = px.width;
+         int[] row = px.newRow();
+         for (int y = y0; y < y1; y++) {
+            px.row(y, row);
+            long sum = 0;
+            // sum of p(x) p(x + 1) for x in [1, w - 2], minus p(x) p(x + 2)
+            // for x in [0, w - 3], as one sum over image pixels 1 ... w - 2
+            for (int x = 2; x < w; x++) {
+               sum += (long) row[x + 1] * (row[x] - row[x - 1]);
+            }
+            sums[0] += sum;
+         }
+      });
+      return acc[0];
+   }
+
+   /**
+    * Volath's smoothed autocorrelation, see
+    * {@link ImgSharpnessAnalysis#computeVolath5}.
+    */
+   static double volath5(ImageProcessor proc) {
+      final Pixels px = new Pixels(proc);
+      long[] acc = reduce(px, 2, (y0, y1, sums) -> {
+         final int w = px.width;
+         int[] row = px.newRow();
+         for (int y = y0; y < y1; y++) {
+            px.row(y, row);
+            long sum = 0;
+            long rowSum = row[w];
+            for (int x = 1; x < w; x++) {
+               sum += (long) row[x] * row[x + 1];
+               rowSum += row[x];
+            }
+            sums[0] += sum;
+            sums[1] += rowSum;
+         }
+      });
+      double mean = (double) acc[1] / px.count();
+      return acc[0] - ((px.width - 1) * px.height * mean * mean);
+   }
+
+   /**
+    * Median filter followed by two diagonal edge kernels, see
+    * {@link ImgSharpnessAnalysis#computeMedianEdges}.  The median filter is
+    * left to ImageJ (on a copy of the image), as its handling of edge pixels
+    * and of 16 bit images differs between ImageJ versions.
+    */
+   static double medianEdges(ImageProcessor proc) {
+      ImageProcessor filtered = proc.duplicate();
+      filtered.medianFilter();
+      final Pixels px = new Pixels(filtered);
+      double[] acc = reduceDouble(px, (y0, y1) -> {
+         final int w = px.width;
+         final int max = px.maxValue;
+         int[][] rows = {px.newRow(), px.newRow(), px.newRow()};
+         px.row(y0 - 1, rows[0]);
+         px.row(y0, rows[1]);
+         double sum = 0.0;
+         for (int y = y0; y < y1; y++) {
+            px.row(y + 1, rows[2]);
+            final int[] up = rows[0];
+            final int[] center = rows[1];
+            final int[] down = rows[2];
+            for (int x = 1; x <= w; x++) {
+               // {2, 1, 0, 1, 0, -1, 0, -1, -2}
+               int g1 = clip(2 * (up[x - 1] - down[x + 1]) + up[x] + center[x - 1]
+                     - center[x + 1] - down[x], max);
+               // {0, 1, 2, -1, 0, 1, -2, -1, 0}
+               int g2 = clip(2 * (up[x + 1] - down[x - 1]) + up[x] - center[x - 1]
+                     + center[x + 1] - down[x], max);
+               sum += Math.sqrt((double) g1 * g1 + (double) g2 * g2);
+            }
+            rotate(rows);
+         }
+         return sum;
+      });
+      double sum = 0.0;
+      for (double a : acc) {
+         sum += a;
+      }
+      return sum;
+   }
+
+   private static long edgeRowSum(int[] up, int[] center, int[] down, int w, int maxValue) {
+      long sum = 0;
+      for (int x = 1; x <= w; x++) {
+         int p1 = up[x - 1];
+         int p3 = up[x + 1];
+         int p7 = down[x - 1];
+         int p9 = down[x + 1];
+         long sum1 = p1 + 2 * up[x] + p3 - p7 - 2 * down[x] - p9;
+         long sum2 = p1 + 2 * center[x - 1] + p7 - p3 - 2 * center[x + 1] - p9;
+         int value = (int) Math.sqrt(sum1 * sum1 + sum2 * sum2);
+         sum += value < maxValue ? value : maxValue;
+      }
+      return sum;
+   }
+
+   private static void sharpenRow(int[] up, int[] center, int[] down, int[] out, int w,
+         int maxValue) {
+      for (int x = 1; x <= w; x++) {
+         int sum = 12 * center[x] - up[x - 1] - up[x] - up[x + 1] - center[x - 1]
+               - center[x + 1] - down[x - 1] - down[x] - down[x + 1];
+         out[x] = clip((sum + 2) / 4, maxValue);
+      }
+      out[0] = out[1];
+      out[w + 1] = out[w];
+   }
+
+   private static int clip(int value, int maxValue) {
+      return value < 0 ? 0 : (value > maxValue ? maxValue : value);
+   }
+
+   /**
+    * Sum of the image pixels of a padded row.
+    */
+   private static long rowSum(int[] row) {
+      long sum = 0;
+      for (int x = 1; x < row.length - 1; x++) {
+         sum += row[x];
+      }
+      return sum;
+   }
+
+   private static void rotate(int[][] rows) {
+      int[] first = rows[0];
+      System.arraycopy(rows, 1, rows, 0, rows.length - 1);
+      rows[rows.length - 1] = first;
+   }
+
+   // Band reduction
+
+   private interface LongBand {
+      void accumulate(int y0, int y1, long[] sums);
+   }
+
+   private interface DoubleBand {
+      double sum(int y0, int y1);
+   }
+
+   private static long[] reduce(Pixels px, int nrSums, LongBand band) {
+      int nrBands = (px.height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+      long[][] partial = new long[nrBands][nrSums];
+      bands(px, nrBands).forEach(b -> band.accumulate(b * BAND_HEIGHT,
+            Math.min(px.height, (b + 1) * BAND_HEIGHT), partial[b]));
+      long[] result = new long[nrSums];
+      for (long[] p : partial) {
+         for (int i = 0; i < nrSums; i++) {
+            result[i] += p[i];
+         }
+      }
+      return result;
+   }
+
+   private static double[] reduceDouble(Pixels px, DoubleBand band) {
+      int nrBands = (px.height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+      double[] partial = new double[nrBands];
+      bands(px, nrBands).forEach(b -> partial[b] = band.sum(b * BAND_HEIGHT,
+            Math.min(px.height, (b + 1) * BAND_HEIGHT)));
+      return partial;
+   }
+
+   private static IntStream bands(Pixels px, int nrBands) {
+      IntStream bands = IntStream.range(0, nrBands);
+      return px.count() >= MIN_PARALLEL_PIXELS ? bands.parallel() : bands;
+   }
+
+   /**
+    * Unsigned access to the rows of an 8 or 16 bit image.
+    */
+   private static final class Pixels {
+      final int width;
+      final int height;
+      final int maxValue;
+      private final byte[] bytes_;
+      private final short[] shorts_;
+
+      Pixels(ImageProcessor proc) {
+         width = proc.getWidth();
+         height = proc.getHeight();
+         if (proc instanceof ByteProcessor) {
+            bytes_ = (byte[]) proc.getPixels();
+            shorts_ = null;
+            maxValue = 255;
+         } else {
+            bytes_ = null;
+            shorts_ = (short[]) proc.getPixels();
+            maxValue = 65535;
+         }
+      }
+
+      long count() {
+         return (long) width * height;
+      }
+
+      int[] newRow() {
+         return new int[width + 2];
+      }
+
+      /**
+       * Unpacks row y into a padded row.  Rows outside of the image are
+       * copies of the closest edge row.
+       */
+      void row(int y, int[] out) {
+         int offset = Math.max(0, Math.min(height - 1, y)) * width;
+         if (bytes_ != null) {
+            final byte[] bytes = bytes_;
+            for (int x = 0; x < width; x++) {
+               out[x + 1] = bytes[offset + x] & 0xff;
+            }
+         } else {
+            final short[] shorts = shorts_;
+            for (int x = 0; x < width; x++) {
+               out[x + 1] = shorts[offset + x] & 0xffff;
+            }
+         }
+         out[0] = out[1];
+         out[width + 1] = out[width];
+      }
+   }
+}
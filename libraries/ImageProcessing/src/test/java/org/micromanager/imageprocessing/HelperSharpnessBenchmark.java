@@ -0,0 +1,51 @@
+package org.micromanager.imageprocessing;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+/**
+ * Measures how long each sharpness metric takes on camera sized images.
+ * Not a unit test; run by hand with the test classes on the class path:
+ * java org.micromanager.imageprocessing.HelperSharpnessBenchmark [size] [iterations]
+ */
+public class HelperSharpnessBenchmark {
+
+   public static void main(String[] args) {
+      int size = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+      int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+      Random random = new Random(1);
+      short[] shorts = new short[size * size];
+      byte[] bytes = new byte[size * size];
+      for (int i = 0; i < shorts.length; i++) {
+         int v = 1000 + (int) (500 * Math.sin(i % size / 7.0) * Math.cos(i / size / 5.0))
+               + random.nextInt(200);
+         shorts[i] = (short) v;
+         bytes[i] = (byte) (v >> 4);
+      }
+      ImageProcessor[] images = {new ByteProcessor(size, size, bytes, null),
+            new ShortProcessor(size, size, shorts, null)};
+
+      ImgSharpnessAnalysis analysis = new ImgSharpnessAnalysis();
+      for (ImgSharpnessAnalysis.Method method : ImgSharpnessAnalysis.Method.values()) {
+         analysis.setComputationMethod(method);
+         StringBuilder line = new StringBuilder(String.format("%-20s", method.name()));
+         for (ImageProcessor image : images) {
+            // Some of the ImageProcessor based metrics modify the image
+            ImageProcessor copy = image.duplicate();
+            for (int i = 0; i < 3; i++) {
+               analysis.compute(copy);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+               analysis.compute(copy);
+            }
+            double ms = (System.nanoTime() - start) / 1e6 / iterations;
+            line.append(String.format("%6d bit: %8.2f ms  ",
+                  image.getBitDepth(), ms));
+         }
+         System.out.println(line);
+      }
+   }
+}
@@ -0,0 +1,134 @@
+package org.micromanager.imageprocessing;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Focus drive and camera that image a fixed random scene, blurred in
+ * proportion to the distance from a chosen position of best focus.  Stage
+ * moves and exposures take as long as they would on real hardware, so that
+ * autofocus algorithms can be compared offline.
+ */
+public class HelperSimulatedFocusHardware implements PipelinedFocusSearch.FocusHardware {
+   private final float[] scene_;
+   private final int width_;
+   private final int height_;
+   private final double focusZ_;
+   private final Random noise_;
+   private double blurPerUm_ = 1.0;
+   private double noiseSigma_ = 10.0;
+   private long exposureMs_ = 20;
+   private long settleMs_ = 10;
+   private double msPerUm_ = 2.0;
+   private double z_;
+
+   /**
+    * @param width  image width
+    * @param height image height
+    * @param focusZ position at which images are sharpest
+    * @param seed   seed for the scene and the camera noise
+    */
+   public HelperSimulatedFocusHardware(int width, int height, double focusZ, long seed) {
+      width_ = width;
+      height_ = height;
+      focusZ_ = focusZ;
+      noise_ = new Random(seed + 1);
+      scene_ = makeScene(width, height, new Random(seed));
+   }
+
+   /**
+    * @param blurPerUm sigma of the blur in pixels per micron of defocus
+    */
+   public void setBlurPerUm(double blurPerUm) {
+      blurPerUm_ = blurPerUm;
+   }
+
+   /**
+    * @param noiseSigma standard deviation of the camera noise, in counts
+    */
+   public void setNoiseSigma(double noiseSigma) {
+      noiseSigma_ = noiseSigma;
+   }
+
+   public void setExposureMs(long exposureMs) {
+      exposureMs_ = exposureMs;
+   }
+
+   /**
+    * Sets how long moves take: a fixed settling time plus a time
+    * proportional to the distance traveled.
+    *
+    * @param settleMs settling time after every move
+    * @param msPerUm  travel time per micron
+    */
+   public void setMoveTime(long settleMs, double msPerUm) {
+      settleMs_ = settleMs;
+      msPerUm_ = msPerUm;
+   }
+
+   public double getFocusZ() {
+      return focusZ_;
+   }
+
+   public double getPosition() {
+      return z_;
+   }
+
+   @Override
+   public void setPosition(double z) throws InterruptedException {
+      double distance = Math.abs(z - z_);
+      z_ = z;
+      Thread.sleep(settleMs_ + Math.round(distance * msPerUm_));
+   }
+
+   /**
+    * Renders the scene at the current position.  The time spent rendering
+    * counts towards the exposure time, so that images take exposureMs to
+    * arrive regardless of the speed of the machine running the simulation.
+    */
+   @Override
+   public ImageProcessor snapImage() throws InterruptedException {
+      final long start = System.currentTimeMillis();
+      FloatProcessor fp = new FloatProcessor(width_, height_, scene_.clone());
+      double sigma = Math.sqrt(1.0 + Math.pow(blurPerUm_ * (z_ - focusZ_), 2));
+      new GaussianBlur().blurGaussian(fp, sigma, sigma, 0.01);
+      float[] blurred = (float[]) fp.getPixels();
+      short[] pixels = new short[blurred.length];
+      for (int i = 0; i < blurred.length; i++) {
+         double v = blurred[i] + noise_.nextGaussian() * noiseSigma_;
+         pixels[i] = (short) Math.max(0, Math.min(65535, Math.round(v)));
+      }
+      long remaining = exposureMs_ - (System.currentTimeMillis() - start);
+      if (remaining > 0) {
+         Thread.sleep(remaining);
+      }
+      return new ShortProcessor(width_, height_, pixels, null);
+   }
+
+   /**
+    * Background with scattered bright spots of varying size.
+    */
+   private static float[] makeScene(int width, int height, Random random) {
+      float[] scene = new float[width * height];
+      Arrays.fill(scene, 100.0f);
+      int nrSpots = width * height / 200;
+      for (int s = 0; s < nrSpots; s++) {
+         int cx = random.nextInt(width);
+         int cy = random.nextInt(height);
+         int r = 1 + random.nextInt(3);
+         float intensity = 500 + random.nextInt(3000);
+         for (int y = Math.max(0, cy - r); y <= Math.min(height - 1, cy + r); y++) {
+            for (int x = Math.max(0, cx - r); x <= Math.min(width - 1, cx + r); x++) {
+               if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= r * r) {
+                  scene[y * width + x] += intensity;
+               }
+            }
+         }
+      }
+      return scene;
+   }
+}
@@ -0,0 +1,240 @@
+package org.micromanager.imageprocessing;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the array based sharpness metrics with the ImageProcessor based
+ * implementations they replaced.
+ */
+public class ImgSharpnessAnalysisTest {
+
+   private static final int[][] SIZES = {{3, 3}, {4, 7}, {31, 33}, {64, 65}, {300, 257}};
+
+   @Test
+   public void metricsMatchReference() {
+      Random random = new Random(3);
+      for (int[] size : SIZES) {
+         for (int bits : new int[] {8, 12, 16}) {
+            ImageProcessor proc = randomImage(random, size[0], size[1], bits);
+            String what = size[0] + "x" + size[1] + ", " + bits + " bit";
+            assertClose(what + " Mean", proc.getStatistics().mean,
+                  ImgSharpnessAnalysis.computeMean(proc));
+            assertClose(what + " StdDev", referenceNormalizedStdDev(proc),
+                  ImgSharpnessAnalysis.computeNormalizedStdDev(proc));
+            assertClose(what + " NormalizedVariance", referenceNormalizedVariance(proc),
+                  ImgSharpnessAnalysis.computeNormalizedVariance(proc));
+            assertClose(what + " Edges", referenceEdges(proc),
+                  ImgSharpnessAnalysis.computeEdges(proc));
+            assertClose(what + " SharpEdges", referenceSharpEdges(proc),
+                  ImgSharpnessAnalysis.computeSharpEdges(proc));
+            assertClose(what + " Redondo", referenceRedondo(proc),
+                  ImgSharpnessAnalysis.computeRedondo(proc));
+            assertClose(what + " Tenengrad", referenceTenengrad(proc.duplicate()),
+                  ImgSharpnessAnalysis.computeTenengrad(proc));
+            assertClose(what + " MedianEdges", referenceMedianEdges(proc.duplicate()),
+                  ImgSharpnessAnalysis.computeMedianEdges(proc));
+            if (bits < 16) {
+               // The reference overflows int for larger 16 bit values
+               assertClose(what + " Volath", referenceVolath(proc),
+                     ImgSharpnessAnalysis.computeVolath(proc));
+               assertClose(what + " Volath5", referenceVolath5(proc),
+                     ImgSharpnessAnalysis.computeVolath5(proc));
+            }
+         }
+      }
+   }
+
+   @Test
+   public void imageIsNotModified() {
+      ImageProcessor proc = randomImage(new Random(5), 40, 30, 16);
+      short[] before = ((short[]) proc.getPixels()).clone();
+      ImgSharpnessAnalysis analysis = new ImgSharpnessAnalysis();
+      for (ImgSharpnessAnalysis.Method method : ImgSharpnessAnalysis.Method.values()) {
+         analysis.setComputationMethod(method);
+         analysis.compute(proc);
+         if (method != ImgSharpnessAnalysis.Method.FFTBandpass) {
+            Assert.assertArrayEquals(method.name(), before, (short[]) proc.getPixels());
+         }
+      }
+   }
+
+   @Test
+   public void roiFallsBackToReference() {
+      ImageProcessor proc = randomImage(new Random(9), 50, 40, 8);
+      proc.setRoi(5, 5, 20, 20);
+      assertClose("Edges with roi", referenceEdges(proc), ImgSharpnessAnalysis.computeEdges(proc));
+      assertClose("StdDev with roi", referenceNormalizedStdDev(proc),
+            ImgSharpnessAnalysis.computeNormalizedStdDev(proc));
+   }
+
+   @Test
+   public void largeImagesGiveTheSameResultInParallel() {
+      ImageProcessor proc = randomImage(new Random(1), 1024, 1000, 16);
+      double first = ImgSharpnessAnalysis.computeMedianEdges(proc);
+      for (int i = 0; i < 3; i++) {
+         Assert.assertEquals(first, ImgSharpnessAnalysis.computeMedianEdges(proc), 0.0);
+      }
+      assertClose("Tenengrad 1024x1000", referenceTenengrad(proc.duplicate()),
+            ImgSharpnessAnalysis.computeTenengrad(proc));
+   }
+
+   private static void assertClose(String what, double expected, double actual) {
+      Assert.assertEquals(what, expected, actual, Math.abs(expected) * 1e-12);
+   }
+
+   /**
+    * Blurry blobs with noise, so that all filters see a realistic mix of
+    * flat areas and edges, including clipping.
+    */
+   private static ImageProcessor randomImage(Random random, int w, int h, int bits) {
+      int max = (1 << bits) - 1;
+      double[] values = new double[w * h];
+      for (int b = 0; b < 1 + w * h / 50; b++) {
+         int cx = random.nextInt(w);
+         int cy = random.nextInt(h);
+         double intensity = random.nextDouble() * max;
+         for (int y = Math.max(0, cy - 4); y < Math.min(h, cy + 5); y++) {
+            for (int x = Math.max(0, cx - 4); x < Math.min(w, cx + 5); x++) {
+               double d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+               values[y * w + x] += intensity * Math.exp(-d2 / 4.0);
+            }
+         }
+      }
+      if (bits == 8) {
+         byte[] pixels = new byte[w * h];
+         for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) clip(values[i] + random.nextGaussian() * 5, max);
+         }
+         return new ByteProcessor(w, h, pixels, null);
+      }
+      short[] pixels = new short[w * h];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) clip(values[i] + random.nextGaussian() * 50, max);
+      }
+      return new ShortProcessor(w, h, pixels, null);
+   }
+
+   private static int clip(double v, int max) {
+      return (int) Math.max(0, Math.min(max, Math.round(v)));
+   }
+
+   // The ImageProcessor based implementations, as they were before the
+   // metrics were computed from the pixel arrays.
+
+   private static double referenceEdges(ImageProcessor proc) {
+      double meanIntensity = proc.getStatistics().mean;
+      ImageProcessor proc1 = proc.duplicate();
+      proc1.findEdges();
+      double meanEdge = proc1.getStatistics().mean;
+      return meanEdge / meanIntensity;
+   }
+
+   private static double referenceSharpEdges(ImageProcessor proc) {
+      double meanIntensity = proc.getStatistics().mean;
+      ImageProcessor proc1 = proc.duplicate();
+      proc1.sharpen();
+      proc1.findEdges();
+      double meanEdge = proc1.getStatistics().mean;
+      return meanEdge / meanIntensity;
+   }
+
+   private static double referenceNormalizedStdDev(ImageProcessor proc) {
+      ImageStatistics stats = proc.getStatistics();
+      return stats.stdDev / stats.mean;
+   }
+
+   private static double referenceNormalizedVariance(ImageProcessor proc) {
+      ImageStatistics stats = proc.getStatistics();
+      return (stats.stdDev * stats.stdDev) / stats.mean;
+   }
+
+   private static double referenceRedondo(ImageProcessor proc) {
+      int h = proc.getHeight();
+      int w = proc.getWidth();
+      double sum = 0.0;
+      for (int i = 1; i < w - 1; ++i) {
+         for (int j = 1; j < h - 1; ++j) {
+            double p = proc.getPixel(i - 1, j)
+                  + proc.getPixel(i + 1, j)
+                  + proc.getPixel(i, j - 1)
+                  + proc.getPixel(i, j + 1)
+                  - 4 * (proc.getPixel(i - 1, j));
+            sum += (p * p);
+         }
+      }
+      return sum;
+   }
+
+   private static double referenceTenengrad(ImageProcessor proc) {
+      int h = proc.getHeight();
+      int w = proc.getWidth();
+      double sum = 0.0;
+      int[] ken1 = {-1, 0, 1, -2, 0, 2, -1, 0, 1};
+      int[] ken2 = {1, 2, 1, 0, 0, 0, -1, -2, -1};
+      ImageProcessor proc2 = proc.duplicate();
+      proc.convolve3x3(ken1);
+      proc2.convolve3x3(ken2);
+      for (int i = 0; i < w; i++) {
+         for (int j = 0; j < h; j++) {
+            sum += Math.pow(proc.getPixel(i, j), 2) + Math.pow(proc2.getPixel(i, j), 2);
+         }
+      }
+      return sum;
+   }
+
+   private static double referenceVolath(ImageProcessor proc) {
+      int h = proc.getHeight();
+      int w = proc.getWidth();
+      double sum1 = 0.0;
+      double sum2 = 0.0;
+      for (int i = 1; i < w - 1; ++i) {
+         for (int j = 0; j < h; ++j) {
+            sum1 += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
+         }
+      }
+      for (int i = 0; i < w - 2; ++i) {
+         for (int j = 0; j < h; ++j) {
+            sum2 += proc.getPixel(i, j) * proc.getPixel(i + 2, j);
+         }
+      }
+      return (sum1 - sum2);
+   }
+
+   private static double referenceVolath5(ImageProcessor proc) {
+      int h = proc.getHeight();
+      int w = proc.getWidth();
+      double sum = 0.0;
+      for (int i = 0; i < w - 1; ++i) {
+         for (int j = 0; j < h; ++j) {
+            sum += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
+         }
+      }
+      ImageStatistics stats = proc.getStatistics();
+      sum -= ((w - 1) * h * stats.mean * stats.mean);
+      return sum;
+   }
+
+   private static double referenceMedianEdges(ImageProcessor proc) {
+      final int h = proc.getHeight();
+      final int w = proc.getWidth();
+      double sum = 0.0;
+      int[] ken1 = {2, 1, 0, 1, 0, -1, 0, -1, -2};
+      int[] ken2 = {0, 1, 2, -1, 0, 1, -2, -1, 0};
+      proc.medianFilter();
+      ImageProcessor proc2 = proc.duplicate();
+      proc.convolve3x3(ken1);
+      proc2.convolve3x3(ken2);
+      for (int i = 0; i < w; i++) {
+         for (int j = 0; j < h; j++) {
+            sum += Math.sqrt(Math.pow(proc.getPixel(i, j), 2) + Math.pow(proc2.getPixel(i, j), 2));
+         }
+      }
+      return sum;
+   }
+}
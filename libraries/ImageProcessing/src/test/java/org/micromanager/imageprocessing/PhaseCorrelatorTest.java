@@ -0,0 +1,92 @@
+package org.micromanager.imageprocessing;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PhaseCorrelatorTest {
+   private static final int WIDTH = 200;
+   private static final int HEIGHT = 180;
+   private static final Rectangle REGION = new Rectangle(40, 30, 128, 100);
+
+   @Test
+   public void measuresIntegerShifts() {
+      PhaseCorrelator correlator = new PhaseCorrelator(REGION.width, REGION.height);
+      correlator.setReference(scene(0.0, 0.0), WIDTH, REGION);
+      double[] shift = new double[2];
+      int[][] shifts = {{0, 0}, {5, 0}, {0, -7}, {-12, 9}};
+      for (int[] expected : shifts) {
+         Assert.assertTrue(correlator.measure(scene(expected[0], expected[1]), WIDTH, REGION,
+               20, shift));
+         Assert.assertEquals(expected[0], shift[0], 0.1);
+         Assert.assertEquals(expected[1], shift[1], 0.1);
+         Assert.assertTrue(correlator.getPeakValue() > 0.3);
+      }
+   }
+
+   @Test
+   public void measuresSubPixelShifts() {
+      PhaseCorrelator correlator = new PhaseCorrelator(REGION.width, REGION.height);
+      correlator.setReference(scene(0.0, 0.0), WIDTH, REGION);
+      double[] shift = new double[2];
+      double[][] shifts = {{0.5, 0.0}, {2.3, -1.7}, {-4.25, 3.6}};
+      for (double[] expected : shifts) {
+         correlator.measure(scene(expected[0], expected[1]), WIDTH, REGION, 20, shift);
+         Assert.assertEquals(expected[0], shift[0], 0.25);
+         Assert.assertEquals(expected[1], shift[1], 0.25);
+      }
+   }
+
+   @Test
+   public void shiftComparesWithPreviousFrame() {
+      PhaseCorrelator correlator = new PhaseCorrelator(REGION.width, REGION.height);
+      double[] shift = new double[2];
+      Assert.assertFalse(correlator.shift(scene(0.0, 0.0), WIDTH, REGION, 20, shift));
+      Assert.assertTrue(correlator.shift(scene(3.0, 1.0), WIDTH, REGION, 20, shift));
+      Assert.assertEquals(3.0, shift[0], 0.1);
+      Assert.assertEquals(1.0, shift[1], 0.1);
+      Assert.assertTrue(correlator.shift(scene(5.0, -2.0), WIDTH, REGION, 20, shift));
+      Assert.assertEquals(2.0, shift[0], 0.1);
+      Assert.assertEquals(-3.0, shift[1], 0.1);
+   }
+
+   @Test
+   public void ignoresPeaksBeyondMaxShift() {
+      PhaseCorrelator correlator = new PhaseCorrelator(REGION.width, REGION.height);
+      correlator.setReference(scene(0.0, 0.0), WIDTH, REGION);
+      double[] shift = new double[2];
+      correlator.measure(scene(10.0, 0.0), WIDTH, REGION, 4, shift);
+      Assert.assertTrue(Math.abs(shift[0]) <= 4.5);
+      Assert.assertTrue(Math.abs(shift[1]) <= 4.5);
+   }
+
+   /**
+    * Gaussian spots on a background, moved by (dx, dy).
+    */
+   private static short[] scene(double dx, double dy) {
+      Random random = new Random(2);
+      double[][] spots = new double[80][3];
+      for (double[] spot : spots) {
+         spot[0] = random.nextDouble() * WIDTH;
+         spot[1] = random.nextDouble() * HEIGHT;
+         spot[2] = 500 + random.nextInt(2000);
+      }
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            double v = 100.0;
+            for (double[] spot : spots) {
+               double ex = x - spot[0] - dx;
+               double ey = y - spot[1] - dy;
+               double d2 = ex * ex + ey * ey;
+               if (d2 < 50) {
+                  v += spot[2] * Math.exp(-d2 / 8.0);
+               }
+            }
+            pixels[y * WIDTH + x] = (short) Math.min(65535, Math.round(v));
+         }
+      }
+      return pixels;
+   }
+}
@@ -0,0 +1,153 @@
+package org.micromanager.imageprocessing;
+
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the focus search on simulated hardware, in pipelined and in serial
+ * mode.
+ */
+public class PipelinedFocusSearchTest {
+   private static final int SIZE = 96;
+   private static final double RANGE = 10.0;
+   private static final double TOLERANCE = 0.25;
+
+   /**
+    * Logs every hardware call and every score, in the order they happen.
+    */
+   private static class LoggingHardware implements PipelinedFocusSearch.FocusHardware {
+      private final PipelinedFocusSearch.FocusHardware hardware_;
+      private final List<String> events_ = Collections.synchronizedList(new ArrayList<>());
+      private final Set<Thread> hardwareThreads_ = Collections.synchronizedSet(new HashSet<>());
+      private final List<Double> imagedZs_ = new ArrayList<>();
+      private double z_;
+
+      LoggingHardware(PipelinedFocusSearch.FocusHardware hardware) {
+         hardware_ = hardware;
+      }
+
+      @Override
+      public void setPosition(double z) throws Exception {
+         hardwareThreads_.add(Thread.currentThread());
+         events_.add("move " + imagedZs_.size());
+         hardware_.setPosition(z);
+         z_ = z;
+      }
+
+      @Override
+      public ImageProcessor snapImage() throws Exception {
+         hardwareThreads_.add(Thread.currentThread());
+         events_.add("snap " + imagedZs_.size());
+         imagedZs_.add(z_);
+         return hardware_.snapImage();
+      }
+
+      double score(ImgSharpnessAnalysis analysis, int imageNr, ImageProcessor image) {
+         events_.add("score " + imageNr);
+         return analysis.compute(image);
+      }
+   }
+
+   private static HelperSimulatedFocusHardware hardware(double focusZ, long seed) {
+      HelperSimulatedFocusHardware hardware = new HelperSimulatedFocusHardware(SIZE, SIZE,
+            focusZ, seed);
+      hardware.setExposureMs(0);
+      hardware.setMoveTime(0, 0.0);
+      return hardware;
+   }
+
+   @Test
+   public void findsFocus() throws Exception {
+      ImgSharpnessAnalysis analysis = new ImgSharpnessAnalysis();
+      analysis.setComputationMethod(ImgSharpnessAnalysis.Method.Redondo);
+      Random offsets = new Random(1);
+      for (int i = 0; i < 5; i++) {
+         double focusZ = offsets.nextDouble() * 8.0 - 4.0;
+         for (boolean pipelined : new boolean[] {false, true}) {
+            PipelinedFocusSearch search = new PipelinedFocusSearch(hardware(focusZ, i),
+                  analysis::compute);
+            search.setPipelined(pipelined);
+            double z = search.search(0.0, RANGE, TOLERANCE);
+            Assert.assertEquals((pipelined ? "pipelined" : "serial") + " search " + i,
+                  focusZ, z, 2 * TOLERANCE);
+         }
+      }
+   }
+
+   @Test
+   public void serialSearchScoresEachImageBeforeMoving() throws Exception {
+      LoggingHardware hardware = new LoggingHardware(hardware(1.3, 7));
+      List<String> events = run(hardware, false);
+      List<String> expected = new ArrayList<>();
+      for (int i = 0; i < hardware.imagedZs_.size(); i++) {
+         expected.add("move " + i);
+         expected.add("snap " + i);
+         expected.add("score " + i);
+      }
+      Assert.assertEquals(expected, events);
+      checkPositions(hardware);
+   }
+
+   @Test
+   public void pipelinedSearchMovesWhileScoring() throws Exception {
+      LoggingHardware hardware = new LoggingHardware(hardware(1.3, 7));
+      List<String> events = run(hardware, true);
+      // Each image is taken after the move to its position, and scored after
+      // it was taken.  Only the calling thread touches the hardware.
+      for (int i = 0; i < hardware.imagedZs_.size(); i++) {
+         Assert.assertTrue(events.indexOf("move " + i) < events.indexOf("snap " + i));
+         Assert.assertTrue(events.indexOf("snap " + i) < events.indexOf("score " + i));
+      }
+      Assert.assertEquals(Collections.singleton(Thread.currentThread()),
+            hardware.hardwareThreads_);
+      // Scoring is slow, so the second move happens before the first score
+      Assert.assertTrue(events.indexOf("move 1") < events.indexOf("score 0"));
+      checkPositions(hardware);
+   }
+
+   private List<String> run(final LoggingHardware hardware, boolean pipelined)
+         throws Exception {
+      final ImgSharpnessAnalysis analysis = new ImgSharpnessAnalysis();
+      analysis.setComputationMethod(ImgSharpnessAnalysis.Method.Redondo);
+      final int[] imageNr = {0};
+      PipelinedFocusSearch search = new PipelinedFocusSearch(hardware, image -> {
+         try {
+            Thread.sleep(50);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         return hardware.score(analysis, imageNr[0]++, image);
+      });
+      search.setPipelined(pipelined);
+      double z = search.search(0.0, RANGE, TOLERANCE);
+      Assert.assertEquals(1.3, z, 2 * TOLERANCE);
+      Assert.assertEquals(hardware.imagedZs_.size(), search.getImageCount());
+      if (!pipelined) {
+         Assert.assertEquals(0, search.getSpeculativeImageCount());
+      }
+      return new ArrayList<>(hardware.events_);
+   }
+
+   /**
+    * The first pass covers the whole range from the low end, and no
+    * position is imaged twice.
+    */
+   private static void checkPositions(LoggingHardware hardware) {
+      List<Double> zs = hardware.imagedZs_;
+      for (int i = 0; i < 7; i++) {
+         Assert.assertEquals(-RANGE / 2 + i * RANGE / 6, zs.get(i), 1e-9);
+      }
+      for (int i = 0; i < zs.size(); i++) {
+         for (int j = i + 1; j < zs.size(); j++) {
+            Assert.assertTrue(Math.abs(zs.get(i) - zs.get(j)) > 1e-6);
+         }
+      }
+   }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.function.LongSupplier;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.swing.JOptionPane;
@@ -24,6 +25,8 @@ import org.micromanager.data.internal.DefaultImage;
 import org.micromanager.events.EventManager;
 import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.LatencyHistogram;
+import org.micromanager.internal.utils.performance.MetricsRegistry;
 
 /**
  * This object spawns a new thread that pulls images from the Acquisition Engine's output queue
@@ -43,6 +46,12 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
    private boolean finished_ = false;
    private AcqEngJAdapter engine_;
 
+   private static final String BUFFER_GAUGE = "acquisition.circularBuffer.images";
+   private final LatencyHistogram putImageLatency_ =
+         MetricsRegistry.getInstance().histogram("acquisition.circularBuffer.drain");
+   private final LongSupplier bufferGauge_ =
+         () -> MMStudio.getInstance().core().getRemainingImageCount();
+
    public AcqEngJMDADataSink(EventManager studioEvents, AcqEngJAdapter engine) {
       studioEvents_ = studioEvents;
       engine_ = engine;
@@ -73,11 +82,12 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
 
    @Override
    public void initialize(Acquisition acq, JSONObject summaryMetadata) {
-
+      MetricsRegistry.getInstance().registerGauge(BUFFER_GAUGE, bufferGauge_);
    }
 
    @Override
    public void finish() {
+      MetricsRegistry.getInstance().unregisterGauge(BUFFER_GAUGE, bufferGauge_);
       pipeline_.halt();
       studioEvents_.post(
             new DefaultAcquisitionEndedEvent(store_, Engine.getInstance()));
@@ -95,6 +105,7 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
       if (finished_) {
          return null;
       }
+      final long startNs = System.nanoTime();
       try {
          AcqEngJAdapter.addMMImageMetadata(tagged.tags);
          DefaultImage image = new DefaultImage(tagged);
@@ -140,6 +151,8 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
          }
       } catch (Exception ex2) {
          ReportingUtils.logError(ex2);
+      } finally {
+         putImageLatency_.recordSince(startNs);
       }
       return null;
    }
@@ -1,10 +1,13 @@
 package org.micromanager.data.internal;
 
+import com.google.common.eventbus.Subscribe;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.swing.SwingWorker;
 import org.micromanager.Studio;
 import org.micromanager.data.Annotation;
@@ -30,6 +33,7 @@ public class DefaultDataSaver extends SwingWorker<Void, Void> {
    private final String path_;
    private final DefaultDatastore duplicate_;
    private final Storage saver_;
+   private final SummaryLatch summaryArrived_ = new SummaryLatch();
 
    /**
     * Takes care of most of the dirty work saving data to various targets.
@@ -88,6 +92,7 @@ public class DefaultDataSaver extends SwingWorker<Void, Void> {
 
       final SummaryMetadata fSummary = summary;
       duplicate_.setStorage(saver_);
+      duplicate_.registerForEvents(summaryArrived_);
       duplicate_.setSummaryMetadata(fSummary);
 
       // Copy images ordered by stage position index.
@@ -155,34 +160,31 @@ public class DefaultDataSaver extends SwingWorker<Void, Void> {
          }
          return 1;
       });
-      int counter = 0;
-      double multiplier = 100.0 / tmp.size();
       // Before we can put images into the new storage, we have to be sure that the SummaryMeta-
       // data are there.  We set it before, but that function is asynchronous internally.
-      // I do not see ways other than polling.  Alternatively, the bus used to post
-      // SummaryMetadata Events, could be made synchronous, but I can not oversee the
-      // consequences.
-      long startTime = System.currentTimeMillis();
-      boolean timeOut = false;
-      while (!timeOut && duplicate_.getSummaryMetadata() == null) {
-         if (System.currentTimeMillis() - startTime > 10000) {
-            timeOut = true;
-         }
-         try {
-            Thread.sleep(100);
-         } catch (InterruptedException e) {
-            timeOut = true;
-            studio.logs().logError(e);
-         }
+      boolean summaryArrived;
+      try {
+         summaryArrived = summaryArrived_.await();
+      } finally {
+         duplicate_.unregisterForEvents(summaryArrived_);
       }
-      if (timeOut) {
+      if (!summaryArrived) {
          studio.logs().showError("Failed to save data");
          return null;
       }
-      for (Coords coords : tmp) {
-         duplicate_.putImage(store_.getImage(coords));
-         counter++;
-         setProgress((int) (counter * multiplier));
+      PipelinedImageCopier copier = new PipelinedImageCopier(store_, tmp, duplicate_::putImage);
+      copier.setCancellationCheck(this::isCancelled);
+      copier.setProgressListener((copied, total, bytesPerSecond) -> {
+         setProgress(Math.min(99, (int) (copied * 100.0 / total)));
+         firePropertyChange("throughput", null, bytesPerSecond);
+      });
+      int written = copier.copy();
+      studio.logs().logMessage(String.format("Saved %d images to %s at %.1f MB/s",
+            written, path_, copier.getBytesPerSecond() / (1024 * 1024)));
+      if (isCancelled()) {
+         duplicate_.freeze();
+         duplicate_.close();
+         return null;
       }
 
       // We set the save path and freeze *both* datastores; our own because
@@ -204,6 +206,10 @@ public class DefaultDataSaver extends SwingWorker<Void, Void> {
    @Override
    protected void done() {
       setProgress(100);
+      if (isCancelled()) {
+         studio.alerts().postAlert("Saving canceled", this.getClass(), path_);
+         return;
+      }
       try {
          get();
       } catch (ExecutionException | InterruptedException e) {
@@ -213,5 +219,25 @@ public class DefaultDataSaver extends SwingWorker<Void, Void> {
       studio.alerts().postAlert("Finished saving", this.getClass(), path_);
    }
 
+   /**
+    * Releases the saving thread once the destination has seen the summary
+    * metadata, which is delivered on the datastore's asynchronous bus.
+    */
+   private static final class SummaryLatch {
+      private final CountDownLatch latch_ = new CountDownLatch(1);
+
+      @Subscribe
+      public void onNewSummaryMetadata(DataProviderHasNewSummaryMetadataEvent event) {
+         latch_.countDown();
+      }
 
+      boolean await() {
+         try {
+            return latch_.await(10, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+      }
+   }
 }
@@ -45,6 +45,8 @@ import org.micromanager.internal.utils.FileDialogs;
 import org.micromanager.internal.utils.PrioritizedEventBus;
 import org.micromanager.internal.utils.ProgressBar;
 import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.LatencyHistogram;
+import org.micromanager.internal.utils.performance.MetricsRegistry;
 
 /**
  * Default implementaton of the Datastore interface.
@@ -96,6 +98,10 @@ public class DefaultDatastore implements Datastore {
    protected boolean isFrozen_ = false;
    protected final Studio studio_;
 
+   private static final LatencyHistogram PUT_IMAGE_LATENCY =
+         MetricsRegistry.getInstance().histogram("datastore.putImage");
+   private LatencyHistogram storageLatency_ = null;
+
    private String savePath_ = null;
    private boolean haveSetSummary_ = false;
 
@@ -155,6 +161,8 @@ public class DefaultDatastore implements Datastore {
    @Override
    public void setStorage(Storage storage) {
       storage_ = storage;
+      storageLatency_ = storage == null ? null : MetricsRegistry.getInstance().histogram(
+            "storage." + storage.getClass().getSimpleName() + ".putImage");
    }
 
    /**
@@ -233,6 +241,7 @@ public class DefaultDatastore implements Datastore {
          // TODO: log? throw exception?  just crashing is not an option...
          return;
       }
+      final long startNs = System.nanoTime();
       if (hasImage(image.getCoords())) {
          throw new DatastoreRewriteException();
       }
@@ -251,12 +260,17 @@ public class DefaultDatastore implements Datastore {
       }
 
       if (storage_ != null) {
+         long storageStartNs = System.nanoTime();
          storage_.putImage(image);
+         if (storageLatency_ != null) {
+            storageLatency_.recordSince(storageStartNs);
+         }
       }
       // Note: the store may be very busy saving data, so consumers of this message
       // should use as few resources as possible.  Note that the bus is asynchronous,
       // so we do not have to wait for processing to finish.
       bus_.post(new DefaultNewImageEvent(image, this));
+      PUT_IMAGE_LATENCY.recordSince(startNs);
    }
 
    @Override
@@ -0,0 +1,279 @@
+package org.micromanager.data.internal;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Image;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+
+/**
+ * Copies images from a DataProvider into a destination in a given order,
+ * reading from the source on a pool of threads while a single thread
+ * (the caller of {@link #copy()}) writes to the destination.
+ *
+ * <p>Reads are submitted in destination order and handed to the writer in
+ * that same order.  The number of images that have been read but not yet
+ * written is bounded, so memory use stays constant regardless of dataset
+ * size: once the window is full, readers idle until the writer catches up.
+ *
+ * <p>The source must tolerate concurrent calls to {@code getImage}.  All
+ * Storage implementations shipped with Micro-Manager do; if that is not the
+ * case for a given source, use a single reader thread.
+ */
+public final class PipelinedImageCopier {
+   /**
+    * Destination of copied images.  Called on a single thread, in order.
+    */
+   public interface ImageSink {
+      void putImage(Image image) throws IOException;
+   }
+
+   /**
+    * Receives progress notifications.  Called on the writing thread after
+    * each image has been handed to the sink.
+    */
+   public interface ProgressListener {
+      /**
+       * Reports progress.
+       *
+       * @param copied         Number of images processed so far.
+       * @param total          Total number of images to be copied.
+       * @param bytesPerSecond Average throughput since the copy started.
+       */
+      void onProgress(int copied, int total, double bytesPerSecond);
+   }
+
+   /**
+    * Allows the copy to be aborted from another thread.
+    */
+   public interface CancellationCheck {
+      boolean isCanceled();
+   }
+
+   private static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 256L * 1024 * 1024;
+
+   private final DataProvider source_;
+   private final List<Coords> order_;
+   private final ImageSink sink_;
+   private final int numReaders_;
+   private final long maxBytesInFlight_;
+   private ProgressListener listener_;
+   private CancellationCheck cancellationCheck_;
+   private volatile boolean canceled_ = false;
+   private long bytesCopied_ = 0;
+   private long elapsedNs_ = 0;
+
+   /**
+    * Creates a copier with a reader thread per available processor
+    * (at most 8), and a 256 MB limit on images held in memory.
+    *
+    * @param source Provider to read images from.
+    * @param order  Coordinates to copy, in the order they should be written.
+    * @param sink   Receives images in order.
+    */
+   public PipelinedImageCopier(DataProvider source, List<Coords> order,
+                               ImageSink sink) {
+      this(source, order, sink,
+            Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())),
+            DEFAULT_MAX_BYTES_IN_FLIGHT);
+   }
+
+   /**
+    * Creates a copier.
+    *
+    * @param source           Provider to read images from.
+    * @param order            Coordinates to copy, in the order they should
+    *                         be written.
+    * @param sink             Receives images in order.
+    * @param numReaders       Number of threads reading from the source.
+    * @param maxBytesInFlight Upper bound on the pixel data held in memory
+    *                         between reading and writing.  At least one
+    *                         image per reader is always allowed.
+    */
+   public PipelinedImageCopier(DataProvider source, List<Coords> order,
+                               ImageSink sink, int numReaders, long maxBytesInFlight) {
+      if (numReaders < 1) {
+         throw new IllegalArgumentException("Need at least one reader thread");
+      }
+      source_ = source;
+      order_ = new ArrayList<>(order);
+      sink_ = sink;
+      numReaders_ = numReaders;
+      maxBytesInFlight_ = maxBytesInFlight;
+   }
+
+   public void setProgressListener(ProgressListener listener) {
+      listener_ = listener;
+   }
+
+   public void setCancellationCheck(CancellationCheck check) {
+      cancellationCheck_ = check;
+   }
+
+   /**
+    * Requests that an ongoing copy stops as soon as possible.
+    * Images already written stay written.
+    */
+   public void cancel() {
+      canceled_ = true;
+   }
+
+   public boolean isCanceled() {
+      return canceled_ || (cancellationCheck_ != null && cancellationCheck_.isCanceled());
+   }
+
+   /**
+    * Copies all images.  Blocks until done, canceled or failed.
+    *
+    * @return Number of images written.  Lower than the number of coordinates
+    *     only when the copy was canceled.
+    * @throws IOException when reading from the source or writing to the sink
+    *     fails.  No further images are written in that case.
+    */
+   public int copy() throws IOException {
+      if (order_.isEmpty()) {
+         return 0;
+      }
+      final long startNs = System.nanoTime();
+      bytesCopied_ = 0;
+
+      // The first image is read on this thread so that we know how large
+      // images are, and thereby how many we can afford to keep in flight.
+      Image first = source_.getImage(order_.get(0));
+      sink_.putImage(first);
+      int written = 1;
+      bytesCopied_ += imageBytes(first);
+      reportProgress(1, startNs);
+      if (order_.size() == 1) {
+         elapsedNs_ = System.nanoTime() - startNs;
+         return written;
+      }
+      final int window = windowSize(imageBytes(first));
+
+      ExecutorService readers = Executors.newFixedThreadPool(numReaders_,
+            ThreadFactoryFactory.createThreadFactory("Image copy reader"));
+      ArrayDeque<Future<Image>> pending = new ArrayDeque<>(window);
+      int nextToSubmit = 1;
+      int processed = 1;
+      try {
+         while (processed < order_.size()) {
+            while (nextToSubmit < order_.size() && pending.size() < window) {
+               pending.addLast(readers.submit(new Reader(order_.get(nextToSubmit))));
+               nextToSubmit++;
+            }
+            if (isCanceled()) {
+               break;
+            }
+            Image image = awaitImage(pending.removeFirst());
+            processed++;
+            if (image == null) {
+               // Canceled, or the source no longer has an image at these
+               // coordinates.
+               continue;
+            }
+            sink_.putImage(image);
+            written++;
+            bytesCopied_ += imageBytes(image);
+            reportProgress(processed, startNs);
+         }
+      } finally {
+         // Reads that have not started yet are dropped.  Those in progress
+         // are left to finish rather than interrupted: interrupting a thread
+         // blocked in FileChannel.read() closes the channel, and with it the
+         // source's file.
+         for (Future<Image> f : pending) {
+            f.cancel(false);
+         }
+         readers.shutdown();
+         awaitReaders(readers);
+         elapsedNs_ = System.nanoTime() - startNs;
+      }
+      return written;
+   }
+
+   /**
+    * Returns the average throughput of the last call to copy().
+    *
+    * @return bytes per second, or 0 if nothing was copied.
+    */
+   public double getBytesPerSecond() {
+      if (elapsedNs_ <= 0) {
+         return 0.0;
+      }
+      return bytesCopied_ / (elapsedNs_ / 1e9);
+   }
+
+   private int windowSize(long bytesPerImage) {
+      long byBytes = bytesPerImage > 0 ? maxBytesInFlight_ / bytesPerImage : Integer.MAX_VALUE;
+      long window = Math.max(numReaders_, Math.min(byBytes, 4L * numReaders_ * numReaders_));
+      return (int) Math.min(window, Integer.MAX_VALUE);
+   }
+
+   private Image awaitImage(Future<Image> future) throws IOException {
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         canceled_ = true;
+         throw new IOException("Interrupted while copying images", e);
+      } catch (CancellationException e) {
+         throw new IOException("Image read was canceled", e);
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         }
+         throw new IOException("Failed to read image", cause);
+      }
+   }
+
+   private static void awaitReaders(ExecutorService readers) {
+      try {
+         while (!readers.awaitTermination(1, TimeUnit.SECONDS)) {
+            // A single read should not take long; keep waiting.
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void reportProgress(int written, long startNs) {
+      if (listener_ == null) {
+         return;
+      }
+      double seconds = (System.nanoTime() - startNs) / 1e9;
+      listener_.onProgress(written, order_.size(),
+            seconds > 0 ? bytesCopied_ / seconds : 0.0);
+   }
+
+   private static long imageBytes(Image image) {
+      return (long) image.getWidth() * image.getHeight()
+            * image.getBytesPerPixel() * image.getNumComponents();
+   }
+
+   private final class Reader implements Callable<Image> {
+      private final Coords coords_;
+
+      Reader(Coords coords) {
+         coords_ = coords;
+      }
+
+      @Override
+      public Image call() throws IOException {
+         if (isCanceled()) {
+            return null;
+         }
+         return source_.getImage(coords_);
+      }
+   }
+}
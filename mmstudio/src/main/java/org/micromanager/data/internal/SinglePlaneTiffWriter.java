@@ -0,0 +1,254 @@
+package org.micromanager.data.internal;
+
+import ij.ImageJ;
+import ij.io.FileInfo;
+import ij.io.TiffEncoder;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+
+/**
+ * Writes single-plane TIFF files on a small pool of background threads.
+ *
+ * <p>TIFF files are encoded straight from the image's pixel array using
+ * ImageJ's TiffEncoder, bypassing ImagePlus and FileSaver (which, among other
+ * things, compute pixel statistics for every image).  The files are
+ * identical in layout to those written by FileSaver, so ImageJ and
+ * StorageSinglePlaneTiffSeries read them back unchanged.
+ *
+ * <p>The work queue is bounded.  When it is full, the calling thread writes
+ * the file itself, which throttles producers to the speed of the disk
+ * rather than letting queued images fill the heap.
+ *
+ * <p>Images that are queued but not yet written can be obtained through
+ * {@link #getPending(Coords)}, so that readers never see a gap.
+ */
+final class SinglePlaneTiffWriter {
+   private static final int QUEUE_CAPACITY = 64;
+
+   private final ThreadPoolExecutor executor_;
+   private final ConcurrentHashMap<Coords, Image> pending_ = new ConcurrentHashMap<>();
+   private final ConcurrentLinkedQueue<File> unsynced_ = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger planesSinceSync_ = new AtomicInteger(0);
+   private final AtomicReference<IOException> firstFailure_ = new AtomicReference<>();
+   private final int fsyncInterval_;
+
+   /**
+    * Creates the writer.
+    *
+    * @param numThreads    Number of threads writing files.
+    * @param fsyncInterval Files are forced to disk after every so many planes.
+    *                      0 leaves flushing to the operating system.
+    */
+   SinglePlaneTiffWriter(int numThreads, int fsyncInterval) {
+      fsyncInterval_ = Math.max(0, fsyncInterval);
+      executor_ = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+            ThreadFactoryFactory.createThreadFactory("Single plane TIFF writer"),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+   }
+
+   /**
+    * Queues an image to be written.
+    *
+    * @param image     Image to write.
+    * @param file      Destination file.
+    * @param info      Text to store as the ImageJ "Info" property.
+    * @param pixelSize Pixel size in microns, or null/0 when not calibrated.
+    * @param intervalS Frame interval in seconds, or null when unknown.
+    * @param zStepUm   Z step in microns, or null when unknown.
+    * @throws IOException if an earlier write failed.  Once a write has
+    *                     failed, no further images are accepted.
+    * @throws IllegalArgumentException if the pixel format cannot be written.
+    */
+   void write(final Image image, final File file, final String info,
+              final Double pixelSize, final Double intervalS, final Double zStepUm)
+         throws IOException {
+      IOException failure = firstFailure_.get();
+      if (failure != null) {
+         throw failure;
+      }
+      checkFormat(image.getBytesPerPixel(), image.getNumComponents());
+      final Coords coords = image.getCoords();
+      pending_.put(coords, image);
+      executor_.execute(() -> {
+         try {
+            writeFile(file, image.getRawPixels(), image.getWidth(), image.getHeight(),
+                  image.getBytesPerPixel(), image.getNumComponents(), info,
+                  pixelSize, intervalS, zStepUm);
+            if (fsyncInterval_ > 0) {
+               unsynced_.add(file);
+               if (planesSinceSync_.incrementAndGet() >= fsyncInterval_) {
+                  planesSinceSync_.set(0);
+                  syncWrittenFiles();
+               }
+            }
+         } catch (IOException e) {
+            firstFailure_.compareAndSet(null, e);
+            ReportingUtils.logError(e, "Failed to write " + file);
+         } finally {
+            pending_.remove(coords, image);
+         }
+      });
+   }
+
+   /**
+    * Tells whether images of the given format can be written.
+    *
+    * @param bytesPerPixel Bytes per pixel of the image.
+    * @param numComponents Number of components of the image.
+    * @return true for 8 and 16 bit grayscale and for RGB.
+    */
+   static boolean canWrite(int bytesPerPixel, int numComponents) {
+      return (numComponents == 3 && bytesPerPixel == 4)
+            || (numComponents == 1 && (bytesPerPixel == 1 || bytesPerPixel == 2));
+   }
+
+   private static void checkFormat(int bytesPerPixel, int numComponents) {
+      if (!canWrite(bytesPerPixel, numComponents)) {
+         throw new IllegalArgumentException(String.format(
+               "Unexpected image format with %d bytes per pixel and %d components",
+               bytesPerPixel, numComponents));
+      }
+   }
+
+   /**
+    * Returns an image that has been queued but is not yet on disk.
+    *
+    * @param coords Coordinates of the image.
+    * @return The image, or null if it is not waiting to be written.
+    */
+   Image getPending(Coords coords) {
+      return pending_.get(coords);
+   }
+
+   /**
+    * Waits for all queued images to be written and stops the threads.
+    *
+    * @throws IOException if any write failed.
+    */
+   void finish() throws IOException {
+      executor_.shutdown();
+      try {
+         while (!executor_.awaitTermination(1, TimeUnit.SECONDS)) {
+            ReportingUtils.logMessage("Waiting for "
+                  + executor_.getQueue().size() + " TIFF files to be written");
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while writing TIFF files", e);
+      }
+      if (fsyncInterval_ > 0) {
+         syncWrittenFiles();
+      }
+      IOException failure = firstFailure_.get();
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   private void syncWrittenFiles() {
+      List<File> files = new ArrayList<>();
+      File file;
+      while ((file = unsynced_.poll()) != null) {
+         files.add(file);
+      }
+      for (File f : files) {
+         try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+         } catch (IOException e) {
+            ReportingUtils.logError(e, "Failed to sync " + f);
+         }
+      }
+   }
+
+   /**
+    * Encodes one plane as an uncompressed TIFF in the same layout as
+    * ImageJ's FileSaver.
+    *
+    * @param file          Destination.
+    * @param pixels        byte[] or short[] for grayscale, byte[] in BGRA
+    *                      order for RGB.
+    * @param width         Image width.
+    * @param height        Image height.
+    * @param bytesPerPixel 1, 2 or 4 (RGB).
+    * @param numComponents 1 or 3 (RGB).
+    * @param info          Stored as the ImageJ "Info" property. May be null.
+    * @param pixelSize     Pixel size in microns, or null/0 when not calibrated.
+    * @param intervalS     Frame interval in seconds, or null when unknown.
+    * @param zStepUm       Z step in microns, or null when unknown.
+    * @throws IOException  when writing fails.
+    */
+   static void writeFile(File file, Object pixels, int width, int height,
+                         int bytesPerPixel, int numComponents, String info,
+                         Double pixelSize, Double intervalS, Double zStepUm)
+         throws IOException {
+      checkFormat(bytesPerPixel, numComponents);
+      FileInfo fi = new FileInfo();
+      fi.width = width;
+      fi.height = height;
+      fi.nImages = 1;
+      if (numComponents == 3 && bytesPerPixel == 4) {
+         fi.fileType = FileInfo.RGB;
+         fi.pixels = toRGB((byte[]) pixels, width * height);
+      } else if (bytesPerPixel == 1) {
+         fi.fileType = FileInfo.GRAY8;
+         fi.pixels = pixels;
+      } else {
+         fi.fileType = FileInfo.GRAY16_UNSIGNED;
+         fi.pixels = pixels;
+      }
+      fi.info = info;
+      StringBuilder description = new StringBuilder("ImageJ=").append(ImageJ.VERSION)
+            .append('\n');
+      if (pixelSize != null && pixelSize > 0) {
+         fi.unit = "um";
+         fi.pixelWidth = pixelSize;
+         fi.pixelHeight = pixelSize;
+         description.append("unit=um\n");
+         if (intervalS != null && intervalS > 0) {
+            description.append("finterval=").append(intervalS).append('\n');
+         }
+         if (zStepUm != null && zStepUm > 0) {
+            // FileSaver only writes the spacing for stacks; ImageJ reads it
+            // for single planes as well.
+            fi.pixelDepth = zStepUm;
+            description.append("spacing=").append(zStepUm).append('\n');
+         }
+      }
+      fi.description = description.toString();
+
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+            64 * 1024)) {
+         new TiffEncoder(fi).write(out);
+      }
+   }
+
+   private static int[] toRGB(byte[] raw, int numPixels) {
+      int[] rgb = new int[numPixels];
+      for (int i = 0; i < numPixels; i++) {
+         rgb[i] = (raw[4 * i + 3] << (Byte.SIZE * 3))
+               | (raw[4 * i + 2] & 0xFF) << (Byte.SIZE * 2)
+               | (raw[4 * i + 1] & 0xFF) << Byte.SIZE
+               | (raw[4 * i] & 0xFF);
+      }
+      return rgb;
+   }
+}
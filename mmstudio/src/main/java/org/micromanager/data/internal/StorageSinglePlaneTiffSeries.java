@@ -31,7 +31,6 @@ import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.JsonReader;
 import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.io.Opener;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
@@ -39,8 +38,9 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.Writer;
 import java.util.ArrayList;
@@ -63,6 +63,7 @@ import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
 import org.micromanager.data.Storage;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.propertymap.NonPropertyMapJSONFormats;
 import org.micromanager.internal.utils.JavaUtils;
 import org.micromanager.internal.utils.ReportingUtils;
@@ -78,11 +79,21 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
    private static final HashSet<String> ALLOWED_AXES = new HashSet<>(
          Arrays.asList(Coords.CHANNEL, Coords.T, Coords.Z,
                Coords.STAGE_POSITION));
+   private static final String FSYNC_INTERVAL =
+         "number of planes after which single plane TIFF files are forced to disk";
+   // Metadata is flushed at least this often (in planes) when fsync is off.
+   private static final int METADATA_FLUSH_INTERVAL = 100;
+   private static final Gson GSON = new GsonBuilder().disableHtmlEscaping()
+         .setPrettyPrinting().create();
    private final DefaultDatastore store_;
    private final String dir_;
    private boolean firstElement_;
    private boolean amLoading_;
    private final HashMap<Integer, Writer> metadataStreams_;
+   private final HashMap<Integer, FileOutputStream> metadataFiles_;
+   private final SinglePlaneTiffWriter writer_;
+   private final int fsyncInterval_;
+   private int planesSinceMetadataFlush_ = 0;
    private boolean isDatasetWritable_;
    private SummaryMetadata summaryMetadata_ = (new DefaultSummaryMetadata.Builder()).build();
    private final ConcurrentHashMap<Coords, String> coordsToFilename_;
@@ -104,6 +115,22 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
     */
    public StorageSinglePlaneTiffSeries(DefaultDatastore store,
                                        String directory, boolean newDataSet) throws IOException {
+      this(store, directory, newDataSet, getFsyncInterval());
+   }
+
+   /**
+    * Implements storing single plane TIff series.
+    *
+    * @param store         Datastore using this storage implementation.
+    * @param directory     Path on disk used to store data.
+    * @param newDataSet    Whether this is a new (true) or existing (false) dataset.
+    * @param fsyncInterval Force written files to disk after this many planes.
+    *                      0 leaves this to the operating system, which is fastest.
+    * @throws IOException As can be expected with disk-based storage.
+    */
+   public StorageSinglePlaneTiffSeries(DefaultDatastore store,
+                                       String directory, boolean newDataSet,
+                                       int fsyncInterval) throws IOException {
       store_ = store;
       dir_ = directory;
       store_.setSavePath(dir_);
@@ -117,6 +144,13 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       store_.registerForEvents(this, 0);
       coordsToFilename_ = new ConcurrentHashMap<>();
       metadataStreams_ = new HashMap<>();
+      metadataFiles_ = new HashMap<>();
+      fsyncInterval_ = Math.max(0, fsyncInterval);
+      writer_ = isDatasetWritable_
+            ? new SinglePlaneTiffWriter(
+                  Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())),
+                  fsyncInterval_)
+            : null;
       positionIndexToName_ = new HashMap<>();
       orderedChannelNames_ = new ArrayList<>();
       axesInUse_ = new TreeSet<>();
@@ -131,8 +165,17 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       }
    }
 
+   /**
+    * Stores the image.  Files are written in the background, while the
+    * image's entry in metadata.txt is added right away.  Once writing a file
+    * has failed, no further images are accepted; metadata.txt may still list
+    * the failed plane and those queued before the failure was noticed.
+    *
+    * @param image Image to be stored.
+    * @throws IOException if an earlier image could not be written.
+    */
    @Override
-   public void putImage(Image image) {
+   public void putImage(Image image) throws IOException {
       ImageSizeChecker.checkImageSizeInSummary(summaryMetadata_, image);
       // Require images to only have time/channel/z/position axes.
       for (String axis : image.getCoords().getAxes()) {
@@ -148,6 +191,14 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
          ReportingUtils.logError("Attempted to add an image to a read-only fileset");
          return;
       }
+      // Check the format before anything is queued or added to the metadata.
+      if (isDatasetWritable_ && !SinglePlaneTiffWriter.canWrite(image.getBytesPerPixel(),
+            image.getNumComponents())) {
+         ReportingUtils.logError(String.format(
+               "Unexpected image format with %d bytes per pixel and %d components",
+               image.getBytesPerPixel(), image.getNumComponents()));
+         return;
+      }
       // We can't properly save multi-position datasets unless each image has
       // a PositionName property in its metadata.
       if (isDatasetWritable_ && image.getCoords().getStagePosition() > 0
@@ -208,12 +259,15 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
          NonPropertyMapJSONFormats.metadata().addToGson(jo,
                ((DefaultMetadata) imgMetadata).toPropertyMap());
 
-         Gson gson = new GsonBuilder().disableHtmlEscaping()
-               .setPrettyPrinting().create();
-         String metadataJSON = gson.toJson(jo);
+         String metadataJSON = GSON.toJson(jo);
 
          saveImageFile(image, dir_, fileName, metadataJSON);
          writeFrameMetadata(image, metadataJSON, fileName);
+         planesSinceMetadataFlush_++;
+         if (planesSinceMetadataFlush_ >= (fsyncInterval_ > 0
+               ? fsyncInterval_ : METADATA_FLUSH_INTERVAL)) {
+            flushMetadataStreams();
+         }
       }
 
       // Update our Coords indices
@@ -241,6 +295,13 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
 
    @Override
    public void freeze() {
+      if (writer_ != null && isDatasetWritable_) {
+         try {
+            writer_.finish();
+         } catch (IOException e) {
+            ReportingUtils.showError(e, "Failed to write all images to " + dir_);
+         }
+      }
       closeMetadataStreams();
       isDatasetWritable_ = false;
       saveComments();
@@ -256,6 +317,12 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
 
    @Override
    public Image getImage(Coords coords) {
+      if (writer_ != null) {
+         Image pending = writer_.getPending(coords);
+         if (pending != null) {
+            return pending;
+         }
+      }
       if (coordsToFilename_.get(coords) == null) {
          // We don't have that image.
          ReportingUtils.logError("Asked for image at " + coords + " that we don't know about");
@@ -487,9 +554,7 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
          JsonObject jo = new JsonObject();
          NonPropertyMapJSONFormats.coords().addToGson(jo,
                ((DefaultCoords) image.getCoords()).toPropertyMap());
-         Gson gson = new GsonBuilder().disableHtmlEscaping()
-               .setPrettyPrinting().create();
-         writeJSONMetadata(pos, gson.toJson(jo), coordsKey);
+         writeJSONMetadata(pos, GSON.toJson(jo), coordsKey);
 
          String mdKey = "Metadata-" + fileName;
          writeJSONMetadata(pos, metadataJSON, mdKey);
@@ -510,7 +575,6 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
          }
          metadataStream.write("\"" + title + "\": ");
          metadataStream.write(json);
-         metadataStream.flush();
          firstElement_ = false;
       } catch (IOException e) {
          ReportingUtils.logError(e);
@@ -519,98 +583,33 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
 
 
    private void saveImageFile(Image image, String path, String tiffFileName,
-                              String metadataJSON) {
+                              String metadataJSON) throws IOException {
       if (firstImage_ == null) {
          firstImage_ = image;
       } else {
          ImageSizeChecker.checkImageSizes(firstImage_, image);
       }
+      Double pixelSizeUm = image.getMetadata().getPixelSizeUm();
+      Double intervalS = summaryMetadata_.getWaitInterval() == null
+            ? null : summaryMetadata_.getWaitInterval() / 1000.0;
+      writer_.write(image, new File(path + "/" + tiffFileName), metadataJSON,
+            pixelSizeUm, intervalS, summaryMetadata_.getZStepUm());
+   }
+
+   private void flushMetadataStreams() {
+      planesSinceMetadataFlush_ = 0;
       try {
-         int width = image.getWidth();
-         int height = image.getHeight();
-         Object pixels = image.getRawPixels();
-         int bytesPerPixel = image.getBytesPerPixel();
-         int numComponents = image.getNumComponents();
-         ImageProcessor proc;
-         if (numComponents == 3 && bytesPerPixel == 4) {
-            // 32-bit RGB
-            proc = new ColorProcessor(width, height);
-            int[] rgbPixels = new int[width * height];
-            byte[] rawPixels = (byte[]) pixels;
-            for (int i = 0; i < width * height; i++) {
-               rgbPixels[i] = (rawPixels[4 * i + 3] << (Byte.SIZE * 3));
-               rgbPixels[i] |= (rawPixels[4 * i + 2] & 0xFF) << (Byte.SIZE * 2);
-               rgbPixels[i] |= (rawPixels[4 * i + 1] & 0xFF) << (Byte.SIZE * 1);
-               rgbPixels[i] |= (rawPixels[4 * i] & 0xFF);
+         for (Map.Entry<Integer, Writer> entry : metadataStreams_.entrySet()) {
+            entry.getValue().flush();
+            if (fsyncInterval_ > 0) {
+               metadataFiles_.get(entry.getKey()).getFD().sync();
             }
-            ((ColorProcessor) proc).setPixels(rgbPixels);
-         } else if (numComponents == 1 && bytesPerPixel == 1) {
-            // Byte
-            proc = new ByteProcessor(width, height);
-            proc.setPixels((byte[]) pixels);
-         } else if (numComponents == 1 && bytesPerPixel == 2) {
-            // Short
-            proc = new ShortProcessor(width, height);
-            proc.setPixels((short[]) pixels);
-         } else {
-            throw new IllegalArgumentException(String.format(
-                  "Unexpected image format with %d bytes per pixel and %d components",
-                  bytesPerPixel, numComponents));
          }
-         saveImageProcessor(proc, image, path, tiffFileName, metadataJSON);
-      } catch (IllegalArgumentException ex) {
+      } catch (IOException ex) {
          ReportingUtils.logError(ex);
       }
    }
 
-
-   private void saveImageProcessor(ImageProcessor ip, Image image,
-                                   String path, String tiffFileName, String metadataJSON) {
-      // TODO: why is this check here?
-      if (ip == null) {
-         return;
-      }
-      ImagePlus imp = new ImagePlus(path + "/" + tiffFileName, ip);
-      applyPixelSizeCalibration(imp, image.getMetadata());
-      saveImagePlus(imp, image, path, tiffFileName, metadataJSON);
-   }
-
-   private void applyPixelSizeCalibration(final ImagePlus ip,
-                                          Metadata metadata) {
-      Double pixSizeUm = metadata.getPixelSizeUm();
-      if (pixSizeUm != null && pixSizeUm > 0) {
-         ij.measure.Calibration cal = new ij.measure.Calibration();
-         cal.setUnit("um");
-         cal.pixelWidth = pixSizeUm;
-         cal.pixelHeight = pixSizeUm;
-         if (summaryMetadata_.getWaitInterval() != null) {
-            cal.frameInterval = summaryMetadata_.getWaitInterval() / 1000.0;
-         }
-         if (summaryMetadata_.getZStepUm() != null) {
-            cal.pixelDepth = summaryMetadata_.getZStepUm();
-         }
-         ip.setCalibration(cal);
-      }
-   }
-
-
-   /**
-    * Saves an ImageJ ImagePlus object.
-    *
-    * @param imp          The ImagePlus to be saved.
-    * @param image        Not used
-    * @param path         Location on disk to save to.
-    * @param tiffFileName Temporary name to be sued.
-    * @param metadataJSON Metadata in JSON format
-    */
-   public void saveImagePlus(ImagePlus imp, Image image,
-                             String path, String tiffFileName, String metadataJSON) {
-      imp.setProperty("Info", metadataJSON);
-
-      FileSaver fs = new FileSaver(imp);
-      fs.saveAsTiff(path + "/" + tiffFileName);
-   }
-
    private void openNewDataSet(Image image) throws IOException, Exception {
       String posName = image.getMetadata().getPositionName("");
       int pos = image.getCoords().getStagePosition();
@@ -629,8 +628,11 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       positionIndexToName_.put(pos, posName);
       JavaUtils.createDirectory(dir_ + "/" + posName);
       firstElement_ = true;
-      Writer metadataStream = new BufferedWriter(new FileWriter(dir_ + "/"
-            + posName + "/metadata.txt"));
+      FileOutputStream metadataFile = new FileOutputStream(dir_ + "/"
+            + posName + "/metadata.txt");
+      Writer metadataStream = new BufferedWriter(new OutputStreamWriter(metadataFile),
+            64 * 1024);
+      metadataFiles_.put(pos, metadataFile);
       metadataStreams_.put(pos, metadataStream);
       metadataStream.write("{" + "\n");
       // TODO: this method of extracting the date is extremely hacky and
@@ -650,15 +652,19 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       PropertyMap formatPmap = ((DefaultImage) image).formatToPropertyMap();
       PropertyKey.IJ_TYPE.storeInGsonObject(formatPmap, jo);
       PropertyKey.PIXEL_TYPE.storeInGsonObject(formatPmap, jo);
-      Gson gson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-      writeJSONMetadata(pos, gson.toJson(jo), "Summary");
+      writeJSONMetadata(pos, GSON.toJson(jo), "Summary");
    }
 
    private void closeMetadataStreams() {
       if (isDatasetWritable_) {
          try {
-            for (Writer metadataStream : metadataStreams_.values()) {
+            for (Map.Entry<Integer, Writer> entry : metadataStreams_.entrySet()) {
+               Writer metadataStream = entry.getValue();
                metadataStream.write("\n}\n");
+               metadataStream.flush();
+               if (fsyncInterval_ > 0) {
+                  metadataFiles_.get(entry.getKey()).getFD().sync();
+               }
                metadataStream.close();
             }
          } catch (IOException ex) {
@@ -868,4 +874,22 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       saveComments();
       coordsIndexedMissingC_ = null;
    }
-}
\ No newline at end of file
+
+   /**
+    * Returns the durability setting for new single plane TIFF datasets.
+    *
+    * @return Number of planes after which files are forced to disk, 0 for never.
+    */
+   public static int getFsyncInterval() {
+      if (MMStudio.getInstance() == null) {
+         return 0;
+      }
+      return MMStudio.getInstance().profile().getSettings(StorageSinglePlaneTiffSeries.class)
+            .getInteger(FSYNC_INTERVAL, 0);
+   }
+
+   public static void setFsyncInterval(int interval) {
+      MMStudio.getInstance().profile().getSettings(StorageSinglePlaneTiffSeries.class)
+            .putInteger(FSYNC_INTERVAL, interval);
+   }
+}
@@ -64,6 +64,8 @@ import org.micromanager.internal.propertymap.MM1JSONSerializer;
 import org.micromanager.internal.propertymap.NonPropertyMapJSONFormats;
 import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.imageanalysis.ImageUtils;
+import org.micromanager.internal.utils.performance.LatencyHistogram;
+import org.micromanager.internal.utils.performance.MetricsRegistry;
 
 /**
  * Entity writing MultipageTiffs to disk.
@@ -74,6 +76,8 @@ public final class MultipageTiffWriter {
 
    private static final long BYTES_PER_GIG = 1073741824;
    private static final long MAX_FILE_SIZE = 4 * BYTES_PER_GIG;
+   private static final LatencyHistogram DISK_WRITE_LATENCY =
+         MetricsRegistry.getInstance().histogram("storage.MultipageTiff.diskWrite");
    public static final int DISPLAY_SETTINGS_BYTES_PER_CHANNEL = 256;
    //1 MB for now...might have to increase
    public static final long SPACE_FOR_COMMENTS = 1048576;
@@ -353,11 +357,13 @@ public final class MultipageTiffWriter {
 
    private void fileChannelWrite(final ByteBuffer[] buffers) {
       executeWritingTask(() -> {
+         long startNs = System.nanoTime();
          try {
             fileChannel_.write(buffers);
          } catch (IOException e) {
             ReportingUtils.logError(e);
          }
+         DISK_WRITE_LATENCY.recordSince(startNs);
          for (ByteBuffer buffer : buffers) {
             tryRecycleLargeBuffer(buffer);
          }
@@ -43,6 +43,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import org.micromanager.data.Coords;
@@ -65,6 +66,7 @@ import org.micromanager.internal.utils.MMException;
 import org.micromanager.internal.utils.ProgressBar;
 import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.ThreadFactoryFactory;
+import org.micromanager.internal.utils.performance.MetricsRegistry;
 
 
 /**
@@ -98,6 +100,8 @@ public final class StorageMultipageTiff implements Storage {
    private int lastFrame_ = 0;
    private int lastAcquiredPosition_ = 0;
    private ThreadPoolExecutor writingExecutor_;
+   private static final String WRITE_QUEUE_GAUGE = "storage.MultipageTiff.writeQueue";
+   private final LongSupplier writeQueueGauge_ = () -> writingExecutor_.getQueue().size();
    private Image firstImage_;
 
    // Images that are currently being written. We keep them around until
@@ -428,6 +432,7 @@ public final class StorageMultipageTiff implements Storage {
                TimeUnit.NANOSECONDS,
                new LinkedBlockingQueue<>(),
                ThreadFactoryFactory.createThreadFactory("StorageMultiPageTiff"));
+         MetricsRegistry.getInstance().registerGauge(WRITE_QUEUE_GAUGE, writeQueueGauge_);
       }
       int fileSetIndex = 0;
       if (splitByXYPosition_) {
@@ -561,6 +566,7 @@ public final class StorageMultipageTiff implements Storage {
          //the FileChannel) before everything has finished writing mkae sure
          //all images have finished writing if they are on seperate thread
          if (writingExecutor_ != null && !writingExecutor_.isShutdown()) {
+            MetricsRegistry.getInstance().unregisterGauge(WRITE_QUEUE_GAUGE, writeQueueGauge_);
             writingExecutor_.shutdown();
             try {
                // Wait for tasks to finish.
@@ -22,9 +22,11 @@ package org.micromanager.data.internal.pipeline;
 
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Processor;
 import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.MetricsRegistry;
 
 public final class AsynchronousContext extends BaseContext {
    private boolean isFlushed_ = false;
@@ -34,11 +36,18 @@ public final class AsynchronousContext extends BaseContext {
                               Datastore store, DefaultPipeline parent) {
       super(processor, store, parent);
       inputQueue_ = new LinkedBlockingQueue<ImageWrapper>(1);
+      final LongSupplier queueGauge = inputQueue_::size;
+      MetricsRegistry.getInstance().registerGauge(getMetricPrefix() + ".queue", queueGauge);
       // Create a new thread to do processing in.
       new Thread(new Runnable() {
          @Override
          public void run() {
-            monitorQueue();
+            try {
+               monitorQueue();
+            } finally {
+               MetricsRegistry.getInstance().unregisterGauge(
+                     getMetricPrefix() + ".queue", queueGauge);
+            }
          }
       }, "Processor context for " + processor_).start();
    }
@@ -83,7 +92,7 @@ public final class AsynchronousContext extends BaseContext {
             // Non-null image: process it.
             isFlushed_ = false;
             try {
-               processor_.processImage(wrapper.getImage(), this);
+               processImage(wrapper.getImage());
             } catch (Exception e) {
                ReportingUtils.logError(e, "Processor failed to process image");
                // Pass the exception to our parent.
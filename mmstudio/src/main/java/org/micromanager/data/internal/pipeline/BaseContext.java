@@ -28,6 +28,8 @@ import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
 import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.LatencyHistogram;
+import org.micromanager.internal.utils.performance.MetricsRegistry;
 
 public abstract class BaseContext implements ProcessorContext {
    protected BaseContext sink_ = null;
@@ -35,12 +37,35 @@ public abstract class BaseContext implements ProcessorContext {
    protected Datastore store_;
    protected DefaultPipeline parent_;
    protected CountDownLatch flushLatch_;
+   protected final LatencyHistogram processLatency_;
+   // Time spent passing output on, during the current processImage() call
+   private long outputNs_;
 
    public BaseContext(Processor processor, Datastore store,
                       DefaultPipeline parent) {
       processor_ = processor;
       store_ = store;
       parent_ = parent;
+      processLatency_ = MetricsRegistry.getInstance().histogram(
+            getMetricPrefix() + ".process");
+   }
+
+   /**
+    * @return prefix of the names of the metrics of this stage
+    */
+   protected String getMetricPrefix() {
+      return "pipeline." + processor_.getClass().getSimpleName();
+   }
+
+   /**
+    * Has our processor process an image, and records the time it took,
+    * excluding the time spent by later stages of a synchronous pipeline.
+    */
+   protected void processImage(Image image) {
+      long startNs = System.nanoTime();
+      outputNs_ = 0;
+      processor_.processImage(image, this);
+      processLatency_.record(System.nanoTime() - startNs - outputNs_);
    }
 
    /**
@@ -49,6 +74,15 @@ public abstract class BaseContext implements ProcessorContext {
     */
    @Override
    public void outputImage(Image image) {
+      long startNs = System.nanoTime();
+      try {
+         passOn(image);
+      } finally {
+         outputNs_ += System.nanoTime() - startNs;
+      }
+   }
+
+   private void passOn(Image image) {
       if (sink_ == null) {
          // Send the image to the Datastore.
          try {
@@ -47,7 +47,7 @@ public final class SynchronousContext extends BaseContext {
          }
       } else {
          try {
-            processor_.processImage(wrapper.getImage(), this);
+            processImage(wrapper.getImage());
          } catch (Exception e) {
             ReportingUtils.logError(e, "Processor failed to process image");
             // Pass the exception to our parent.
@@ -14,7 +14,9 @@
 package org.micromanager.display.internal.animate;
 
 import com.google.common.util.concurrent.AtomicDouble;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
@@ -39,6 +41,9 @@ import org.micromanager.internal.utils.performance.PerformanceMonitor;
  * through this object, including: playback animation, new incoming images,
  * manual scrolling by the user, and events from interlinked display windows.</p>
  *
+ * <p>During playback, the data of the positions that will be displayed next
+ * can be loaded ahead of time by a {@link FramePrefetcher}.</p>
+ *
  * <p>The data position type {@code P} is parameterized to support possible future
  * extensions such as animation in dilated physical time for non-uniformly
  * spaced time lapse datasets.</p>
@@ -114,6 +119,8 @@ public final class AnimationController<P> {
 
    private PerformanceMonitor perfMon_;
 
+   private FramePrefetcher<P, ?> prefetcher_;
+
    public static <P> AnimationController create(AnimationStateDelegate<P> sequencer) {
       return new AnimationController(sequencer);
    }
@@ -144,6 +151,19 @@ public final class AnimationController<P> {
       perfMon_ = perfMon;
    }
 
+   /**
+    * Sets the prefetcher that is told which positions will be displayed next
+    * during playback.
+    *
+    * @param prefetcher prefetcher, or null to not prefetch
+    */
+   public synchronized void setPrefetcher(FramePrefetcher<P, ?> prefetcher) {
+      if (prefetcher_ != null) {
+         prefetcher_.clear();
+      }
+      prefetcher_ = prefetcher;
+   }
+
    /**
     * Permanently cease all animation and scheduled events.
     */
@@ -260,6 +280,11 @@ public final class AnimationController<P> {
       if (isTicksScheduled()) {
          stopTicks();
       }
+      synchronized (this) {
+         if (prefetcher_ != null) {
+            prefetcher_.clear();
+         }
+      }
    }
 
    public boolean isAnimating() {
@@ -282,6 +307,8 @@ public final class AnimationController<P> {
                   listeners_.fire().animationNewDataPositionExpired();
                }
                sequencer_.setAnimationPosition(position);
+               // Drops the frames of the positions we were heading for
+               prefetchUpcoming(position);
                listeners_.fire().animationShouldDisplayDataPosition(position);
             }
          }
@@ -479,6 +506,7 @@ public final class AnimationController<P> {
       if (newPosition == null) { // No advancement after rounding
          return;
       }
+      prefetchUpcoming(newPosition);
       scheduler_.schedule(new Runnable() {
          @Override
          public void run() {
@@ -491,4 +519,30 @@ public final class AnimationController<P> {
          }
       }, 0, TimeUnit.MILLISECONDS);
    }
-}
\ No newline at end of file
+
+   /**
+    * Tells the prefetcher the positions to display next, starting at the
+    * given one, as far ahead as the load latency requires.
+    */
+   private synchronized void prefetchUpcoming(P position) {
+      if (prefetcher_ == null) {
+         return;
+      }
+      double fps = getAnimationRateFPS();
+      if (!animationEnabled_.get() || fps <= 0.0) {
+         prefetcher_.clear();
+         return;
+      }
+      // A tick that advances less than one frame displays nothing new
+      double framesPerTick = Math.max(1.0, fps * tickIntervalMs_ / 1000.0);
+      double frameIntervalMs = framesPerTick * 1000.0 / fps;
+      int lookahead = prefetcher_.getLookahead(frameIntervalMs);
+      List<P> upcoming = new ArrayList<>(lookahead + 1);
+      upcoming.add(position);
+      upcoming.addAll(sequencer_.peekAnimationPositions(framesPerTick, lookahead));
+      prefetcher_.prefetch(upcoming);
+      if (perfMon_ != null) {
+         perfMon_.sample("Animation prefetch lookahead", lookahead);
+      }
+   }
+}
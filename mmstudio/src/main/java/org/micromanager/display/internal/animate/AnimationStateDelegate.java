@@ -13,6 +13,8 @@
 
 package org.micromanager.display.internal.animate;
 
+import java.util.List;
+
 /**
  * An object that computes the next data position to render in an animated
  * display.
@@ -66,4 +68,17 @@ public interface AnimationStateDelegate<P> {
     */
    P advanceAnimationPosition(double frames);
 
+   /**
+    * Get the positions that repeatedly advancing by the given number of
+    * frames would reach, without changing the current data position.
+    *
+    * <p>Used to load the data of upcoming positions ahead of time.</p>
+    *
+    * @param frames frames to advance at each step
+    * @param count  number of steps
+    * @return the positions, in order (steps that do not change the position
+    *     are left out)
+    */
+   List<P> peekAnimationPositions(double frames, int count);
+
 }
\ No newline at end of file
@@ -14,6 +14,7 @@
 package org.micromanager.display.internal.animate;
 
 import com.google.common.collect.Lists;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import org.micromanager.data.Coords;
@@ -82,6 +83,25 @@ public class DataCoordsAnimationState implements AnimationStateDelegate<Coords>
       return advanceAnimationPositionImpl(frames, true);
    }
 
+   @Override
+   public synchronized List<Coords> peekAnimationPositions(double frames, int count) {
+      final Coords savedCoords = animationCoords_;
+      final double savedError = cumulativeFrameCountError_;
+      List<Coords> positions = new ArrayList<>(count);
+      try {
+         for (int i = 0; i < count; i++) {
+            Coords position = advanceAnimationPositionImpl(frames, true);
+            if (position != null) {
+               positions.add(position);
+            }
+         }
+      } finally {
+         animationCoords_ = savedCoords;
+         cumulativeFrameCountError_ = savedError;
+      }
+      return positions;
+   }
+
    private Coords advanceAnimationPositionImpl(double frames,
                                                boolean skipNonExistent) {
       final Coords prevPos = animationCoords_;
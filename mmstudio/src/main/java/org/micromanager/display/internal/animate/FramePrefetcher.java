@@ -0,0 +1,205 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Display implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2026
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.animate;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+
+/**
+ * Loads the frames of upcoming animation positions in the background, so
+ * that they are ready by the time they are displayed.
+ *
+ * <p>The animation controller passes the positions it will display next, in
+ * the order in which they are due. Loads are started in that order (earliest
+ * deadline first), and work for positions that are no longer upcoming (for
+ * example because the user scrolled elsewhere) is dropped. The number of
+ * positions to load ahead follows from the measured load latency and the
+ * interval between displayed frames.</p>
+ *
+ * <p>Loads that have already started are allowed to finish rather than being
+ * interrupted, because interrupting a thread that reads from a
+ * {@code FileChannel} closes the channel.</p>
+ *
+ * @param <P> the type used to describe a data position
+ * @param <F> the type of a loaded frame
+ */
+public final class FramePrefetcher<P, F> {
+   /**
+    * Loads the frame of a position. Must be thread safe.
+    *
+    * @param <P> the type used to describe a data position
+    * @param <F> the type of a loaded frame
+    */
+   public interface Loader<P, F> {
+      F load(P position) throws IOException;
+   }
+
+   private static final int MAX_LOOKAHEAD = 16;
+   // Frames loaded ahead before the load latency is known
+   private static final int INITIAL_LOOKAHEAD = 2;
+   // Extra frames to absorb variation of the load latency
+   private static final double LATENCY_MARGIN = 1.5;
+
+   private final Loader<P, F> loader_;
+   private final ExecutorService executor_;
+
+   // Frames being loaded or loaded, in the order in which they are due
+   private final Map<P, Future<F>> frames_ = new LinkedHashMap<>();
+
+   // Moving average of the load latency; 0 until the first load finished
+   private double latencyMs_;
+
+   public static <P, F> FramePrefetcher<P, F> create(Loader<P, F> loader, int nrThreads) {
+      if (loader == null) {
+         throw new NullPointerException();
+      }
+      if (nrThreads <= 0) {
+         throw new IllegalArgumentException("nrThreads must be positive");
+      }
+      return new FramePrefetcher<>(loader, nrThreads);
+   }
+
+   private FramePrefetcher(Loader<P, F> loader, int nrThreads) {
+      loader_ = loader;
+      executor_ = Executors.newFixedThreadPool(nrThreads,
+            ThreadFactoryFactory.createThreadFactory("FramePrefetcher"));
+   }
+
+   /**
+    * Returns the number of positions to load ahead.
+    *
+    * @param frameIntervalMs interval between displayed frames
+    * @return number of positions that should be loading or loaded
+    */
+   public synchronized int getLookahead(double frameIntervalMs) {
+      if (latencyMs_ == 0.0) {
+         return INITIAL_LOOKAHEAD;
+      }
+      int lookahead = (int) Math.ceil(LATENCY_MARGIN * latencyMs_
+            / Math.max(1.0, frameIntervalMs)) + 1;
+      return Math.min(MAX_LOOKAHEAD, lookahead);
+   }
+
+   public synchronized double getLatencyMs() {
+      return latencyMs_;
+   }
+
+   /**
+    * Starts loading the given positions, and drops all others.
+    *
+    * @param upcoming positions to be displayed, in the order in which they
+    *                 are due, starting with the position displayed next
+    */
+   public synchronized void prefetch(List<P> upcoming) {
+      if (executor_.isShutdown()) {
+         return;
+      }
+      Set<P> keep = new HashSet<>(upcoming);
+      for (Iterator<Map.Entry<P, Future<F>>> it = frames_.entrySet().iterator();
+            it.hasNext(); ) {
+         Map.Entry<P, Future<F>> entry = it.next();
+         if (!keep.contains(entry.getKey())) {
+            entry.getValue().cancel(false);
+            it.remove();
+         }
+      }
+      for (final P position : upcoming) {
+         if (!frames_.containsKey(position)) {
+            frames_.put(position, executor_.submit(new Callable<F>() {
+               @Override
+               public F call() throws IOException {
+                  return load(position);
+               }
+            }));
+         }
+      }
+   }
+
+   /**
+    * Returns the frame of a position, waiting for it if it is being loaded,
+    * or loading it on the calling thread if it was not prefetched.
+    *
+    * <p>A prefetched frame is handed out only once.</p>
+    *
+    * @param position position to display
+    * @return the frame of the position
+    * @throws IOException if the frame could not be loaded
+    */
+   public F get(P position) throws IOException {
+      Future<F> future;
+      synchronized (this) {
+         future = frames_.remove(position);
+      }
+      if (future != null) {
+         try {
+            return future.get();
+         } catch (CancellationException dropped) {
+            // Load it here instead
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+               throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+         }
+      }
+      return load(position);
+   }
+
+   /**
+    * Drops all loaded frames and pending loads.
+    */
+   public synchronized void clear() {
+      for (Future<F> future : frames_.values()) {
+         future.cancel(false);
+      }
+      frames_.clear();
+   }
+
+   /**
+    * Permanently stops loading frames.
+    */
+   public void shutdown() {
+      clear();
+      executor_.shutdown();
+   }
+
+   private F load(P position) throws IOException {
+      long startNs = System.nanoTime();
+      F frame = loader_.load(position);
+      double ms = (System.nanoTime() - startNs) / 1000000.0;
+      synchronized (this) {
+         latencyMs_ = latencyMs_ == 0.0 ? ms : 0.8 * latencyMs_ + 0.2 * ms;
+      }
+      return frame;
+   }
+}
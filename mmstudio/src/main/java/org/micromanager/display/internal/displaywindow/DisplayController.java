@@ -53,6 +53,7 @@ import org.micromanager.display.internal.DefaultDisplaySettings;
 import org.micromanager.display.internal.RememberedDisplaySettings;
 import org.micromanager.display.internal.animate.AnimationController;
 import org.micromanager.display.internal.animate.DataCoordsAnimationState;
+import org.micromanager.display.internal.animate.FramePrefetcher;
 import org.micromanager.display.internal.event.DataViewerDidBecomeActiveEvent;
 import org.micromanager.display.internal.event.DataViewerDidBecomeInvisibleEvent;
 import org.micromanager.display.internal.event.DataViewerDidBecomeVisibleEvent;
@@ -104,6 +105,17 @@ public final class DisplayController extends DisplayWindowAPIAdapter
 
    private final Set<String> playbackAxes_ = new HashSet<>();
 
+   // Loads the images of upcoming positions during playback
+   private static final int PREFETCH_THREADS = 4;
+   private final FramePrefetcher<Coords, List<Image>> prefetcher_ =
+         FramePrefetcher.create(new FramePrefetcher.Loader<Coords, List<Image>>() {
+            @Override
+            public List<Image> load(Coords position) throws IOException {
+               return dataProvider_.getImagesIgnoringAxes(
+                     position.copyRemovingAxes(Coords.CHANNEL), Coords.CHANNEL);
+            }
+         }, PREFETCH_THREADS);
+
    private final StatsComputeQueue computeQueue_ = StatsComputeQueue.create();
    private static final long MIN_REPAINT_PERIOD_NS = Math.round(1e9 / 60.0);
 
@@ -272,6 +284,7 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       DataCoordsAnimationState animationState = DataCoordsAnimationState.create(this);
       animationController_ = AnimationController.create(animationState);
       animationController_.setPerformanceMonitor(perfMon_);
+      animationController_.setPrefetcher(prefetcher_);
       animationController_.addListener(this);
 
       uiController_ = DisplayUIController.create(studio_, this, controlsFactory_,
@@ -556,11 +569,10 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       }
 
       // Always compute stats for all channels
+      // During playback, the images have usually been loaded already
       List<Image> images;
       try {
-         images = dataProvider_.getImagesIgnoringAxes(
-               position.copyRemovingAxes(Coords.CHANNEL),
-               Coords.CHANNEL);
+         images = prefetcher_.get(position);
       } catch (IOException e) {
          // TODO Should display error
          images = Collections.emptyList();
@@ -931,6 +943,8 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       // any ongoing playback animation. Actual display of new images happens
       // upon receiving callbacks via the AnimationController.Listener
       // interface.
+      // Images loaded ahead of time may lack the new image
+      prefetcher_.clear();
       animationController_.newDataPosition(event.getImage().getCoords());
    }
 
@@ -1135,6 +1149,7 @@ public final class DisplayController extends DisplayWindowAPIAdapter
          perfMon_ = null;
          animationController_.shutdown();
          animationController_.removeListener(this);
+         prefetcher_.shutdown();
          animationController_ = null;
          controlsFactory_ = null;
          runnablePool_ = null;
@@ -0,0 +1,1009 @@
+// Copyright (C) 2015-2017 Open Imaging, Inc.
+//           (C) 2015 Regents of the University of California
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.displaywindow.imagej;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * ImageJ processors that show the pixel array of a Micro-Manager image
+ * without copying it.
+ *
+ * <p>The pixels are copied the first time the processor is changed, so that
+ * the image itself is never changed.  ImageJ filters take a snapshot before
+ * changing an image, and all other methods of {@code ImageProcessor} that
+ * change pixels copy them first as well, except for the single pixel
+ * methods that ImageJ made final ({@code set}, {@code setf} and
+ * {@code putPixel}).  Like arrays from {@code Image.getRawPixels()}, the
+ * array returned by {@code getPixels()} must not be changed while
+ * {@link Shared#isShared()} is true.
+ *
+ * <p>Pixels passed to {@code setPixels} are treated as shared, because that
+ * is how ImageJ moves the pixels of another slice of a virtual stack into
+ * the processor of an {@code ImagePlus}.
+ */
+final class CopyOnWriteProcessors {
+   private CopyOnWriteProcessors() {
+   }
+
+   /**
+    * Processor whose pixels may still be those of an image.
+    */
+   interface Shared {
+      /**
+       * @return true until the pixels of the processor have been copied
+       */
+      boolean isShared();
+   }
+
+   /**
+    * @param width  width of the image
+    * @param height height of the image
+    * @param pixels pixels of the image
+    * @return processor sharing the pixels, or null for pixel arrays other
+    *     than byte[], short[] and float[]
+    */
+   static ImageProcessor create(int width, int height, Object pixels) {
+      if (pixels instanceof byte[]) {
+         return new Bytes(width, height, (byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         return new Shorts(width, height, (short[]) pixels);
+      } else if (pixels instanceof float[]) {
+         return new Floats(width, height, (float[]) pixels);
+      }
+      return null;
+   }
+
+   /**
+    * ByteProcessor that shares the pixels of an image until it is written to.
+    */
+   static final class Bytes extends ByteProcessor implements Shared {
+      private boolean shared_ = true;
+
+      Bytes(int width, int height, byte[] pixels) {
+         super(width, height, pixels, null);
+      }
+
+      @Override
+      public boolean isShared() {
+         return shared_;
+      }
+
+      private void detach() {
+         if (shared_) {
+            Object snapshot = getSnapshotPixels();
+            super.setPixels(((byte[]) getPixels()).clone());
+            setSnapshotPixels(snapshot);
+            shared_ = false;
+         }
+      }
+
+      @Override
+      public void setPixels(Object pixels) {
+         super.setPixels(pixels);
+         shared_ = true;
+      }
+
+      @Override
+      public void snapshot() {
+         detach();
+         super.snapshot();
+      }
+
+      @Override
+      public void reset() {
+         detach();
+         super.reset();
+      }
+
+      @Override
+      public void reset(ImageProcessor mask) {
+         detach();
+         super.reset(mask);
+      }
+
+      @Override
+      public void swapPixelArrays() {
+         detach();
+         super.swapPixelArrays();
+      }
+
+      @Override
+      public void setPixels(int channelNumber, FloatProcessor fp) {
+         detach();
+         super.setPixels(channelNumber, fp);
+      }
+
+      @Override
+      public void putPixelValue(int x, int y, double value) {
+         detach();
+         super.putPixelValue(x, y, value);
+      }
+
+      @Override
+      public void drawPixel(int x, int y) {
+         detach();
+         super.drawPixel(x, y);
+      }
+
+      @Override
+      public void copyBits(ImageProcessor ip, int xloc, int yloc, int mode) {
+         detach();
+         super.copyBits(ip, xloc, yloc, mode);
+      }
+
+      @Override
+      public void insert(ImageProcessor ip, int xloc, int yloc) {
+         detach();
+         super.insert(ip, xloc, yloc);
+      }
+
+      @Override
+      public void applyTable(int[] lut) {
+         detach();
+         super.applyTable(lut);
+      }
+
+      @Override
+      public void invert() {
+         detach();
+         super.invert();
+      }
+
+      @Override
+      public void add(int value) {
+         detach();
+         super.add(value);
+      }
+
+      @Override
+      public void add(double value) {
+         detach();
+         super.add(value);
+      }
+
+      @Override
+      public void set(double value) {
+         detach();
+         super.set(value);
+      }
+
+      @Override
+      public void multiply(double value) {
+         detach();
+         super.multiply(value);
+      }
+
+      @Override
+      public void and(int value) {
+         detach();
+         super.and(value);
+      }
+
+      @Override
+      public void or(int value) {
+         detach();
+         super.or(value);
+      }
+
+      @Override
+      public void xor(int value) {
+         detach();
+         super.xor(value);
+      }
+
+      @Override
+      public void gamma(double value) {
+         detach();
+         super.gamma(value);
+      }
+
+      @Override
+      public void log() {
+         detach();
+         super.log();
+      }
+
+      @Override
+      public void exp() {
+         detach();
+         super.exp();
+      }
+
+      @Override
+      public void sqr() {
+         detach();
+         super.sqr();
+      }
+
+      @Override
+      public void sqrt() {
+         detach();
+         super.sqrt();
+      }
+
+      @Override
+      public void abs() {
+         detach();
+         super.abs();
+      }
+
+      @Override
+      public void min(double value) {
+         detach();
+         super.min(value);
+      }
+
+      @Override
+      public void max(double value) {
+         detach();
+         super.max(value);
+      }
+
+      @Override
+      public void fill() {
+         detach();
+         super.fill();
+      }
+
+      @Override
+      public void fill(ImageProcessor mask) {
+         detach();
+         super.fill(mask);
+      }
+
+      @Override
+      public void convolve3x3(int[] kernel) {
+         detach();
+         super.convolve3x3(kernel);
+      }
+
+      @Override
+      public void convolve(float[] kernel, int kernelWidth, int kernelHeight) {
+         detach();
+         super.convolve(kernel, kernelWidth, kernelHeight);
+      }
+
+      @Override
+      public void filter(int type) {
+         detach();
+         super.filter(type);
+      }
+
+      @Override
+      public void medianFilter() {
+         detach();
+         super.medianFilter();
+      }
+
+      @Override
+      public void noise(double standardDeviation) {
+         detach();
+         super.noise(standardDeviation);
+      }
+
+      @Override
+      public void threshold(int level) {
+         detach();
+         super.threshold(level);
+      }
+
+      @Override
+      public void erode() {
+         detach();
+         super.erode();
+      }
+
+      @Override
+      public void dilate() {
+         detach();
+         super.dilate();
+      }
+
+      @Override
+      public void blurGaussian(double sigma) {
+         detach();
+         super.blurGaussian(sigma);
+      }
+
+      @Override
+      public void scale(double xScale, double yScale) {
+         detach();
+         super.scale(xScale, yScale);
+      }
+
+      @Override
+      public void rotate(double angle) {
+         detach();
+         super.rotate(angle);
+      }
+
+      @Override
+      public void translate(double xOffset, double yOffset) {
+         detach();
+         super.translate(xOffset, yOffset);
+      }
+
+      @Override
+      public void flipVertical() {
+         detach();
+         super.flipVertical();
+      }
+
+      @Override
+      public void flipHorizontal() {
+         detach();
+         super.flipHorizontal();
+      }
+
+      @Override
+      public void putRow(int x, int y, int[] data, int length) {
+         detach();
+         super.putRow(x, y, data, length);
+      }
+
+      @Override
+      public void putRow(int x, int y, float[] data, int length) {
+         detach();
+         super.putRow(x, y, data, length);
+      }
+
+      @Override
+      public void putColumn(int x, int y, int[] data, int length) {
+         detach();
+         super.putColumn(x, y, data, length);
+      }
+
+      @Override
+      public void setIntArray(int[][] pixels) {
+         detach();
+         super.setIntArray(pixels);
+      }
+
+      @Override
+      public void setFloatArray(float[][] pixels) {
+         detach();
+         super.setFloatArray(pixels);
+      }
+   }
+
+   /**
+    * ShortProcessor that shares the pixels of an image until it is written to.
+    */
+   static final class Shorts extends ShortProcessor implements Shared {
+      private boolean shared_ = true;
+
+      Shorts(int width, int height, short[] pixels) {
+         super(width, height, pixels, null);
+      }
+
+      @Override
+      public boolean isShared() {
+         return shared_;
+      }
+
+      private void detach() {
+         if (shared_) {
+            Object snapshot = getSnapshotPixels();
+            super.setPixels(((short[]) getPixels()).clone());
+            setSnapshotPixels(snapshot);
+            shared_ = false;
+         }
+      }
+
+      @Override
+      public void setPixels(Object pixels) {
+         super.setPixels(pixels);
+         shared_ = true;
+      }
+
+      @Override
+      public void snapshot() {
+         detach();
+         super.snapshot();
+      }
+
+      @Override
+      public void reset() {
+         detach();
+         super.reset();
+      }
+
+      @Override
+      public void reset(ImageProcessor mask) {
+         detach();
+         super.reset(mask);
+      }
+
+      @Override
+      public void swapPixelArrays() {
+         detach();
+         super.swapPixelArrays();
+      }
+
+      @Override
+      public void setPixels(int channelNumber, FloatProcessor fp) {
+         detach();
+         super.setPixels(channelNumber, fp);
+      }
+
+      @Override
+      public void putPixelValue(int x, int y, double value) {
+         detach();
+         super.putPixelValue(x, y, value);
+      }
+
+      @Override
+      public void drawPixel(int x, int y) {
+         detach();
+         super.drawPixel(x, y);
+      }
+
+      @Override
+      public void copyBits(ImageProcessor ip, int xloc, int yloc, int mode) {
+         detach();
+         super.copyBits(ip, xloc, yloc, mode);
+      }
+
+      @Override
+      public void insert(ImageProcessor ip, int xloc, int yloc) {
+         detach();
+         super.insert(ip, xloc, yloc);
+      }
+
+      @Override
+      public void applyTable(int[] lut) {
+         detach();
+         super.applyTable(lut);
+      }
+
+      @Override
+      public void invert() {
+         detach();
+         super.invert();
+      }
+
+      @Override
+      public void add(int value) {
+         detach();
+         super.add(value);
+      }
+
+      @Override
+      public void add(double value) {
+         detach();
+         super.add(value);
+      }
+
+      @Override
+      public void set(double value) {
+         detach();
+         super.set(value);
+      }
+
+      @Override
+      public void multiply(double value) {
+         detach();
+         super.multiply(value);
+      }
+
+      @Override
+      public void and(int value) {
+         detach();
+         super.and(value);
+      }
+
+      @Override
+      public void or(int value) {
+         detach();
+         super.or(value);
+      }
+
+      @Override
+      public void xor(int value) {
+         detach();
+         super.xor(value);
+      }
+
+      @Override
+      public void gamma(double value) {
+         detach();
+         super.gamma(value);
+      }
+
+      @Override
+      public void log() {
+         detach();
+         super.log();
+      }
+
+      @Override
+      public void exp() {
+         detach();
+         super.exp();
+      }
+
+      @Override
+      public void sqr() {
+         detach();
+         super.sqr();
+      }
+
+      @Override
+      public void sqrt() {
+         detach();
+         super.sqrt();
+      }
+
+      @Override
+      public void abs() {
+         detach();
+         super.abs();
+      }
+
+      @Override
+      public void min(double value) {
+         detach();
+         super.min(value);
+      }
+
+      @Override
+      public void max(double value) {
+         detach();
+         super.max(value);
+      }
+
+      @Override
+      public void fill() {
+         detach();
+         super.fill();
+      }
+
+      @Override
+      public void fill(ImageProcessor mask) {
+         detach();
+         super.fill(mask);
+      }
+
+      @Override
+      public void convolve3x3(int[] kernel) {
+         detach();
+         super.convolve3x3(kernel);
+      }
+
+      @Override
+      public void convolve(float[] kernel, int kernelWidth, int kernelHeight) {
+         detach();
+         super.convolve(kernel, kernelWidth, kernelHeight);
+      }
+
+      @Override
+      public void filter(int type) {
+         detach();
+         super.filter(type);
+      }
+
+      @Override
+      public void medianFilter() {
+         detach();
+         super.medianFilter();
+      }
+
+      @Override
+      public void noise(double standardDeviation) {
+         detach();
+         super.noise(standardDeviation);
+      }
+
+      @Override
+      public void threshold(int level) {
+         detach();
+         super.threshold(level);
+      }
+
+      @Override
+      public void erode() {
+         detach();
+         super.erode();
+      }
+
+      @Override
+      public void dilate() {
+         detach();
+         super.dilate();
+      }
+
+      @Override
+      public void blurGaussian(double sigma) {
+         detach();
+         super.blurGaussian(sigma);
+      }
+
+      @Override
+      public void scale(double xScale, double yScale) {
+         detach();
+         super.scale(xScale, yScale);
+      }
+
+      @Override
+      public void rotate(double angle) {
+         detach();
+         super.rotate(angle);
+      }
+
+      @Override
+      public void translate(double xOffset, double yOffset) {
+         detach();
+         super.translate(xOffset, yOffset);
+      }
+
+      @Override
+      public void flipVertical() {
+         detach();
+         super.flipVertical();
+      }
+
+      @Override
+      public void flipHorizontal() {
+         detach();
+         super.flipHorizontal();
+      }
+
+      @Override
+      public void putRow(int x, int y, int[] data, int length) {
+         detach();
+         super.putRow(x, y, data, length);
+      }
+
+      @Override
+      public void putRow(int x, int y, float[] data, int length) {
+         detach();
+         super.putRow(x, y, data, length);
+      }
+
+      @Override
+      public void putColumn(int x, int y, int[] data, int length) {
+         detach();
+         super.putColumn(x, y, data, length);
+      }
+
+      @Override
+      public void setIntArray(int[][] pixels) {
+         detach();
+         super.setIntArray(pixels);
+      }
+
+      @Override
+      public void setFloatArray(float[][] pixels) {
+         detach();
+         super.setFloatArray(pixels);
+      }
+   }
+
+   /**
+    * FloatProcessor that shares the pixels of an image until it is written to.
+    */
+   static final class Floats extends FloatProcessor implements Shared {
+      private boolean shared_ = true;
+
+      Floats(int width, int height, float[] pixels) {
+         super(width, height, pixels, null);
+      }
+
+      @Override
+      public boolean isShared() {
+         return shared_;
+      }
+
+      private void detach() {
+         if (shared_) {
+            Object snapshot = getSnapshotPixels();
+            super.setPixels(((float[]) getPixels()).clone());
+            setSnapshotPixels(snapshot);
+            shared_ = false;
+         }
+      }
+
+      @Override
+      public void setPixels(Object pixels) {
+         super.setPixels(pixels);
+         shared_ = true;
+      }
+
+      @Override
+      public void snapshot() {
+         detach();
+         super.snapshot();
+      }
+
+      @Override
+      public void reset() {
+         detach();
+         super.reset();
+      }
+
+      @Override
+      public void reset(ImageProcessor mask) {
+         detach();
+         super.reset(mask);
+      }
+
+      @Override
+      public void swapPixelArrays() {
+         detach();
+         super.swapPixelArrays();
+      }
+
+      @Override
+      public void setPixels(int channelNumber, FloatProcessor fp) {
+         detach();
+         super.setPixels(channelNumber, fp);
+      }
+
+      @Override
+      public void putPixelValue(int x, int y, double value) {
+         detach();
+         super.putPixelValue(x, y, value);
+      }
+
+      @Override
+      public void drawPixel(int x, int y) {
+         detach();
+         super.drawPixel(x, y);
+      }
+
+      @Override
+      public void copyBits(ImageProcessor ip, int xloc, int yloc, int mode) {
+         detach();
+         super.copyBits(ip, xloc, yloc, mode);
+      }
+
+      @Override
+      public void insert(ImageProcessor ip, int xloc, int yloc) {
+         detach();
+         super.insert(ip, xloc, yloc);
+      }
+
+      @Override
+      public void applyTable(int[] lut) {
+         detach();
+         super.applyTable(lut);
+      }
+
+      @Override
+      public void invert() {
+         detach();
+         super.invert();
+      }
+
+      @Override
+      public void add(int value) {
+         detach();
+         super.add(value);
+      }
+
+      @Override
+      public void add(double value) {
+         detach();
+         super.add(value);
+      }
+
+      @Override
+      public void set(double value) {
+         detach();
+         super.set(value);
+      }
+
+      @Override
+      public void multiply(double value) {
+         detach();
+         super.multiply(value);
+      }
+
+      @Override
+      public void and(int value) {
+         detach();
+         super.and(value);
+      }
+
+      @Override
+      public void or(int value) {
+         detach();
+         super.or(value);
+      }
+
+      @Override
+      public void xor(int value) {
+         detach();
+         super.xor(value);
+      }
+
+      @Override
+      public void gamma(double value) {
+         detach();
+         super.gamma(value);
+      }
+
+      @Override
+      public void log() {
+         detach();
+         super.log();
+      }
+
+      @Override
+      public void exp() {
+         detach();
+         super.exp();
+      }
+
+      @Override
+      public void sqr() {
+         detach();
+         super.sqr();
+      }
+
+      @Override
+      public void sqrt() {
+         detach();
+         super.sqrt();
+      }
+
+      @Override
+      public void abs() {
+         detach();
+         super.abs();
+      }
+
+      @Override
+      public void min(double value) {
+         detach();
+         super.min(value);
+      }
+
+      @Override
+      public void max(double value) {
+         detach();
+         super.max(value);
+      }
+
+      @Override
+      public void fill() {
+         detach();
+         super.fill();
+      }
+
+      @Override
+      public void fill(ImageProcessor mask) {
+         detach();
+         super.fill(mask);
+      }
+
+      @Override
+      public void convolve3x3(int[] kernel) {
+         detach();
+         super.convolve3x3(kernel);
+      }
+
+      @Override
+      public void convolve(float[] kernel, int kernelWidth, int kernelHeight) {
+         detach();
+         super.convolve(kernel, kernelWidth, kernelHeight);
+      }
+
+      @Override
+      public void filter(int type) {
+         detach();
+         super.filter(type);
+      }
+
+      @Override
+      public void medianFilter() {
+         detach();
+         super.medianFilter();
+      }
+
+      @Override
+      public void noise(double standardDeviation) {
+         detach();
+         super.noise(standardDeviation);
+      }
+
+      @Override
+      public void threshold(int level) {
+         detach();
+         super.threshold(level);
+      }
+
+      @Override
+      public void erode() {
+         detach();
+         super.erode();
+      }
+
+      @Override
+      public void dilate() {
+         detach();
+         super.dilate();
+      }
+
+      @Override
+      public void blurGaussian(double sigma) {
+         detach();
+         super.blurGaussian(sigma);
+      }
+
+      @Override
+      public void scale(double xScale, double yScale) {
+         detach();
+         super.scale(xScale, yScale);
+      }
+
+      @Override
+      public void rotate(double angle) {
+         detach();
+         super.rotate(angle);
+      }
+
+      @Override
+      public void translate(double xOffset, double yOffset) {
+         detach();
+         super.translate(xOffset, yOffset);
+      }
+
+      @Override
+      public void flipVertical() {
+         detach();
+         super.flipVertical();
+      }
+
+      @Override
+      public void flipHorizontal() {
+         detach();
+         super.flipHorizontal();
+      }
+
+      @Override
+      public void putRow(int x, int y, int[] data, int length) {
+         detach();
+         super.putRow(x, y, data, length);
+      }
+
+      @Override
+      public void putRow(int x, int y, float[] data, int length) {
+         detach();
+         super.putRow(x, y, data, length);
+      }
+
+      @Override
+      public void putColumn(int x, int y, int[] data, int length) {
+         detach();
+         super.putColumn(x, y, data, length);
+      }
+
+      @Override
+      public void setIntArray(int[][] pixels) {
+         detach();
+         super.setIntArray(pixels);
+      }
+
+      @Override
+      public void setFloatArray(float[][] pixels) {
+         detach();
+         super.setFloatArray(pixels);
+      }
+   }
+}
@@ -19,6 +19,8 @@ import ij.VirtualStack;
 import ij.process.ImageProcessor;
 import java.awt.Rectangle;
 import java.awt.image.ColorModel;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Image;
 import org.micromanager.data.internal.DefaultImageJConverter;
@@ -32,11 +34,27 @@ import org.micromanager.data.internal.DefaultImageJConverter;
  * (i.e. flatIndex into the ImageJ stack, ImageJ c,z,t coordinates) and
  * Micro-Manager Coords
  *
+ * <p>Grayscale images are handed to ImageJ without copying their pixels, in
+ * processors that copy the pixels only when they are changed (see
+ * CopyOnWriteProcessors).
+ *
  * @author Mark A. Tsuchida, based on older version by Chris Weisiger
  */
 public final class MMVirtualStack extends VirtualStack {
+   // number of images whose pixels are kept
+   private static final int CACHED_PLANES = 4;
+
    private final ImageJBridge parent_;
 
+   // pixels of the most recently used images, in order of use
+   private final Map<Image, Object> planes_ =
+         new LinkedHashMap<Image, Object>(2 * CACHED_PLANES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Image, Object> eldest) {
+               return size() > CACHED_PLANES;
+            }
+         };
+
    private boolean pretendToHaveOnlyOneImage_ = false;
 
    private Rectangle roi_; // Replace the role of ij.ImageStack's 'roi'
@@ -120,6 +138,7 @@ public final class MMVirtualStack extends VirtualStack {
 
    @Override
    public Object getPixels(int flatIndex) {
+      // callers may change the array, so this always returns a copy
       Coords coords = parent_.getMMCoordsForIJFlatIndex(flatIndex);
       Image image = parent_.getMMImage(coords);
       return image.getRawPixelsCopy();
@@ -134,7 +153,31 @@ public final class MMVirtualStack extends VirtualStack {
    public ImageProcessor getProcessor(int flatIndex) {
       Coords coords = parent_.getMMCoordsForIJFlatIndex(flatIndex);
       Image image = parent_.getMMImage(coords);
-      return DefaultImageJConverter.createProcessor(image, true);
+      if (image.getNumComponents() != 1) {
+         // RGB pixels are converted to a new array anyway
+         return DefaultImageJConverter.createProcessor(image, false);
+      }
+      ImageProcessor processor = CopyOnWriteProcessors.create(
+            image.getWidth(), image.getHeight(), getPlane(image));
+      if (processor == null) {
+         return DefaultImageJConverter.createProcessor(image, true);
+      }
+      return processor;
+   }
+
+   /**
+    * Pixels of a grayscale image.  Images do not always keep their pixels in
+    * an array, so the arrays of the most recently used images are kept.
+    */
+   private Object getPlane(Image image) {
+      synchronized (planes_) {
+         Object pixels = planes_.get(image);
+         if (pixels == null) {
+            pixels = image.getRawPixels();
+            planes_.put(image, pixels);
+         }
+         return pixels;
+      }
    }
 
    @Override
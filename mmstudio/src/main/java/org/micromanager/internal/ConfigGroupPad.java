@@ -36,6 +36,7 @@ import mmcorej.StrVector;
 import org.micromanager.Studio;
 import org.micromanager.internal.utils.DaytimeNighttime;
 import org.micromanager.internal.utils.NumberUtils;
+import org.micromanager.internal.utils.PropertySnapshot;
 import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.StateGroupCellRenderer;
 import org.micromanager.internal.utils.StateItem;
@@ -257,6 +258,7 @@ public final class ConfigGroupPad extends JScrollPane {
                   // `refreshStatus` and when updating the GUI rather than needing 
                   // repeatedly query the same properties in both operations.
                   studio_.core().updateSystemStateCache();
+                  PropertySnapshot.getInstance(studio_).refresh();
                   refreshStatus();
                   table_.repaint();
                   // This is a little superfluous, but it is nice that we
@@ -367,9 +369,13 @@ public final class ConfigGroupPad extends JScrollPane {
       private void refreshStatus() {
          try {
             ReportingUtils.logMessage("Refreshing config group table");
+            PropertySnapshot snapshot = PropertySnapshot.getInstance(studio_);
             for (StateItem item : groupList_) {
                if (item.singleProp) {
-                  item.config = core_.getProperty(item.device, item.name);
+                  item.config = snapshot.getValue(item.device, item.name);
+                  if (item.config == null) {
+                     item.config = core_.getProperty(item.device, item.name);
+                  }
                } else {
                   item.config = core_.getCurrentConfigFromCache(item.group);
                   // set descr to current situation so that Tooltips get updated
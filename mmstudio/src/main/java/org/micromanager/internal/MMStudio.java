@@ -99,6 +99,8 @@ import org.micromanager.internal.utils.HotKeys;
 import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.UIMonitor;
 import org.micromanager.internal.utils.WaitDialog;
+import org.micromanager.internal.utils.performance.MetricsRegistry;
+import org.micromanager.internal.utils.performance.gui.MetricsRegistryUI;
 import org.micromanager.profile.internal.UserProfileAdmin;
 import org.micromanager.profile.internal.gui.HardwareConfigurationManager;
 import org.micromanager.pyjavaz.ZMQServer;
@@ -284,6 +286,9 @@ public final class MMStudio implements Studio {
       snapLiveManager_ = new SnapLiveManager(this, core_);
       events().registerForEvents(snapLiveManager_);
 
+      // Only shows up when the system property org.micromanager.showmetrics is set
+      MetricsRegistryUI.create(MetricsRegistry.getInstance(), "Image Path Metrics");
+
       shutterManager_ = new DefaultShutterManager(studio_);
 
       // DisplayManager needs to be created before Pipelineframe and albumInstance
@@ -36,6 +36,7 @@ import org.micromanager.internal.pipelineinterface.PipelineFrame;
 import org.micromanager.internal.positionlist.MMPositionListDlg;
 import org.micromanager.internal.script.ScriptPanel;
 import org.micromanager.internal.utils.FileDialogs;
+import org.micromanager.internal.utils.PropertySnapshot;
 import org.micromanager.internal.utils.ReportingUtils;
 
 
@@ -278,6 +279,7 @@ public class MMUIManager {
          if (!fromCache) {
             studio_.core().updateSystemStateCache();
          }
+         PropertySnapshot.getInstance(studio_).refresh();
 
          // camera settings
          if (studio_.cache().getCameraLabel().length() > 0) {
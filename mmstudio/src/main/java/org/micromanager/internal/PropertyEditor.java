@@ -45,6 +45,7 @@ import org.micromanager.events.ShutdownCommencingEvent;
 import org.micromanager.internal.utils.DaytimeNighttime;
 import org.micromanager.internal.utils.PropertyItem;
 import org.micromanager.internal.utils.PropertyNameCellRenderer;
+import org.micromanager.internal.utils.PropertySnapshot;
 import org.micromanager.internal.utils.PropertyTableData;
 import org.micromanager.internal.utils.PropertyValueCellEditor;
 import org.micromanager.internal.utils.PropertyValueCellRenderer;
@@ -262,12 +263,18 @@ public final class PropertyEditor extends JFrame {
                // mid-acquisition.
                studio_.live().setSuspended(true);
             }
+            PropertySnapshot snapshot = PropertySnapshot.getInstance(studio_);
+            if (!fromCache) {
+               // read all devices in one call rather than one property at a time
+               core_.updateSystemStateCache();
+               snapshot.refresh();
+            }
             for (int i = 0; i < devices.size(); i++) {
                if (data_.showDevice(flags, devices.get(i))) {
                   StrVector properties = core_.getDevicePropertyNames(devices.get(i));
                   for (int j = 0; j < properties.size(); j++) {
                      PropertyItem item = new PropertyItem();
-                     item.readFromCore(core_, devices.get(i), properties.get(j), fromCache);
+                     item.readFromCore(core_, devices.get(i), properties.get(j), snapshot);
 
                      if ((!item.readOnly || showReadOnly_) && !item.preInit) {
                         propList_.add(item);
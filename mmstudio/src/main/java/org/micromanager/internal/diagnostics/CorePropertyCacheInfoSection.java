@@ -39,6 +39,12 @@ class CorePropertyCacheInfoSection implements SystemInfo.SystemInfoSection {
                   .append(i).append(": ").append(e.getMessage()).append('\n');
          }
       }
+      org.micromanager.internal.utils.PropertySnapshot snapshot =
+            org.micromanager.internal.utils.PropertySnapshot.getInstance(
+                  org.micromanager.internal.MMStudio.getInstance());
+      sb.append("Property snapshot: ").append(snapshot.getHitCount()).append(" hits, ")
+            .append(snapshot.getMissCount()).append(" misses, ")
+            .append(snapshot.getRefreshCount()).append(" refreshes\n");
       return sb.toString();
    }
 }
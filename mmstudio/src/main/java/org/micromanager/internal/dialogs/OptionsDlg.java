@@ -39,6 +39,7 @@ import mmcorej.CMMCore;
 import org.micromanager.ApplicationSkin.SkinMode;
 import org.micromanager.Studio;
 import org.micromanager.UserProfile;
+import org.micromanager.data.internal.StorageSinglePlaneTiffSeries;
 import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
 import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.MainFrame;
@@ -63,6 +64,7 @@ public final class OptionsDlg extends JDialog {
    private final JTextField startupScriptFile_;
    private final JTextField bufSizeField_;
    private final JTextField logDeleteDaysField_;
+   private final JTextField fsyncIntervalField_;
    private final JComboBox<String> comboDisplayBackground_;
 
    private final CMMCore core_;
@@ -218,6 +220,11 @@ public final class OptionsDlg extends JDialog {
          mmStudio_.app().skin().setSkin(SkinMode.fromString(background));
       });
 
+      fsyncIntervalField_ = new JTextField(
+            Integer.toString(StorageSinglePlaneTiffSeries.getFsyncInterval()), 4);
+      fsyncIntervalField_.setToolTipText("Force image files to disk after this many planes. "
+            + "0 leaves this to the operating system, which is fastest.");
+
       startupScriptFile_ = new JTextField(ScriptPanel.getStartupScript(mmStudio_));
 
       final JCheckBox closeOnExitCheckBox = new JCheckBox();
@@ -301,6 +308,10 @@ public final class OptionsDlg extends JDialog {
 
       super.add(metadataFileWithMultipageTiffCheckBox, "wrap");
       super.add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      super.add(new JLabel("Sync Separate Image Files to Disk Every:"),
+            "split 3, gapright push");
+      super.add(fsyncIntervalField_, "gapright related");
+      super.add(new JLabel("planes"), "wrap");
 
       super.add(new JSeparator(), "wrap");
 
@@ -347,11 +358,14 @@ public final class OptionsDlg extends JDialog {
    private void closeRequested() {
       int seqBufSize;
       int deleteLogDays;
+      int fsyncInterval;
       try {
          seqBufSize =
                NumberUtils.displayStringToInt(bufSizeField_.getText());
          deleteLogDays =
                NumberUtils.displayStringToInt(logDeleteDaysField_.getText());
+         fsyncInterval =
+               NumberUtils.displayStringToInt(fsyncIntervalField_.getText());
       } catch (ParseException ex) {
          ReportingUtils.showError(ex);
          return;
@@ -359,6 +373,7 @@ public final class OptionsDlg extends JDialog {
 
       mmStudio_.settings().setCircularBufferSize(seqBufSize);
       mmStudio_.settings().setCoreLogLifetimeDays(deleteLogDays);
+      StorageSinglePlaneTiffSeries.setFsyncInterval(Math.max(0, fsyncInterval));
 
       ScriptPanel.setStartupScript(mmStudio_, startupScriptFile_.getText());
       mmStudio_.app().makeActive();
@@ -83,23 +83,8 @@ public class PropertyItem {
 
    public void readFromCore(CMMCore core, String deviceName, String propertyName,
                             boolean cached) {
-      device = deviceName;
-      name = propertyName;
       try {
-         readOnly = core.isPropertyReadOnly(deviceName, propertyName);
-         preInit = core.isPropertyPreInit(deviceName, propertyName);
-         hasRange = core.hasPropertyLimits(deviceName, propertyName);
-         lowerLimit = core.getPropertyLowerLimit(deviceName, propertyName);
-         upperLimit = core.getPropertyUpperLimit(deviceName, propertyName);
-         type = core.getPropertyType(deviceName, propertyName);
-         StrVector values = core.getAllowedPropertyValues(deviceName, propertyName);
-         allowed = new String[(int) values.size()];
-         for (int k = 0; k < values.size(); k++) {
-            allowed[k] = values.get(k);
-         }
-
-         sort();
-
+         readDescriptionFromCore(core, deviceName, propertyName);
          String coreVal;
          if (cached) {
             coreVal = core.getPropertyFromCache(deviceName, propertyName);
@@ -112,6 +97,44 @@ public class PropertyItem {
       }
    }
 
+   /**
+    * Like {@link #readFromCore(CMMCore, String, String, boolean)}, but takes
+    * the value from the snapshot, and only asks the device when the snapshot
+    * does not have it.
+    */
+   public void readFromCore(CMMCore core, String deviceName, String propertyName,
+                            PropertySnapshot snapshot) {
+      try {
+         readDescriptionFromCore(core, deviceName, propertyName);
+         String coreVal = snapshot.getValue(deviceName, propertyName);
+         if (coreVal == null) {
+            coreVal = core.getProperty(deviceName, propertyName);
+         }
+         setValueFromCoreString(coreVal);
+      } catch (Exception e) {
+         ReportingUtils.logError(e);
+      }
+   }
+
+   private void readDescriptionFromCore(CMMCore core, String deviceName,
+                                        String propertyName) throws Exception {
+      device = deviceName;
+      name = propertyName;
+      readOnly = core.isPropertyReadOnly(deviceName, propertyName);
+      preInit = core.isPropertyPreInit(deviceName, propertyName);
+      hasRange = core.hasPropertyLimits(deviceName, propertyName);
+      lowerLimit = core.getPropertyLowerLimit(deviceName, propertyName);
+      upperLimit = core.getPropertyUpperLimit(deviceName, propertyName);
+      type = core.getPropertyType(deviceName, propertyName);
+      StrVector values = core.getAllowedPropertyValues(deviceName, propertyName);
+      allowed = new String[(int) values.size()];
+      for (int k = 0; k < values.size(); k++) {
+         allowed[k] = values.get(k);
+      }
+
+      sort();
+   }
+
    public void sort() {
       try {
          if (allowed.length > 0) {
@@ -0,0 +1,263 @@
+package org.micromanager.internal.utils;
+
+import com.google.common.eventbus.Subscribe;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import mmcorej.CMMCore;
+import mmcorej.Configuration;
+import mmcorej.PropertySetting;
+import org.micromanager.Studio;
+import org.micromanager.events.PropertiesChangedEvent;
+import org.micromanager.events.PropertyChangedEvent;
+import org.micromanager.events.ShutdownCommencingEvent;
+import org.micromanager.events.SystemConfigurationLoadedEvent;
+
+/**
+ * Copy of the property values in the core's system state cache, indexed by
+ * device and property, for user interfaces that show many properties.
+ *
+ * <p>The copy is taken in one call to {@code getSystemStateCache} and then
+ * kept up to date from property change events, so that reading a value never
+ * talks to the core or to the hardware.  Values that are not in the copy are
+ * looked up in the core's cache once and then kept.
+ *
+ * <p>Read-only properties (temperatures, measured positions and the like)
+ * can change without the core announcing it.  Their values are always read
+ * from the device.  All values are replaced when the GUI is refreshed.
+ *
+ * <p>There is one snapshot per application, see {@link #getInstance(Studio)}.
+ * It stops listening for events when the application shuts down.
+ */
+public final class PropertySnapshot {
+   private static PropertySnapshot instance_;
+   private static Studio studio_;
+
+   /**
+    * Where the values come from.  Separate from CMMCore so that the
+    * snapshot can be tested without hardware.
+    */
+   interface Source {
+      /**
+       * @return all values in the core's system state cache, by device label
+       *     and property name
+       */
+      Map<String, Map<String, String>> getCachedValues();
+
+      String getCachedValue(String device, String property) throws Exception;
+
+      String getDeviceValue(String device, String property) throws Exception;
+
+      boolean isReadOnly(String device, String property) throws Exception;
+   }
+
+   private static final class CoreSource implements Source {
+      private final CMMCore core_;
+
+      CoreSource(CMMCore core) {
+         core_ = core;
+      }
+
+      @Override
+      public Map<String, Map<String, String>> getCachedValues() {
+         Map<String, Map<String, String>> values = new HashMap<>();
+         Configuration cache = core_.getSystemStateCache();
+         long count = cache.size();
+         for (long i = 0; i < count; i++) {
+            try {
+               PropertySetting setting = cache.getSetting(i);
+               device(values, setting.getDeviceLabel()).put(
+                     setting.getPropertyName(), setting.getPropertyValue());
+            } catch (Exception e) {
+               ReportingUtils.logError(e, "Failed to read item " + i + " of the property cache");
+            }
+         }
+         return values;
+      }
+
+      @Override
+      public String getCachedValue(String device, String property) throws Exception {
+         return core_.getPropertyFromCache(device, property);
+      }
+
+      @Override
+      public String getDeviceValue(String device, String property) throws Exception {
+         return core_.getProperty(device, property);
+      }
+
+      @Override
+      public boolean isReadOnly(String device, String property) throws Exception {
+         return core_.isPropertyReadOnly(device, property);
+      }
+   }
+
+   private final Source source_;
+   // device label -> property name -> value.  Replaced as a whole on refresh,
+   // so that readers never wait for a refresh to finish.
+   private volatile Map<String, Map<String, String>> values_ = new ConcurrentHashMap<>();
+   // device label -> property name -> whether the property is read-only
+   private volatile Map<String, Map<String, Boolean>> readOnly_ = new ConcurrentHashMap<>();
+   private final AtomicLong hits_ = new AtomicLong(0);
+   private final AtomicLong misses_ = new AtomicLong(0);
+   private final AtomicLong refreshes_ = new AtomicLong(0);
+
+   /**
+    * Returns the snapshot of the application, creating it on first use.
+    *
+    * @param studio the Studio instance
+    * @return shared snapshot of the device property values
+    */
+   public static synchronized PropertySnapshot getInstance(Studio studio) {
+      if (instance_ == null) {
+         instance_ = new PropertySnapshot(new CoreSource(studio.core()));
+         instance_.refresh();
+         studio_ = studio;
+         studio.events().registerForEvents(instance_);
+      }
+      return instance_;
+   }
+
+   private static synchronized void release(PropertySnapshot snapshot) {
+      if (instance_ == snapshot) {
+         studio_.events().unregisterForEvents(instance_);
+         instance_ = null;
+         studio_ = null;
+      }
+   }
+
+   PropertySnapshot(Source source) {
+      source_ = source;
+   }
+
+   /**
+    * Replaces all values with those in the core's system state cache.  This
+    * does not read from the hardware; call {@code updateSystemStateCache} on
+    * the core first for that.
+    */
+   public synchronized void refresh() {
+      Map<String, Map<String, String>> values = new ConcurrentHashMap<>();
+      for (Map.Entry<String, Map<String, String>> entry
+            : source_.getCachedValues().entrySet()) {
+         values.put(entry.getKey(), new ConcurrentHashMap<>(entry.getValue()));
+      }
+      values_ = values;
+      // devices may have been loaded or unloaded
+      readOnly_ = new ConcurrentHashMap<>();
+      refreshes_.incrementAndGet();
+   }
+
+   private static <T> Map<String, T> device(Map<String, Map<String, T>> values,
+         String device) {
+      return values.computeIfAbsent(device, d -> new ConcurrentHashMap<>());
+   }
+
+   private boolean isReadOnly(String device, String property) {
+      Map<String, Boolean> properties = device(readOnly_, device);
+      Boolean readOnly = properties.get(property);
+      if (readOnly == null) {
+         try {
+            readOnly = source_.isReadOnly(device, property);
+         } catch (Exception e) {
+            readOnly = false;
+         }
+         properties.put(property, readOnly);
+      }
+      return readOnly;
+   }
+
+   /**
+    * Returns the value of a property.  Values of read-only properties are
+    * read from the device.
+    *
+    * @param device   device label
+    * @param property property name
+    * @return last known value, or null if the core does not know the property
+    */
+   public String getValue(String device, String property) {
+      if (device == null || property == null) {
+         return null;
+      }
+      if (isReadOnly(device, property)) {
+         misses_.incrementAndGet();
+         String value;
+         try {
+            value = source_.getDeviceValue(device, property);
+         } catch (Exception e) {
+            return null;
+         }
+         putValue(device, property, value);
+         return value;
+      }
+      Map<String, String> properties = values_.get(device);
+      String value = properties == null ? null : properties.get(property);
+      if (value != null) {
+         hits_.incrementAndGet();
+         return value;
+      }
+      misses_.incrementAndGet();
+      try {
+         value = source_.getCachedValue(device, property);
+      } catch (Exception e) {
+         return null;
+      }
+      putValue(device, property, value);
+      return value;
+   }
+
+   /**
+    * Records a new value, for instance right after setting it.
+    *
+    * @param device   device label
+    * @param property property name
+    * @param value    new value
+    */
+   public synchronized void putValue(String device, String property, String value) {
+      if (device != null && property != null && value != null) {
+         device(values_, device).put(property, value);
+      }
+   }
+
+   /**
+    * @return number of reads answered from the snapshot
+    */
+   public long getHitCount() {
+      return hits_.get();
+   }
+
+   /**
+    * @return number of reads that had to ask the core or the device
+    */
+   public long getMissCount() {
+      return misses_.get();
+   }
+
+   /**
+    * @return number of times all values were replaced
+    */
+   public long getRefreshCount() {
+      return refreshes_.get();
+   }
+
+   @Subscribe
+   public void onPropertyChanged(PropertyChangedEvent event) {
+      putValue(event.getDevice(), event.getProperty(), event.getValue());
+   }
+
+   @Subscribe
+   public void onPropertiesChanged(PropertiesChangedEvent event) {
+      refresh();
+   }
+
+   @Subscribe
+   public void onSystemConfigurationLoaded(SystemConfigurationLoadedEvent event) {
+      refresh();
+   }
+
+   @Subscribe
+   public void onShutdownCommencing(ShutdownCommencingEvent event) {
+      if (!event.isCanceled()) {
+         release(this);
+      }
+   }
+}
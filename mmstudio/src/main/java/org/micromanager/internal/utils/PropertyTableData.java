@@ -339,6 +339,13 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
             cfg = core_.getConfigGroupState(groupName);
          }
 
+         PropertySnapshot snapshot = PropertySnapshot.getInstance(studio_);
+         if (!fromCache) {
+            // read all devices in one call rather than one property at a time
+            core_.updateSystemStateCache();
+            snapshot.refresh();
+         }
+
          setUpdating(true);
 
          for (int i = 0; i < devices.size(); i++) {
@@ -347,7 +354,7 @@ public class PropertyTableData extends AbstractTableModel implements MMPropertyT
                for (int j = 0; j < properties.size(); j++) {
                   PropertyItem item = new PropertyItem();
                   if (!groupOnly_ || cfg.isPropertyIncluded(devices.get(i), properties.get(j))) {
-                     item.readFromCore(core_, devices.get(i), properties.get(j), fromCache);
+                     item.readFromCore(core_, devices.get(i), properties.get(j), snapshot);
                      if ((!item.readOnly || showReadOnly_) && !item.preInit) {
                         item.confInclude = cfg.isPropertyIncluded(item.device, item.name);
                         for (PropertyItem usedItem : usedItems) {
@@ -0,0 +1,185 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio/utils
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2026
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal.utils.performance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, in the style of
+ * HdrHistogram.
+ *
+ * <p>Values below 128 ns are counted exactly. Above that, every power of two
+ * is divided into 64 buckets of equal width, so that a reported value
+ * (the middle of its bucket) is within 1/128 of the recorded value, over the
+ * full range of long. Recording is an atomic increment and does not
+ * allocate, so it can be called from any thread on the image path.</p>
+ */
+public final class LatencyHistogram {
+   // Buckets per power of two; the relative error is 1 / (2 * SUB_BUCKETS)
+   private static final int SUB_BUCKET_BITS = 6;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+   private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+   static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts_ = new AtomicLongArray(BUCKET_COUNT);
+   private final LongAdder sum_ = new LongAdder();
+   private final AtomicLong max_ = new AtomicLong();
+
+   static int bucketOf(long value) {
+      if (value < LINEAR_LIMIT) {
+         return (int) Math.max(0, value);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+      return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + sub - SUB_BUCKETS;
+   }
+
+   static long lowestValueOf(int bucket) {
+      if (bucket < LINEAR_LIMIT) {
+         return bucket;
+      }
+      int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+      long sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+      return sub << (exponent - SUB_BUCKET_BITS);
+   }
+
+   static long middleValueOf(int bucket) {
+      if (bucket < LINEAR_LIMIT) {
+         return bucket;
+      }
+      int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+      return lowestValueOf(bucket) + (1L << (exponent - SUB_BUCKET_BITS - 1));
+   }
+
+   /**
+    * Records a duration.
+    *
+    * @param nanos duration in ns; negative values are counted as 0
+    */
+   public void record(long nanos) {
+      nanos = Math.max(0, nanos);
+      counts_.incrementAndGet(bucketOf(nanos));
+      sum_.add(nanos);
+      long max = max_.get();
+      while (nanos > max && !max_.compareAndSet(max, nanos)) {
+         max = max_.get();
+      }
+   }
+
+   /**
+    * Records the time elapsed since startNanos.
+    *
+    * @param startNanos value of System.nanoTime() at the start
+    */
+   public void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+   }
+
+   /**
+    * @return the values recorded so far
+    */
+   public Snapshot snapshot() {
+      long[] counts = new long[BUCKET_COUNT];
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         counts[i] = counts_.get(i);
+      }
+      return new Snapshot(counts, sum_.sum(), max_.get());
+   }
+
+   /**
+    * Returns the values recorded since the last call, and starts over.
+    *
+    * <p>Values recorded concurrently are counted in either this or the next
+    * interval; only the sum and the maximum may be off by those values.</p>
+    *
+    * @return the values recorded since the previous call
+    */
+   public Snapshot drain() {
+      long[] counts = new long[BUCKET_COUNT];
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         if (counts_.get(i) != 0) {
+            counts[i] = counts_.getAndSet(i, 0);
+         }
+      }
+      return new Snapshot(counts, sum_.sumThenReset(), max_.getAndSet(0));
+   }
+
+   /**
+    * Immutable copy of the contents of a histogram.
+    */
+   public static final class Snapshot {
+      private final long[] counts_;
+      private final long count_;
+      private final long sum_;
+      private final long max_;
+
+      private Snapshot(long[] counts, long sum, long max) {
+         counts_ = counts;
+         long count = 0;
+         for (long c : counts) {
+            count += c;
+         }
+         count_ = count;
+         sum_ = sum;
+         max_ = max;
+      }
+
+      public long getCount() {
+         return count_;
+      }
+
+      /**
+       * @return mean in ns, or 0 if no values were recorded
+       */
+      public double getMean() {
+         return count_ == 0 ? 0.0 : (double) sum_ / count_;
+      }
+
+      /**
+       * @return largest value in ns
+       */
+      public long getMax() {
+         return max_;
+      }
+
+      /**
+       * Returns the value below which the given fraction of the values lie.
+       *
+       * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile
+       * @return the value in ns, or 0 if no values were recorded
+       */
+      public long getValueAtQuantile(double quantile) {
+         if (count_ == 0) {
+            return 0;
+         }
+         long rank = Math.max(1, (long) Math.ceil(quantile * count_));
+         long seen = 0;
+         for (int i = 0; i < counts_.length; i++) {
+            seen += counts_[i];
+            if (seen >= rank) {
+               return Math.min(middleValueOf(i), max_);
+            }
+         }
+         return max_;
+      }
+   }
+}
@@ -0,0 +1,320 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio/utils
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2026
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal.utils.performance;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+
+/**
+ * Latency histograms and queue depth gauges along the path that images take
+ * from the circular buffer to disk, sampled as a time series.
+ *
+ * <p>Code on the image path records durations into named
+ * {@link LatencyHistogram}s, which is cheap enough to be done always, and
+ * registers gauges (e.g. the length of a queue) while they exist. While a
+ * listener is attached or a trace is being recorded, the histograms are
+ * drained and the gauges read every sampling interval. Traces can be
+ * exported as CSV or JSON.</p>
+ *
+ * <p>Live display is enabled by setting the system property
+ * "org.micromanager.showmetrics" (see
+ * {@link org.micromanager.internal.utils.performance.gui.MetricsRegistryUI}).</p>
+ */
+public final class MetricsRegistry {
+   /**
+    * Receives every sample, on the sampling thread.
+    */
+   public interface Listener {
+      void metricsSampled(Sample sample);
+   }
+
+   /**
+    * Latencies recorded during one sampling interval, and the values of the
+    * gauges at its end.
+    */
+   public static final class Sample {
+      private final long timeMs_;
+      private final SortedMap<String, LatencyHistogram.Snapshot> latencies_;
+      private final SortedMap<String, Long> gauges_;
+
+      private Sample(long timeMs, SortedMap<String, LatencyHistogram.Snapshot> latencies,
+            SortedMap<String, Long> gauges) {
+         timeMs_ = timeMs;
+         latencies_ = Collections.unmodifiableSortedMap(latencies);
+         gauges_ = Collections.unmodifiableSortedMap(gauges);
+      }
+
+      /**
+       * @return time of the end of the interval, as System.currentTimeMillis()
+       */
+      public long getTimeMs() {
+         return timeMs_;
+      }
+
+      public SortedMap<String, LatencyHistogram.Snapshot> getLatencies() {
+         return latencies_;
+      }
+
+      public SortedMap<String, Long> getGauges() {
+         return gauges_;
+      }
+   }
+
+   private static final long SAMPLING_INTERVAL_MS = 250;
+   // One hour at the default interval
+   private static final int MAX_TRACE_SAMPLES = 14400;
+
+   private static final MetricsRegistry INSTANCE =
+         new MetricsRegistry(SAMPLING_INTERVAL_MS);
+
+   private final long intervalMs_;
+   private final ConcurrentHashMap<String, LatencyHistogram> histograms_ =
+         new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, LongSupplier> gauges_ =
+         new ConcurrentHashMap<>();
+   private final List<Listener> listeners_ = new CopyOnWriteArrayList<>();
+
+   // Guarded by this
+   private ScheduledExecutorService sampler_;
+   private ArrayDeque<Sample> trace_;
+
+   public static MetricsRegistry getInstance() {
+      return INSTANCE;
+   }
+
+   static MetricsRegistry createWithIntervalMs(long intervalMs) {
+      return new MetricsRegistry(intervalMs);
+   }
+
+   private MetricsRegistry(long intervalMs) {
+      intervalMs_ = intervalMs;
+   }
+
+   /**
+    * Returns the histogram of the given name, creating it if needed.
+    *
+    * <p>Callers on the image path should look the histogram up once and keep
+    * it.</p>
+    *
+    * @param name name of the metric, e.g. "datastore.putImage"
+    * @return the histogram
+    */
+   public LatencyHistogram histogram(String name) {
+      return histograms_.computeIfAbsent(name, k -> new LatencyHistogram());
+   }
+
+   /**
+    * Starts reading a gauge every sample. Replaces a gauge of the same name.
+    *
+    * @param name  name of the metric, e.g. "pipeline.queue"
+    * @param gauge returns the current value; called on the sampling thread
+    */
+   public void registerGauge(String name, LongSupplier gauge) {
+      gauges_.put(name, gauge);
+   }
+
+   /**
+    * Stops reading a gauge, if it has not been replaced by another one.
+    *
+    * @param name  name the gauge was registered under
+    * @param gauge the gauge that was registered
+    */
+   public void unregisterGauge(String name, LongSupplier gauge) {
+      gauges_.remove(name, gauge);
+   }
+
+   /**
+    * Drains all histograms and reads all gauges. Normally called by the
+    * sampling thread.
+    *
+    * @return the sample
+    */
+   public Sample sample() {
+      SortedMap<String, LatencyHistogram.Snapshot> latencies = new TreeMap<>();
+      for (Map.Entry<String, LatencyHistogram> e : histograms_.entrySet()) {
+         latencies.put(e.getKey(), e.getValue().drain());
+      }
+      SortedMap<String, Long> gauges = new TreeMap<>();
+      for (Map.Entry<String, LongSupplier> e : gauges_.entrySet()) {
+         try {
+            gauges.put(e.getKey(), e.getValue().getAsLong());
+         } catch (RuntimeException ex) {
+            ReportingUtils.logError(ex, "Failed to read gauge " + e.getKey());
+         }
+      }
+      return new Sample(System.currentTimeMillis(), latencies, gauges);
+   }
+
+   public void addListener(Listener listener) {
+      listeners_.add(listener);
+      updateSampler();
+   }
+
+   public void removeListener(Listener listener) {
+      listeners_.remove(listener);
+      updateSampler();
+   }
+
+   /**
+    * Starts recording samples, discarding any previous trace. The trace
+    * keeps the most recent hour of samples.
+    */
+   public synchronized void startTrace() {
+      trace_ = new ArrayDeque<>();
+      updateSampler();
+   }
+
+   public synchronized boolean isTracing() {
+      return trace_ != null;
+   }
+
+   /**
+    * Stops recording samples.
+    *
+    * @return the samples recorded since startTrace(), oldest first
+    */
+   public synchronized List<Sample> stopTrace() {
+      List<Sample> trace = trace_ == null
+            ? new ArrayList<>() : new ArrayList<>(trace_);
+      trace_ = null;
+      updateSampler();
+      return trace;
+   }
+
+   private synchronized void updateSampler() {
+      boolean needed = trace_ != null || !listeners_.isEmpty();
+      if (needed && sampler_ == null) {
+         // Discard what was recorded while nobody was looking
+         sample();
+         sampler_ = Executors.newSingleThreadScheduledExecutor(
+               ThreadFactoryFactory.createThreadFactory("MetricsRegistry"));
+         sampler_.scheduleAtFixedRate(this::sampleAndNotify,
+               intervalMs_, intervalMs_, TimeUnit.MILLISECONDS);
+      } else if (!needed && sampler_ != null) {
+         sampler_.shutdown();
+         sampler_ = null;
+      }
+   }
+
+   private void sampleAndNotify() {
+      Sample sample = sample();
+      synchronized (this) {
+         if (trace_ != null) {
+            if (trace_.size() == MAX_TRACE_SAMPLES) {
+               trace_.removeFirst();
+            }
+            trace_.addLast(sample);
+         }
+      }
+      for (Listener listener : listeners_) {
+         try {
+            listener.metricsSampled(sample);
+         } catch (RuntimeException e) {
+            ReportingUtils.logError(e, "Metrics listener failed");
+         }
+      }
+   }
+
+   private static String formatUs(double nanos) {
+      return String.format(Locale.US, "%.1f", nanos / 1000.0);
+   }
+
+   /**
+    * Writes samples as CSV, one row per metric per sample. Latencies are in
+    * microseconds; gauges only have a value.
+    *
+    * @param samples samples, e.g. from stopTrace()
+    * @param writer  destination; not closed
+    * @throws IOException if writing fails
+    */
+   public static void writeCsv(List<Sample> samples, Writer writer) throws IOException {
+      writer.write("time_ms,metric,count,mean_us,p50_us,p90_us,p99_us,max_us,value\n");
+      for (Sample sample : samples) {
+         for (Map.Entry<String, LatencyHistogram.Snapshot> e : sample.getLatencies().entrySet()) {
+            LatencyHistogram.Snapshot s = e.getValue();
+            writer.write(sample.getTimeMs() + "," + e.getKey() + "," + s.getCount()
+                  + "," + formatUs(s.getMean())
+                  + "," + formatUs(s.getValueAtQuantile(0.5))
+                  + "," + formatUs(s.getValueAtQuantile(0.9))
+                  + "," + formatUs(s.getValueAtQuantile(0.99))
+                  + "," + formatUs(s.getMax()) + ",\n");
+         }
+         for (Map.Entry<String, Long> e : sample.getGauges().entrySet()) {
+            writer.write(sample.getTimeMs() + "," + e.getKey() + ",,,,,,,"
+                  + e.getValue() + "\n");
+         }
+      }
+      writer.flush();
+   }
+
+   /**
+    * Writes samples as a JSON array of objects with the fields "timeMs",
+    * "latencies" (in microseconds) and "gauges".
+    *
+    * @param samples samples, e.g. from stopTrace()
+    * @param writer  destination; not closed
+    * @throws IOException if writing fails
+    */
+   public static void writeJson(List<Sample> samples, Writer writer) throws IOException {
+      JsonWriter json = new JsonWriter(writer);
+      json.beginArray();
+      for (Sample sample : samples) {
+         json.beginObject();
+         json.name("timeMs").value(sample.getTimeMs());
+         json.name("latencies").beginObject();
+         for (Map.Entry<String, LatencyHistogram.Snapshot> e : sample.getLatencies().entrySet()) {
+            LatencyHistogram.Snapshot s = e.getValue();
+            json.name(e.getKey()).beginObject();
+            json.name("count").value(s.getCount());
+            json.name("meanUs").value(s.getMean() / 1000.0);
+            json.name("p50Us").value(s.getValueAtQuantile(0.5) / 1000.0);
+            json.name("p90Us").value(s.getValueAtQuantile(0.9) / 1000.0);
+            json.name("p99Us").value(s.getValueAtQuantile(0.99) / 1000.0);
+            json.name("maxUs").value(s.getMax() / 1000.0);
+            json.endObject();
+         }
+         json.endObject();
+         json.name("gauges").beginObject();
+         for (Map.Entry<String, Long> e : sample.getGauges().entrySet()) {
+            json.name(e.getKey()).value(e.getValue());
+         }
+         json.endObject();
+         json.endObject();
+      }
+      json.endArray();
+      json.flush();
+   }
+}
@@ -0,0 +1,145 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio/utils
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2026
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal.utils.performance.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.swing.table.AbstractTableModel;
+import org.micromanager.internal.utils.MustCallOnEDT;
+import org.micromanager.internal.utils.performance.LatencyHistogram;
+import org.micromanager.internal.utils.performance.MetricsRegistry;
+
+final class MetricsRegistryTableModel extends AbstractTableModel {
+   private final List<String> names_ = new ArrayList<>();
+   private final List<LatencyHistogram.Snapshot> latencies_ = new ArrayList<>();
+   private final List<Long> values_ = new ArrayList<>();
+
+   private enum Column {
+      COL_METRIC("Metric"),
+      COL_COUNT("Count"),
+      COL_MEAN("Mean (us)"),
+      COL_MEDIAN("Median (us)"),
+      COL_P99("99% (us)"),
+      COL_MAX("Max (us)"),
+      COL_VALUE("Value");
+
+      private final String name_;
+
+      Column(String name) {
+         name_ = name;
+      }
+
+      static Column getByPosition(int c) {
+         return values()[c];
+      }
+
+      static int getCount() {
+         return values().length;
+      }
+
+      String getName() {
+         return name_;
+      }
+
+      Class<?> getColumnClass() {
+         return String.class;
+      }
+   }
+
+   @MustCallOnEDT
+   void setData(MetricsRegistry.Sample sample) {
+      names_.clear();
+      latencies_.clear();
+      values_.clear();
+      for (Map.Entry<String, LatencyHistogram.Snapshot> e : sample.getLatencies().entrySet()) {
+         names_.add(e.getKey());
+         latencies_.add(e.getValue());
+         values_.add(null);
+      }
+      for (Map.Entry<String, Long> e : sample.getGauges().entrySet()) {
+         names_.add(e.getKey());
+         latencies_.add(null);
+         values_.add(e.getValue());
+      }
+      fireTableDataChanged();
+   }
+
+   @Override
+   public int getRowCount() {
+      return names_.size();
+   }
+
+   @Override
+   public int getColumnCount() {
+      return Column.getCount();
+   }
+
+   @Override
+   public String getColumnName(int columnIndex) {
+      return Column.getByPosition(columnIndex).getName();
+   }
+
+   @Override
+   public Class<?> getColumnClass(int columnIndex) {
+      return Column.getByPosition(columnIndex).getColumnClass();
+   }
+
+   @Override
+   public boolean isCellEditable(int rowIndex, int columnIndex) {
+      return false;
+   }
+
+   private static String formatUs(double nanos) {
+      return String.format("%.3g", nanos / 1000.0);
+   }
+
+   @Override
+   public Object getValueAt(int rowIndex, int columnIndex) {
+      Column column = Column.getByPosition(columnIndex);
+      if (column == Column.COL_METRIC) {
+         return names_.get(rowIndex);
+      }
+      LatencyHistogram.Snapshot latency = latencies_.get(rowIndex);
+      if (latency == null) {
+         return column == Column.COL_VALUE ? Long.toString(values_.get(rowIndex)) : "";
+      }
+      switch (column) {
+         case COL_COUNT:
+            return Long.toString(latency.getCount());
+         case COL_MEAN:
+            return formatUs(latency.getMean());
+         case COL_MEDIAN:
+            return formatUs(latency.getValueAtQuantile(0.5));
+         case COL_P99:
+            return formatUs(latency.getValueAtQuantile(0.99));
+         case COL_MAX:
+            return formatUs(latency.getMax());
+         case COL_VALUE:
+            return "";
+         default:
+            throw new IndexOutOfBoundsException();
+      }
+   }
+
+   @Override
+   public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+      throw new UnsupportedOperationException("Read only");
+   }
+}
@@ -0,0 +1,129 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio/utils
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2026
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal.utils.performance.gui;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.MetricsRegistry;
+
+/**
+ * Displays the latest sample of a metrics registry in a frame, and records
+ * traces to CSV or JSON files.
+ */
+public class MetricsRegistryUI {
+   private final MetricsRegistry registry_;
+   private MetricsRegistryTableModel model_;
+
+   private static final String SYSPROP = "org.micromanager.showmetrics";
+
+   public static MetricsRegistryUI create(MetricsRegistry registry, String title) {
+      return new MetricsRegistryUI(registry, title);
+   }
+
+   private MetricsRegistryUI(MetricsRegistry registry, final String title) {
+      registry_ = registry;
+      if (!Boolean.getBoolean(SYSPROP)) {
+         return;
+      }
+
+      SwingUtilities.invokeLater(() -> showUI(title));
+   }
+
+   private void showUI(String title) {
+      model_ = new MetricsRegistryTableModel();
+      JTable table = new JTable(model_);
+      JScrollPane scrollPane = new JScrollPane(table);
+      final JFrame frame = new JFrame();
+
+      table.setFillsViewportHeight(true);
+
+      final JButton traceButton = new JButton("Start Trace");
+      traceButton.addActionListener(e -> {
+         if (!registry_.isTracing()) {
+            registry_.startTrace();
+            traceButton.setText("Stop Trace and Save...");
+         } else {
+            traceButton.setText("Start Trace");
+            saveTrace(frame, registry_.stopTrace());
+         }
+      });
+      JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+      buttons.add(traceButton);
+
+      frame.setTitle(title);
+      frame.add(scrollPane, BorderLayout.CENTER);
+      frame.add(buttons, BorderLayout.SOUTH);
+      frame.pack();
+
+      final MetricsRegistry.Listener listener =
+            sample -> SwingUtilities.invokeLater(() -> model_.setData(sample));
+      frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+      frame.addWindowListener(new WindowAdapter() {
+         @Override
+         public void windowClosed(WindowEvent e) {
+            // Without listeners or a trace, the registry stops sampling.
+            registry_.removeListener(listener);
+            if (registry_.isTracing()) {
+               registry_.stopTrace();
+            }
+         }
+      });
+
+      frame.setVisible(true);
+      registry_.addListener(listener);
+   }
+
+   private static void saveTrace(JFrame parent, List<MetricsRegistry.Sample> trace) {
+      JFileChooser chooser = new JFileChooser();
+      chooser.setDialogTitle("Save trace as .csv or .json");
+      chooser.setSelectedFile(new File("metrics.csv"));
+      if (chooser.showSaveDialog(parent) != JFileChooser.APPROVE_OPTION) {
+         return;
+      }
+      File file = chooser.getSelectedFile();
+      try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath()),
+            StandardCharsets.UTF_8)) {
+         if (file.getName().toLowerCase().endsWith(".json")) {
+            MetricsRegistry.writeJson(trace, writer);
+         } else {
+            MetricsRegistry.writeCsv(trace, writer);
+         }
+      } catch (IOException e) {
+         ReportingUtils.showError(e, "Failed to save trace to " + file);
+      }
+   }
+}
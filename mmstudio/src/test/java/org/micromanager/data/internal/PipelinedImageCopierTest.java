@@ -0,0 +1,267 @@
+package org.micromanager.data.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Image;
+import org.micromanager.data.SummaryMetadata;
+
+/**
+ * Checks ordering, the bound on images held in memory, cancellation and
+ * error handling of PipelinedImageCopier.
+ */
+public class PipelinedImageCopierTest {
+   private static final int WIDTH = 8;
+   private static final int HEIGHT = 6;
+   private static final long IMAGE_BYTES = WIDTH * HEIGHT * 2;
+
+   @Test
+   public void imagesAreWrittenInOrder() throws IOException {
+      SlowProvider source = new SlowProvider(50);
+      final List<Integer> written = new ArrayList<>();
+      PipelinedImageCopier copier = new PipelinedImageCopier(source, source.order(),
+            image -> written.add(image.getCoords().getT()), 4, 16 * IMAGE_BYTES);
+
+      Assert.assertEquals(50, copier.copy());
+      Assert.assertEquals(source.order().size(), written.size());
+      for (int i = 0; i < written.size(); i++) {
+         Assert.assertEquals(i, written.get(i).intValue());
+      }
+   }
+
+   @Test
+   public void imagesInMemoryAreBounded() throws IOException {
+      final SlowProvider source = new SlowProvider(40);
+      final AtomicInteger maxHeld = new AtomicInteger();
+      // Room for three images; with two readers the window is three.
+      PipelinedImageCopier copier = new PipelinedImageCopier(source, source.order(),
+            image -> {
+               maxHeld.set(Math.max(maxHeld.get(), source.held_.get()));
+               sleep(2);
+               source.held_.decrementAndGet();
+            }, 2, 3 * IMAGE_BYTES);
+
+      Assert.assertEquals(40, copier.copy());
+      Assert.assertTrue("held " + maxHeld.get(), maxHeld.get() <= 3);
+      Assert.assertEquals(40, source.reads_.get());
+   }
+
+   @Test
+   public void cancelStopsWithoutInterruptingReads() throws IOException {
+      SlowProvider source = new SlowProvider(100);
+      source.readMs_ = 5;
+      final List<Integer> written = new ArrayList<>();
+      final AtomicReference<PipelinedImageCopier> copier = new AtomicReference<>();
+      copier.set(new PipelinedImageCopier(source, source.order(),
+            image -> {
+               written.add(image.getCoords().getT());
+               if (written.size() == 5) {
+                  copier.get().cancel();
+               }
+            }, 4, 16 * IMAGE_BYTES));
+
+      Assert.assertEquals(5, copier.get().copy());
+      Assert.assertTrue(copier.get().isCanceled());
+      Assert.assertEquals(5, written.size());
+      Assert.assertTrue(source.reads_.get() < 100);
+      Assert.assertEquals(0, source.inProgress_.get());
+      Assert.assertEquals(0, source.interrupted_.get());
+   }
+
+   @Test
+   public void cancellationCheckStopsCopy() throws IOException {
+      SlowProvider source = new SlowProvider(100);
+      final List<Integer> written = new ArrayList<>();
+      PipelinedImageCopier copier = new PipelinedImageCopier(source, source.order(),
+            image -> written.add(image.getCoords().getT()), 4, 16 * IMAGE_BYTES);
+      copier.setCancellationCheck(() -> written.size() >= 10);
+
+      Assert.assertEquals(10, copier.copy());
+      Assert.assertEquals(0, source.inProgress_.get());
+   }
+
+   @Test
+   public void readErrorIsThrown() {
+      SlowProvider source = new SlowProvider(30);
+      source.failAt_ = 7;
+      final List<Integer> written = new ArrayList<>();
+      PipelinedImageCopier copier = new PipelinedImageCopier(source, source.order(),
+            image -> written.add(image.getCoords().getT()), 4, 16 * IMAGE_BYTES);
+      try {
+         copier.copy();
+         Assert.fail("Read error was not thrown");
+      } catch (IOException e) {
+         Assert.assertEquals("Cannot read 7", e.getMessage());
+      }
+      Assert.assertEquals(7, written.size());
+      for (int i = 0; i < written.size(); i++) {
+         Assert.assertEquals(i, written.get(i).intValue());
+      }
+      Assert.assertEquals(0, source.inProgress_.get());
+      Assert.assertEquals(0, source.interrupted_.get());
+   }
+
+   @Test
+   public void writeErrorIsThrown() {
+      SlowProvider source = new SlowProvider(30);
+      source.readMs_ = 2;
+      final List<Integer> written = new ArrayList<>();
+      PipelinedImageCopier copier = new PipelinedImageCopier(source, source.order(),
+            image -> {
+               if (image.getCoords().getT() == 3) {
+                  throw new IOException("Disk full");
+               }
+               written.add(image.getCoords().getT());
+            }, 4, 16 * IMAGE_BYTES);
+      try {
+         copier.copy();
+         Assert.fail("Write error was not thrown");
+      } catch (IOException e) {
+         Assert.assertEquals("Disk full", e.getMessage());
+      }
+      Assert.assertEquals(3, written.size());
+      Assert.assertEquals(0, source.inProgress_.get());
+      Assert.assertEquals(0, source.interrupted_.get());
+   }
+
+   private static void sleep(long ms) {
+      try {
+         Thread.sleep(ms);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Source whose reads take a varying amount of time, so that they complete
+    * out of order, and that keeps count of what is being read.
+    */
+   private static final class SlowProvider implements DataProvider {
+      private final List<Coords> order_ = new ArrayList<>();
+      private final AtomicInteger reads_ = new AtomicInteger();
+      private final AtomicInteger held_ = new AtomicInteger();
+      private final AtomicInteger inProgress_ = new AtomicInteger();
+      private final AtomicInteger interrupted_ = new AtomicInteger();
+      private volatile long readMs_ = 0;
+      private volatile int failAt_ = -1;
+
+      SlowProvider(int numImages) {
+         for (int i = 0; i < numImages; i++) {
+            order_.add(new DefaultCoords.Builder().time(i).build());
+         }
+      }
+
+      List<Coords> order() {
+         return order_;
+      }
+
+      @Override
+      public Image getImage(Coords coords) throws IOException {
+         inProgress_.incrementAndGet();
+         try {
+            int index = coords.getT();
+            try {
+               // Later images are sometimes quicker to read than earlier ones.
+               Thread.sleep(readMs_ + (index * 7) % 3);
+            } catch (InterruptedException e) {
+               interrupted_.incrementAndGet();
+               Thread.currentThread().interrupt();
+            }
+            if (index == failAt_) {
+               throw new IOException("Cannot read " + index);
+            }
+            short[] pixels = new short[WIDTH * HEIGHT];
+            pixels[0] = (short) index;
+            reads_.incrementAndGet();
+            held_.incrementAndGet();
+            return new DefaultImage(pixels, WIDTH, HEIGHT, 2, 1, coords, null);
+         } finally {
+            inProgress_.decrementAndGet();
+         }
+      }
+
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public Image getAnyImage() {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public List<String> getAxes() {
+         return Collections.singletonList(Coords.T);
+      }
+
+      @Override
+      public int getAxisLength(String axis) {
+         return Coords.T.equals(axis) ? order_.size() : 0;
+      }
+
+      @Override
+      public int getNextIndex(String axis) {
+         return getAxisLength(axis);
+      }
+
+      @Override
+      public List<Image> getImagesMatching(Coords coords) {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public List<Image> getImagesIgnoringAxes(Coords coords, String... ignoreTheseAxes) {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public boolean isFrozen() {
+         return true;
+      }
+
+      @Override
+      public Coords getMaxIndices() {
+         return order_.get(order_.size() - 1);
+      }
+
+      @Override
+      public int getNumImages() {
+         return order_.size();
+      }
+
+      @Override
+      public SummaryMetadata getSummaryMetadata() {
+         return null;
+      }
+
+      @Override
+      public Iterable<Coords> getUnorderedImageCoords() {
+         return order_;
+      }
+
+      @Override
+      public boolean hasImage(Coords coords) {
+         return order_.contains(coords);
+      }
+
+      @Override
+      public String getName() {
+         return "slow";
+      }
+
+      @Override
+      public void registerForEvents(Object obj) {
+      }
+
+      @Override
+      public void unregisterForEvents(Object obj) {
+      }
+   }
+}
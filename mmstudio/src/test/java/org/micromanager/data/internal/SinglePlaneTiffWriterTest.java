@@ -0,0 +1,156 @@
+package org.micromanager.data.internal;
+
+import com.google.common.io.Files;
+import ij.ImagePlus;
+import ij.io.Opener;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Image;
+
+/**
+ * Checks that TIFFs encoded by SinglePlaneTiffWriter read back through
+ * ImageJ the same way as those written by ImageJ's FileSaver.
+ */
+public class SinglePlaneTiffWriterTest {
+
+   @Test
+   public void testGray16RoundTrip() throws IOException {
+      File dir = Files.createTempDir();
+      File file = new File(dir, "img.tif");
+      short[] pixels = new short[7 * 5];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (i * 1871);
+      }
+      String info = "{\"Camera\": \"DCam\", \"PositionName\": \"Pos-\u00e9\"}";
+      SinglePlaneTiffWriter.writeFile(file, pixels, 7, 5, 2, 1, info, 0.25, 1.5, 0.7);
+
+      ImagePlus imp = new Opener().openImage(file.getPath());
+      Assert.assertNotNull(imp);
+      Assert.assertEquals(ImagePlus.GRAY16, imp.getType());
+      Assert.assertArrayEquals(pixels, (short[]) imp.getProcessor().getPixels());
+      Assert.assertEquals(info, imp.getProperty("Info"));
+      Assert.assertEquals(0.25, imp.getCalibration().pixelWidth, 1e-9);
+      Assert.assertEquals(0.25, imp.getCalibration().pixelHeight, 1e-9);
+      Assert.assertEquals(1.5, imp.getCalibration().frameInterval, 1e-9);
+      Assert.assertEquals(0.7, imp.getCalibration().pixelDepth, 1e-9);
+      file.delete();
+      dir.delete();
+   }
+
+   @Test
+   public void testGray8Uncalibrated() throws IOException {
+      File dir = Files.createTempDir();
+      File file = new File(dir, "img.tif");
+      byte[] pixels = new byte[] {0, 1, 2, (byte) 255, (byte) 128, 7};
+      SinglePlaneTiffWriter.writeFile(file, pixels, 3, 2, 1, 1, null, null, null, null);
+
+      ImagePlus imp = new Opener().openImage(file.getPath());
+      Assert.assertEquals(ImagePlus.GRAY8, imp.getType());
+      Assert.assertArrayEquals(pixels, (byte[]) imp.getProcessor().getPixels());
+      Assert.assertFalse(imp.getCalibration().scaled());
+      file.delete();
+      dir.delete();
+   }
+
+   @Test
+   public void testRGBChannelOrder() throws IOException {
+      File dir = Files.createTempDir();
+      File file = new File(dir, "img.tif");
+      // Micro-Manager stores RGB as BGRA bytes.
+      byte[] pixels = new byte[] {0x33, 0x22, 0x11, 0, 0x66, 0x55, 0x44, 0};
+      SinglePlaneTiffWriter.writeFile(file, pixels, 2, 1, 4, 3, null, null, null, null);
+
+      ImagePlus imp = new Opener().openImage(file.getPath());
+      Assert.assertEquals(ImagePlus.COLOR_RGB, imp.getType());
+      int[] rgb = (int[]) imp.getProcessor().getPixels();
+      Assert.assertEquals(0x112233, rgb[0] & 0xffffff);
+      Assert.assertEquals(0x445566, rgb[1] & 0xffffff);
+      file.delete();
+      dir.delete();
+   }
+
+   @Test
+   public void testUnsupportedFormatIsRejected() throws IOException {
+      Assert.assertTrue(SinglePlaneTiffWriter.canWrite(1, 1));
+      Assert.assertTrue(SinglePlaneTiffWriter.canWrite(2, 1));
+      Assert.assertTrue(SinglePlaneTiffWriter.canWrite(4, 3));
+      Assert.assertFalse(SinglePlaneTiffWriter.canWrite(4, 1));
+      Assert.assertFalse(SinglePlaneTiffWriter.canWrite(6, 3));
+
+      File dir = Files.createTempDir();
+      File file = new File(dir, "img.tif");
+      try {
+         SinglePlaneTiffWriter.writeFile(file, new float[6], 3, 2, 4, 1,
+               null, null, null, null);
+         Assert.fail("32 bit grayscale was written");
+      } catch (IllegalArgumentException expected) {
+         Assert.assertFalse(file.exists());
+      }
+      dir.delete();
+   }
+
+   private static Image image(int index) {
+      short[] pixels = new short[8 * 6];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (index * 100 + i);
+      }
+      return new DefaultImage(pixels, 8, 6, 2, 1,
+            new DefaultCoords.Builder().time(index).build(), null);
+   }
+
+   @Test
+   public void testQueuedImagesAreAllWritten() throws IOException {
+      File dir = Files.createTempDir();
+      // A single thread and a queue that fills up, so that some images wait
+      // in the queue and others are written by the calling thread.
+      SinglePlaneTiffWriter writer = new SinglePlaneTiffWriter(1, 7);
+      int nrImages = 200;
+      for (int i = 0; i < nrImages; i++) {
+         Image image = image(i);
+         writer.write(image, new File(dir, "img" + i + ".tif"), null, null, null, null);
+         Image pending = writer.getPending(image.getCoords());
+         Assert.assertTrue(pending == null || pending == image);
+      }
+      writer.finish();
+      for (int i = 0; i < nrImages; i++) {
+         Image image = image(i);
+         Assert.assertNull(writer.getPending(image.getCoords()));
+         File file = new File(dir, "img" + i + ".tif");
+         ImagePlus imp = new Opener().openImage(file.getPath());
+         Assert.assertArrayEquals((short[]) image.getRawPixels(),
+               (short[]) imp.getProcessor().getPixels());
+         file.delete();
+      }
+      dir.delete();
+   }
+
+   @Test
+   public void testFailedWriteStopsAcceptingImages() throws Exception {
+      File dir = Files.createTempDir();
+      SinglePlaneTiffWriter writer = new SinglePlaneTiffWriter(1, 0);
+      Image bad = image(0);
+      writer.write(bad, new File(new File(dir, "missing"), "img0.tif"), null, null, null, null);
+      // The failure is recorded before the image stops being pending
+      for (int i = 0; i < 500 && writer.getPending(bad.getCoords()) != null; i++) {
+         Thread.sleep(10);
+      }
+      Assert.assertNull(writer.getPending(bad.getCoords()));
+      File next = new File(dir, "img1.tif");
+      try {
+         writer.write(image(1), next, null, null, null, null);
+         Assert.fail("Image accepted after a failed write");
+      } catch (IOException expected) {
+         // expected
+      }
+      try {
+         writer.finish();
+         Assert.fail("finish() did not report the failed write");
+      } catch (IOException expected) {
+         // expected
+      }
+      Assert.assertFalse(next.exists());
+      dir.delete();
+   }
+}
@@ -0,0 +1,270 @@
+package org.micromanager.display.internal.animate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Storage;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.DefaultCoords;
+
+public class FramePrefetcherTest {
+   private static final int NR_TIME_POINTS = 1000;
+   private static final int LOAD_LATENCY_MS = 120;
+   private static final double FPS = 20.0;
+   // Frames displayed while the prefetcher learns the load latency
+   private static final int WARM_UP_FRAMES = 10;
+   private static final int MEASURED_FRAMES = 60;
+
+   /**
+    * Storage that takes LOAD_LATENCY_MS to read the images of a time point,
+    * like a slow disk.
+    */
+   private static class SlowStorage implements Storage {
+      private final AtomicInteger nrLoads_ = new AtomicInteger();
+
+      @Override
+      public void freeze() {
+      }
+
+      @Override
+      public void putImage(Image image) {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Image getImage(Coords coords) throws IOException {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public boolean hasImage(Coords coords) {
+         return coords.getT() < NR_TIME_POINTS;
+      }
+
+      @Override
+      public Image getAnyImage() {
+         return null;
+      }
+
+      @Override
+      public Iterable<Coords> getUnorderedImageCoords() {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public List<Image> getImagesMatching(Coords coords) throws IOException {
+         return getImagesIgnoringAxes(coords);
+      }
+
+      @Override
+      public List<Image> getImagesIgnoringAxes(Coords coords, String... ignoreTheseAxes)
+            throws IOException {
+         nrLoads_.incrementAndGet();
+         try {
+            Thread.sleep(LOAD_LATENCY_MS);
+         } catch (InterruptedException e) {
+            throw new IOException(e);
+         }
+         return new ArrayList<>();
+      }
+
+      @Override
+      public int getMaxIndex(String axis) {
+         return Coords.T.equals(axis) ? NR_TIME_POINTS - 1 : -1;
+      }
+
+      @Override
+      public List<String> getAxes() {
+         return Collections.singletonList(Coords.T);
+      }
+
+      @Override
+      public Coords getMaxIndices() {
+         return new DefaultCoords.Builder().t(NR_TIME_POINTS - 1).build();
+      }
+
+      @Override
+      public SummaryMetadata getSummaryMetadata() {
+         return null;
+      }
+
+      @Override
+      public int getNumImages() {
+         return NR_TIME_POINTS;
+      }
+
+      @Override
+      public void close() {
+      }
+   }
+
+   /**
+    * Plays back the time points of a SlowStorage, loading the images of each
+    * displayed position the way DisplayController does.
+    *
+    * @return average interval between displayed frames, in ms
+    */
+   private static double playBack(boolean prefetch) throws Exception {
+      final SlowStorage storage = new SlowStorage();
+      DataCoordsAnimationState state = DataCoordsAnimationState.create(
+            new DataCoordsAnimationState.CoordsProvider() {
+               @Override
+               public List<String> getOrderedAxes() {
+                  return storage.getAxes();
+               }
+
+               @Override
+               public int getMaximumExtentOfAxis(String axis) {
+                  return storage.getMaxIndex(axis) + 1;
+               }
+
+               @Override
+               public boolean coordsExist(Coords c) {
+                  return storage.hasImage(c);
+               }
+
+               @Override
+               public Collection<String> getAnimatedAxes() {
+                  return storage.getAxes();
+               }
+            });
+      final FramePrefetcher<Coords, List<Image>> prefetcher = FramePrefetcher.create(
+            new FramePrefetcher.Loader<Coords, List<Image>>() {
+               @Override
+               public List<Image> load(Coords position) throws IOException {
+                  return storage.getImagesIgnoringAxes(
+                        position.copyRemovingAxes(Coords.CHANNEL), Coords.CHANNEL);
+               }
+            }, 4);
+      @SuppressWarnings("unchecked")
+      AnimationController<Coords> controller = AnimationController.create(state);
+      if (prefetch) {
+         controller.setPrefetcher(prefetcher);
+      }
+      final long[] displayedNs = new long[WARM_UP_FRAMES + MEASURED_FRAMES + 1];
+      final CountDownLatch done = new CountDownLatch(1);
+      controller.addListener(new AnimationController.Listener<Coords>() {
+         private int nrDisplayed_;
+
+         @Override
+         public void animationShouldDisplayDataPosition(Coords position) {
+            try {
+               prefetcher.get(position);
+            } catch (IOException e) {
+               throw new RuntimeException(e);
+            }
+            if (nrDisplayed_ < displayedNs.length) {
+               displayedNs[nrDisplayed_++] = System.nanoTime();
+               if (nrDisplayed_ == displayedNs.length) {
+                  done.countDown();
+               }
+            }
+         }
+
+         @Override
+         public void animationAcknowledgeDataPosition(Coords position) {
+         }
+
+         @Override
+         public void animationWillJumpToNewDataPosition(Coords position) {
+         }
+
+         @Override
+         public void animationDidJumpToNewDataPosition(Coords position) {
+         }
+
+         @Override
+         public void animationNewDataPositionExpired() {
+         }
+      });
+      controller.setAnimationRateFPS(FPS);
+      controller.setTickIntervalMs((int) Math.round(1000.0 / FPS));
+      controller.startAnimation();
+      try {
+         assertTrue(done.await(60, TimeUnit.SECONDS));
+      } finally {
+         controller.shutdown();
+         prefetcher.shutdown();
+      }
+      double intervalMs = (displayedNs[displayedNs.length - 1] - displayedNs[WARM_UP_FRAMES])
+            / 1e6 / MEASURED_FRAMES;
+      System.out.println((prefetch ? "With" : "Without") + " prefetching: frames every "
+            + intervalMs + " ms (target " + 1000.0 / FPS + " ms), load latency "
+            + LOAD_LATENCY_MS + " ms, " + storage.nrLoads_.get() + " loads");
+      return intervalMs;
+   }
+
+   @Test
+   public void keepsUpWithSlowStorage() throws Exception {
+      double targetMs = 1000.0 / FPS;
+      double withoutMs = playBack(false);
+      double withMs = playBack(true);
+      assertTrue(withoutMs > LOAD_LATENCY_MS * 0.9);
+      assertEquals(targetMs, withMs, 0.1 * targetMs);
+   }
+
+   @Test
+   public void dropsStaleWork() throws Exception {
+      final ConcurrentHashMap<Integer, Integer> loads = new ConcurrentHashMap<>();
+      FramePrefetcher<Integer, Integer> prefetcher = FramePrefetcher.create(
+            new FramePrefetcher.Loader<Integer, Integer>() {
+               @Override
+               public Integer load(Integer position) throws IOException {
+                  loads.merge(position, 1, Integer::sum);
+                  try {
+                     Thread.sleep(20);
+                  } catch (InterruptedException e) {
+                     throw new IOException(e);
+                  }
+                  return position * 10;
+               }
+            }, 1);
+      prefetcher.prefetch(Arrays.asList(1, 2, 3, 4, 5));
+      // The user scrolls elsewhere
+      prefetcher.prefetch(Arrays.asList(50, 51));
+      assertEquals(Integer.valueOf(500), prefetcher.get(50));
+      assertEquals(Integer.valueOf(510), prefetcher.get(51));
+      prefetcher.shutdown();
+      // Only a load that had already started can have run
+      for (int position = 2; position <= 5; position++) {
+         assertTrue(!loads.containsKey(position));
+      }
+      assertEquals(Integer.valueOf(1), loads.get(50));
+      assertEquals(Integer.valueOf(1), loads.get(51));
+   }
+
+   @Test
+   public void looksAheadByLatency() throws Exception {
+      FramePrefetcher<Integer, Integer> prefetcher = FramePrefetcher.create(
+            new FramePrefetcher.Loader<Integer, Integer>() {
+               @Override
+               public Integer load(Integer position) throws IOException {
+                  try {
+                     Thread.sleep(100);
+                  } catch (InterruptedException e) {
+                     throw new IOException(e);
+                  }
+                  return position;
+               }
+            }, 1);
+      prefetcher.get(0);
+      double latencyMs = prefetcher.getLatencyMs();
+      assertTrue(latencyMs >= 100.0);
+      assertEquals((int) Math.ceil(1.5 * latencyMs / 50.0) + 1, prefetcher.getLookahead(50.0));
+      assertEquals(16, prefetcher.getLookahead(1.0));
+      prefetcher.shutdown();
+   }
+}
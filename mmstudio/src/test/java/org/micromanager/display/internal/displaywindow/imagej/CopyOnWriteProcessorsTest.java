@@ -0,0 +1,265 @@
+package org.micromanager.display.internal.displaywindow.imagej;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CopyOnWriteProcessorsTest {
+   private static final int WIDTH = 64;
+   private static final int HEIGHT = 48;
+
+   /**
+    * A change made to a processor.
+    */
+   private interface Write {
+      void apply(ImageProcessor ip);
+   }
+
+   private static final Write[] WRITES = {
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            // the way ImageJ filters change images
+            ip.snapshot();
+            ip.set(3, 4, 99);
+            ip.setf(5, 6, 17.0f);
+            ip.putPixel(7, 8, 42);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.invert();
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.add(10);
+            ip.multiply(2.0);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.setRoi(5, 5, 10, 10);
+            ip.setValue(200);
+            ip.fill();
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.filter(ImageProcessor.BLUR_MORE);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.putPixelValue(1, 1, 250);
+            ip.drawPixel(2, 2);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            // a FloatProcessor takes over (and shares) the pixels of fp
+            ip.setPixels(0, new FloatProcessor(WIDTH, HEIGHT));
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.flipVertical();
+            ip.rotate(10.0);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.insert(new ByteProcessor(8, 8), 0, 0);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.snapshot();
+            ip.swapPixelArrays();
+            ip.reset();
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.putRow(2, 3, new int[] {11, 12, 13}, 3);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.putRow(2, 3, new float[] {11.5f, 12.5f, 13.5f}, 3);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            ip.putColumn(4, 1, new int[] {21, 22, 23, 24}, 4);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            int[][] values = ip.getIntArray();
+            values[6][7] += 1;
+            ip.setIntArray(values);
+         }
+      },
+      new Write() {
+         @Override
+         public void apply(ImageProcessor ip) {
+            float[][] values = ip.getFloatArray();
+            values[6][7] += 1.0f;
+            ip.setFloatArray(values);
+         }
+      },
+   };
+
+   private static Object[] randomPlanes(Random random) {
+      byte[] bytes = new byte[WIDTH * HEIGHT];
+      short[] shorts = new short[WIDTH * HEIGHT];
+      float[] floats = new float[WIDTH * HEIGHT];
+      random.nextBytes(bytes);
+      for (int i = 0; i < shorts.length; i++) {
+         shorts[i] = (short) random.nextInt(4096);
+         floats[i] = random.nextFloat() * 1000;
+      }
+      return new Object[] {bytes, shorts, floats};
+   }
+
+   private static Object copy(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels).clone();
+      } else if (pixels instanceof short[]) {
+         return ((short[]) pixels).clone();
+      }
+      return ((float[]) pixels).clone();
+   }
+
+   private static boolean same(Object a, Object b) {
+      if (a instanceof byte[]) {
+         return Arrays.equals((byte[]) a, (byte[]) b);
+      } else if (a instanceof short[]) {
+         return Arrays.equals((short[]) a, (short[]) b);
+      }
+      return Arrays.equals((float[]) a, (float[]) b);
+   }
+
+   @Test
+   public void sharesPixelsUntilWritten() {
+      for (Object pixels : randomPlanes(new Random(1))) {
+         ImageProcessor ip = CopyOnWriteProcessors.create(WIDTH, HEIGHT, pixels);
+         Assert.assertSame(pixels, ip.getPixels());
+         Assert.assertTrue(((CopyOnWriteProcessors.Shared) ip).isShared());
+         ip.getStatistics();
+         ip.setRoi(1, 1, 5, 5);
+         ip.crop();
+         ip.setMinAndMax(0, 100);
+         Assert.assertSame(pixels, ip.getPixels());
+      }
+      Assert.assertNull(CopyOnWriteProcessors.create(WIDTH, HEIGHT, new int[WIDTH * HEIGHT]));
+   }
+
+   @Test
+   public void writesNeverChangeTheImage() {
+      Random random = new Random(2);
+      for (Write write : WRITES) {
+         for (Object pixels : randomPlanes(random)) {
+            Object original = copy(pixels);
+            ImageProcessor ip = CopyOnWriteProcessors.create(WIDTH, HEIGHT, pixels);
+            write.apply(ip);
+            Assert.assertTrue(same(original, pixels));
+            Assert.assertNotSame(pixels, ip.getPixels());
+         }
+      }
+   }
+
+   @Test
+   public void writesAreKept() {
+      short[] pixels = (short[]) randomPlanes(new Random(3))[1];
+      ImageProcessor ip = CopyOnWriteProcessors.create(WIDTH, HEIGHT, pixels);
+      ip.invert();
+      Assert.assertFalse(((CopyOnWriteProcessors.Shared) ip).isShared());
+      ImageProcessor expected = new ShortProcessor(WIDTH, HEIGHT, pixels.clone(), null);
+      expected.invert();
+      Assert.assertArrayEquals((short[]) expected.getPixels(), (short[]) ip.getPixels());
+      // undo goes back to the image
+      ip.snapshot();
+      ip.add(5);
+      ip.reset();
+      Assert.assertArrayEquals((short[]) expected.getPixels(), (short[]) ip.getPixels());
+   }
+
+   @Test
+   public void slicesSetByImageJAreShared() {
+      Object[] planes = randomPlanes(new Random(4));
+      short[] first = (short[]) planes[1];
+      short[] second = first.clone();
+      Object original = copy(second);
+      ImageProcessor ip = CopyOnWriteProcessors.create(WIDTH, HEIGHT, first);
+      ip.invert();
+      // ImagePlus.setSlice puts the pixels of the next slice in its processor
+      ip.setPixels(second);
+      Assert.assertTrue(((CopyOnWriteProcessors.Shared) ip).isShared());
+      ip.invert();
+      Assert.assertTrue(same(original, second));
+   }
+
+   /**
+    * Scrolls through 1000 2048x2048 planes, and counts the bytes that are
+    * allocated on the way.
+    */
+   @Test
+   public void scrollingDoesNotCopyPlanes() {
+      int size = 2048;
+      int nrPlanes = 1000;
+      // a few distinct arrays stand in for the 8 GB of pixels
+      short[][] planes = new short[4][size * size];
+      for (int p = 0; p < planes.length; p++) {
+         Arrays.fill(planes[p], (short) p);
+      }
+      com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long thread = Thread.currentThread().getId();
+
+      long checksum = 0;
+      long allocated = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < nrPlanes; i++) {
+         ImageProcessor ip = CopyOnWriteProcessors.create(size, size, planes[i % planes.length]);
+         checksum += ip.get(size / 2, size / 2);
+      }
+      long shared = System.nanoTime() - start;
+      allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+      start = System.nanoTime();
+      for (int i = 0; i < nrPlanes; i++) {
+         ImageProcessor ip = new ShortProcessor(size, size,
+               planes[i % planes.length].clone(), null);
+         checksum -= ip.get(size / 2, size / 2);
+      }
+      long copied = System.nanoTime() - start;
+
+      System.out.println("Scrolling " + nrPlanes + " " + size + "x" + size + " planes: "
+            + allocated + " bytes allocated and " + shared / 1000000 + " ms without copies, "
+            + copied / 1000000 + " ms with copies");
+      Assert.assertEquals(0, checksum);
+      // less than one plane in all, that is, no plane was copied
+      Assert.assertTrue(allocated < 2L * size * size);
+   }
+}
@@ -0,0 +1,120 @@
+package org.micromanager.internal.utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PropertySnapshotTest {
+
+   /**
+    * Core cache and devices that can be changed behind the snapshot's back.
+    */
+   private static class FakeSource implements PropertySnapshot.Source {
+      private final Map<String, Map<String, String>> cache_ = new HashMap<>();
+      private final Map<String, Map<String, String>> devices_ = new HashMap<>();
+      private final Set<String> readOnly_ = new HashSet<>();
+      private int deviceReads_;
+
+      void set(String device, String property, String value) {
+         cache_.computeIfAbsent(device, d -> new HashMap<>()).put(property, value);
+         devices_.computeIfAbsent(device, d -> new HashMap<>()).put(property, value);
+      }
+
+      @Override
+      public Map<String, Map<String, String>> getCachedValues() {
+         Map<String, Map<String, String>> copy = new HashMap<>();
+         for (Map.Entry<String, Map<String, String>> entry : cache_.entrySet()) {
+            copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+         }
+         return copy;
+      }
+
+      @Override
+      public String getCachedValue(String device, String property) throws Exception {
+         return get(cache_, device, property);
+      }
+
+      @Override
+      public String getDeviceValue(String device, String property) throws Exception {
+         deviceReads_++;
+         return get(devices_, device, property);
+      }
+
+      @Override
+      public boolean isReadOnly(String device, String property) {
+         return readOnly_.contains(device + "-" + property);
+      }
+
+      private static String get(Map<String, Map<String, String>> values, String device,
+            String property) throws Exception {
+         Map<String, String> properties = values.get(device);
+         if (properties == null || !properties.containsKey(property)) {
+            throw new Exception("No property " + device + "-" + property);
+         }
+         return properties.get(property);
+      }
+   }
+
+   private FakeSource source_;
+   private PropertySnapshot snapshot_;
+
+   @Before
+   public void setUp() {
+      source_ = new FakeSource();
+      source_.set("Camera", "Binning", "1");
+      source_.set("Camera", "CCDTemperature", "-10.0");
+      source_.readOnly_.add("Camera-CCDTemperature");
+      snapshot_ = new PropertySnapshot(source_);
+      snapshot_.refresh();
+   }
+
+   @Test
+   public void readsFromSnapshotUntilRefreshed() {
+      Assert.assertEquals("1", snapshot_.getValue("Camera", "Binning"));
+      // The core cache changed without a property change notification
+      source_.set("Camera", "Binning", "2");
+      Assert.assertEquals("1", snapshot_.getValue("Camera", "Binning"));
+      snapshot_.refresh();
+      Assert.assertEquals("2", snapshot_.getValue("Camera", "Binning"));
+      Assert.assertEquals(2, snapshot_.getRefreshCount());
+   }
+
+   @Test
+   public void putValueUpdatesSnapshot() {
+      snapshot_.putValue("Camera", "Binning", "4");
+      Assert.assertEquals("4", snapshot_.getValue("Camera", "Binning"));
+   }
+
+   @Test
+   public void readOnlyPropertiesAreReadFromDevice() {
+      Assert.assertEquals("-10.0", snapshot_.getValue("Camera", "CCDTemperature"));
+      source_.devices_.get("Camera").put("CCDTemperature", "-12.5");
+      Assert.assertEquals("-12.5", snapshot_.getValue("Camera", "CCDTemperature"));
+      Assert.assertEquals(2, source_.deviceReads_);
+      snapshot_.getValue("Camera", "Binning");
+      Assert.assertEquals(2, source_.deviceReads_);
+   }
+
+   @Test
+   public void missingValuesAreReadFromCoreCacheOnce() {
+      source_.set("Stage", "Speed", "5");
+      Assert.assertEquals("5", snapshot_.getValue("Stage", "Speed"));
+      Assert.assertEquals(1, snapshot_.getMissCount());
+      Assert.assertEquals("5", snapshot_.getValue("Stage", "Speed"));
+      Assert.assertEquals(1, snapshot_.getMissCount());
+      Assert.assertNull(snapshot_.getValue("Stage", "NoSuchProperty"));
+   }
+
+   @Test
+   public void refreshForgetsUnloadedDevices() {
+      source_.cache_.remove("Camera");
+      source_.devices_.remove("Camera");
+      snapshot_.refresh();
+      Assert.assertNull(snapshot_.getValue("Camera", "Binning"));
+      Assert.assertNull(snapshot_.getValue("Camera", "CCDTemperature"));
+   }
+}
@@ -0,0 +1,75 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio/utils
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2026
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal.utils.performance;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Compares the cost of the latencies recorded for every image with the
+ * cheapest thing the image path does with every image from a 2048x2048
+ * 16-bit camera: copying the plane into a buffer to be written to disk.
+ * Not a unit test; run by hand.
+ */
+public class HelperMetricsRegistryOverhead {
+   // Histograms recorded per image: circular buffer drain, pipeline stage,
+   // datastore, storage and disk write
+   private static final int RECORDS_PER_IMAGE = 5;
+
+   public static void main(String[] args) {
+      MetricsRegistry registry = MetricsRegistry.createWithIntervalMs(10);
+      LatencyHistogram[] histograms = new LatencyHistogram[RECORDS_PER_IMAGE];
+      for (int i = 0; i < histograms.length; i++) {
+         histograms[i] = registry.histogram("stage" + i);
+      }
+      short[] pixels = new short[2048 * 2048];
+      Arrays.fill(pixels, (short) 1234);
+      ByteBuffer buffer = ByteBuffer.allocateDirect(2 * pixels.length)
+            .order(ByteOrder.nativeOrder());
+
+      double imageNs = Double.MAX_VALUE;
+      double metricsNs = Double.MAX_VALUE;
+      long checksum = 0;
+      // Best of several rounds, the first ones warming up
+      for (int round = 0; round < 10; round++) {
+         int images = 50;
+         long start = System.nanoTime();
+         for (int i = 0; i < images; i++) {
+            buffer.clear();
+            buffer.asShortBuffer().put(pixels);
+            checksum += buffer.get(i);
+         }
+         imageNs = Math.min(imageNs, (System.nanoTime() - start) / (double) images);
+
+         images = 200000;
+         start = System.nanoTime();
+         for (int i = 0; i < images; i++) {
+            for (LatencyHistogram histogram : histograms) {
+               histogram.recordSince(System.nanoTime());
+            }
+         }
+         metricsNs = Math.min(metricsNs, (System.nanoTime() - start) / (double) images);
+      }
+      System.out.println(String.format(
+            "Per image: %.0f ns to copy a 2048x2048 plane, "
+                  + "%.0f ns to record %d latencies (%.2f%%), checksum %d",
+            imageNs, metricsNs, RECORDS_PER_IMAGE, 100.0 * metricsNs / imageNs, checksum));
+   }
+}
@@ -0,0 +1,140 @@
+// Copyright (C) 2017 Open Imaging, Inc.
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal.utils.performance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+   private static final double[] QUANTILES = {0.01, 0.1, 0.5, 0.9, 0.99, 0.999};
+
+   @Test
+   public void bucketsCoverAllValues() {
+      assertEquals(0, LatencyHistogram.bucketOf(0));
+      assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+            LatencyHistogram.bucketOf(Long.MAX_VALUE));
+      int previous = -1;
+      for (long v = 0; v < 1000000; v++) {
+         int bucket = LatencyHistogram.bucketOf(v);
+         assertTrue(bucket == previous || bucket == previous + 1);
+         assertTrue(LatencyHistogram.lowestValueOf(bucket) <= v);
+         previous = bucket;
+      }
+   }
+
+   @Test
+   public void valuesAreWithinOnePercent() {
+      Random random = new Random(1);
+      for (long v = 0; v < 128; v++) {
+         assertEquals(v, LatencyHistogram.middleValueOf(LatencyHistogram.bucketOf(v)));
+      }
+      for (int i = 0; i < 1000000; i++) {
+         long v = (random.nextLong() >>> 1) >>> random.nextInt(63);
+         long reported = LatencyHistogram.middleValueOf(LatencyHistogram.bucketOf(v));
+         assertTrue(v + " reported as " + reported,
+               Math.abs(reported - v) <= v / 128.0);
+      }
+   }
+
+   private static void checkQuantiles(long[] values) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      double sum = 0;
+      for (long v : values) {
+         histogram.record(v);
+         sum += v;
+      }
+      LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+      long[] sorted = values.clone();
+      Arrays.sort(sorted);
+      assertEquals(values.length, snapshot.getCount());
+      assertEquals(sorted[sorted.length - 1], snapshot.getMax());
+      assertEquals(sum / values.length, snapshot.getMean(), 1e-6 * sum / values.length);
+      for (double q : QUANTILES) {
+         long exact = sorted[(int) Math.ceil(q * sorted.length) - 1];
+         long estimate = snapshot.getValueAtQuantile(q);
+         assertTrue(q + ": " + estimate + " instead of " + exact,
+               Math.abs(estimate - exact) <= 0.01 * exact);
+      }
+   }
+
+   @Test
+   public void quantilesOfUniformLatencies() {
+      Random random = new Random(2);
+      long[] values = new long[100000];
+      for (int i = 0; i < values.length; i++) {
+         // 1 us to 10 ms
+         values[i] = 1000 + (long) (random.nextDouble() * 9999000);
+      }
+      checkQuantiles(values);
+   }
+
+   @Test
+   public void quantilesOfLongTailedLatencies() {
+      Random random = new Random(3);
+      long[] values = new long[100000];
+      for (int i = 0; i < values.length; i++) {
+         // Log-normal around 50 us, with the occasional stall of a few ms
+         values[i] = (long) (50000 * Math.exp(random.nextGaussian()));
+         if (random.nextInt(1000) == 0) {
+            values[i] += 5000000;
+         }
+      }
+      checkQuantiles(values);
+   }
+
+   @Test
+   public void drainStartsOver() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(1000);
+      histogram.record(3000);
+      LatencyHistogram.Snapshot first = histogram.drain();
+      assertEquals(2, first.getCount());
+      assertEquals(2000.0, first.getMean(), 0.0);
+      assertEquals(3000, first.getMax());
+      LatencyHistogram.Snapshot second = histogram.drain();
+      assertEquals(0, second.getCount());
+      assertEquals(0, second.getMax());
+      assertEquals(0, second.getValueAtQuantile(0.5));
+   }
+
+   @Test
+   public void concurrentRecordingIsCounted() throws Exception {
+      final LatencyHistogram histogram = new LatencyHistogram();
+      final int perThread = 200000;
+      Thread[] threads = new Thread[4];
+      for (int t = 0; t < threads.length; t++) {
+         final long value = 1000 * (t + 1);
+         threads[t] = new Thread(() -> {
+            for (int i = 0; i < perThread; i++) {
+               histogram.record(value);
+            }
+         });
+         threads[t].start();
+      }
+      // Drain while the threads are recording
+      long drained = 0;
+      for (Thread thread : threads) {
+         while (thread.isAlive()) {
+            drained += histogram.drain().getCount();
+         }
+         thread.join();
+      }
+      LatencyHistogram.Snapshot rest = histogram.drain();
+      assertEquals((long) perThread * threads.length, drained + rest.getCount());
+   }
+}
@@ -0,0 +1,107 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio/utils
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2026
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal.utils.performance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+   @Test
+   public void samplesLatenciesAndGauges() throws Exception {
+      MetricsRegistry registry = MetricsRegistry.createWithIntervalMs(10);
+      AtomicLong depth = new AtomicLong(3);
+      LongSupplier gauge = depth::get;
+      registry.registerGauge("queue", gauge);
+      registry.histogram("stage").record(2000);
+      registry.histogram("stage").record(4000);
+
+      MetricsRegistry.Sample sample = registry.sample();
+      assertEquals(2, sample.getLatencies().get("stage").getCount());
+      assertEquals(3000.0, sample.getLatencies().get("stage").getMean(), 0.0);
+      assertEquals(Long.valueOf(3), sample.getGauges().get("queue"));
+      // Histograms start over with every sample
+      assertEquals(0, registry.sample().getLatencies().get("stage").getCount());
+
+      registry.unregisterGauge("queue", () -> 0);
+      assertTrue(registry.sample().getGauges().containsKey("queue"));
+      registry.unregisterGauge("queue", gauge);
+      assertFalse(registry.sample().getGauges().containsKey("queue"));
+   }
+
+   @Test
+   public void listenersAndTracesReceiveSamples() throws Exception {
+      MetricsRegistry registry = MetricsRegistry.createWithIntervalMs(10);
+      final CountDownLatch sampled = new CountDownLatch(5);
+      MetricsRegistry.Listener listener = sample -> sampled.countDown();
+      registry.addListener(listener);
+      registry.startTrace();
+      registry.histogram("stage").record(1000);
+      assertTrue(sampled.await(10, TimeUnit.SECONDS));
+      registry.removeListener(listener);
+      List<MetricsRegistry.Sample> trace = registry.stopTrace();
+      assertFalse(registry.isTracing());
+      assertTrue(trace.size() >= 4);
+      long count = 0;
+      for (MetricsRegistry.Sample sample : trace) {
+         count += sample.getLatencies().get("stage").getCount();
+      }
+      assertEquals(1, count);
+   }
+
+   @Test
+   public void exportsCsvAndJson() throws Exception {
+      MetricsRegistry registry = MetricsRegistry.createWithIntervalMs(10);
+      registry.registerGauge("writer.queue", () -> 7);
+      // 1496 ns is in the middle of its bucket
+      registry.histogram("datastore.putImage").record(1496);
+      List<MetricsRegistry.Sample> samples = Arrays.asList(registry.sample());
+
+      StringWriter csv = new StringWriter();
+      MetricsRegistry.writeCsv(samples, csv);
+      String[] lines = csv.toString().split("\n");
+      assertEquals(3, lines.length);
+      assertEquals("time_ms,metric,count,mean_us,p50_us,p90_us,p99_us,max_us,value", lines[0]);
+      assertTrue(lines[1], lines[1].endsWith(",datastore.putImage,1,1.5,1.5,1.5,1.5,1.5,"));
+      assertTrue(lines[2], lines[2].endsWith(",writer.queue,,,,,,,7"));
+
+      StringWriter json = new StringWriter();
+      MetricsRegistry.writeJson(samples, json);
+      JsonArray array = new JsonParser().parse(json.toString()).getAsJsonArray();
+      assertEquals(1, array.size());
+      JsonObject sample = array.get(0).getAsJsonObject();
+      JsonObject latency = sample.getAsJsonObject("latencies")
+            .getAsJsonObject("datastore.putImage");
+      assertEquals(1, latency.get("count").getAsLong());
+      assertEquals(1.496, latency.get("p99Us").getAsDouble(), 0.0);
+      assertEquals(7, sample.getAsJsonObject("gauges").get("writer.queue").getAsLong());
+   }
+}
@@ -1,20 +1,22 @@
 package org.micromanager.assembledata;
 
-import boofcv.abst.distort.FDistort;
-import boofcv.alg.misc.GImageMiscOps;
-import boofcv.core.image.ConvertImage;
-import boofcv.struct.border.BorderType;
-import boofcv.struct.image.GrayF32;
-import boofcv.struct.image.GrayS32;
-import boofcv.struct.image.GrayU16;
-import boofcv.struct.image.GrayU8;
-import boofcv.struct.image.ImageGray;
 import georegression.struct.affine.Affine2D_F64;
 import georegression.struct.homography.Homography2D_F64;
 import java.awt.geom.AffineTransform;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.micromanager.Studio;
 import org.micromanager.data.Coordinates;
 import org.micromanager.data.Coords;
@@ -24,15 +26,21 @@ import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
 import org.micromanager.internal.utils.imageanalysis.BoofCVImageConverter;
 
 /**
  * Carries out the actual image processing to combine different views of the same
  * scene into a single dataset.
  *
+ * <p>Planes are read, placed and written one at a time, on several threads,
+ * so that the input datasets never need to be in memory as a whole.
+ *
  * @author nico
  */
 public class AssembleDataAlgo {
+   private static final int PLANES_IN_FLIGHT_PER_THREAD = 2;
 
    /**
     * THe function doint the assembly work.
@@ -153,163 +161,248 @@ public class AssembleDataAlgo {
          singlePositionAf64I.tx = widthPixels / 2.0 + xOffset;
          singlePositionAf64I.ty = heightPixels / 2.0 + yOffset;
 
-         //for (DataProvider data : datas) {
-         cb.t(0).c(0).p(0).z(0);
-         ImageGray newImgBoof;
-         ImageGray oldImgBoof;
-         ImageGray tmpImgBoof;
-         if (bytesPerPixel == 1) {
-            newImgBoof = new GrayU8(widthPixels, heightPixels);
-            tmpImgBoof = new GrayU8(widthPixels, heightPixels);
-         } else { // bytesPerPixel == 2
-            newImgBoof = new GrayU16(widthPixels, heightPixels);
-            tmpImgBoof = new GrayU16(widthPixels, heightPixels);
-         }
-         
-         GrayF32 tmpImgNF32 = new GrayF32(
-               mpd.getAnyImage().getWidth(), mpd.getAnyImage().getHeight());
-
-         // single position data
+         // Planes are assembled on several threads, and written in order
+         List<Callable<Image>> planes = new ArrayList<>();
          final int spdTLength = test ? 1 : spd.getNextIndex(Coords.T);
          final int spdCLength = test ? 1 : spd.getNextIndex(Coords.C);
-         Metadata.Builder newMetadataB;
          for (int t = 0; t < spdTLength; t++) {
             for (int c = 0; c < spdCLength; c++) {
-               cb.t(t).c(c).p(0).z(0);
-               Image img = spd.getImage(cb.p(0).build());
-               if (img != null) {
-                  newMetadataB = img.getMetadata()
-                        .copyBuilderWithNewUUID().pixelSizeUm(basePixelSize);
-                  /*
-                  TODO: use stage position informatoin to correct for inaccuracies
-                  this will currently cause errors in the GImageMiscOps.copy step
-                  double pSize = img.getMetadata().getPixelSizeUm();
-                  double tmpXMinUm = img.getMetadata().getXPositionUm()
-                           - (0.5 * img.getWidth() * pSize);
-                  double tmpYMinUm = img.getMetadata().getYPositionUm()
-                           - (0.5 * img.getHeight() * pSize);
-
-                  int xMinPixel = (int) ((tmpXMinUm - xMinUm) / basePixelSize);
-                  int yMinPixel = (int) ((tmpYMinUm - yMinUm) / basePixelSize);
-                   */
-
-                  if (bytesPerPixel == 1) {
-                     GrayU8 tmp = new GrayU8(img.getWidth(), img.getHeight());
-                     tmp.setData((byte[]) img.getRawPixels());
-                     oldImgBoof = tmp;
-                  } else { // bytesPerPixel == 2
-                     GrayU16 tmp = new GrayU16(img.getWidth(), img.getHeight());
-                     tmp.setData((short[]) img.getRawPixels());
-                     oldImgBoof = tmp;
-                  }
-                  //GImageMiscOps.copy(0, 0, xMinPixel, yMinPixel, img.getWidth(), img.getHeight(),
-                  //        oldImgBoof, newImgBoof);
-                  GImageMiscOps.copy(0, 0, 0, 0, img.getWidth(), img.getHeight(),
-                          oldImgBoof, newImgBoof);
-                  Coords coords = cb.p(targetPosition).c(c).t(t).build();
-                  System.out.println(coords.toString());
-                  newMetadataB.positionName("Site-" + targetPosition);
-                  Image newImage = BoofCVImageConverter.boofCVToMM(newImgBoof,
-                          cb.p(targetPosition).c(c).t(t).build(), newMetadataB.build());
-                  output.putImage(newImage);
-                  GImageMiscOps.fill(newImgBoof, 0.0);
-               }
+               planes.add(singlePositionPlane(spd, t, c, targetPosition, basePixelSize,
+                     widthPixels, heightPixels));
             }
-            int progress = (int) (50.0 * t / spd.getNextIndex(Coords.T));
-            form.setStatus(" " + progress + "%");
          }
 
-         // multi position data
+         // Maps of the positions of the first time point and channel.  Planes
+         // with other stage positions in their metadata get their own.
+         final Map<Integer, PositionMap> positionMaps = new HashMap<>();
+         for (int p = 0; p < mpd.getNextIndex(Coords.STAGE_POSITION); p++) {
+            Image img = mpd.getImage(Coordinates.builder().t(0).c(0).z(0).p(p).build());
+            if (img != null) {
+               positionMaps.put(p, new PositionMap(img, centerXUm, centerYUm,
+                     multiPositionAf64, singlePositionAf64I, widthPixels, heightPixels));
+            }
+         }
          final int mpdTLength = test ? 1 : mpd.getNextIndex(Coords.T);
-         final int mpdCLenghth = test ? 1 : mpd.getNextIndex(Coords.C);
+         final int mpdCLength = test ? 1 : mpd.getNextIndex(Coords.C);
          for (int t = 0; t < mpdTLength; t++) {
-            for (int c = 0; c < mpdCLenghth; c++) {
-               newMetadataB = null;
-               for (int p = 0; p < mpd.getNextIndex(Coords.STAGE_POSITION); p++) {
-                  Image img = mpd.getImage(cb.c(c).t(t).p(p).build());
-                  if (img != null) {
-                     newMetadataB = img.getMetadata()
-                           .copyBuilderWithNewUUID().pixelSizeUm(basePixelSize);
-                     if (bytesPerPixel == 1) {
-                        GrayU8 tmp = new GrayU8(img.getWidth(), img.getHeight());
-                        tmp.setData((byte[]) img.getRawPixels());
-                        oldImgBoof = tmp;
-                     } else { // bytesPerPixel == 2
-                        GrayU16 tmp = new GrayU16(img.getWidth(), img.getHeight());
-                        tmp.setData((short[]) img.getRawPixels());
-                        //oldImgBoof = new GrayF32(img.getWidth(), img.getHeight());
-                        ConvertImage.convert(tmp, tmpImgNF32);
-                        oldImgBoof = tmp;
-                     }
-                     double diffX = centerXUm - img.getMetadata().getXPositionUm();
-                     double diffY = centerYUm - img.getMetadata().getYPositionUm();
+            for (int c = 0; c < mpdCLength; c++) {
+               planes.add(multiPositionPlane(mpd, t, c, spdCLength, targetPosition,
+                     basePixelSize, bytesPerPixel, widthPixels, heightPixels, centerXUm,
+                     centerYUm, multiPositionAf64, singlePositionAf64I, positionMaps));
+            }
+         }
 
-                     Affine2D_F64 aff = multiPositionAf64.copy();
+         if (!writePlanes(planes, output, form)) {
+            return null;
+         }
 
-                     aff.tx = -(diffX);
-                     aff.ty = -(diffY);
-                     //centerXUm - img.getMetadata().getXPositionUm(),.0
-                     //centerYUm - img.getMetadata().getYPositionUm());
+         return output;
 
-                     aff = aff.concat(singlePositionAf64I, null);
-                     //
-                     FDistort fd = new FDistort();
-                     fd.input(oldImgBoof);
-                     fd.output(tmpImgBoof);
-                     fd.affine(aff);
-                     fd.interpNN();
-                     fd.border(BorderType.SKIP);
-                     fd.apply();
-                     // GPixelMath.add(newImgBoof, tmpImgBoof, tmp2ImgBoof);
-                     // GConvertImage.convert(tmp2ImgBoof, newImgBoof);
-                     /*
-                     Affine2D_F32 a32 = new Affine2D_F32((float) aff.a11,
-                              (float) aff.a12,
-                              (float) aff.a21,
-                              (float) aff.a22,
-                              (float) aff.tx,
-                              (float) aff.ty );
-                     PixelTransformAffine_F32 model = new PixelTransformAffine_F32(a32);
-                     //PixelTransformHomography_F32 model =
-                        new PixelTransformHomography_F32();
-                     //model.set(pf);
-                     InterpolatePixelS<GrayF32> interp = FactoryInterpolation.bilinearPixelS(
-                             GrayF32.class, BorderType.ZERO);
-                     AssignPixelValue_SB.F32 f32 = new AssignPixelValue_SB.F32();
-                     ImageDistort<GrayF32, GrayF32> distort = new ImageDistortBasic_SB(
-                                    f32, interp);
-                     // ImageDistort<Planar<GrayF32>,Planar<GrayF32>> distort =
-                     //               DistortSupport.createDistortPL(
-                                          GrayF32.class, model, interp, false);
-                     distort.setModel(model);
-                     distort.setRenderAll(false);
-                     distort.apply(tmpImgNF32, tmpImgSF32);
-                     */
-                  }
+      } catch (IOException io2) {
+         studio.logs().showError(io2);
+      }
+
+      return null;
+   }
+
+   /**
+    * Runs the given tasks on as many threads as there are processors and
+    * writes their images to the output in the order of the tasks.  Only a
+    * few planes per thread are held in memory at any time.
+    *
+    * @return false if the thread was interrupted
+    */
+   private static boolean writePlanes(List<Callable<Image>> planes, Datastore output,
+         AssembleDataForm form) throws IOException {
+      int threads = Runtime.getRuntime().availableProcessors();
+      ExecutorService executor = Executors.newFixedThreadPool(threads,
+            ThreadFactoryFactory.createThreadFactory("AssembleData"));
+      Deque<Future<Image>> inFlight = new ArrayDeque<>();
+      try {
+         int submitted = 0;
+         for (int written = 0; written < planes.size(); written++) {
+            while (submitted < planes.size()
+                  && inFlight.size() < threads * PLANES_IN_FLIGHT_PER_THREAD) {
+               inFlight.add(executor.submit(planes.get(submitted)));
+               submitted++;
+            }
+            Image image = inFlight.remove().get();
+            if (image != null) {
+               output.putImage(image);
+            }
+            int progress = (int) (100.0 * (written + 1) / planes.size());
+            form.setStatus(" " + progress + "%");
+         }
+         return true;
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         return false;
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+         }
+         throw new RuntimeException(ee.getCause());
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   /**
+    * Copies one plane of the single position data into an image of the
+    * output size.
+    */
+   private static Callable<Image> singlePositionPlane(final DataProvider spd, final int t,
+         final int c, final int targetPosition, final double basePixelSize,
+         final int widthPixels, final int heightPixels) {
+      return new Callable<Image>() {
+         @Override
+         public Image call() throws IOException {
+            Image img = spd.getImage(Coordinates.builder().t(t).c(c).p(0).z(0).build());
+            if (img == null) {
+               return null;
+            }
+            /*
+            TODO: use stage position informatoin to correct for inaccuracies
+            double pSize = img.getMetadata().getPixelSizeUm();
+            double tmpXMinUm = img.getMetadata().getXPositionUm()
+                     - (0.5 * img.getWidth() * pSize);
+            double tmpYMinUm = img.getMetadata().getYPositionUm()
+                     - (0.5 * img.getHeight() * pSize);
+
+            int xMinPixel = (int) ((tmpXMinUm - xMinUm) / basePixelSize);
+            int yMinPixel = (int) ((tmpYMinUm - yMinUm) / basePixelSize);
+             */
+            Object pixels = img.getRawPixels();
+            Object newPixels = Array.newInstance(pixels.getClass().getComponentType(),
+                  widthPixels * heightPixels);
+            int width = Math.min(img.getWidth(), widthPixels);
+            for (int y = 0; y < Math.min(img.getHeight(), heightPixels); y++) {
+               System.arraycopy(pixels, y * img.getWidth(), newPixels, y * widthPixels, width);
+            }
+            Metadata.Builder newMetadataB = img.getMetadata()
+                  .copyBuilderWithNewUUID().pixelSizeUm(basePixelSize);
+            newMetadataB.positionName("Site-" + targetPosition);
+            return new DefaultImage(newPixels, widthPixels, heightPixels,
+                  img.getBytesPerPixel(), 1,
+                  Coordinates.builder().t(t).c(c).p(targetPosition).z(0).build(),
+                  newMetadataB.build());
+         }
+      };
+   }
+
+   /**
+    * Places all positions of one plane of the multi position data in a single
+    * image.  Where positions overlap, the last position wins.
+    */
+   private static Callable<Image> multiPositionPlane(final DataProvider mpd, final int t,
+         final int c, final int channelOffset, final int targetPosition,
+         final double basePixelSize, final int bytesPerPixel, final int widthPixels,
+         final int heightPixels, final double centerXUm, final double centerYUm,
+         final Affine2D_F64 multiPositionAf64, final Affine2D_F64 singlePositionAf64I,
+         final Map<Integer, PositionMap> positionMaps) {
+      return new Callable<Image>() {
+         @Override
+         public Image call() throws IOException {
+            Object newPixels = bytesPerPixel == 1 ? new byte[widthPixels * heightPixels]
+                  : new short[widthPixels * heightPixels];
+            Metadata.Builder newMetadataB = null;
+            for (int p = 0; p < mpd.getNextIndex(Coords.STAGE_POSITION); p++) {
+               Image img = mpd.getImage(Coordinates.builder().t(t).c(c).z(0).p(p).build());
+               if (img == null) {
+                  continue;
                }
-               if (newMetadataB != null) {
-                  Coords coords = cb.p(targetPosition).c(c + spdCLength).t(t).build();
-                  System.out.println(coords.toString());                  
-                  newMetadataB.positionName("Site-" + targetPosition);
-                  //GrayU16 g = new GrayU16(tmpImgSF32.width, tmpImgSF32.height);
-                  //ConvertImage.convert(tmpImgSF32, g);
-                  Image newImage = BoofCVImageConverter.boofCVToMM(tmpImgBoof, 
-                          coords, newMetadataB.build());
-                  output.putImage(newImage);
-                  GImageMiscOps.fill(tmpImgBoof, 0.0);
+               newMetadataB = img.getMetadata()
+                     .copyBuilderWithNewUUID().pixelSizeUm(basePixelSize);
+               PositionMap map = positionMaps.get(p);
+               if (map == null || !map.matches(img, centerXUm, centerYUm)) {
+                  map = new PositionMap(img, centerXUm, centerYUm, multiPositionAf64,
+                        singlePositionAf64I, widthPixels, heightPixels);
                }
+               map.apply(img.getRawPixels(), newPixels);
             }
-            int progress = (int) (50.0 + 50.0 * t / spdTLength);
-            form.setStatus(" " + progress + "%");
+            if (newMetadataB == null) {
+               return null;
+            }
+            newMetadataB.positionName("Site-" + targetPosition);
+            return new DefaultImage(newPixels, widthPixels, heightPixels, bytesPerPixel, 1,
+                  Coordinates.builder().t(t).c(c + channelOffset).p(targetPosition).z(0)
+                        .build(),
+                  newMetadataB.build());
          }
+      };
+   }
 
-         return output;
+   /**
+    * Output pixels covered by one position of the multi position data, and the
+    * pixels of that position they take their (nearest neighbor) value from.
+    * Replaces warping every image with an affine transform, which is the
+    * same for all planes of a position.
+    */
+   static final class PositionMap {
+      private final double diffX_;
+      private final double diffY_;
+      private final int[] target_;
+      private final int[] source_;
 
-      } catch (IOException io2) {
-         studio.logs().showError(io2);
+      PositionMap(Image img, double centerXUm, double centerYUm,
+            Affine2D_F64 multiPositionAf64, Affine2D_F64 singlePositionAf64I,
+            int widthPixels, int heightPixels) {
+         diffX_ = centerXUm - img.getMetadata().getXPositionUm();
+         diffY_ = centerYUm - img.getMetadata().getYPositionUm();
+         Affine2D_F64 aff = multiPositionAf64.copy();
+         aff.tx = -(diffX_);
+         aff.ty = -(diffY_);
+         aff = aff.concat(singlePositionAf64I, null);
+         // from output to input, in single precision like BoofCV's distortion
+         Affine2D_F64 inv = aff.invert(null);
+         float a11 = (float) inv.a11;
+         float a12 = (float) inv.a12;
+         float a21 = (float) inv.a21;
+         float a22 = (float) inv.a22;
+         float tx = (float) inv.tx;
+         float ty = (float) inv.ty;
+         float maxX = img.getWidth() - 1;
+         float maxY = img.getHeight() - 1;
+         int width = img.getWidth();
+
+         int count = 0;
+         int[] target = new int[widthPixels * heightPixels];
+         int[] source = new int[widthPixels * heightPixels];
+         for (int y = 0; y < heightPixels; y++) {
+            for (int x = 0; x < widthPixels; x++) {
+               float sx = a11 * x + a12 * y + tx;
+               float sy = a21 * x + a22 * y + ty;
+               if (sx >= 0 && sx <= maxX && sy >= 0 && sy <= maxY) {
+                  target[count] = y * widthPixels + x;
+                  source[count] = (int) sy * width + (int) sx;
+                  count++;
+               }
+            }
+         }
+         target_ = Arrays.copyOf(target, count);
+         source_ = Arrays.copyOf(source, count);
       }
 
-      return null;
+      boolean matches(Image img, double centerXUm, double centerYUm) {
+         return diffX_ == centerXUm - img.getMetadata().getXPositionUm()
+               && diffY_ == centerYUm - img.getMetadata().getYPositionUm();
+      }
+
+      void apply(Object pixels, Object newPixels) {
+         if (pixels instanceof byte[]) {
+            byte[] in = (byte[]) pixels;
+            byte[] out = (byte[]) newPixels;
+            for (int i = 0; i < target_.length; i++) {
+               out[target_[i]] = in[source_[i]];
+            }
+         } else {
+            short[] in = (short[]) pixels;
+            short[] out = (short[]) newPixels;
+            for (int i = 0; i < target_.length; i++) {
+               out[target_[i]] = in[source_[i]];
+            }
+         }
+      }
    }
 
    /**
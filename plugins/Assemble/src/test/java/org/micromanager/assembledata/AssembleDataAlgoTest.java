@@ -0,0 +1,139 @@
+package org.micromanager.assembledata;
+
+import boofcv.abst.distort.FDistort;
+import boofcv.struct.border.BorderType;
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.ImageGray;
+import georegression.struct.affine.Affine2D_F64;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+
+/**
+ * Compares the position maps with the FDistort warping (nearest neighbor,
+ * skipped border) that they replaced.
+ */
+public class AssembleDataAlgoTest {
+   private static final int SOURCE_WIDTH = 24;
+   private static final int SOURCE_HEIGHT = 20;
+   private static final int WIDTH = 32;
+   private static final int HEIGHT = 24;
+   private static final double CENTER_X_UM = 100.0;
+   private static final double CENTER_Y_UM = 200.0;
+   // stage positions of the multi position images.  The last one extends
+   // beyond the right edge of the output.
+   private static final double[][] POSITIONS = {{103.0, 198.0}, {96.0, 205.0},
+         {114.0, 200.5}};
+
+   // pixels of the multi position data to microns, slightly rotated
+   private static Affine2D_F64 multiPositionAffine() {
+      return new Affine2D_F64(0.48, 0.05, -0.05, 0.48, 0.0, 0.0);
+   }
+
+   // microns to pixels of the output, centered as in AssembleDataAlgo
+   private static Affine2D_F64 singlePositionAffineInverse() {
+      return new Affine2D_F64(1.0, 0.0, 0.0, 1.0, WIDTH / 2.0 + 1.3, HEIGHT / 2.0 - 0.7);
+   }
+
+   private static Image image(Object pixels, int bytesPerPixel, double[] position) {
+      return new DefaultImage(pixels, SOURCE_WIDTH, SOURCE_HEIGHT, bytesPerPixel, 1,
+            Coordinates.builder().build(),
+            new DefaultMetadata.Builder().xPositionUm(position[0])
+                  .yPositionUm(position[1]).build());
+   }
+
+   /**
+    * Warps the image into output the way AssembleDataAlgo used to.
+    */
+   private static void distort(Image img, ImageGray<?> input, ImageGray<?> output) {
+      Affine2D_F64 aff = multiPositionAffine();
+      aff.tx = -(CENTER_X_UM - img.getMetadata().getXPositionUm());
+      aff.ty = -(CENTER_Y_UM - img.getMetadata().getYPositionUm());
+      aff = aff.concat(singlePositionAffineInverse(), null);
+      FDistort fd = new FDistort();
+      fd.input(input);
+      fd.output(output);
+      fd.affine(aff);
+      fd.interpNN();
+      fd.border(BorderType.SKIP);
+      fd.apply();
+   }
+
+   private static AssembleDataAlgo.PositionMap map(Image img) {
+      return new AssembleDataAlgo.PositionMap(img, CENTER_X_UM, CENTER_Y_UM,
+            multiPositionAffine(), singlePositionAffineInverse(), WIDTH, HEIGHT);
+   }
+
+   @Test
+   public void bytePositionsMatchFDistort() {
+      Random random = new Random(3);
+      GrayU8 expected = new GrayU8(WIDTH, HEIGHT);
+      byte[] actual = new byte[WIDTH * HEIGHT];
+      for (double[] position : POSITIONS) {
+         byte[] pixels = new byte[SOURCE_WIDTH * SOURCE_HEIGHT];
+         random.nextBytes(pixels);
+         for (int i = 0; i < pixels.length; i++) {
+            // zero marks output pixels that were not written
+            pixels[i] = pixels[i] == 0 ? 1 : pixels[i];
+         }
+         Image img = image(pixels, 1, position);
+         GrayU8 input = new GrayU8(SOURCE_WIDTH, SOURCE_HEIGHT);
+         input.setData(pixels);
+         distort(img, input, expected);
+         map(img).apply(pixels, actual);
+      }
+      Assert.assertArrayEquals(expected.data, actual);
+      checkCoverage(actual);
+   }
+
+   @Test
+   public void shortPositionsMatchFDistort() {
+      Random random = new Random(4);
+      GrayU16 expected = new GrayU16(WIDTH, HEIGHT);
+      short[] actual = new short[WIDTH * HEIGHT];
+      for (double[] position : POSITIONS) {
+         short[] pixels = new short[SOURCE_WIDTH * SOURCE_HEIGHT];
+         for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) (1 + random.nextInt(65535));
+         }
+         Image img = image(pixels, 2, position);
+         GrayU16 input = new GrayU16(SOURCE_WIDTH, SOURCE_HEIGHT);
+         input.setData(pixels);
+         distort(img, input, expected);
+         map(img).apply(pixels, actual);
+      }
+      Assert.assertArrayEquals(expected.data, actual);
+   }
+
+   @Test
+   public void mapIsReusedForTheSameStagePosition() {
+      Image img = image(new byte[SOURCE_WIDTH * SOURCE_HEIGHT], 1, POSITIONS[0]);
+      AssembleDataAlgo.PositionMap map = map(img);
+      Assert.assertTrue(map.matches(img, CENTER_X_UM, CENTER_Y_UM));
+      Assert.assertFalse(map.matches(image(new byte[SOURCE_WIDTH * SOURCE_HEIGHT], 1,
+            POSITIONS[1]), CENTER_X_UM, CENTER_Y_UM));
+   }
+
+   /**
+    * The test is only useful if some output pixels fall outside all
+    * positions, and the last position is cut off by the edge of the output.
+    */
+   private static void checkCoverage(byte[] output) {
+      int unwritten = 0;
+      for (byte b : output) {
+         unwritten += b == 0 ? 1 : 0;
+      }
+      Assert.assertTrue(unwritten > 0);
+      Assert.assertTrue(unwritten < output.length);
+      boolean rightEdgeWritten = false;
+      for (int y = 0; y < HEIGHT; y++) {
+         rightEdgeWritten |= output[y * WIDTH + WIDTH - 1] != 0;
+      }
+      Assert.assertTrue(rightEdgeWritten);
+   }
+}
@@ -0,0 +1,83 @@
+package org.micromanager.channelcorrector;
+
+import java.awt.image.AffineTransformOp;
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.internal.utils.WindowPositioning;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Lets the user choose the interpolation used to correct channels during
+ * acquisition.  The transforms themselves are set in the Correct Channels
+ * window.
+ */
+public class ChannelCorrectorConfigurator extends JFrame implements ProcessorConfigurator {
+   private static final int DEFAULT_WIN_X = 100;
+   private static final int DEFAULT_WIN_Y = 100;
+
+   // keys to store settings in the PropertyMap
+   static final String INTERPOLATION = "Interpolation";
+   static final String NEAREST_NEIGHBOR = "Nearest neighbor";
+   static final String BILINEAR = "Bilinear";
+   static final String BICUBIC = "Bicubic";
+
+   private final MutablePropertyMapView settings_;
+
+   public ChannelCorrectorConfigurator(PropertyMap configuratorSettings, Studio studio) {
+      settings_ = studio.profile().getSettings(this.getClass());
+      settings_.putAll(configuratorSettings);
+
+      initComponents();
+
+      super.setLocation(DEFAULT_WIN_X, DEFAULT_WIN_Y);
+      WindowPositioning.setUpLocationMemory(this, this.getClass(), null);
+   }
+
+   static int interpolationType(PropertyMap settings) {
+      String interpolation = settings.getString(INTERPOLATION, NEAREST_NEIGHBOR);
+      if (interpolation.equals(BILINEAR)) {
+         return AffineTransformOp.TYPE_BILINEAR;
+      } else if (interpolation.equals(BICUBIC)) {
+         return AffineTransformOp.TYPE_BICUBIC;
+      }
+      return AffineTransformOp.TYPE_NEAREST_NEIGHBOR;
+   }
+
+   private void initComponents() {
+      super.setTitle("Channel Correction");
+      setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
+      setLayout(new MigLayout("flowx"));
+
+      add(new JLabel("Uses the transforms set in " + ChannelCorrector.MENUNAME), "span 2, wrap");
+      add(new JLabel("Interpolation:"));
+      final JComboBox<String> interpolationComboBox =
+            new JComboBox<>(new String[] {NEAREST_NEIGHBOR, BILINEAR, BICUBIC});
+      interpolationComboBox.setSelectedItem(
+            settings_.getString(INTERPOLATION, NEAREST_NEIGHBOR));
+      interpolationComboBox.addActionListener(e -> settings_.putString(INTERPOLATION,
+            (String) interpolationComboBox.getSelectedItem()));
+      add(interpolationComboBox, "wrap");
+
+      pack();
+   }
+
+   @Override
+   public void showGUI() {
+      setVisible(true);
+   }
+
+   @Override
+   public void cleanup() {
+      dispose();
+   }
+
+   @Override
+   public PropertyMap getSettings() {
+      return settings_.toPropertyMap();
+   }
+}
@@ -0,0 +1,25 @@
+package org.micromanager.channelcorrector;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorFactory;
+
+/**
+ * Creates ChannelCorrectorProcessors from the settings of the configurator.
+ */
+public class ChannelCorrectorFactory implements ProcessorFactory {
+   private final PropertyMap settings_;
+   private final Studio studio_;
+
+   public ChannelCorrectorFactory(PropertyMap settings, Studio studio) {
+      settings_ = settings;
+      studio_ = studio;
+   }
+
+   @Override
+   public Processor createProcessor() {
+      return new ChannelCorrectorProcessor(studio_,
+            ChannelCorrectorConfigurator.interpolationType(settings_));
+   }
+}
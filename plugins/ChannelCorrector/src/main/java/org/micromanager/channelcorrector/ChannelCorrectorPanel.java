@@ -86,7 +86,7 @@ public class ChannelCorrectorPanel extends JPanel {
       String channelGroup = dataProvider.getSummaryMetadata().getChannelGroup();
       List<String> channels = dataProvider.getSummaryMetadata().getChannelNameList();
       final MutablePropertyMapView settings = studio.profile().getSettings(this.getClass());
-      final String key = channelGroup + "-" + channels.get(0) + "-" + channels.get(ch2nr_);
+      final String key = transformKey(channelGroup, channels.get(0), channels.get(ch2nr_));
       affineTransform_ = settings.getAffineTransform(key, new AffineTransform());
       super.setLayout(new MigLayout("flowx, fill, insets 8"));
 
@@ -155,6 +155,14 @@ public class ChannelCorrectorPanel extends JPanel {
       }
    }
 
+   /**
+    * Key under which the transform from a channel to the first channel is
+    * stored in the settings of this class.
+    */
+   static String transformKey(String channelGroup, String firstChannel, String channel) {
+      return channelGroup + "-" + firstChannel + "-" + channel;
+   }
+
    public void updateValues() {
       for (JFormattedTextField ftf : ftfs) {
          try {
@@ -0,0 +1,94 @@
+package org.micromanager.channelcorrector;
+
+import java.awt.geom.AffineTransform;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.Studio;
+import org.micromanager.channelcorrector.utils.AffineRemap;
+import org.micromanager.channelcorrector.utils.ImageAffineTransformException;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Transforms images of all channels but the first as they are acquired, so
+ * that they line up with the first channel.  Uses the transforms stored by
+ * the Correct Channels window for the channel group and channels of the
+ * acquisition.  Unlike the Correct Channels window, images keep their size;
+ * pixels without a source are set to 0.
+ */
+public class ChannelCorrectorProcessor implements Processor {
+   private final Studio studio_;
+   private final int interpolationType_;
+   // channel index -> transform to the first channel
+   private final Map<Integer, AffineTransform> transforms_ = new HashMap<>();
+   private final Map<Integer, AffineRemap> remaps_ = new HashMap<>();
+   private boolean warned_ = false;
+
+   public ChannelCorrectorProcessor(Studio studio, int interpolationType) {
+      studio_ = studio;
+      interpolationType_ = interpolationType;
+   }
+
+   @Override
+   public SummaryMetadata processSummaryMetadata(SummaryMetadata summary) {
+      transforms_.clear();
+      remaps_.clear();
+      List<String> channels = summary.getChannelNameList();
+      MutablePropertyMapView settings =
+            studio_.profile().getSettings(ChannelCorrectorPanel.class);
+      for (int c = 1; c < channels.size(); c++) {
+         String key = ChannelCorrectorPanel.transformKey(summary.getChannelGroup(),
+               channels.get(0), channels.get(c));
+         if (settings.containsAffineTransform(key)) {
+            AffineTransform aff = settings.getAffineTransform(key, null);
+            if (aff != null && !aff.isIdentity()) {
+               transforms_.put(c, aff);
+            }
+         }
+      }
+      return summary;
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      int c = image.getCoords().getC();
+      AffineTransform aff = transforms_.get(c);
+      if (aff == null) {
+         context.outputImage(image);
+         return;
+      }
+      if (image.getNumComponents() != 1 || image.getBytesPerPixel() > 2) {
+         warn("Channel Correction only handles 8 and 16 bit grayscale images");
+         context.outputImage(image);
+         return;
+      }
+      int width = image.getWidth();
+      int height = image.getHeight();
+      AffineRemap remap = remaps_.get(c);
+      if (remap == null || remap.getSourceWidth() != width
+            || remap.getSourceHeight() != height) {
+         try {
+            remap = new AffineRemap(aff, interpolationType_, width, height, width, height);
+         } catch (ImageAffineTransformException iae) {
+            warn(iae.getMessage());
+            context.outputImage(image);
+            return;
+         }
+         remaps_.put(c, remap);
+      }
+      context.outputImage(studio_.data().createImage(remap.apply(image.getRawPixels()),
+            width, height, image.getBytesPerPixel(), 1, image.getCoords(),
+            image.getMetadata()));
+   }
+
+   private void warn(String message) {
+      if (!warned_) {
+         studio_.logs().logMessage(message + ", passing images unmodified");
+         warned_ = true;
+      }
+   }
+}
@@ -0,0 +1,54 @@
+package org.micromanager.channelcorrector;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.data.ProcessorFactory;
+import org.micromanager.data.ProcessorPlugin;
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.SciJavaPlugin;
+
+@Plugin(type = ProcessorPlugin.class)
+public class ChannelCorrectorProcessorPlugin implements ProcessorPlugin, SciJavaPlugin {
+   private static final String MENU_NAME = "Channel Correction";
+   private static final String TOOL_TIP_DESCRIPTION =
+         "Lines up channels with the first channel as images are acquired";
+   private static final String VERSION = "0.1";
+
+   private Studio studio_;
+
+   @Override
+   public void setContext(Studio studio) {
+      studio_ = studio;
+   }
+
+   @Override
+   public String getName() {
+      return MENU_NAME;
+   }
+
+   @Override
+   public String getHelpText() {
+      return TOOL_TIP_DESCRIPTION;
+   }
+
+   @Override
+   public String getVersion() {
+      return VERSION;
+   }
+
+   @Override
+   public String getCopyright() {
+      return "Regents of the University of California, 2026";
+   }
+
+   @Override
+   public ProcessorConfigurator createConfigurator(PropertyMap settings) {
+      return new ChannelCorrectorConfigurator(settings, studio_);
+   }
+
+   @Override
+   public ProcessorFactory createFactory(PropertyMap settings) {
+      return new ChannelCorrectorFactory(settings, studio_);
+   }
+}
@@ -0,0 +1,248 @@
+package org.micromanager.channelcorrector.utils;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.AffineTransformOp;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Table that tells for every pixel of a transformed image where its value
+ * comes from in the original image, so that images of the same size can be
+ * transformed without repeating the geometry.
+ *
+ * <p>Pixels are sampled at their centers, like AffineTransformOp does.
+ * Nearest neighbor stores one source pixel per destination pixel, bilinear
+ * stores the top-left source pixel and the fractions towards its right and
+ * lower neighbors.  Bicubic stores the source position, and interpolates the
+ * 4 x 4 surrounding pixels with the Catmull-Rom kernel, repeating the edge
+ * pixels.  Destination pixels without a source are set to 0.
+ *
+ * <p>Works on the raw 8 and 16 bit pixel arrays, and can be used from
+ * several threads at once.
+ */
+public final class AffineRemap {
+   private final int srcWidth_;
+   private final int srcHeight_;
+   private final int destWidth_;
+   private final int destHeight_;
+   private final int interpolationType_;
+   // source pixel (top-left for bilinear) of each destination pixel, or -1
+   private final int[] index_;
+   // bilinear only
+   private final float[] fractionX_;
+   private final float[] fractionY_;
+   // bicubic only, position in the source with pixel centers at integers
+   private final float[] sourceX_;
+   private final float[] sourceY_;
+
+   /**
+    * @param transform         transform from source to destination
+    * @param interpolationType AffineTransformOp interpolation type, other
+    *                          values are treated as nearest neighbor
+    * @param srcWidth          width of the source images
+    * @param srcHeight         height of the source images
+    * @param destWidth         width of the transformed images
+    * @param destHeight        height of the transformed images
+    * @throws ImageAffineTransformException when the transform can not be inverted
+    */
+   public AffineRemap(AffineTransform transform, int interpolationType, int srcWidth,
+         int srcHeight, int destWidth, int destHeight) throws ImageAffineTransformException {
+      AffineTransform inverse;
+      try {
+         inverse = transform.createInverse();
+      } catch (NoninvertibleTransformException nte) {
+         throw new ImageAffineTransformException("Affine transform can not be inverted");
+      }
+      srcWidth_ = srcWidth;
+      srcHeight_ = srcHeight;
+      destWidth_ = destWidth;
+      destHeight_ = destHeight;
+      if (interpolationType == AffineTransformOp.TYPE_BICUBIC) {
+         interpolationType_ = AffineTransformOp.TYPE_BICUBIC;
+      } else if (interpolationType == AffineTransformOp.TYPE_BILINEAR
+            && srcWidth > 1 && srcHeight > 1) {
+         interpolationType_ = AffineTransformOp.TYPE_BILINEAR;
+      } else {
+         interpolationType_ = AffineTransformOp.TYPE_NEAREST_NEIGHBOR;
+      }
+      final boolean bilinear = interpolationType_ == AffineTransformOp.TYPE_BILINEAR;
+      final boolean bicubic = interpolationType_ == AffineTransformOp.TYPE_BICUBIC;
+      index_ = new int[destWidth * destHeight];
+      fractionX_ = bilinear ? new float[index_.length] : null;
+      fractionY_ = bilinear ? new float[index_.length] : null;
+      sourceX_ = bicubic ? new float[index_.length] : null;
+      sourceY_ = bicubic ? new float[index_.length] : null;
+
+      double[] point = new double[2];
+      for (int y = 0; y < destHeight; y++) {
+         for (int x = 0; x < destWidth; x++) {
+            int i = y * destWidth + x;
+            point[0] = x + 0.5;
+            point[1] = y + 0.5;
+            inverse.transform(point, 0, point, 0, 1);
+            if (point[0] < 0 || point[0] >= srcWidth || point[1] < 0
+                  || point[1] >= srcHeight) {
+               index_[i] = -1;
+            } else if (bicubic) {
+               index_[i] = (int) point[1] * srcWidth + (int) point[0];
+               sourceX_[i] = (float) (point[0] - 0.5);
+               sourceY_[i] = (float) (point[1] - 0.5);
+            } else if (!bilinear) {
+               index_[i] = (int) point[1] * srcWidth + (int) point[0];
+            } else {
+               double sx = point[0] - 0.5;
+               double sy = point[1] - 0.5;
+               int x0 = Math.max(0, Math.min(srcWidth - 2, (int) Math.floor(sx)));
+               int y0 = Math.max(0, Math.min(srcHeight - 2, (int) Math.floor(sy)));
+               index_[i] = y0 * srcWidth + x0;
+               fractionX_[i] = (float) Math.max(0.0, Math.min(1.0, sx - x0));
+               fractionY_[i] = (float) Math.max(0.0, Math.min(1.0, sy - y0));
+            }
+         }
+      }
+   }
+
+   /**
+    * Size of the image that AffineTransformOp creates when transforming an
+    * image of the given size.
+    *
+    * @param transform transform from source to destination
+    * @param width     width of the source image
+    * @param height    height of the source image
+    * @return width and height of the transformed image
+    */
+   public static Dimension transformedSize(AffineTransform transform, int width, int height) {
+      Rectangle r = transform.createTransformedShape(new Rectangle(width, height)).getBounds();
+      return new Dimension(r.x + r.width, r.y + r.height);
+   }
+
+   public int getSourceWidth() {
+      return srcWidth_;
+   }
+
+   public int getSourceHeight() {
+      return srcHeight_;
+   }
+
+   public int getWidth() {
+      return destWidth_;
+   }
+
+   public int getHeight() {
+      return destHeight_;
+   }
+
+   /**
+    * @return AffineTransformOp interpolation type that is used
+    */
+   public int getInterpolationType() {
+      return interpolationType_;
+   }
+
+   /**
+    * Transforms an image.
+    *
+    * @param src source pixels, byte[] or short[]
+    * @return new array with the transformed pixels, of the same type
+    */
+   public Object apply(Object src) {
+      if (src instanceof byte[]) {
+         byte[] in = (byte[]) src;
+         byte[] out = new byte[index_.length];
+         if (interpolationType_ == AffineTransformOp.TYPE_BICUBIC) {
+            IntUnaryOperator pixel = s -> in[s] & 0xff;
+            for (int i = 0; i < out.length; i++) {
+               if (index_[i] >= 0) {
+                  out[i] = (byte) bicubic(pixel, 0xff, i);
+               }
+            }
+            return out;
+         }
+         for (int i = 0; i < out.length; i++) {
+            int s = index_[i];
+            if (s < 0) {
+               continue;
+            }
+            if (fractionX_ == null) {
+               out[i] = in[s];
+            } else {
+               out[i] = (byte) interpolate(in[s] & 0xff, in[s + 1] & 0xff,
+                     in[s + srcWidth_] & 0xff, in[s + srcWidth_ + 1] & 0xff, i);
+            }
+         }
+         return out;
+      }
+      short[] in = (short[]) src;
+      short[] out = new short[index_.length];
+      if (interpolationType_ == AffineTransformOp.TYPE_BICUBIC) {
+         IntUnaryOperator pixel = s -> in[s] & 0xffff;
+         for (int i = 0; i < out.length; i++) {
+            if (index_[i] >= 0) {
+               out[i] = (short) bicubic(pixel, 0xffff, i);
+            }
+         }
+         return out;
+      }
+      for (int i = 0; i < out.length; i++) {
+         int s = index_[i];
+         if (s < 0) {
+            continue;
+         }
+         if (fractionX_ == null) {
+            out[i] = in[s];
+         } else {
+            out[i] = (short) interpolate(in[s] & 0xffff, in[s + 1] & 0xffff,
+                  in[s + srcWidth_] & 0xffff, in[s + srcWidth_ + 1] & 0xffff, i);
+         }
+      }
+      return out;
+   }
+
+   private int interpolate(int v00, int v01, int v10, int v11, int i) {
+      float fx = fractionX_[i];
+      float fy = fractionY_[i];
+      float top = v00 + fx * (v01 - v00);
+      float bottom = v10 + fx * (v11 - v10);
+      return (int) (top + fy * (bottom - top) + 0.5f);
+   }
+
+   /**
+    * Catmull-Rom interpolation of the 4 x 4 source pixels around destination
+    * pixel i, rounded and clipped to 0..max.
+    */
+   private int bicubic(IntUnaryOperator pixel, int max, int i) {
+      float sx = sourceX_[i];
+      float sy = sourceY_[i];
+      int x0 = (int) Math.floor(sx);
+      int y0 = (int) Math.floor(sy);
+      float fx = sx - x0;
+      float fy = sy - y0;
+      float sum = 0.0f;
+      for (int j = 0; j < 4; j++) {
+         int y = Math.max(0, Math.min(srcHeight_ - 1, y0 - 1 + j));
+         float row = 0.0f;
+         for (int k = 0; k < 4; k++) {
+            int x = Math.max(0, Math.min(srcWidth_ - 1, x0 - 1 + k));
+            row += weight(fx - (k - 1)) * pixel.applyAsInt(y * srcWidth_ + x);
+         }
+         sum += weight(fy - (j - 1)) * row;
+      }
+      return Math.max(0, Math.min(max, (int) Math.floor(sum + 0.5f)));
+   }
+
+   /**
+    * Catmull-Rom (a = -0.5) cubic convolution kernel.
+    */
+   private static float weight(float t) {
+      t = Math.abs(t);
+      if (t <= 1.0f) {
+         return (1.5f * t - 2.5f) * t * t + 1.0f;
+      }
+      if (t < 2.0f) {
+         return ((-0.5f * t + 2.5f) * t - 4.0f) * t + 2.0f;
+      }
+      return 0.0f;
+   }
+}
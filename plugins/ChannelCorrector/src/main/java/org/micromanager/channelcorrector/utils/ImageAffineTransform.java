@@ -4,19 +4,22 @@
 
 package org.micromanager.channelcorrector.utils;
 
-import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import java.awt.Dimension;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.micromanager.Studio;
 import org.micromanager.data.Coordinates;
 import org.micromanager.data.Coords;
@@ -25,16 +28,26 @@ import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DisplayWindow;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
 
 /**
+ * Transforms all channels but the first of a dataset so that they line up
+ * with the first channel, and crops all channels to the area they share.
+ *
+ * <p>The geometry of each channel is worked out once, in an
+ * {@link AffineRemap}.  Independent planes are transformed on several
+ * threads and written to the new datastore in order.
+ *
  * @author nico
  */
 public class ImageAffineTransform {
+   // Planes being transformed or waiting to be written, per processor
+   private static final int PLANES_IN_FLIGHT_PER_THREAD = 2;
+
    private final Studio studio_;
    private final DataViewer dataViewer_;
-   private final ArrayList<AffineTransformOp> affineTransformOps_;
+   private final List<AffineTransform> affineTransforms_;
    private final int interpolationType_;
-   private final Object renderingHint_;
 
    public ImageAffineTransform(Studio studio, DataViewer dataViewer,
                                ArrayList<AffineTransform> affineTransforms,
@@ -47,42 +60,36 @@ public class ImageAffineTransform {
          interpolationType = AffineTransformOp.TYPE_NEAREST_NEIGHBOR;
       }
       interpolationType_ = interpolationType;
-      affineTransformOps_ = new ArrayList<>(affineTransforms.size());
-      for (AffineTransform aff : affineTransforms) {
-         affineTransformOps_.add(new AffineTransformOp(aff, interpolationType));
-      }
-      // Part of work-around bug in AffineTransformOp
-      Object rh = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
-      if (interpolationType_ == AffineTransformOp.TYPE_BICUBIC) {
-         rh = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
-      } else if (interpolationType_ == AffineTransformOp.TYPE_BILINEAR) {
-         rh = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
-      }
-      renderingHint_ = rh;
+      affineTransforms_ = new ArrayList<>(affineTransforms);
    }
 
    public void apply(boolean allPositions) throws IOException, ImageAffineTransformException {
       final DataProvider dp = dataViewer_.getDataProvider();
       final int maxChan = dp.getNextIndex(Coords.C) - 1;
-      if (maxChan != affineTransformOps_.size()) {
+      if (maxChan != affineTransforms_.size()) {
          studio_.logs().showError("Unexpected difference between viewer and affine transform data");
          return;
       }
       // Calculate eventual width and height
-      Coords.Builder builder = Coordinates.builder().t(0).z(0).p(0).c(0);
-      int minWidth = dp.getAnyImage().getWidth();
-      int minHeight = dp.getAnyImage().getHeight();
-      for (int c = 1; c <= maxChan; c++) {
-         AffineTransformOp affineTransformOp = affineTransformOps_.get(c - 1);
-         Image out = transformImage(dp.getImage(builder.c(c).build()),
-               affineTransformOp);
-         if (out.getWidth() < minWidth) {
-            minWidth = out.getWidth();
-         }
-         if (out.getHeight() < minHeight) {
-            minHeight = out.getHeight();
-         }
+      Image anyImage = dp.getAnyImage();
+      final int width = anyImage.getWidth();
+      final int height = anyImage.getHeight();
+      int minWidth = width;
+      int minHeight = height;
+      for (AffineTransform aff : affineTransforms_) {
+         Dimension size = AffineRemap.transformedSize(aff, width, height);
+         minWidth = Math.min(minWidth, size.width);
+         minHeight = Math.min(minHeight, size.height);
+      }
+      if (minWidth <= 0 || minHeight <= 0) {
+         throw new ImageAffineTransformException("Transformed images do not overlap");
       }
+      final List<AffineRemap> remaps = new ArrayList<>(affineTransforms_.size());
+      for (AffineTransform aff : affineTransforms_) {
+         remaps.add(new AffineRemap(aff, interpolationType_, width, height,
+               minWidth, minHeight));
+      }
+
       Datastore outStore = studio_.data().createRAMDatastore();
       List<Integer> positions = new ArrayList<>();
       String posString = "";
@@ -103,27 +110,76 @@ public class ImageAffineTransform {
       newDisplay.setDisplaySettings(dataViewer_.getDisplaySettings());
       studio_.displays().manage(outStore);
 
-      for (Integer p : positions) {
-         for (int t = 0; t < dp.getNextIndex(Coords.T); t++) {
-            for (int z = 0; z < dp.getNextIndex(Coords.Z); z++) {
-               // crop channel 0 image, and add to outStore
-               int pos = p;
-               if (!allPositions) {
-                  pos = 0;
-               }
-               Image inImage = dp.getImage(builder.c(0).z(z).t(t).p(pos).build());
-               outStore.putImage(crop(inImage, 0, 0, minWidth, minHeight));
-               for (int c = 1; c < dp.getNextIndex(Coords.C); c++) {
-                  // transform other channel to channel 0, crop to size and add to store
-                  inImage = dp.getImage(builder.c(c).z(z).t(t).p(pos).build());
-                  outStore.putImage(
-                        transformImage(inImage, affineTransformOps_.get(c - 1), minWidth,
-                              minHeight));
+      final int cropWidth = minWidth;
+      final int cropHeight = minHeight;
+      int threads = Runtime.getRuntime().availableProcessors();
+      ExecutorService executor = Executors.newFixedThreadPool(threads,
+            ThreadFactoryFactory.createThreadFactory("ChannelCorrector"));
+      Deque<Future<List<Image>>> inFlight = new ArrayDeque<>();
+      try {
+         for (Integer p : positions) {
+            for (int t = 0; t < dp.getNextIndex(Coords.T); t++) {
+               for (int z = 0; z < dp.getNextIndex(Coords.Z); z++) {
+                  int pos = p;
+                  if (!allPositions) {
+                     pos = 0;
+                  }
+                  final Coords plane = Coordinates.builder().c(0).z(z).t(t).p(pos).build();
+                  inFlight.add(executor.submit(() ->
+                        transformPlane(dp, plane, remaps, cropWidth, cropHeight)));
+                  if (inFlight.size() >= threads * PLANES_IN_FLIGHT_PER_THREAD) {
+                     putImages(outStore, inFlight.remove());
+                  }
                }
             }
          }
+         while (!inFlight.isEmpty()) {
+            putImages(outStore, inFlight.remove());
+         }
+      } finally {
+         executor.shutdownNow();
       }
+   }
 
+   /**
+    * Crops channel 0 and transforms the other channels of one plane.
+    */
+   private List<Image> transformPlane(DataProvider dp, Coords plane, List<AffineRemap> remaps,
+         int width, int height) throws IOException, ImageAffineTransformException {
+      List<Image> result = new ArrayList<>(remaps.size() + 1);
+      // crop channel 0 image, and add to outStore
+      Image inImage = dp.getImage(plane);
+      if (inImage != null) {
+         result.add(crop(inImage, 0, 0, width, height));
+      }
+      for (int c = 1; c <= remaps.size(); c++) {
+         // transform other channel to channel 0, crop to size and add to store
+         inImage = dp.getImage(plane.copyBuilder().c(c).build());
+         if (inImage != null) {
+            result.add(transformImage(inImage, remaps.get(c - 1)));
+         }
+      }
+      return result;
+   }
+
+   private static void putImages(Datastore store, Future<List<Image>> images)
+         throws IOException, ImageAffineTransformException {
+      try {
+         for (Image image : images.get()) {
+            store.putImage(image);
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while correcting channels");
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+         }
+         if (ee.getCause() instanceof ImageAffineTransformException) {
+            throw (ImageAffineTransformException) ee.getCause();
+         }
+         throw new RuntimeException(ee.getCause());
+      }
    }
 
    public Image crop(Image inImg, int x, int y, int width, int height)
@@ -151,72 +207,28 @@ public class ImageAffineTransform {
 
 
    /**
-    * Given an input image and affine transform, will apply the affine transform
-    * to the image and returned the transformed image (which may be of a different size
-    * from the input image
-    * For now only works on 16 bit (short) images
+    * Applies a precomputed transform to the image.  The result has the size
+    * of the remap.
     *
-    * @param inImg - input image
-    * @param aOp   - affine transform operation that will be applied
-    */
-   public Image transformImage(Image inImg, AffineTransformOp aOp
-   ) throws ImageAffineTransformException {
-
-      if (inImg.getBytesPerPixel() != 2) {
-         throw new ImageAffineTransformException(
-               "ImageAffineTransform only works with 2 bytes per pixel");
-      }
-
-      ShortProcessor testProc = (ShortProcessor) studio_.data().ij().createProcessor(inImg);
-      BufferedImage bi16 = testProc.get16BitBufferedImage();
-      BufferedImage afBi16 = aOp.filter(bi16, null);
-      ImagePlus p = new ImagePlus("", afBi16);
-
-      return studio_.data().ij()
-            .createImage(p.getProcessor(), inImg.getCoords(), inImg.getMetadata());
-   }
-
-   /**
-    * Uses the provided AffineTransform to transfrom the input image, then crops
-    * it to given width and height
-    *
-    * @param inImg  Input Image to be transformed
-    * @param aOp    AffineTransformOp to be applied
-    * @param width  Width in pixels of result image
-    * @param height Height in pixels of result image
+    * @param inImg Input Image to be transformed
+    * @param remap Remap table for images of this size
     * @return Transformed Image
-    * @throws ImageAffineTransformException Currently only thrown when input != 16 bit image
+    * @throws ImageAffineTransformException when the image is not 8 or 16 bit
+    *                                       grayscale, or has the wrong size
     */
-   public Image transformImage(Image inImg, AffineTransformOp aOp, int width, int height
-   ) throws ImageAffineTransformException {
-
-      if (inImg.getBytesPerPixel() != 2) {
+   public Image transformImage(Image inImg, AffineRemap remap)
+         throws ImageAffineTransformException {
+      if (inImg.getNumComponents() != 1
+            || (inImg.getBytesPerPixel() != 1 && inImg.getBytesPerPixel() != 2)) {
          throw new ImageAffineTransformException(
-               "ImageAffineTransform only works with 2 bytes per pixel");
+               "ImageAffineTransform only works with 8 and 16 bit grayscale images");
       }
-
-      ShortProcessor testProc = (ShortProcessor) studio_.data().ij().createProcessor(inImg);
-      BufferedImage bi16 = testProc.get16BitBufferedImage();
-      BufferedImage aOpResult = new BufferedImage(bi16.getWidth(),
-            bi16.getHeight(), BufferedImage.TYPE_USHORT_GRAY);
-      aOp.filter(bi16, aOpResult);
-      if (interpolationType_ == AffineTransformOp.TYPE_NEAREST_NEIGHBOR) {
-         aOp.filter(bi16, aOpResult);
-      } else {
-         // work around bug in AffineTransformationOp, see:
-         // http://stackoverflow.com/questions/2428109/java-error-on-bilinear-interpolation-of-16-bit-data
-         // Note: although the image looks alright, histogram values are strangely distorted
-         // presumably, since calculations are done with bytes rather than shorts
-         Graphics2D g = aOpResult.createGraphics();
-         g.transform(aOp.getTransform());
-         g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, renderingHint_);
-         g.drawImage(bi16, null, 0, 0);
+      if (inImg.getWidth() != remap.getSourceWidth()
+            || inImg.getHeight() != remap.getSourceHeight()) {
+         throw new ImageAffineTransformException("Image size differs from that of the dataset");
       }
-      ImagePlus p = new ImagePlus("", aOpResult);
-      ImageProcessor destProc = p.getProcessor();
-      destProc.setRoi(0, 0, width, height);
-      destProc = destProc.crop();
-
-      return studio_.data().ij().createImage(destProc, inImg.getCoords(), inImg.getMetadata());
+      return studio_.data().createImage(remap.apply(inImg.getRawPixels()),
+            remap.getWidth(), remap.getHeight(), inImg.getBytesPerPixel(), 1,
+            inImg.getCoords(), inImg.getMetadata());
    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,207 @@
+package org.micromanager.channelcorrector.utils;
+
+import java.awt.Dimension;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the remap tables with AffineTransformOp, which was used before.
+ */
+public class AffineRemapTest {
+   private static final int WIDTH = 64;
+   private static final int HEIGHT = 48;
+
+   private static AffineTransform translation() {
+      return AffineTransform.getTranslateInstance(3.0, 2.0);
+   }
+
+   // a typical correction between two cameras: small rotation, scale and shift
+   private static AffineTransform general() {
+      AffineTransform aff = AffineTransform.getTranslateInstance(1.7, -0.6);
+      aff.rotate(0.02);
+      aff.scale(1.01, 0.995);
+      return aff;
+   }
+
+   private static short[] random(long seed) {
+      Random random = new Random(seed);
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) random.nextInt(65536);
+      }
+      return pixels;
+   }
+
+   // Smooth image, so that interpolation differences stay small.  Bilinear
+   // and bicubic AffineTransformOp return wrong values around 32768 for 16 bit
+   // images, so stay below that.
+   private static short[] smooth() {
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            pixels[y * WIDTH + x] = (short) (15000 + 10000 * Math.sin(x / 5.0)
+                  * Math.cos(y / 7.0));
+         }
+      }
+      return pixels;
+   }
+
+   private static short[] transformOp(short[] pixels, AffineTransform aff,
+         int interpolationType) {
+      BufferedImage src = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_USHORT_GRAY);
+      System.arraycopy(pixels, 0,
+            ((DataBufferUShort) src.getRaster().getDataBuffer()).getData(), 0, pixels.length);
+      AffineTransformOp op = new AffineTransformOp(aff, interpolationType);
+      Dimension size = AffineRemap.transformedSize(aff, WIDTH, HEIGHT);
+      Assert.assertEquals(op.getBounds2D(src).getBounds().getMaxX(), size.width, 0.0);
+      Assert.assertEquals(op.getBounds2D(src).getBounds().getMaxY(), size.height, 0.0);
+      // other interpolation types would create an RGB image
+      BufferedImage dest = new BufferedImage(size.width, size.height,
+            BufferedImage.TYPE_USHORT_GRAY);
+      op.filter(src, dest);
+      return ((DataBufferUShort) dest.getRaster().getDataBuffer()).getData();
+   }
+
+   private static short[] remap(short[] pixels, AffineTransform aff, int interpolationType)
+         throws ImageAffineTransformException {
+      Dimension size = AffineRemap.transformedSize(aff, WIDTH, HEIGHT);
+      return (short[]) new AffineRemap(aff, interpolationType, WIDTH, HEIGHT,
+            size.width, size.height).apply(pixels);
+   }
+
+   /**
+    * @return number of pixels that differ by more than tolerance
+    */
+   private static int differences(short[] expected, short[] actual, int tolerance) {
+      Assert.assertEquals(expected.length, actual.length);
+      int count = 0;
+      for (int i = 0; i < expected.length; i++) {
+         if (Math.abs((expected[i] & 0xffff) - (actual[i] & 0xffff)) > tolerance) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Largest difference between pixels whose source lies at least 2 pixels
+    * inside the image.  Near the edges, AffineTransformOp mixes in pixels
+    * outside the image, while AffineRemap repeats the edge pixels.
+    */
+   private static int interiorDifference(short[] expected, short[] actual,
+         AffineTransform aff) throws Exception {
+      AffineTransform inverse = aff.createInverse();
+      int width = AffineRemap.transformedSize(aff, WIDTH, HEIGHT).width;
+      int max = 0;
+      int count = 0;
+      for (int i = 0; i < expected.length; i++) {
+         Point2D src = inverse.transform(
+               new Point2D.Double(i % width + 0.5, i / width + 0.5), null);
+         if (src.getX() >= 2.0 && src.getX() <= WIDTH - 2.0
+               && src.getY() >= 2.0 && src.getY() <= HEIGHT - 2.0) {
+            max = Math.max(max, Math.abs((expected[i] & 0xffff) - (actual[i] & 0xffff)));
+            count++;
+         }
+      }
+      Assert.assertTrue(count > expected.length / 2);
+      return max;
+   }
+
+   @Test
+   public void nearestNeighborTranslationMatchesExactly() throws Exception {
+      short[] pixels = random(1);
+      int type = AffineTransformOp.TYPE_NEAREST_NEIGHBOR;
+      Assert.assertArrayEquals(transformOp(pixels, translation(), type),
+            remap(pixels, translation(), type));
+   }
+
+   @Test
+   public void nearestNeighborGeneralTransformMatches() throws Exception {
+      short[] pixels = random(2);
+      int type = AffineTransformOp.TYPE_NEAREST_NEIGHBOR;
+      short[] expected = transformOp(pixels, general(), type);
+      // pixel centers that are within rounding error of a source pixel edge
+      // may pick the neighbor
+      Assert.assertTrue(differences(expected, remap(pixels, general(), type), 0)
+            <= expected.length / 500);
+   }
+
+   @Test
+   public void bilinearMatches() throws Exception {
+      short[] pixels = smooth();
+      int type = AffineTransformOp.TYPE_BILINEAR;
+      short[] expected = transformOp(pixels, general(), type);
+      short[] actual = remap(pixels, general(), type);
+      Assert.assertTrue(interiorDifference(expected, actual, general()) <= 2);
+   }
+
+   @Test
+   public void bicubicMatches() throws Exception {
+      short[] pixels = smooth();
+      int type = AffineTransformOp.TYPE_BICUBIC;
+      short[] expected = transformOp(pixels, general(), type);
+      short[] actual = remap(pixels, general(), type);
+      // AffineTransformOp samples at fixed point positions, which is a few
+      // gray values off on the steepest slopes
+      Assert.assertTrue(interiorDifference(expected, actual, general()) <= 5);
+      // and it is not bilinear
+      Assert.assertTrue(differences(remap(pixels, general(),
+            AffineTransformOp.TYPE_BILINEAR), actual, 0) > 0);
+   }
+
+   @Test
+   public void bicubicReproducesSourceOnTranslationByWholePixels() throws Exception {
+      short[] pixels = random(3);
+      AffineRemap remap = new AffineRemap(AffineTransform.getTranslateInstance(0, 0),
+            AffineTransformOp.TYPE_BICUBIC, WIDTH, HEIGHT, WIDTH, HEIGHT);
+      Assert.assertEquals(AffineTransformOp.TYPE_BICUBIC, remap.getInterpolationType());
+      Assert.assertArrayEquals(pixels, (short[]) remap.apply(pixels));
+   }
+
+   @Test
+   public void bytePixelsMatchShortPixels() throws Exception {
+      short[] shorts = random(4);
+      byte[] bytes = new byte[shorts.length];
+      for (int i = 0; i < shorts.length; i++) {
+         bytes[i] = (byte) (shorts[i] & 0xff);
+         shorts[i] = (short) (shorts[i] & 0xff);
+      }
+      for (int type : new int[] {AffineTransformOp.TYPE_NEAREST_NEIGHBOR,
+            AffineTransformOp.TYPE_BILINEAR, AffineTransformOp.TYPE_BICUBIC}) {
+         Dimension size = AffineRemap.transformedSize(general(), WIDTH, HEIGHT);
+         AffineRemap remap = new AffineRemap(general(), type, WIDTH, HEIGHT,
+               size.width, size.height);
+         byte[] b = (byte[]) remap.apply(bytes);
+         short[] s = (short[]) remap.apply(shorts);
+         for (int i = 0; i < b.length; i++) {
+            // bicubic can overshoot, 8 bit results are clipped at 255
+            Assert.assertEquals(Math.min(255, s[i]), b[i] & 0xff);
+         }
+      }
+   }
+
+   @Test
+   public void nearestNeighborBytesMatchTransformOp() throws Exception {
+      Random random = new Random(5);
+      byte[] pixels = new byte[WIDTH * HEIGHT];
+      random.nextBytes(pixels);
+      BufferedImage src = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+      System.arraycopy(pixels, 0,
+            ((DataBufferByte) src.getRaster().getDataBuffer()).getData(), 0, pixels.length);
+      BufferedImage dest = new AffineTransformOp(translation(),
+            AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(src, null);
+      Dimension size = AffineRemap.transformedSize(translation(), WIDTH, HEIGHT);
+      byte[] actual = (byte[]) new AffineRemap(translation(),
+            AffineTransformOp.TYPE_NEAREST_NEIGHBOR, WIDTH, HEIGHT, size.width,
+            size.height).apply(pixels);
+      Assert.assertArrayEquals(((DataBufferByte) dest.getRaster().getDataBuffer()).getData(),
+            actual);
+   }
+}
@@ -0,0 +1,103 @@
+package org.micromanager.driftregistration;
+
+import javax.swing.ButtonGroup;
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JRadioButton;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.internal.utils.WindowPositioning;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Lets the user choose the reference, the size of the region used to
+ * measure drift and the time budget per image.
+ */
+public class DriftRegistrationConfigurator extends JFrame implements ProcessorConfigurator {
+   private static final int DEFAULT_WIN_X = 100;
+   private static final int DEFAULT_WIN_Y = 100;
+
+   // keys to store settings in the PropertyMap
+   static final String REFERENCE = "Reference";
+   static final String FIRST_FRAME = "First frame";
+   static final String PREVIOUS_FRAME = "Previous frame";
+   static final String REGION_SIZE = "RegionSize";
+   static final String TIME_BUDGET_MS = "TimeBudgetMs";
+   static final int DEFAULT_REGION_SIZE = 256;
+   static final int DEFAULT_TIME_BUDGET_MS = 20;
+   private static final Integer[] REGION_SIZES = {64, 128, 256, 512, 1024};
+
+   private final MutablePropertyMapView settings_;
+
+   public DriftRegistrationConfigurator(PropertyMap configuratorSettings, Studio studio) {
+      settings_ = studio.profile().getSettings(this.getClass());
+      settings_.putAll(configuratorSettings);
+
+      initComponents();
+
+      super.setLocation(DEFAULT_WIN_X, DEFAULT_WIN_Y);
+      WindowPositioning.setUpLocationMemory(this, this.getClass(), null);
+   }
+
+   private void initComponents() {
+      super.setTitle("Drift Registration");
+      setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
+      setLayout(new MigLayout("flowx"));
+
+      add(new JLabel("Reference:"));
+      String reference = settings_.getString(REFERENCE, FIRST_FRAME);
+      JRadioButton firstButton = new JRadioButton(FIRST_FRAME);
+      firstButton.setSelected(reference.equals(FIRST_FRAME));
+      firstButton.addActionListener(e -> settings_.putString(REFERENCE, FIRST_FRAME));
+      JRadioButton previousButton = new JRadioButton(PREVIOUS_FRAME);
+      previousButton.setSelected(reference.equals(PREVIOUS_FRAME));
+      previousButton.setToolTipText("Follows samples that change over time, "
+            + "but errors add up over many images");
+      previousButton.addActionListener(e -> settings_.putString(REFERENCE, PREVIOUS_FRAME));
+      final ButtonGroup bg = new ButtonGroup();
+      bg.add(firstButton);
+      bg.add(previousButton);
+      add(firstButton);
+      add(previousButton, "wrap");
+
+      add(new JLabel("Region size (pixels):"));
+      final JComboBox<Integer> sizeComboBox = new JComboBox<>(REGION_SIZES);
+      sizeComboBox.setSelectedItem(settings_.getInteger(REGION_SIZE, DEFAULT_REGION_SIZE));
+      sizeComboBox.setToolTipText("Size of the centered square used to measure drift.  "
+            + "Drift can be measured up to half this size.");
+      sizeComboBox.addActionListener(e -> settings_.putInteger(REGION_SIZE,
+            (Integer) sizeComboBox.getSelectedItem()));
+      add(sizeComboBox, "span 2, wrap");
+
+      add(new JLabel("Time budget (ms/image):"));
+      final JSpinner budgetSpinner = new JSpinner(new SpinnerNumberModel(
+            settings_.getInteger(TIME_BUDGET_MS, DEFAULT_TIME_BUDGET_MS), 0, 10000, 5));
+      budgetSpinner.setToolTipText("When measuring takes longer, drift is measured in "
+            + "fewer images.  0 measures every image.");
+      budgetSpinner.addChangeListener(e -> settings_.putInteger(TIME_BUDGET_MS,
+            (Integer) budgetSpinner.getValue()));
+      add(budgetSpinner, "span 2, wrap");
+
+      pack();
+   }
+
+   @Override
+   public void showGUI() {
+      setVisible(true);
+   }
+
+   @Override
+   public void cleanup() {
+      dispose();
+   }
+
+   @Override
+   public PropertyMap getSettings() {
+      return settings_.toPropertyMap();
+   }
+}
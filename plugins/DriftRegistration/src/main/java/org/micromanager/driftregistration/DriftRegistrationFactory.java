@@ -0,0 +1,31 @@
+package org.micromanager.driftregistration;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorFactory;
+
+/**
+ * Creates DriftRegistrationProcessors from the settings of the configurator.
+ */
+public class DriftRegistrationFactory implements ProcessorFactory {
+   private final PropertyMap settings_;
+   private final Studio studio_;
+
+   public DriftRegistrationFactory(PropertyMap settings, Studio studio) {
+      settings_ = settings;
+      studio_ = studio;
+   }
+
+   @Override
+   public Processor createProcessor() {
+      return new DriftRegistrationProcessor(studio_,
+            settings_.getString(DriftRegistrationConfigurator.REFERENCE,
+                  DriftRegistrationConfigurator.FIRST_FRAME)
+                  .equals(DriftRegistrationConfigurator.PREVIOUS_FRAME),
+            settings_.getInteger(DriftRegistrationConfigurator.REGION_SIZE,
+                  DriftRegistrationConfigurator.DEFAULT_REGION_SIZE),
+            settings_.getInteger(DriftRegistrationConfigurator.TIME_BUDGET_MS,
+                  DriftRegistrationConfigurator.DEFAULT_TIME_BUDGET_MS));
+   }
+}
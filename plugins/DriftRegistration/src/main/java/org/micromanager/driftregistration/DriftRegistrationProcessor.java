@@ -0,0 +1,230 @@
+package org.micromanager.driftregistration;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Map;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.imageprocessing.PhaseCorrelator;
+
+/**
+ * Registers every image against a reference image of the same position,
+ * channel and z slice, and shifts it (with sub-pixel precision) so that it
+ * lines up with the reference.  The drift is measured by phase correlation
+ * of a centered square region.
+ *
+ * <p>The reference is either the first image, or the previous image, in
+ * which case the drift is the sum of the movements between consecutive
+ * images.  Measuring costs two Fourier transforms of the region.  When that
+ * takes longer than the time budget, only every so many images are
+ * measured, and the images in between are corrected with the last measured
+ * drift.
+ *
+ * <p>The measured drift is added to the user data of each image.
+ */
+public class DriftRegistrationProcessor implements Processor {
+   static final String DX = "DriftRegistration-DX";
+   static final String DY = "DriftRegistration-DY";
+   static final String PEAK = "DriftRegistration-Peak";
+   static final String MEASURED = "DriftRegistration-Measured";
+
+   // Correlation peaks lower than this are considered noise, for example
+   // images taken with a closed shutter
+   private static final double MIN_PEAK = 0.02;
+
+   private final Studio studio_;
+   private final boolean rollingReference_;
+   private final int regionSize_;
+   private final long timeBudgetNs_;
+   private final Map<Coords, Track> tracks_ = new HashMap<>();
+   private boolean warnedAboutType_ = false;
+
+   /**
+    * Drift measurement state of one position, channel and z slice.
+    */
+   private static final class Track {
+      final PhaseCorrelator correlator;
+      final Rectangle region;
+      final double[] shift = new double[2];
+      // drift of the reference image
+      double referenceDx;
+      double referenceDy;
+      // drift of the most recent measured image
+      double dx;
+      double dy;
+      double peak = 1.0;
+      // average time per measurement
+      double costNs;
+      int skipped;
+
+      Track(Rectangle region) {
+         this.region = region;
+         correlator = new PhaseCorrelator(region.width, region.height);
+      }
+   }
+
+   /**
+    * @param studio           studio instance
+    * @param rollingReference compare with the previous image rather than the first
+    * @param regionSize       largest size of the square region used for
+    *                         measuring, in pixels
+    * @param timeBudgetMs     time per image that measuring should not exceed
+    *                         on average, or 0 to measure every image
+    */
+   public DriftRegistrationProcessor(Studio studio, boolean rollingReference,
+         int regionSize, int timeBudgetMs) {
+      studio_ = studio;
+      rollingReference_ = rollingReference;
+      regionSize_ = regionSize;
+      timeBudgetNs_ = timeBudgetMs * 1000000L;
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      if (image.getNumComponents() != 1 || image.getBytesPerPixel() > 2) {
+         if (!warnedAboutType_) {
+            studio_.logs().logMessage("Drift Registration only handles 8 and 16 bit "
+                  + "grayscale images, passing other images unmodified");
+            warnedAboutType_ = true;
+         }
+         context.outputImage(image);
+         return;
+      }
+      int width = image.getWidth();
+      int height = image.getHeight();
+      Coords key = image.getCoords().copyRemovingAxes(Coords.TIME_POINT);
+      Track track = tracks_.get(key);
+      if (track == null || track.region.width > width || track.region.height > height) {
+         int size = Math.max(4, Integer.highestOneBit(
+               Math.min(regionSize_, Math.min(width, height))));
+         track = new Track(new Rectangle((width - size) / 2, (height - size) / 2,
+               size, size));
+         tracks_.put(key, track);
+      }
+
+      boolean measured = false;
+      Object pixels = image.getRawPixels();
+      if (!track.correlator.hasReference()) {
+         track.correlator.setReference(pixels, width, track.region);
+         measured = true;
+      } else if (timeBudgetNs_ <= 0
+            || track.skipped + 1 >= Math.ceil(track.costNs / timeBudgetNs_)) {
+         measure(track, pixels, width);
+         track.skipped = 0;
+         measured = true;
+      } else {
+         track.skipped++;
+      }
+
+      context.outputImage(shiftImage(image, track.dx, track.dy, measured, track.peak));
+   }
+
+   @Override
+   public void cleanup(ProcessorContext context) {
+      tracks_.clear();
+   }
+
+   private void measure(Track track, Object pixels, int width) {
+      long start = System.nanoTime();
+      PhaseCorrelator correlator = track.correlator;
+      correlator.measure(pixels, width, track.region, correlator.getMaxShift(),
+            track.shift);
+      track.peak = correlator.getPeakValue();
+      if (track.peak >= MIN_PEAK) {
+         track.dx = track.referenceDx + track.shift[0];
+         track.dy = track.referenceDy + track.shift[1];
+         if (rollingReference_) {
+            correlator.updateReference();
+            track.referenceDx = track.dx;
+            track.referenceDy = track.dy;
+         }
+      }
+      long cost = System.nanoTime() - start;
+      track.costNs = track.costNs == 0.0 ? cost : 0.8 * track.costNs + 0.2 * cost;
+   }
+
+   /**
+    * Moves the contents of the image back by the drift, using bilinear
+    * interpolation.  Pixels that have no source in the original image are
+    * set to zero.
+    */
+   private Image shiftImage(Image image, double dx, double dy, boolean measured,
+         double peak) {
+      PropertyMap.Builder builder;
+      PropertyMap userData = image.getMetadata().getUserData();
+      if (userData != null) {
+         builder = userData.copyBuilder();
+      } else {
+         builder = PropertyMaps.builder();
+      }
+      builder.putDouble(DX, dx);
+      builder.putDouble(DY, dy);
+      builder.putDouble(PEAK, peak);
+      builder.putBoolean(MEASURED, measured);
+      Metadata metadata = image.getMetadata().copyBuilderPreservingUUID()
+            .userData(builder.build()).build();
+      if (dx == 0.0 && dy == 0.0) {
+         return image.copyWithMetadata(metadata);
+      }
+
+      int width = image.getWidth();
+      int height = image.getHeight();
+      int ix = (int) Math.floor(dx);
+      int iy = (int) Math.floor(dy);
+      double fx = dx - ix;
+      double fy = dy - iy;
+      double w00 = (1 - fx) * (1 - fy);
+      double w01 = fx * (1 - fy);
+      double w10 = (1 - fx) * fy;
+      double w11 = fx * fy;
+      // Output pixels whose sources are all inside the image
+      int x0 = Math.max(0, -ix);
+      int x1 = Math.min(width, width - ix - (fx > 0.0 ? 1 : 0));
+      int y0 = Math.max(0, -iy);
+      int y1 = Math.min(height, height - iy - (fy > 0.0 ? 1 : 0));
+      int nextColumn = fx > 0.0 ? 1 : 0;
+      int nextRow = fy > 0.0 ? width : 0;
+
+      Object source = image.getRawPixels();
+      Object result;
+      if (source instanceof byte[]) {
+         byte[] in = (byte[]) source;
+         byte[] out = new byte[width * height];
+         for (int y = y0; y < y1; y++) {
+            int o = y * width;
+            int s = (y + iy) * width + ix;
+            for (int x = x0; x < x1; x++) {
+               int a = s + x;
+               double v = w00 * (in[a] & 0xff) + w01 * (in[a + nextColumn] & 0xff)
+                     + w10 * (in[a + nextRow] & 0xff)
+                     + w11 * (in[a + nextRow + nextColumn] & 0xff);
+               out[o + x] = (byte) (int) (v + 0.5);
+            }
+         }
+         result = out;
+      } else {
+         short[] in = (short[]) source;
+         short[] out = new short[width * height];
+         for (int y = y0; y < y1; y++) {
+            int o = y * width;
+            int s = (y + iy) * width + ix;
+            for (int x = x0; x < x1; x++) {
+               int a = s + x;
+               double v = w00 * (in[a] & 0xffff) + w01 * (in[a + nextColumn] & 0xffff)
+                     + w10 * (in[a + nextRow] & 0xffff)
+                     + w11 * (in[a + nextRow + nextColumn] & 0xffff);
+               out[o + x] = (short) (int) (v + 0.5);
+            }
+         }
+         result = out;
+      }
+      return studio_.data().wrapImage(result, width, height, image.getBytesPerPixel(), 1,
+            image.getCoords(), metadata);
+   }
+}
@@ -0,0 +1,192 @@
+package org.micromanager.driftregistration;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.LogManager;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataManager;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+
+/**
+ * Feeds frames of a scene that drifts by a known amount through the
+ * processor, and checks the measured drift, the registered images and the
+ * metadata.
+ */
+public class DriftRegistrationProcessorTest {
+   private static final int WIDTH = 96;
+   private static final int HEIGHT = 80;
+   private static final double DX = 3.0;
+   private static final double DY = -2.0;
+
+   @Test
+   public void registersShiftedFrames() {
+      List<Image> out = process(new DriftRegistrationProcessor(studio(), false, 64, 0),
+            frame(0, scene(0.0, 0.0)), frame(1, scene(DX, DY)));
+
+      Image first = out.get(0);
+      Assert.assertArrayEquals(scene(0.0, 0.0), (short[]) first.getRawPixels());
+      PropertyMap userData = first.getMetadata().getUserData();
+      Assert.assertEquals(0.0, userData.getDouble(DriftRegistrationProcessor.DX, 1.0), 0.0);
+      Assert.assertEquals(0.0, userData.getDouble(DriftRegistrationProcessor.DY, 1.0), 0.0);
+      Assert.assertTrue(userData.getBoolean(DriftRegistrationProcessor.MEASURED, false));
+      Assert.assertEquals("kept", userData.getString("Existing", null));
+
+      // The scene moved right and up, so the drift has the same sign.
+      userData = out.get(1).getMetadata().getUserData();
+      Assert.assertEquals(DX, userData.getDouble(DriftRegistrationProcessor.DX, 0.0), 0.1);
+      Assert.assertEquals(DY, userData.getDouble(DriftRegistrationProcessor.DY, 0.0), 0.1);
+      Assert.assertTrue(userData.getDouble(DriftRegistrationProcessor.PEAK, 0.0) > 0.3);
+      Assert.assertTrue(userData.getBoolean(DriftRegistrationProcessor.MEASURED, false));
+      Assert.assertEquals("kept", userData.getString("Existing", null));
+      Assert.assertEquals(1, out.get(1).getCoords().getT());
+
+      // Shifted back, the frame matches the reference wherever it has a source.
+      short[] reference = scene(0.0, 0.0);
+      short[] registered = (short[]) out.get(1).getRawPixels();
+      for (int y = 3; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH - 4; x++) {
+            Assert.assertEquals("at " + x + ", " + y, reference[y * WIDTH + x],
+                  registered[y * WIDTH + x], 25);
+         }
+      }
+      // ... and is zero where it does not.
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = WIDTH - 3; x < WIDTH; x++) {
+            Assert.assertEquals(0, registered[y * WIDTH + x]);
+         }
+      }
+      for (int x = 0; x < WIDTH; x++) {
+         Assert.assertEquals(0, registered[x]);
+         Assert.assertEquals(0, registered[WIDTH + x]);
+      }
+   }
+
+   @Test
+   public void rollingReferenceAddsUpDrift() {
+      List<Image> out = process(new DriftRegistrationProcessor(studio(), true, 64, 0),
+            frame(0, scene(0.0, 0.0)), frame(1, scene(1.0, -1.0)),
+            frame(2, scene(DX, DY)));
+
+      PropertyMap userData = out.get(2).getMetadata().getUserData();
+      Assert.assertEquals(DX, userData.getDouble(DriftRegistrationProcessor.DX, 0.0), 0.2);
+      Assert.assertEquals(DY, userData.getDouble(DriftRegistrationProcessor.DY, 0.0), 0.2);
+   }
+
+   @Test
+   public void weakPeaksAreIgnored() {
+      // A blank frame, as taken with a closed shutter, has no correlation
+      // peak; the drift measured before is applied instead.
+      short[] blank = new short[WIDTH * HEIGHT];
+      Arrays.fill(blank, (short) 100);
+      List<Image> out = process(new DriftRegistrationProcessor(studio(), false, 64, 0),
+            frame(0, scene(0.0, 0.0)), frame(1, scene(DX, DY)), frame(2, blank));
+
+      PropertyMap userData = out.get(2).getMetadata().getUserData();
+      Assert.assertTrue(userData.getDouble(DriftRegistrationProcessor.PEAK, 1.0) < 0.02);
+      Assert.assertTrue(userData.getBoolean(DriftRegistrationProcessor.MEASURED, false));
+      Assert.assertEquals(DX, userData.getDouble(DriftRegistrationProcessor.DX, 0.0), 0.1);
+      Assert.assertEquals(DY, userData.getDouble(DriftRegistrationProcessor.DY, 0.0), 0.1);
+   }
+
+   private static List<Image> process(DriftRegistrationProcessor processor, Image... frames) {
+      final List<Image> out = new ArrayList<>();
+      ProcessorContext context = new ProcessorContext() {
+         @Override
+         public void outputImage(Image image) {
+            out.add(image);
+         }
+
+         @Override
+         public SummaryMetadata getSummaryMetadata() {
+            return null;
+         }
+      };
+      for (Image frame : frames) {
+         processor.processImage(frame, context);
+      }
+      processor.cleanup(context);
+      Assert.assertEquals(frames.length, out.size());
+      return out;
+   }
+
+   private static Image frame(int t, short[] pixels) {
+      Coords coords = new DefaultCoords.Builder().time(t).build();
+      Metadata metadata = new DefaultMetadata.Builder()
+            .userData(PropertyMaps.builder().putString("Existing", "kept").build())
+            .build();
+      return new DefaultImage(pixels, WIDTH, HEIGHT, 2, 1, coords, metadata);
+   }
+
+   /**
+    * Gaussian spots on a background, moved by (dx, dy).
+    */
+   private static short[] scene(double dx, double dy) {
+      Random random = new Random(3);
+      double[][] spots = new double[40][3];
+      for (double[] spot : spots) {
+         spot[0] = random.nextDouble() * WIDTH;
+         spot[1] = random.nextDouble() * HEIGHT;
+         spot[2] = 500 + random.nextInt(2000);
+      }
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            double v = 100.0;
+            for (double[] spot : spots) {
+               double ex = x - spot[0] - dx;
+               double ey = y - spot[1] - dy;
+               double d2 = ex * ex + ey * ey;
+               if (d2 < 50) {
+                  v += spot[2] * Math.exp(-d2 / 8.0);
+               }
+            }
+            pixels[y * WIDTH + x] = (short) Math.min(65535, Math.round(v));
+         }
+      }
+      return pixels;
+   }
+
+   /**
+    * Studio that only provides what the processor uses: wrapping pixels in
+    * an image, and logging.
+    */
+   private static Studio studio() {
+      final DataManager data = (DataManager) Proxy.newProxyInstance(
+            DataManager.class.getClassLoader(), new Class<?>[] {DataManager.class},
+            (proxy, method, args) -> {
+               if (method.getName().equals("wrapImage") && args.length == 7) {
+                  return new DefaultImage(args[0], (Integer) args[1], (Integer) args[2],
+                        (Integer) args[3], (Integer) args[4], (Coords) args[5],
+                        (Metadata) args[6]);
+               }
+               throw new UnsupportedOperationException(method.getName());
+            });
+      final LogManager logs = (LogManager) Proxy.newProxyInstance(
+            LogManager.class.getClassLoader(), new Class<?>[] {LogManager.class},
+            (proxy, method, args) -> null);
+      return (Studio) Proxy.newProxyInstance(Studio.class.getClassLoader(),
+            new Class<?>[] {Studio.class},
+            (proxy, method, args) -> {
+               if (method.getName().equals("data")) {
+                  return data;
+               } else if (method.getName().equals("logs")) {
+                  return logs;
+               }
+               throw new UnsupportedOperationException(method.getName());
+            });
+   }
+}
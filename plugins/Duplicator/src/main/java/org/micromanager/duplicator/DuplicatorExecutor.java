@@ -22,8 +22,8 @@
 package org.micromanager.duplicator;
 
 import ij.gui.Roi;
-import ij.process.ImageProcessor;
 import java.awt.Component;
+import java.awt.Rectangle;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -40,7 +40,6 @@ import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreFrozenException;
 import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
-import org.micromanager.data.SummaryMetadata;
 import org.micromanager.display.ChannelDisplaySettings;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DataViewerListener;
@@ -49,11 +48,16 @@ import org.micromanager.display.DisplayWindow;
 import org.micromanager.display.internal.displaywindow.DisplayController;
 
 /**
- * Does the actual Duplication.
+ * Does the actual Duplication.  Images are taken from a SubsetDataProvider,
+ * which crops them with row copies, and are put one by one into a new
+ * Datastore in memory or on disk.  The copy can be saved, and does not
+ * depend on the original staying open.  Uncropped images share their pixels
+ * with the original.
  *
  * @author nico
  */
 public class DuplicatorExecutor extends SwingWorker<Void, Void> {
+
    private final Studio studio_;
    private final DisplayWindow theWindow_;
    private final String newName_;
@@ -136,92 +140,68 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
 
    @Override
    protected Void doInBackground() {
-      
-      // TODO: provide options for disk-backed datastores
       DataProvider oldStore = theWindow_.getDataProvider();
-      Datastore tmpStore = null;
-      try {
-         if (saveMode_ == null) {
-            tmpStore = studio_.data().createRAMDatastore();
-         } else if (saveMode_ == Datastore.SaveMode.SINGLEPLANE_TIFF_SERIES) {
-            tmpStore = studio_.data().createSinglePlaneTIFFSeriesDatastore(filePath_);
-         } else if (saveMode_ == Datastore.SaveMode.MULTIPAGE_TIFF) {
-            // TODO: read options for parameters here
-            tmpStore = studio_.data().createMultipageTIFFDatastore(filePath_, true, true);
-         } else if (saveMode_ == Datastore.SaveMode.ND_TIFF) {
-            tmpStore = studio_.data().createNDTIFFDatastore(filePath_);
-         }
-      } catch (IOException ioe) {
-         studio_.logs().showError(ioe, "Failed to open new datastore on disk");
-         return null;
-      }
-
-      final Datastore newStore = tmpStore;
       final DisplaySettings originalDisplaySettings = theWindow_.getDisplaySettings();
       final DisplaySettings.Builder newDisplaySettingsBuilder =
             theWindow_.getDisplaySettings().copyBuilder();
 
       // TODO: use Overlays instead
       final Roi roi = theWindow_.getImagePlus().getRoi();
-      
-      Coords.CoordsBuilder newSizeCoordsBuilder = studio_.data().coordsBuilder();
-      for (String axis : oldStore.getAxes()) {
-         newSizeCoordsBuilder.index(axis, oldStore.getNextIndex(axis) - 1);
-      }
-      SummaryMetadata oldMetadata = oldStore.getSummaryMetadata();
-      List<String> channelNames = oldMetadata.getChannelNameList();
-      if (channels_ != null) {
+      final Rectangle region = roi == null ? null : roi.getBounds();
+
+      List<Integer> keptChannels = null;
+      if (channels_ != null && channels_.size() > 0) {
          List<ChannelDisplaySettings> channelDisplaySettings = new ArrayList<>();
-         List<String> chNameList = new ArrayList<>();
+         keptChannels = new ArrayList<>();
          int index = 0;
          for (Map.Entry<String, Boolean> channel : channels_.entrySet()) {
             if (channel.getValue()) {
-               chNameList.add(channel.getKey());
+               keptChannels.add(index);
                channelDisplaySettings.add(originalDisplaySettings.getChannelSettings(index));
             }
             index++;
          }
-         channelNames = chNameList;
          newDisplaySettingsBuilder.channels(channelDisplaySettings);
       }
-      newSizeCoordsBuilder.channel(channelNames.size());
-      float  nrToBeCopied = 1;
-      if (channels_ != null && channels_.size() > 0) {
-         nrToBeCopied *= channels_.size();
-      }
-      for (String axis : oldStore.getAxes()) {
-         if (mins_.containsKey(axis)) {
-            int min = mins_.get(axis);
-            int max = maxes_.get(axis);
-            newSizeCoordsBuilder.index(axis, max - min);
-            nrToBeCopied *= (max - min + 1);
-         }
+
+      // The view crops each image once, when it is copied, so it needs no cache
+      final SubsetDataProvider view = new SubsetDataProvider(studio_, oldStore, region,
+            mins_, maxes_, keptChannels, newName_, 0);
+      if (view.getSummaryMetadata().getImageWidth() == null
+            || view.getSummaryMetadata().getImageHeight() == null) {
+         studio_.logs().showError("Width and/or height is unexpectedly null");
+         closeView(view);
+         return null;
       }
 
-      Integer width = oldMetadata.getImageWidth();
-      if (roi != null) {
-         width = roi.getBounds().width;
+      Datastore tmpStore = null;
+      try {
+         if (saveMode_ == null) {
+            tmpStore = studio_.data().createRAMDatastore();
+         } else if (saveMode_ == Datastore.SaveMode.SINGLEPLANE_TIFF_SERIES) {
+            tmpStore = studio_.data().createSinglePlaneTIFFSeriesDatastore(filePath_);
+         } else if (saveMode_ == Datastore.SaveMode.MULTIPAGE_TIFF) {
+            // TODO: read options for parameters here
+            tmpStore = studio_.data().createMultipageTIFFDatastore(filePath_, true, true);
+         } else if (saveMode_ == Datastore.SaveMode.ND_TIFF) {
+            tmpStore = studio_.data().createNDTIFFDatastore(filePath_);
+         }
+      } catch (IOException ioe) {
+         studio_.logs().showError(ioe, "Failed to open new datastore on disk");
+         closeView(view);
+         return null;
       }
-      Integer height = oldMetadata.getImageHeight();
-      if (roi != null) {
-         height = roi.getBounds().height;
+      if (tmpStore == null) {
+         studio_.logs().showError("Unsupported save mode: " + saveMode_);
+         closeView(view);
+         return null;
       }
 
+      final Datastore newStore = tmpStore;
       CloseViewerListener closeListener = null;
 
       try {
-         if (width == null || height == null) {
-            throw new DuplicatorException("Width and/or height is unexpectedly null");
-         }
-
-         SummaryMetadata metadata = oldMetadata.copyBuilder()
-                 .channelNames(channelNames)
-                 .imageWidth(width)
-                 .imageHeight(height)
-                 .intendedDimensions(newSizeCoordsBuilder.build())
-                 .build();
-
-         newStore.setSummaryMetadata(metadata);
+         newStore.setSummaryMetadata(view.getSummaryMetadata());
          // The implementations of the store set SummaryMetadata on another thread.
          // This can lead to disasters, so we have to poll to make sure SummaryMetadata is
          // there.   Copied from DefaultDataSaver.
@@ -249,9 +229,8 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
          closeListener = new CloseViewerListener(copyDisplay);
          copyDisplay.addListener(closeListener, 1);
 
-         Iterable<Coords> unorderedImageCoords = oldStore.getUnorderedImageCoords();
          List<Coords> orderedImageCoords = new ArrayList<>();
-         for (Coords c : unorderedImageCoords) {
+         for (Coords c : view.getUnorderedImageCoords()) {
             orderedImageCoords.add(c);
          }
          final List<String> axisOrder = oldStore.getSummaryMetadata().getOrderedAxes();
@@ -271,93 +250,34 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
             }
          });
 
+         final float nrToBeCopied = Math.max(1, orderedImageCoords.size());
          int nrCopied = 0;
-         for (Coords oldCoord : orderedImageCoords) {
-            List<String> oldAxes = oldStore.getAxes();
-            boolean copy = !oldAxes.contains(Coords.CHANNEL);
-            for (String axis : oldStore.getAxes()) {
-               if (axis.equals(Coords.CHANNEL)) {
-                  int index = 0;
-                  for (Map.Entry<String, Boolean> channel : channels_.entrySet()) {
-                     if (channel.getValue() && oldCoord.getIndex(axis) == index) {
-                        copy = true;
-                        continue;
-                     }
-                     index++;
-                  }
-               }
+         for (Coords newCoords : orderedImageCoords) {
+            if (closeListener.isCancelled()) {
+               newStore.freeze();
+               return null;
             }
-            for (String axis : oldStore.getAxes()) {
-               if (copy && mins_.containsKey(axis) && maxes_.containsKey(axis)) {
-                  if (oldCoord.getIndex(axis) < (mins_.get(axis))) {
-                     copy = false;
-                  }
-                  if (oldCoord.getIndex(axis) > maxes_.get(axis)) {
-                     copy = false;
-                  }
-               }
-            }
-            if (copy) {
-               Coords.CoordsBuilder newCoordBuilder = oldCoord.copyBuilder();
-               for (String axis : oldCoord.getAxes()) {
-                  if (axis.equals(Coords.CHANNEL)) {
-                     if (channels_ != null && channels_.size() > 0) {
-                        int chIndex = oldCoord.getIndex(axis);
-                        if (chIndex < oldMetadata.getChannelNameList().size()) {
-                           String channelName = oldMetadata.getChannelNameList().get(chIndex);
-                           if (channelNames.contains(channelName)) {
-                              int newIndex = channelNames.indexOf(channelName);
-                              newCoordBuilder.index(axis, newIndex);
-                           }
-                        }
-                     }
-                  }
-                  if (mins_.containsKey(axis)) {
-                     newCoordBuilder.index(axis, oldCoord.getIndex(axis) - mins_.get(axis));
-                  }
-               }
-               Image img = oldStore.getImage(oldCoord);
-               Coords newCoords = newCoordBuilder.build();
-               Image newImgShallow = img.copyAtCoords(newCoords);
-               if (roi != null) {
-                  ImageProcessor ip = studio_.data().ij().createProcessor(img);
-                  if (ip != null) {
-                     ip.setRoi(roi);
-                     ImageProcessor copyIp = ip.crop();
-                     newImgShallow = studio_.data().createImage(copyIp.getPixels(), 
-                             copyIp.getWidth(), copyIp.getHeight(), 
-                             img.getBytesPerPixel(), img.getNumComponents(), 
-                             newCoords, newImgShallow.getMetadata());
-                  } else {
-                     throw new DuplicatorException(
-                           "Unsupported pixel type.  Can only copy 8 or 16 bit images.");
-                  }
-               }
-               if (closeListener.isCancelled()) {
-                  newStore.freeze();
-                  return null;
-               }
-               newStore.putImage(newImgShallow);
-               nrCopied++;
-               try {
-                  setProgress((int) ((nrCopied / nrToBeCopied) * 100.0));
-               } catch (IllegalArgumentException iae) {
-                  System.out.println("Value was: " + (int) (nrCopied / nrToBeCopied * 100.0));
-               }
-               
+            Image img = view.getImage(newCoords);
+            if (img == null) {
+               continue;
             }
+            newStore.putImage(img);
+            nrCopied++;
+            setProgress(Math.min(100, (int) ((nrCopied / nrToBeCopied) * 100.0)));
          }
       } catch (DatastoreFrozenException ex) {
          studio_.logs().showError("Can not add data to frozen datastore");
       } catch (DatastoreRewriteException ex) {
          studio_.logs().showError(ex, "Can not overwrite data");
-      } catch (DuplicatorException ex) {
-         studio_.logs().showError(ex.getMessage());
       } catch (IOException ioe) {
          studio_.logs().showError(ioe, "IOException in Duplicator plugin");
+      } finally {
+         closeView(view);
       }
 
-      closeListener.finishDuplication();
+      if (closeListener != null) {
+         closeListener.finishDuplication();
+      }
       try {
          newStore.freeze();
       } catch (IOException ioe) {
@@ -367,6 +287,14 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
       return null;
    }
    
+   private void closeView(SubsetDataProvider view) {
+      try {
+         view.close();
+      } catch (IOException ioe) {
+         studio_.logs().logError(ioe);
+      }
+   }
+
    @Override
    public void done() {
       setProgress(100);
@@ -0,0 +1,366 @@
+package org.micromanager.duplicator;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.DataProviderHasNewImageEvent;
+import org.micromanager.data.Image;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.DefaultNewImageEvent;
+
+/**
+ * Read-only view on a rectangular region, a subset of channels and ranges
+ * of the other axes of another DataProvider.
+ *
+ * <p>Nothing is copied up front.  Images are cropped when they are
+ * requested, and the most recently cropped images are kept, so that
+ * redrawing the same planes does not crop them again.  Without a region,
+ * images are passed on with new coordinates only.
+ *
+ * <p>The view depends on the source, and stops working when the source is
+ * closed.
+ */
+public final class SubsetDataProvider implements DataProvider {
+   private final Studio studio_;
+   private final DataProvider source_;
+   private final Rectangle region_;
+   private final Map<String, Integer> mins_;
+   private final Map<String, Integer> maxes_;
+   // channel indices of the source, in the order of the channels of the view
+   private final List<Integer> channels_;
+   private final SummaryMetadata summary_;
+   private final String name_;
+   private final EventBus bus_ = new EventBus();
+   private final Map<Coords, Image> cache_;
+
+   /**
+    * Creates the view.
+    *
+    * @param studio    The always present studio API
+    * @param source    DataProvider to present a subset of
+    * @param region    part of the images to present, or null for all of it
+    * @param mins      first index (inclusive) to present, by axis.  Axes
+    *                  that are not included are presented in full.
+    * @param maxes     last index (inclusive) to present, by axis
+    * @param channels  indices of the channels of the source to present, or
+    *                  null for all
+    * @param name      name of the view
+    * @param cacheSize number of cropped images to keep
+    */
+   public SubsetDataProvider(Studio studio, DataProvider source, Rectangle region,
+         Map<String, Integer> mins, Map<String, Integer> maxes, List<Integer> channels,
+         String name, final int cacheSize) {
+      studio_ = studio;
+      source_ = source;
+      mins_ = mins;
+      maxes_ = maxes;
+      channels_ = channels;
+      name_ = name;
+
+      SummaryMetadata oldMetadata = source.getSummaryMetadata();
+      Rectangle bounds = null;
+      if (oldMetadata.getImageWidth() != null && oldMetadata.getImageHeight() != null) {
+         bounds = new Rectangle(oldMetadata.getImageWidth(), oldMetadata.getImageHeight());
+      }
+      if (region != null && bounds != null) {
+         region = region.intersection(bounds);
+         if (region.equals(bounds)) {
+            region = null;
+         }
+      }
+      region_ = region;
+
+      Coords.CoordsBuilder sizeBuilder = studio.data().coordsBuilder();
+      for (String axis : source.getAxes()) {
+         sizeBuilder.index(axis, getNextIndex(axis));
+      }
+      SummaryMetadata.Builder builder = oldMetadata.copyBuilder()
+            .intendedDimensions(sizeBuilder.build());
+      if (channels_ != null) {
+         List<String> oldNames = oldMetadata.getChannelNameList();
+         List<String> channelNames = new ArrayList<>();
+         for (int c : channels_) {
+            channelNames.add(c < oldNames.size() ? oldNames.get(c) : "");
+         }
+         builder.channelNames(channelNames);
+      }
+      if (region_ != null) {
+         builder.imageWidth(region_.width).imageHeight(region_.height);
+      }
+      summary_ = builder.build();
+
+      cache_ = Collections.synchronizedMap(new LinkedHashMap<Coords, Image>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Coords, Image> eldest) {
+            return size() > cacheSize;
+         }
+      });
+      source_.registerForEvents(this);
+   }
+
+   /**
+    * @return coords in the source of the image at the given coords in this
+    *     view, or null when the view does not have these coords.
+    */
+   private Coords toSource(Coords coords) {
+      Coords.CoordsBuilder builder = coords.copyBuilder();
+      for (String axis : coords.getAxes()) {
+         int index = coords.getIndex(axis);
+         if (axis.equals(Coords.CHANNEL) && channels_ != null) {
+            if (index >= channels_.size()) {
+               return null;
+            }
+            builder.index(axis, channels_.get(index));
+         } else if (mins_.containsKey(axis)) {
+            if (index > maxes_.get(axis) - mins_.get(axis)) {
+               return null;
+            }
+            builder.index(axis, index + mins_.get(axis));
+         }
+      }
+      return builder.build();
+   }
+
+   /**
+    * @return coords in this view of the image at the given coords in the
+    *     source, or null when the image is not part of this view.
+    */
+   private Coords fromSource(Coords coords) {
+      Coords.CoordsBuilder builder = coords.copyBuilder();
+      for (String axis : coords.getAxes()) {
+         int index = coords.getIndex(axis);
+         if (axis.equals(Coords.CHANNEL) && channels_ != null) {
+            int newIndex = channels_.indexOf(index);
+            if (newIndex < 0) {
+               return null;
+            }
+            builder.index(axis, newIndex);
+         } else if (mins_.containsKey(axis)) {
+            if (index < mins_.get(axis) || index > maxes_.get(axis)) {
+               return null;
+            }
+            builder.index(axis, index - mins_.get(axis));
+         }
+      }
+      return builder.build();
+   }
+
+   /**
+    * Turns an image of the source into the image of this view.
+    */
+   private Image convert(Image image, Coords coords) {
+      if (region_ == null) {
+         return image.copyAtCoords(coords);
+      }
+      Image result = cache_.get(coords);
+      if (result != null) {
+         return result;
+      }
+      int width = image.getWidth();
+      Rectangle r = region_.intersection(new Rectangle(width, image.getHeight()));
+      Object pixels = image.getRawPixels();
+      int perPixel = Array.getLength(pixels) / (width * image.getHeight());
+      Object cropped = Array.newInstance(pixels.getClass().getComponentType(),
+            r.width * r.height * perPixel);
+      for (int y = 0; y < r.height; y++) {
+         System.arraycopy(pixels, ((r.y + y) * width + r.x) * perPixel,
+               cropped, y * r.width * perPixel, r.width * perPixel);
+      }
+      result = studio_.data().wrapImage(cropped, r.width, r.height,
+            image.getBytesPerPixel(), image.getNumComponents(), coords,
+            image.getMetadata());
+      cache_.put(coords, result);
+      return result;
+   }
+
+   @Override
+   public Image getImage(Coords coords) throws IOException {
+      Coords sourceCoords = toSource(coords);
+      if (sourceCoords == null) {
+         return null;
+      }
+      Image image = source_.getImage(sourceCoords);
+      if (image == null) {
+         return null;
+      }
+      return convert(image, coords);
+   }
+
+   @Override
+   public Image getAnyImage() throws IOException {
+      for (Coords coords : getUnorderedImageCoords()) {
+         return getImage(coords);
+      }
+      return null;
+   }
+
+   @Override
+   public List<Image> getImagesIgnoringAxes(Coords coords, String... ignoreTheseAxes)
+         throws IOException {
+      Coords sourceCoords = toSource(coords);
+      List<Image> result = new ArrayList<>();
+      if (sourceCoords == null) {
+         return result;
+      }
+      List<Image> images = source_.getImagesIgnoringAxes(sourceCoords, ignoreTheseAxes);
+      if (images == null) {
+         return result;
+      }
+      for (Image image : images) {
+         if (image == null) {
+            continue;
+         }
+         Coords newCoords = fromSource(image.getCoords());
+         if (newCoords != null) {
+            result.add(convert(image, newCoords));
+         }
+      }
+      return result;
+   }
+
+   @Override
+   @Deprecated
+   public List<Image> getImagesMatching(Coords coords) throws IOException {
+      List<String> ignoredAxes = new ArrayList<>(getAxes());
+      ignoredAxes.removeAll(coords.getAxes());
+      return getImagesIgnoringAxes(coords, ignoredAxes.toArray(new String[0]));
+   }
+
+   @Override
+   public List<String> getAxes() {
+      return source_.getAxes();
+   }
+
+   @Override
+   @Deprecated
+   public int getAxisLength(String axis) {
+      return getNextIndex(axis);
+   }
+
+   @Override
+   public int getNextIndex(String axis) {
+      int sourceNext = source_.getNextIndex(axis);
+      if (axis.equals(Coords.CHANNEL) && channels_ != null) {
+         int count = 0;
+         for (int c : channels_) {
+            if (c < sourceNext) {
+               count++;
+            }
+         }
+         return count;
+      }
+      if (mins_.containsKey(axis)) {
+         return Math.max(0, Math.min(maxes_.get(axis) + 1, sourceNext) - mins_.get(axis));
+      }
+      return sourceNext;
+   }
+
+   @Override
+   @Deprecated
+   public Coords getMaxIndices() {
+      Coords.CoordsBuilder builder = studio_.data().coordsBuilder();
+      for (String axis : getAxes()) {
+         builder.index(axis, getNextIndex(axis) - 1);
+      }
+      return builder.build();
+   }
+
+   @Override
+   public Iterable<Coords> getUnorderedImageCoords() {
+      List<Coords> result = new ArrayList<>();
+      for (Coords coords : source_.getUnorderedImageCoords()) {
+         Coords newCoords = fromSource(coords);
+         if (newCoords != null) {
+            result.add(newCoords);
+         }
+      }
+      return result;
+   }
+
+   @Override
+   public int getNumImages() {
+      int count = 0;
+      for (Coords coords : getUnorderedImageCoords()) {
+         count++;
+      }
+      return count;
+   }
+
+   @Override
+   public boolean hasImage(Coords coords) {
+      Coords sourceCoords = toSource(coords);
+      return sourceCoords != null && source_.hasImage(sourceCoords);
+   }
+
+   @Override
+   public boolean isFrozen() {
+      return source_.isFrozen();
+   }
+
+   @Override
+   public SummaryMetadata getSummaryMetadata() {
+      return summary_;
+   }
+
+   @Override
+   public String getName() {
+      return name_;
+   }
+
+   /**
+    * Passes images that the source receives after the view was made on to
+    * the viewers of this view.
+    *
+    * @param event signals a new image in the source
+    */
+   @Subscribe
+   public void onNewImage(DataProviderHasNewImageEvent event) {
+      if (event.getDataProvider() != source_) {
+         return;
+      }
+      Coords newCoords = fromSource(event.getCoords());
+      if (newCoords != null) {
+         bus_.post(new DefaultNewImageEvent(convert(event.getImage(), newCoords), this));
+      }
+   }
+
+   @Override
+   public void registerForEvents(Object obj) {
+      bus_.register(obj);
+      try {
+         // Like SciFIODataProvider, announce an image so that new viewers
+         // show something
+         Image image = getAnyImage();
+         if (image != null) {
+            bus_.post(new DefaultNewImageEvent(image, this));
+         }
+      } catch (IOException ex) {
+         studio_.logs().logError(ex, "Failed to read image from " + source_.getName());
+      }
+   }
+
+   @Override
+   public void unregisterForEvents(Object obj) {
+      bus_.unregister(obj);
+   }
+
+   /**
+    * Releases the cropped images and stops listening to the source, which
+    * stays open.
+    */
+   @Override
+   public void close() throws IOException {
+      source_.unregisterForEvents(this);
+      cache_.clear();
+   }
+}
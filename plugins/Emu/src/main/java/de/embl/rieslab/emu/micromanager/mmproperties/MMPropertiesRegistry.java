@@ -6,6 +6,7 @@ import java.util.Iterator;
 import mmcorej.CMMCore;
 import mmcorej.StrVector;
 import org.micromanager.Studio;
+import org.micromanager.internal.utils.PropertySnapshot;
 
 /**
  * Class referencing the devices loaded in Micro-Manager and their device properties.
@@ -42,6 +43,7 @@ public class MMPropertiesRegistry {
       StrVector deviceList = core_.getLoadedDevices();
       StrVector propertyList;
       MMPropertyFactory builder = new MMPropertyFactory(core_, logger_);
+      PropertySnapshot snapshot = PropertySnapshot.getInstance(studio_);
 
       for (String device : deviceList) {
          if (!((device.length() >= 3) && device.startsWith("COM"))) {
@@ -52,6 +54,7 @@ public class MMPropertiesRegistry {
                   MMProperty prop = builder.getNewProperty(device, property);
                   dev.registerProperty(prop);
                   properties_.put(prop.getHash(), prop);
+                  prop.setSnapshot(snapshot);
                }
             } catch (Exception e) {
                studio_.logs().logError(e);
@@ -4,6 +4,7 @@ import de.embl.rieslab.emu.controller.log.Logger;
 import de.embl.rieslab.emu.ui.uiproperties.UIProperty;
 import java.util.ArrayList;
 import mmcorej.CMMCore;
+import org.micromanager.internal.utils.PropertySnapshot;
 
 /**
  * Abstract wrapper for a Micro-manager device property. This class allows retrieving and modifying
@@ -31,6 +32,7 @@ public abstract class MMProperty<T> {
    private T maxValue;
    private T minValue;
    private final ArrayList<UIProperty> listeners_;
+   private PropertySnapshot snapshot_;
 
    /**
     * Builds a MMproperty without limits or allowed values. The property can be set to be read-only.
@@ -139,7 +141,28 @@ public abstract class MMProperty<T> {
    }
 
    /**
-    * Returns the current value of the device property. This method calls Micro-Manager CMMCore.
+    * Sets the snapshot that values are read from, so that reading does not call
+    * Micro-Manager CMMCore. Without snapshot, values are read from CMMCore.
+    *
+    * @param snapshot Shared snapshot of the device property values.
+    */
+   void setSnapshot(PropertySnapshot snapshot) {
+      snapshot_ = snapshot;
+   }
+
+   private String readValue() throws Exception {
+      if (snapshot_ != null) {
+         String val = snapshot_.getValue(devicelabel_, label_);
+         if (val != null) {
+            return val;
+         }
+      }
+      return core_.getProperty(devicelabel_, label_);
+   }
+
+   /**
+    * Returns the current value of the device property. The value is read from the property
+    * snapshot if there is one, and from Micro-Manager CMMCore otherwise.
     *
     * @return Current value.
     */
@@ -147,7 +170,7 @@ public abstract class MMProperty<T> {
       // ask core for value
       T val;
       try {
-         val = convertToValue(core_.getProperty(devicelabel_, label_));
+         val = convertToValue(readValue());
          value = val;
       } catch (Exception e) {
          logger_.logError("Error getting value from the MMProperty [" + hash_ + "].");
@@ -157,8 +180,8 @@ public abstract class MMProperty<T> {
    }
 
    /**
-    * Returns the current value of the device property as a String. This method calls
-    * Micro-Manager CMMCore.
+    * Returns the current value of the device property as a String. The value is read from
+    * the property snapshot if there is one, and from Micro-Manager CMMCore otherwise.
     *
     * @return Current String value.
     */
@@ -166,7 +189,7 @@ public abstract class MMProperty<T> {
       // ask core for value
       String val = "";
       try {
-         val = core_.getProperty(devicelabel_, label_);
+         val = readValue();
          value = convertToValue(val);
 
          logger_.logDebugMessage("Retrieved MMProperty [" + hash_ + "] value: [" + val + "].");
@@ -200,6 +223,9 @@ public abstract class MMProperty<T> {
 
                if (core_.hasProperty(devicelabel_, label_)) {
                   core_.setProperty(devicelabel_, label_, stringval);
+                  if (snapshot_ != null) {
+                     snapshot_.putValue(devicelabel_, label_, stringval);
+                  }
                   notifyListeners(source, stringval);
                   logger_.logDebugMessage(
                         "Set MMProperty [" + hash_ + "] value: [" + stringval + "].");
@@ -392,9 +418,19 @@ public abstract class MMProperty<T> {
    }
 
    /**
-    * Updates all listeners with the current MMProperty value.
+    * Updates all listeners with the current MMProperty value. The snapshot, if any, first
+    * takes the value from the Micro-Manager cache, since setting a configuration group does
+    * not always notify property changes.
     */
    public void updateMMProperty() {
+      if (snapshot_ != null) {
+         try {
+            snapshot_.putValue(devicelabel_, label_,
+                  core_.getPropertyFromCache(devicelabel_, label_));
+         } catch (Exception e) {
+            logger_.logError("Error getting cached value of the MMProperty [" + hash_ + "].");
+         }
+      }
       notifyListeners(null, getStringValue());
    }
 
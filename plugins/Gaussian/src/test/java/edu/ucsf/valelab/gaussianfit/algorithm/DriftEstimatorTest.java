@@ -0,0 +1,146 @@
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Estimates a known drift of synthetic blinking emitters.
+ */
+public class DriftEstimatorTest {
+   private static final double PIXEL_SIZE_NM = 160.0;
+   private static final int CAMERA_SIZE = 128;
+   private static final int MAG = 4;
+   private static final int FRAMES_PER_BIN = 200;
+   private static final int NR_BINS = 20;
+   private static final int NR_FRAMES = FRAMES_PER_BIN * NR_BINS;
+
+   private static double driftX(int frame) {
+      return 60.0 * Math.sin(2 * Math.PI * frame / NR_FRAMES);
+   }
+
+   private static double driftY(int frame) {
+      return 40.0 * (1 - Math.cos(2 * Math.PI * frame / (0.75 * NR_FRAMES)));
+   }
+
+   @Test
+   public void findsSinusoidalDrift() throws Exception {
+      Random random = new Random(1);
+      int nrEmitters = 2000;
+      double[][] emitters = new double[nrEmitters][2];
+      for (double[] emitter : emitters) {
+         emitter[0] = 1000 + random.nextDouble() * (CAMERA_SIZE * PIXEL_SIZE_NM - 2000);
+         emitter[1] = 1000 + random.nextDouble() * (CAMERA_SIZE * PIXEL_SIZE_NM - 2000);
+      }
+      // emitters blink on in 3% of the frames and are found with 10 nm
+      // precision
+      SpotStore store = new SpotStore();
+      List<List<SpotData>> bins = new ArrayList<List<SpotData>>();
+      for (int bin = 0; bin < NR_BINS; bin++) {
+         int first = store.size();
+         for (int frame = bin * FRAMES_PER_BIN + 1; frame <= (bin + 1) * FRAMES_PER_BIN;
+               frame++) {
+            for (int e = 0; e < nrEmitters; e++) {
+               if (random.nextDouble() < 0.03) {
+                  SpotData spot = new SpotData(null, 1, 1, frame, 1, e, 0, 0);
+                  spot.setData(1000, 10, emitters[e][0] + driftX(frame)
+                              + 10 * random.nextGaussian(),
+                        emitters[e][1] + driftY(frame) + 10 * random.nextGaussian(),
+                        0.0, 250, 1, 0, 10);
+                  store.add(spot);
+               }
+            }
+         }
+         int[] rows = new int[store.size() - first];
+         for (int i = 0; i < rows.length; i++) {
+            rows[i] = first + i;
+         }
+         bins.add(store.rows(rows));
+      }
+
+      double factor = MAG / PIXEL_SIZE_NM;
+      double[][] serial = new DriftEstimator(factor, MAG * CAMERA_SIZE, MAG * CAMERA_SIZE, 4, 1)
+            .estimate(bins);
+      // several threads also on a single core, so that bins finish out of order
+      int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+      double[][] drift = new DriftEstimator(factor, MAG * CAMERA_SIZE, MAG * CAMERA_SIZE, 4,
+            threads).estimate(bins);
+      for (int bin = 0; bin < NR_BINS; bin++) {
+         Assert.assertArrayEquals(serial[bin], drift[bin], 1e-9);
+      }
+
+      // drift of each bin relative to the first, from the mean drift of its
+      // frames
+      double[][] expected = new double[NR_BINS][2];
+      for (int bin = 0; bin < NR_BINS; bin++) {
+         for (int frame = bin * FRAMES_PER_BIN + 1; frame <= (bin + 1) * FRAMES_PER_BIN;
+               frame++) {
+            expected[bin][0] += driftX(frame) / FRAMES_PER_BIN;
+            expected[bin][1] += driftY(frame) / FRAMES_PER_BIN;
+         }
+      }
+      double sumSquares = 0.0;
+      for (int bin = 0; bin < NR_BINS; bin++) {
+         double ex = drift[bin][0] - (expected[bin][0] - expected[0][0]);
+         double ey = drift[bin][1] - (expected[bin][1] - expected[0][1]);
+         sumSquares += ex * ex + ey * ey;
+      }
+      double binError = Math.sqrt(sumSquares / NR_BINS);
+      System.out.println("Root mean square error per bin: " + binError + " nm");
+      Assert.assertTrue("error " + binError, binError < 5.0);
+
+      // after correction, spots are within their precision of their emitter
+      // (moved by the drift of the middle of the first bin)
+      double[][] frameDrift = DriftEstimator.perFrame(drift, FRAMES_PER_BIN, NR_FRAMES);
+      store.subtractDrift(false, frameDrift[0], frameDrift[1]);
+      sumSquares = 0.0;
+      for (int row = 0; row < store.size(); row++) {
+         SpotData corrected = store.get(row);
+         double ex = corrected.getXCenter() - emitters[corrected.getNr()][0] - expected[0][0];
+         double ey = corrected.getYCenter() - emitters[corrected.getNr()][1] - expected[0][1];
+         sumSquares += ex * ex + ey * ey;
+      }
+      // two dimensions with 10 nm precision each
+      double spotError = Math.sqrt(sumSquares / store.size() - 2 * 10 * 10);
+      System.out.println("Root mean square drift left per spot: " + spotError + " nm");
+      Assert.assertTrue("error " + spotError, spotError < 5.0);
+   }
+
+   @Test
+   public void leavesOutPairsThatDoNotFit() {
+      double[][] truth = {{0, 0}, {3, 1}, {5, -2}, {4, -6}, {10, 0}};
+      Random random = new Random(2);
+      List<double[]> pairs = new ArrayList<double[]>();
+      for (int i = 0; i < truth.length; i++) {
+         for (int j = i + 1; j < truth.length; j++) {
+            pairs.add(new double[] {i, j,
+                  truth[j][0] - truth[i][0] + 0.1 * random.nextGaussian(),
+                  truth[j][1] - truth[i][1] + 0.1 * random.nextGaussian()});
+         }
+      }
+      // a bad correlation between bins 0 and 3
+      pairs.get(2)[2] += 40;
+      double[][] drift = DriftEstimator.solve(truth.length, pairs, 1.0);
+      for (int i = 0; i < truth.length; i++) {
+         Assert.assertEquals(truth[i][0], drift[i][0], 0.3);
+         Assert.assertEquals(truth[i][1], drift[i][1], 0.3);
+      }
+   }
+
+   @Test
+   public void interpolatesBetweenBins() {
+      double[][] drift = {{0, 0}, {10, -10}, {30, -10}};
+      double[][] frames = DriftEstimator.perFrame(drift, 10, 40);
+      // bin centers are between frames 5 and 6, 15 and 16, 25 and 26
+      Assert.assertEquals(0.0, frames[0][0], 1e-12);
+      Assert.assertEquals(0.0, frames[0][4], 1e-12);
+      Assert.assertEquals(0.5, frames[0][5], 1e-12);
+      Assert.assertEquals(5.5, frames[0][10], 1e-12);
+      Assert.assertEquals(-10.0, frames[1][20], 1e-12);
+      Assert.assertEquals(30.0, frames[0][39], 1e-12);
+   }
+}
@@ -0,0 +1,58 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the heap used by spots in a SpotStore and by the same number of
+ * SpotData objects.  Not a unit test; run by hand with a large heap, e.g.
+ * java -Xmx4g ... HelperSpotStoreMemory 10000000
+ */
+public class HelperSpotStoreMemory {
+
+   public static void main(String[] args) {
+      int nrSpots = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+      Random random = new Random(1);
+
+      long before = usedHeap();
+      SpotStore store = new SpotStore();
+      for (int i = 0; i < nrSpots; i++) {
+         store.add(randomSpot(random, i));
+      }
+      long storeBytes = usedHeap() - before;
+      System.out.println(nrSpots + " spots in a SpotStore: " + storeBytes / nrSpots
+            + " bytes/spot measured, " + store.getMemorySize() / nrSpots
+            + " bytes/spot estimated");
+      store = null;
+
+      // objects take much more memory, measure a tenth of them
+      int nrObjects = nrSpots / 10;
+      before = usedHeap();
+      List<SpotData> spots = new ArrayList<SpotData>(nrObjects);
+      for (int i = 0; i < nrObjects; i++) {
+         spots.add(randomSpot(random, i));
+      }
+      long objectBytes = usedHeap() - before;
+      System.out.println(spots.size() + " SpotData objects: " + objectBytes / spots.size()
+            + " bytes/spot measured");
+   }
+
+   private static long usedHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 3; i++) {
+         System.gc();
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+
+   private static SpotData randomSpot(Random random, int nr) {
+      SpotData spot = new SpotData(null, 1 + random.nextInt(2), 1, 1 + nr / 1000, 1, nr,
+            random.nextInt(512), random.nextInt(512));
+      spot.setData(random.nextDouble() * 1000, random.nextDouble() * 10,
+            random.nextDouble() * 50000, random.nextDouble() * 50000, 0.0,
+            200 + random.nextDouble() * 100, 1 + random.nextDouble(),
+            random.nextDouble(), random.nextDouble() * 20);
+      return spot;
+   }
+}
@@ -0,0 +1,260 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.tsf.MMLocM;
+import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares spots kept in a SpotStore with the SpotData objects they were made
+ * from.
+ */
+public class SpotStoreTest {
+
+   @Test
+   public void viewsMatchSpots() {
+      List<SpotData> spots = randomSpots(new Random(1), 200000);
+      SpotStore store = new SpotStore(spots);
+      Assert.assertEquals(spots.size(), store.size());
+      for (int i = 0; i < spots.size(); i++) {
+         assertSame(spots.get(i), store.get(i));
+         assertSame(spots.get(i), new SpotData(store.get(i)));
+      }
+   }
+
+   @Test
+   public void filterAndSortMatchSpots() {
+      List<SpotData> spots = randomSpots(new Random(2), 100000);
+      List<SpotData> views = new SpotStore(spots).asList();
+
+      List<SpotData> filteredSpots = new ArrayList<SpotData>();
+      List<SpotData> filteredViews = new ArrayList<SpotData>();
+      for (int i = 0; i < spots.size(); i++) {
+         if (spots.get(i).getIntensity() > 500 && spots.get(i).hasKey(SpotData.Keys.MSIGMA)) {
+            filteredSpots.add(spots.get(i));
+         }
+         if (views.get(i).getIntensity() > 500 && views.get(i).hasKey(SpotData.Keys.MSIGMA)) {
+            filteredViews.add(views.get(i));
+         }
+      }
+      Comparator<SpotData> byX = new Comparator<SpotData>() {
+         @Override
+         public int compare(SpotData a, SpotData b) {
+            return Double.compare(a.getXCenter(), b.getXCenter());
+         }
+      };
+      Collections.sort(filteredSpots, byX);
+      Collections.sort(filteredViews, byX);
+      Assert.assertEquals(filteredSpots.size(), filteredViews.size());
+      for (int i = 0; i < filteredSpots.size(); i++) {
+         assertSame(filteredSpots.get(i), filteredViews.get(i));
+      }
+   }
+
+   @Test
+   public void viewsChangeTheStore() {
+      SpotStore store = new SpotStore(randomSpots(new Random(3), 10));
+      SpotData view = store.get(4);
+      view.setXCenter(12.5);
+      view.setPosition(3);
+      view.addKeyValue(SpotData.Keys.N, 7.0);
+      Assert.assertEquals(12.5, store.get(4).getXCenter(), 0.0);
+      Assert.assertEquals(3, store.get(4).getPosition());
+      Assert.assertEquals(7.0, store.get(4).getValue(SpotData.Keys.N), 0.0);
+      Assert.assertFalse(store.get(3).hasKey(SpotData.Keys.N));
+      Assert.assertEquals(store.get(4), view);
+      Assert.assertNotEquals(store.get(3), view);
+   }
+
+   @Test
+   public void addAllCopiesAcrossChunks() {
+      Random random = new Random(4);
+      SpotStore all = new SpotStore();
+      List<SpotData> spots = new ArrayList<SpotData>();
+      for (int part = 0; part < 12; part++) {
+         List<SpotData> partSpots = randomSpots(random, 1 + random.nextInt(30000));
+         all.addAll(new SpotStore(partSpots));
+         spots.addAll(partSpots);
+      }
+      Assert.assertEquals(spots.size(), all.size());
+      for (int i = 0; i < spots.size(); i++) {
+         assertSame(spots.get(i), all.get(i));
+      }
+   }
+
+   @Test
+   public void rowDataSharesAndIndexesTheStore() {
+      List<SpotData> spots = randomSpots(new Random(5), 5000);
+      RowData row = new RowData.Builder().setName("test").setNrFrames(50)
+            .setSpotList(spots).setCoordinate(DataCollectionForm.Coordinates.NM).build();
+      RowData copy = row.copy().build();
+      Assert.assertSame(row.getSpotStore(), copy.getSpotStore());
+
+      Map<Integer, List<SpotData>> byFrame = row.getSpotListIndexedByFrame();
+      int total = 0;
+      for (Map.Entry<Integer, List<SpotData>> entry : byFrame.entrySet()) {
+         for (SpotData spot : entry.getValue()) {
+            Assert.assertEquals((int) entry.getKey(), spot.getFrame());
+         }
+         total += entry.getValue().size();
+      }
+      Assert.assertEquals(spots.size(), total);
+      SpotData first = spots.get(0);
+      Assert.assertEquals(row.spotList_.get(0), row.get(first.getFrame(), first.getChannel(),
+            first.getXCenter(), first.getYCenter()));
+   }
+
+   @Test
+   public void memoryIsOnlyColumns() {
+      // 12 doubles and 9 ints per row
+      long bytesPerRow = 8 * 12 + 4 * 9;
+      Random random = new Random(6);
+      SpotStore store = new SpotStore();
+      // two full chunks, without other keys
+      int nrSpots = 2 * 65536;
+      for (int i = 0; i < nrSpots; i++) {
+         // numbers that are not a multiple of 3 have no keys
+         store.add(randomSpot(random, 3 * i + 1));
+      }
+      Assert.assertEquals(bytesPerRow * nrSpots, store.getMemorySize());
+      // a key used in one chunk only gets a side column for that chunk
+      store.get(3).addKeyValue(SpotData.Keys.N, 1.0);
+      long withKey = store.getMemorySize();
+      Assert.assertTrue(withKey >= bytesPerRow * nrSpots + 8 * 65536);
+      Assert.assertTrue(withKey < bytesPerRow * nrSpots + 9 * 65536);
+      // small stores stay small
+      Assert.assertTrue(new SpotStore(randomSpots(random, 3)).getMemorySize() < 4096);
+   }
+
+   @Test
+   public void savedViewsMatchSavedSpots() throws IOException {
+      List<SpotData> spots = randomSpots(new Random(7), 50000);
+      RowData row = new RowData.Builder().setName("test").setNrFrames(500)
+            .setSpotList(spots).setHasZ(true)
+            .setCoordinate(DataCollectionForm.Coordinates.NM).build();
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      int counter = 0;
+      for (SpotData gd : spots) {
+         // the loop LoadAndSave.saveData used to run over the spot objects
+         TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
+         spotBuilder.setMolecule(counter)
+               .setFrame(gd.getFrame())
+               .setChannel(gd.getChannel())
+               .setPos(gd.getPosition())
+               .setSlice(gd.getSlice())
+               .setX((float) gd.getXCenter())
+               .setY((float) gd.getYCenter())
+               .setIntensity((float) gd.getIntensity())
+               .setBackground((float) gd.getBackground())
+               .setXPosition(gd.getX())
+               .setYPosition(gd.getY())
+               .setWidth((float) gd.getWidth())
+               .setA((float) gd.getA())
+               .setTheta((float) gd.getTheta())
+               .setXPrecision((float) gd.getSigma())
+               .setExtension(MMLocM.intensityAperture,
+                     gd.getValue(SpotData.Keys.APERTUREINTENSITY, -1.0).floatValue())
+               .setExtension(MMLocM.intensityBackground,
+                     gd.getValue(SpotData.Keys.APERTUREBACKGROUND, -1.0).floatValue())
+               .setExtension(MMLocM.intensityRatio,
+                     gd.getValue(SpotData.Keys.INTENSITYRATIO, -1.0).floatValue())
+               .setExtension(MMLocM.mSigma,
+                     gd.getValue(SpotData.Keys.MSIGMA, -1.0).floatValue())
+               .setExtension(MMLocM.integralApertureSigma,
+                     gd.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA, -1.0).floatValue())
+               .setZ((float) gd.getZCenter());
+         spotBuilder.build().writeDelimitedTo(expected);
+         counter++;
+      }
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      Assert.assertEquals(spots.size(), TsfSpotStream.write(row, actual, null));
+      Assert.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+   }
+
+   @Test
+   public void linksAreKept() {
+      List<SpotData> spots = randomSpots(new Random(8), 70000);
+      SpotStore store = new SpotStore(spots);
+      SpotStore copy = new SpotStore();
+      copy.addAll(store);
+      for (int i = 0; i < spots.size(); i += 97) {
+         Assert.assertEquals(spots.get(i).getNrLinks(), store.get(i).getNrLinks());
+         Assert.assertEquals(spots.get(i).getOriginalFrame(), copy.get(i).getOriginalFrame());
+      }
+      SpotData view = store.get(5);
+      view.setNrLinks(12);
+      view.setOriginalFrame(40);
+      Assert.assertEquals(12, store.get(5).getNrLinks());
+      Assert.assertEquals(40, store.get(5).getOriginalFrame());
+      // a copy is a different spot, even with the same values
+      SpotData spotCopy = new SpotData(view);
+      Assert.assertEquals(12, spotCopy.getNrLinks());
+      Assert.assertEquals(40, spotCopy.getOriginalFrame());
+      Assert.assertNotEquals(view, spotCopy);
+      Assert.assertNotEquals(spotCopy, view);
+   }
+
+   private static List<SpotData> randomSpots(Random random, int nrSpots) {
+      List<SpotData> spots = new ArrayList<SpotData>(nrSpots);
+      for (int i = 0; i < nrSpots; i++) {
+         spots.add(randomSpot(random, i));
+      }
+      return spots;
+   }
+
+   private static SpotData randomSpot(Random random, int nr) {
+      SpotData spot = new SpotData(null, 1 + random.nextInt(2), 1, 1 + nr / 100, 0, nr,
+            random.nextInt(512), random.nextInt(512));
+      spot.setData(random.nextDouble() * 1000, random.nextDouble() * 10,
+            random.nextDouble() * 50000, random.nextDouble() * 50000, 0.0,
+            200 + random.nextDouble() * 100, 1 + random.nextDouble(),
+            random.nextDouble(), random.nextDouble() * 20);
+      spot.setZCenter(random.nextDouble() * 400 - 200);
+      spot.setOriginalPosition(random.nextDouble(), random.nextDouble(), random.nextDouble());
+      if (nr % 3 == 0) {
+         spot.addKeyValue(SpotData.Keys.MSIGMA, random.nextDouble());
+      }
+      if (nr % 5 == 0) {
+         spot.setNrLinks(1 + random.nextInt(20));
+         spot.setOriginalFrame(1 + random.nextInt(nr + 1));
+      }
+      return spot;
+   }
+
+   private static void assertSame(SpotData expected, SpotData actual) {
+      Assert.assertEquals(expected.getFrame(), actual.getFrame());
+      Assert.assertEquals(expected.getSlice(), actual.getSlice());
+      Assert.assertEquals(expected.getChannel(), actual.getChannel());
+      Assert.assertEquals(expected.getPosition(), actual.getPosition());
+      Assert.assertEquals(expected.getNr(), actual.getNr());
+      Assert.assertEquals(expected.getX(), actual.getX());
+      Assert.assertEquals(expected.getY(), actual.getY());
+      Assert.assertEquals(expected.getNrLinks(), actual.getNrLinks());
+      Assert.assertEquals(expected.getOriginalFrame(), actual.getOriginalFrame());
+      Assert.assertEquals(expected.getIntensity(), actual.getIntensity(), 0.0);
+      Assert.assertEquals(expected.getBackground(), actual.getBackground(), 0.0);
+      Assert.assertEquals(expected.getXCenter(), actual.getXCenter(), 0.0);
+      Assert.assertEquals(expected.getYCenter(), actual.getYCenter(), 0.0);
+      Assert.assertEquals(expected.getZCenter(), actual.getZCenter(), 0.0);
+      Assert.assertEquals(expected.getXOri(), actual.getXOri(), 0.0);
+      Assert.assertEquals(expected.geYOri(), actual.geYOri(), 0.0);
+      Assert.assertEquals(expected.getZOri(), actual.getZOri(), 0.0);
+      Assert.assertEquals(expected.getWidth(), actual.getWidth(), 0.0);
+      Assert.assertEquals(expected.getA(), actual.getA(), 0.0);
+      Assert.assertEquals(expected.getTheta(), actual.getTheta(), 0.0);
+      Assert.assertEquals(expected.getSigma(), actual.getSigma(), 0.0);
+      Assert.assertArrayEquals(expected.getKeys(), actual.getKeys());
+      for (String key : expected.getKeys()) {
+         Assert.assertEquals(expected.getValue(key), actual.getValue(key));
+      }
+   }
+}
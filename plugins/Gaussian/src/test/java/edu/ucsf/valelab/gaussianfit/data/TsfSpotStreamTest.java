@@ -0,0 +1,165 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Writes spots with TsfSpotStream and reads them back.
+ */
+public class TsfSpotStreamTest {
+   private static final String[] KEYS = {SpotData.Keys.APERTUREINTENSITY,
+         SpotData.Keys.APERTUREBACKGROUND, SpotData.Keys.INTENSITYRATIO,
+         SpotData.Keys.MSIGMA, SpotData.Keys.INTEGRALAPERTURESIGMA};
+
+   @Test
+   public void roundTrip() throws IOException {
+      // a few chunks
+      RowData rowData = randomRow(new Random(7), 50000);
+      File file = File.createTempFile("spots", ".tsf");
+      file.deleteOnExit();
+      try {
+         FileOutputStream out = new FileOutputStream(file);
+         try {
+            Assert.assertEquals(rowData.spotList_.size(),
+                  TsfSpotStream.write(rowData, out, null));
+         } finally {
+            out.close();
+         }
+         TsfSpotStream.Result result;
+         FileInputStream in = new FileInputStream(file);
+         try {
+            FileChannel channel = in.getChannel();
+            result = TsfSpotStream.read(channel, 0, channel.size(), 0, true, null);
+         } finally {
+            in.close();
+         }
+         Assert.assertEquals(0, result.nrFailed_);
+         Assert.assertTrue(result.hasZ_);
+         Assert.assertEquals(rowData.spotList_.size(), result.store_.size());
+         for (int i = 0; i < rowData.spotList_.size(); i++) {
+            assertWritten(i, rowData.spotList_.get(i), result.store_.get(i));
+         }
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void smallWindowsMatchOneWindow() throws IOException {
+      RowData rowData = randomRow(new Random(9), 50000);
+      File file = File.createTempFile("spots", ".tsf");
+      file.deleteOnExit();
+      try {
+         FileOutputStream out = new FileOutputStream(file);
+         try {
+            TsfSpotStream.write(rowData, out, null);
+         } finally {
+            out.close();
+         }
+         FileInputStream in = new FileInputStream(file);
+         try {
+            FileChannel channel = in.getChannel();
+            // windows that end in the middle of chunks and of spots
+            TsfSpotStream.Result result = TsfSpotStream.read(channel, 0, channel.size(), 0,
+                  true, null, 100003);
+            Assert.assertTrue(channel.size() > 10 * 100003);
+            Assert.assertEquals(0, result.nrFailed_);
+            Assert.assertEquals(rowData.spotList_.size(), result.store_.size());
+            for (int i = 0; i < rowData.spotList_.size(); i++) {
+               assertWritten(i, rowData.spotList_.get(i), result.store_.get(i));
+            }
+         } finally {
+            in.close();
+         }
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void readsAtMostExpectedSpots() throws IOException {
+      RowData rowData = randomRow(new Random(8), 50000);
+      File file = File.createTempFile("spots", ".tsf");
+      file.deleteOnExit();
+      try {
+         FileOutputStream out = new FileOutputStream(file);
+         try {
+            TsfSpotStream.write(rowData, out, null);
+         } finally {
+            out.close();
+         }
+         FileInputStream in = new FileInputStream(file);
+         try {
+            FileChannel channel = in.getChannel();
+            TsfSpotStream.Result result = TsfSpotStream.read(channel, 0, channel.size(),
+                  20000, true, null);
+            Assert.assertEquals(20000, result.store_.size());
+            // a file that ends in the middle of a spot
+            result = TsfSpotStream.read(channel, 0, channel.size() - 3, 0, true, null);
+            Assert.assertEquals(rowData.spotList_.size() - 1, result.store_.size());
+            Assert.assertEquals(1, result.nrFailed_);
+         } finally {
+            in.close();
+         }
+      } finally {
+         file.delete();
+      }
+   }
+
+   private static RowData randomRow(Random random, int nrSpots) {
+      List<SpotData> spots = new ArrayList<SpotData>(nrSpots);
+      for (int i = 0; i < nrSpots; i++) {
+         SpotData spot = new SpotData(null, 1 + random.nextInt(2), 1, 1 + i / 1000, 1, i,
+               random.nextInt(512), random.nextInt(512));
+         spot.setData(random.nextDouble() * 1000, random.nextDouble() * 10,
+               random.nextDouble() * 50000, random.nextDouble() * 50000, 0.0,
+               200 + random.nextDouble() * 100, 1 + random.nextDouble(),
+               random.nextDouble(), random.nextDouble() * 20);
+         spot.setZCenter(random.nextDouble() * 400 - 200);
+         if (i % 2 == 0) {
+            spot.addKeyValue(SpotData.Keys.MSIGMA, random.nextDouble());
+            spot.addKeyValue(SpotData.Keys.APERTUREINTENSITY, random.nextDouble() * 1000);
+         }
+         spots.add(spot);
+      }
+      return new RowData.Builder().setName("test").setNrFrames(1 + nrSpots / 1000)
+            .setNrChannels(2).setMaxNrSpots(nrSpots).setSpotList(spots).setHasZ(true)
+            .setCoordinate(DataCollectionForm.Coordinates.NM).build();
+   }
+
+   /**
+    * Spots are written as floats, and spots without a key are written with
+    * -1 for it.
+    */
+   private static void assertWritten(int nr, SpotData expected, SpotData actual) {
+      Assert.assertEquals(nr, actual.getNr());
+      Assert.assertEquals(expected.getFrame(), actual.getFrame());
+      Assert.assertEquals(expected.getSlice(), actual.getSlice());
+      Assert.assertEquals(expected.getChannel(), actual.getChannel());
+      Assert.assertEquals(expected.getPosition(), actual.getPosition());
+      Assert.assertEquals(expected.getX(), actual.getX());
+      Assert.assertEquals(expected.getY(), actual.getY());
+      Assert.assertEquals((float) expected.getXCenter(), actual.getXCenter(), 0.0);
+      Assert.assertEquals((float) expected.getYCenter(), actual.getYCenter(), 0.0);
+      Assert.assertEquals((float) expected.getZCenter(), actual.getZCenter(), 0.0);
+      Assert.assertEquals((float) expected.getIntensity(), actual.getIntensity(), 0.0);
+      Assert.assertEquals((float) expected.getBackground(), actual.getBackground(), 0.0);
+      Assert.assertEquals((float) expected.getWidth(), actual.getWidth(), 0.0);
+      Assert.assertEquals((float) expected.getA(), actual.getA(), 0.0);
+      Assert.assertEquals((float) expected.getTheta(), actual.getTheta(), 0.0);
+      Assert.assertEquals((float) expected.getSigma(), actual.getSigma(), 0.0);
+      for (String key : KEYS) {
+         Assert.assertEquals(expected.getValue(key, -1.0).floatValue(),
+               actual.getValue(key), 0.0);
+      }
+   }
+}
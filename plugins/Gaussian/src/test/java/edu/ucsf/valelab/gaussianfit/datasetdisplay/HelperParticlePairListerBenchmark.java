@@ -0,0 +1,54 @@
+package edu.ucsf.valelab.gaussianfit.datasetdisplay;
+
+import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Pairs and tracks a million spots per channel.  The previous algorithm
+ * would take too long on all of them, so it is timed on the first frames
+ * only.  Its cost grew faster than linearly with the number of frames, so
+ * extrapolating from those underestimates it.  Not a unit test; run by hand
+ * with a large heap, e.g. java -Xmx2g ... HelperParticlePairListerBenchmark
+ */
+public class HelperParticlePairListerBenchmark {
+
+   public static void main(String[] args) {
+      final int nrFrames = 100;
+      final int sampleFrames = 5;
+      final double maxDistance = TestParticlePairLister.MAX_DISTANCE;
+      RowData rowData = TestParticlePairLister.twoChannelSpots(new Random(6), 12000,
+            nrFrames, 1, 100000.0);
+
+      List<SpotData> sample = new ArrayList<SpotData>();
+      for (SpotData spot : rowData.spotList_) {
+         if (spot.getFrame() <= sampleFrames) {
+            sample.add(spot);
+         }
+      }
+      // warm up
+      ParticlePairLister.findTracks(ParticlePairLister.findPairs(sample, sampleFrames,
+            maxDistance), maxDistance);
+      TestParticlePairLister.referencePairsAndTracks(sample, sampleFrames, maxDistance,
+            new ArrayList<GsSpotPair>());
+
+      long start = System.nanoTime();
+      ParticlePairLister.SpotPairs pairs = ParticlePairLister.findPairs(rowData.spotList_,
+            nrFrames, maxDistance);
+      List<int[]> tracks = ParticlePairLister.findTracks(pairs, maxDistance);
+      double ns = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      TestParticlePairLister.referencePairsAndTracks(sample, sampleFrames, maxDistance,
+            new ArrayList<GsSpotPair>());
+      double referenceNs = (System.nanoTime() - start) * (double) nrFrames / sampleFrames;
+
+      System.out.println(String.format("%d spots: %d pairs in %d tracks in %.0f ms, "
+            + "previously %.0f ms (extrapolated from %d frames), speedup %.1f",
+            rowData.spotList_.size(), pairs.size(), tracks.size(), ns / 1e6,
+            referenceNs / 1e6, sampleFrames, referenceNs / ns));
+   }
+}
@@ -0,0 +1,168 @@
+package edu.ucsf.valelab.gaussianfit.datasetdisplay;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
+import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
+import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the tiled renderer with a single loop over the spots, the way
+ * images were rendered before.
+ */
+public class ImageRendererTest {
+   private static final int WIDTH = 512;
+   private static final int HEIGHT = 400;
+   private static final float PIXEL_SIZE_NM = 100.0f;
+
+   @Test
+   public void histogramMatchesSingleLoop() {
+      RowData rowData = randomRow(new Random(1), 200000);
+      SpotDataFilter sf = new SpotDataFilter();
+      sf.setItemFilter(SpotData.Keys.MSIGMA, 0.0, 0.5);
+      // small parts of the image at 5 nm per pixel, one of them at the edge
+      Rectangle[] rects = {new Rectangle(1000, 700, 600, 500), new Rectangle(0, 0, 700, 300)};
+      for (Rectangle rect : rects) {
+         short[] expected = renderHistogram(rowData, 20.0, rect, sf);
+         for (boolean tiled : new boolean[] {false, true}) {
+            ImageProcessor ip = ImageRenderer.renderData(rowData, 0, 20.0, rect, sf, tiled);
+            Assert.assertArrayEquals(expected, (short[]) ip.getPixels());
+         }
+      }
+      // the whole image at 50 nm per pixel
+      short[] expected = renderHistogram(rowData, 2.0, new Rectangle(0, 0, WIDTH * 2,
+            HEIGHT * 2), sf);
+      for (boolean tiled : new boolean[] {false, true}) {
+         ImageProcessor ip = ImageRenderer.renderData(rowData, 0, 2.0, null, sf, tiled);
+         Assert.assertArrayEquals(expected, (short[]) ip.getPixels());
+      }
+   }
+
+   @Test
+   public void gaussiansMatchSingleLoop() {
+      RowData rowData = randomRow(new Random(2), 20000);
+      SpotDataFilter sf = new SpotDataFilter();
+      for (int method = 1; method <= 2; method++) {
+         float[] expected = renderGaussians(rowData, 4.0, method == 2, sf);
+         for (boolean tiled : new boolean[] {false, true}) {
+            ImageProcessor ip = ImageRenderer.renderData(rowData, method, 4.0, null, sf,
+                  tiled);
+            float[] actual = (float[]) ip.getPixels();
+            Assert.assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+               Assert.assertEquals(expected[i], actual[i],
+                     1e-6f * (1 + Math.abs(expected[i])));
+            }
+         }
+      }
+   }
+
+   @Test
+   public void gaussiansOfPartAreInPlace() {
+      // a single spot in the middle of a part of the image
+      SpotData spot = new SpotData(null, 1, 1, 1, 1, 0, 0, 0);
+      spot.setData(1000, 10, 10000, 8000, 0.0, 250, 1, 0, 20);
+      SpotStore store = new SpotStore();
+      store.add(spot);
+      RowData rowData = new RowData.Builder().setName("test").setWidth(WIDTH)
+            .setHeight(HEIGHT).setPixelSizeNm(PIXEL_SIZE_NM).setSpotList(store.asList())
+            .setCoordinate(DataCollectionForm.Coordinates.NM).build();
+      Rectangle rect = new Rectangle(900, 700, 200, 200);
+      ImageProcessor ip = ImageRenderer.renderData(rowData, 1, 10.0, rect, new SpotDataFilter());
+      float center = ip.getf(100, 100);
+      Assert.assertTrue(center > 0.9f);
+      Assert.assertEquals(center, ip.getMax(), 0.0);
+   }
+
+   private static RowData randomRow(Random random, int nrSpots) {
+      SpotStore store = new SpotStore();
+      SpotData spot = new SpotData(null, 1, 1, 1, 1, 0, 0, 0);
+      for (int i = 0; i < nrSpots; i++) {
+         spot.setData(1000, 10, random.nextDouble() * WIDTH * PIXEL_SIZE_NM,
+               random.nextDouble() * HEIGHT * PIXEL_SIZE_NM, 0.0, 250, 1, 0,
+               5 + random.nextDouble() * 30);
+         store.add(spot);
+         if (i % 2 == 0) {
+            store.get(i).addKeyValue(SpotData.Keys.MSIGMA, random.nextDouble());
+         }
+      }
+      return new RowData.Builder().setName("test").setWidth(WIDTH).setHeight(HEIGHT)
+            .setPixelSizeNm(PIXEL_SIZE_NM).setSpotList(store.asList())
+            .setCoordinate(DataCollectionForm.Coordinates.NM).build();
+   }
+
+   private static short[] renderHistogram(RowData rowData, double magnification,
+         Rectangle rect, SpotDataFilter sf) {
+      double factor = magnification / rowData.pixelSizeNm_;
+      int size = rect.width * rect.height;
+      short[] pixels = new short[size];
+      for (SpotData spot : rowData.spotList_) {
+         if (sf.filter(spot)) {
+            int x = (int) (factor * spot.getXCenter());
+            int y = (int) (factor * spot.getYCenter());
+            if (x > rect.x && x < rect.x + rect.width && y > rect.y
+                  && y < rect.y + rect.height) {
+               int index = ((y - rect.y) * rect.width) + x - rect.x;
+               if (index < size && index > 0 && pixels[index] != -1) {
+                  pixels[index] += 1;
+               }
+            }
+         }
+      }
+      return pixels;
+   }
+
+   private static float[] renderGaussians(RowData rowData, double magnification,
+         boolean normalize, SpotDataFilter sf) {
+      double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
+      double factor = magnification / rowData.pixelSizeNm_;
+      int width = (int) (rowData.width_ * magnification);
+      int height = (int) (rowData.height_ * magnification);
+      float[] pixels = new float[width * height];
+      for (SpotData spot : rowData.spotList_) {
+         if (!sf.filter(spot)) {
+            continue;
+         }
+         int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
+         if (halfWidth == 0) {
+            halfWidth = 2;
+         }
+         int xc = (int) (factor * spot.getXCenter());
+         int yc = (int) (factor * spot.getYCenter());
+         if (xc <= halfWidth || xc >= width - halfWidth || yc <= halfWidth
+               || yc >= height - halfWidth) {
+            continue;
+         }
+         double[] parms = {1.0, 0.0, spot.getXCenter() / renderedPixelInNm,
+               spot.getYCenter() / renderedPixelInNm, spot.getSigma() / renderedPixelInNm};
+         float[][] box = new float[2 * halfWidth][2 * halfWidth];
+         double totalInt = 0.0;
+         for (int x = xc - halfWidth; x < xc + halfWidth; x++) {
+            for (int y = yc - halfWidth; y < yc + halfWidth; y++) {
+               double val = GaussianUtils.gaussian(parms, x, y);
+               totalInt += val;
+               box[x - xc + halfWidth][y - yc + halfWidth] = (float) val;
+            }
+         }
+         if (normalize && !(totalInt > 0)) {
+            continue;
+         }
+         for (int x = xc - halfWidth; x < xc + halfWidth; x++) {
+            for (int y = yc - halfWidth; y < yc + halfWidth; y++) {
+               float val = box[x - xc + halfWidth][y - yc + halfWidth];
+               if (normalize) {
+                  val /= totalInt;
+               }
+               pixels[y * width + x] += val;
+            }
+         }
+      }
+      return pixels;
+   }
+}
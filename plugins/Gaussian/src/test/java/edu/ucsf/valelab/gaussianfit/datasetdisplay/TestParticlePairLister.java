@@ -3,11 +3,21 @@ package edu.ucsf.valelab.gaussianfit.datasetdisplay;
 
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
 import edu.ucsf.valelab.gaussianfit.data.LoadAndSave;
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
+import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPointByData;
+import java.awt.geom.Point2D;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import org.junit.Assert;
 import org.junit.Test;
 import org.micromanager.internal.MMStudio;
@@ -38,4 +48,168 @@ public class TestParticlePairLister {
       pp.listParticlePairTracks();
       Thread.sleep(5000);
    }
+
+   static final double MAX_DISTANCE = 100.0;
+
+   @Test
+   public void pairsAndTracksMatchReference() {
+      RowData rowData = twoChannelSpots(new Random(5), 400, 20, 3, 20000.0);
+      List<SpotData> spots = rowData.spotList_;
+      List<GsSpotPair> expectedPairs = new ArrayList<GsSpotPair>();
+      List<List<GsSpotPair>> expectedTracks = referencePairsAndTracks(spots,
+            rowData.nrFrames_, MAX_DISTANCE, expectedPairs);
+
+      ParticlePairLister.SpotPairs pairs = ParticlePairLister.findPairs(spots,
+            rowData.nrFrames_, MAX_DISTANCE);
+      Assert.assertEquals(expectedPairs.size(), pairs.size());
+      for (int i = 0; i < pairs.size(); i++) {
+         GsSpotPair expected = expectedPairs.get(i);
+         // spots of a RowData are views, equal when they show the same row
+         Assert.assertEquals(expected.getFirstSpot(), pairs.getFirstSpot(i));
+         Assert.assertEquals(expected.getSecondSpot(), pairs.getSecondSpot(i));
+         Assert.assertEquals(Math.sqrt(NearestPoint2D.distance2(expected.getFirstPoint(),
+               expected.getSecondPoint())), pairs.getDistance(i), 0.0);
+      }
+
+      List<int[]> tracks = ParticlePairLister.findTracks(pairs, MAX_DISTANCE);
+      Assert.assertEquals(expectedTracks.size(), tracks.size());
+      for (int i = 0; i < tracks.size(); i++) {
+         Assert.assertEquals(expectedTracks.get(i).size(), tracks.get(i).length);
+         for (int j = 0; j < tracks.get(i).length; j++) {
+            Assert.assertEquals(expectedTracks.get(i).get(j).getFirstSpot(),
+                  pairs.getFirstSpot(tracks.get(i)[j]));
+         }
+      }
+   }
+
+   /**
+    * Particles that diffuse a bit from frame to frame and blink, imaged in
+    * two channels with an offset between them, and background spots in both.
+    */
+   static RowData twoChannelSpots(Random random, int nrParticles, int nrFrames,
+         int nrPositions, double size) {
+      List<SpotData> spots = new ArrayList<SpotData>();
+      for (int pos = 1; pos <= nrPositions; pos++) {
+         double[] xs = new double[nrParticles];
+         double[] ys = new double[nrParticles];
+         for (int p = 0; p < nrParticles; p++) {
+            xs[p] = random.nextDouble() * size;
+            ys[p] = random.nextDouble() * size;
+         }
+         for (int f = 1; f <= nrFrames; f++) {
+            for (int p = 0; p < nrParticles; p++) {
+               xs[p] += random.nextGaussian() * 10;
+               ys[p] += random.nextGaussian() * 10;
+               if (random.nextDouble() < 0.8) {
+                  spots.add(spot(xs[p] + random.nextGaussian() * 10,
+                        ys[p] + random.nextGaussian() * 10, f, 1, pos));
+               }
+               if (random.nextDouble() < 0.8) {
+                  spots.add(spot(xs[p] + 30 + random.nextGaussian() * 10,
+                        ys[p] - 20 + random.nextGaussian() * 10, f, 2, pos));
+               }
+            }
+            for (int b = 0; b < nrParticles / 10; b++) {
+               spots.add(spot(random.nextDouble() * size, random.nextDouble() * size, f,
+                     1 + random.nextInt(2), pos));
+            }
+         }
+      }
+      return new RowData.Builder().setName("test").setNrFrames(nrFrames)
+            .setNrChannels(2).setNrPositions(nrPositions)
+            .setMaxNrSpots(spots.size()).setSpotList(spots).build();
+   }
+
+   private static SpotData spot(double x, double y, int frame, int channel, int position) {
+      SpotData spot = new SpotData(null, channel, 1, frame, position, 0, 0, 0);
+      spot.setData(100.0, 10.0, x, y, 0.0, 200.0, 1.0, 0.0, 5.0);
+      return spot;
+   }
+
+   /**
+    * Pairing and track assembly as they were implemented with a KD tree per
+    * frame and a linear search for the matching spot.
+    */
+   static List<List<GsSpotPair>> referencePairsAndTracks(List<SpotData> spots,
+         int nrFrames, double maxDistance, List<GsSpotPair> allPairs) {
+      List<Integer> positions = new ArrayList<Integer>();
+      for (SpotData spot : spots) {
+         if (!positions.contains(spot.getPosition())) {
+            positions.add(spot.getPosition());
+         }
+      }
+      Collections.sort(positions);
+      List<List<List<GsSpotPair>>> pairsByPosition = new ArrayList<List<List<GsSpotPair>>>();
+      for (int pos : positions) {
+         List<List<GsSpotPair>> pairsByFrame = new ArrayList<List<GsSpotPair>>();
+         pairsByPosition.add(pairsByFrame);
+         for (int frame = 1; frame <= nrFrames; frame++) {
+            List<GsSpotPair> framePairs = new ArrayList<GsSpotPair>();
+            pairsByFrame.add(framePairs);
+            List<SpotData> gsCh1 = new ArrayList<SpotData>();
+            List<SpotData> gsCh2 = new ArrayList<SpotData>();
+            List<Point2D.Double> xyPointsCh2 = new ArrayList<Point2D.Double>();
+            for (SpotData gs : spots) {
+               if (gs.getPosition() == pos && gs.getFrame() == frame) {
+                  if (gs.getChannel() == 1) {
+                     gsCh1.add(gs);
+                  } else if (gs.getChannel() == 2) {
+                     gsCh2.add(gs);
+                     xyPointsCh2.add(new Point2D.Double(gs.getXCenter(), gs.getYCenter()));
+                  }
+               }
+            }
+            if (xyPointsCh2.isEmpty()) {
+               continue;
+            }
+            NearestPoint2D np = new NearestPoint2D(xyPointsCh2, maxDistance);
+            for (SpotData ch1Spot : gsCh1) {
+               Point2D.Double pCh1 = new Point2D.Double(
+                     ch1Spot.getXCenter(), ch1Spot.getYCenter());
+               Point2D.Double pCh2 = np.findKDWSE(pCh1);
+               if (pCh2 != null) {
+                  SpotData ch2Spot = null;
+                  for (int i = 0; i < gsCh2.size() && ch2Spot == null; i++) {
+                     if (pCh2.x == gsCh2.get(i).getXCenter()
+                           && pCh2.y == gsCh2.get(i).getYCenter()) {
+                        ch2Spot = gsCh2.get(i);
+                     }
+                  }
+                  framePairs.add(new GsSpotPair(ch1Spot, ch2Spot, pCh1, pCh2));
+               }
+            }
+            allPairs.addAll(framePairs);
+         }
+      }
+
+      List<List<GsSpotPair>> tracks = new ArrayList<List<GsSpotPair>>();
+      for (List<List<GsSpotPair>> pairsByFrame : pairsByPosition) {
+         List<NearestPointByData> npsp = new ArrayList<NearestPointByData>();
+         for (int frame = 1; frame <= nrFrames; frame++) {
+            npsp.add(new NearestPointByData(pairsByFrame.get(frame - 1), maxDistance));
+         }
+         for (int frame = 1; frame <= nrFrames; frame++) {
+            for (GsSpotPair spotPair : pairsByFrame.get(frame - 1)) {
+               if (spotPair.partOfTrack()) {
+                  continue;
+               }
+               List<GsSpotPair> track = new ArrayList<GsSpotPair>();
+               track.add(spotPair);
+               spotPair.useInTrack(true);
+               for (int searchInFrame = frame + 1; searchInFrame <= nrFrames; searchInFrame++) {
+                  GsSpotPair newSpotPair = (GsSpotPair) npsp.get(searchInFrame - 1).findKDWSE(
+                        new Point2D.Double(spotPair.getFirstPoint().getX(),
+                              spotPair.getFirstPoint().getY()));
+                  if (newSpotPair != null && !newSpotPair.partOfTrack()) {
+                     newSpotPair.useInTrack(true);
+                     spotPair = newSpotPair;
+                     track.add(spotPair);
+                  }
+               }
+               tracks.add(track);
+            }
+         }
+      }
+      return tracks;
+   }
 }
@@ -0,0 +1,178 @@
+package edu.ucsf.valelab.gaussianfit.datasettransformations;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the batch transform of CoordinateMapper with the transform of one
+ * point at a time.
+ */
+public class CoordinateMapperTest {
+   private static final double FIELD = 512.0;
+   private static final int NR_CONTROL_POINTS = 400;
+
+   /**
+    * Beads imaged in two channels, the second one slightly rotated, scaled
+    * and distorted.
+    */
+   static CoordinateMapper.PointMap beads(Random random) {
+      CoordinateMapper.PointMap pointMap = new CoordinateMapper.PointMap();
+      for (int i = 0; i < NR_CONTROL_POINTS; i++) {
+         double x = random.nextDouble() * FIELD;
+         double y = random.nextDouble() * FIELD;
+         double x2 = 3.0 + 1.002 * x - 0.004 * y + 2e-6 * (x - 256) * (y - 256)
+               + 0.01 * random.nextGaussian();
+         double y2 = -2.0 + 0.004 * x + 0.998 * y + 3e-6 * (x - 256) * (x - 256)
+               + 0.01 * random.nextGaussian();
+         pointMap.put(new Point2D.Double(x, y), new Point2D.Double(x2, y2));
+      }
+      return pointMap;
+   }
+
+   static double[][] randomPoints(Random random, int n) {
+      double[][] points = new double[2][n];
+      for (int i = 0; i < n; i++) {
+         // including some points outside the beads
+         points[0][i] = -20 + random.nextDouble() * (FIELD + 40);
+         points[1][i] = -20 + random.nextDouble() * (FIELD + 40);
+      }
+      return points;
+   }
+
+   private static void assertMatchesPerPoint(CoordinateMapper mapper, double[][] points) {
+      double[][] batch = mapper.transform(points[0], points[1]);
+      int nrTransformed = 0;
+      for (int i = 0; i < points[0].length; i++) {
+         Point2D.Double expected = mapper.transform(
+               new Point2D.Double(points[0][i], points[1][i]));
+         if (expected == null || Double.isNaN(expected.x)) {
+            Assert.assertTrue(Double.isNaN(batch[0][i]));
+            Assert.assertTrue(Double.isNaN(batch[1][i]));
+         } else {
+            Assert.assertEquals(expected.x, batch[0][i], 1e-6);
+            Assert.assertEquals(expected.y, batch[1][i], 1e-6);
+            nrTransformed++;
+         }
+      }
+      Assert.assertTrue(nrTransformed > 0);
+   }
+
+   @Test
+   public void batchMatchesPerPoint() {
+      Random random = new Random(1);
+      CoordinateMapper mapper = new CoordinateMapper(beads(random), 2,
+            CoordinateMapper.LWM, false);
+      double[][] points = randomPoints(random, 20000);
+      assertMatchesPerPoint(mapper, points);
+
+      mapper.setMethod(CoordinateMapper.PIECEWISEAFFINE);
+      assertMatchesPerPoint(mapper, randomPoints(random, 5000));
+      // neighbors further than the maximum distance are left out
+      mapper.setPieceWiseAffineMaxControlPoints(40);
+      mapper.setPieceWiseAffineMaxDistance(50.0);
+      assertMatchesPerPoint(mapper, randomPoints(random, 5000));
+
+      mapper.setMethod(CoordinateMapper.AFFINE);
+      assertMatchesPerPoint(mapper, points);
+      mapper.setMethod(CoordinateMapper.NONRFEFLECTIVESIMILARITY);
+      assertMatchesPerPoint(mapper, points);
+   }
+
+   @Test
+   public void pointsThatCannotBeTransformedAreNaN() {
+      CoordinateMapper mapper = new CoordinateMapper(beads(new Random(2)), 2,
+            CoordinateMapper.LWM, false);
+      double[][] result = mapper.transform(new double[] {100.0, Double.NaN, 5000.0},
+            new double[] {100.0, 100.0, 5000.0});
+      Assert.assertFalse(Double.isNaN(result[0][0]));
+      Assert.assertTrue(Double.isNaN(result[0][1]));
+      // no control point near enough
+      Point2D.Double far = mapper.transform(new Point2D.Double(5000.0, 5000.0));
+      Assert.assertTrue(far == null || Double.isNaN(far.x));
+      Assert.assertTrue(Double.isNaN(result[0][2]));
+   }
+
+   /**
+    * Many more points than cells, so that most cells hold several points.
+    * HelperCoordinateMapperBenchmark times the batch on 5 million points.
+    */
+   @Test
+   public void largeBatchMatchesPerPoint() {
+      Random random = new Random(3);
+      CoordinateMapper mapper = new CoordinateMapper(beads(random), 2,
+            CoordinateMapper.LWM, false);
+      int n = 200000;
+      double[][] points = randomPoints(random, n);
+      double[][] batch = mapper.transform(points[0], points[1]);
+      for (int i = 0; i < n; i += 10) {
+         Point2D.Double expected = mapper.transform(
+               new Point2D.Double(points[0][i], points[1][i]));
+         if (Double.isNaN(expected.x)) {
+            Assert.assertTrue(Double.isNaN(batch[0][i]));
+         } else {
+            Assert.assertEquals(expected.x, batch[0][i], 1e-6);
+            Assert.assertEquals(expected.y, batch[1][i], 1e-6);
+         }
+      }
+   }
+
+   /**
+    * Control points used to normalize distances by their nearest neighbor,
+    * which is the control point itself, so that every LWM transform was NaN.
+    * Beads that follow a second order polynomial exactly are transformed by
+    * that polynomial.
+    */
+   @Test
+   public void lwmReproducesSecondOrderPolynomial() {
+      Random random = new Random(4);
+      CoordinateMapper.PointMap pointMap = new CoordinateMapper.PointMap();
+      for (int i = 0; i < NR_CONTROL_POINTS; i++) {
+         double x = random.nextDouble() * FIELD;
+         double y = random.nextDouble() * FIELD;
+         pointMap.put(new Point2D.Double(x, y), new Point2D.Double(polynomialX(x, y),
+               polynomialY(x, y)));
+      }
+      CoordinateMapper.EnhancedKDTree kdTree = new CoordinateMapper.EnhancedKDTree(
+            pointMap.keySet().toArray(new Point2D.Double[0]));
+      for (CoordinateMapper.ControlPoint controlPoint
+            : CoordinateMapper.createControlPoints(kdTree, 2, pointMap).values()) {
+         Assert.assertTrue(controlPoint.rnormalized > 0.0);
+      }
+
+      CoordinateMapper mapper = new CoordinateMapper(pointMap, 2, CoordinateMapper.LWM, false);
+      // away from the edges, where there are control points on all sides
+      double[][] points = new double[2][1000];
+      for (int i = 0; i < points[0].length; i++) {
+         points[0][i] = 50 + random.nextDouble() * (FIELD - 100);
+         points[1][i] = 50 + random.nextDouble() * (FIELD - 100);
+      }
+      double[][] batch = mapper.transform(points[0], points[1]);
+      int nrTransformed = 0;
+      for (int i = 0; i < points[0].length; i++) {
+         double x = points[0][i];
+         double y = points[1][i];
+         Point2D.Double p = mapper.transform(new Point2D.Double(x, y));
+         if (Double.isNaN(p.x)) {
+            // no control point near enough
+            Assert.assertTrue(Double.isNaN(batch[0][i]));
+            continue;
+         }
+         nrTransformed++;
+         Assert.assertEquals(polynomialX(x, y), p.x, 1e-6);
+         Assert.assertEquals(polynomialY(x, y), p.y, 1e-6);
+         Assert.assertEquals(polynomialX(x, y), batch[0][i], 1e-6);
+         Assert.assertEquals(polynomialY(x, y), batch[1][i], 1e-6);
+      }
+      Assert.assertTrue(nrTransformed > 0.95 * points[0].length);
+   }
+
+   private static double polynomialX(double x, double y) {
+      return 3.0 + 1.002 * x - 0.004 * y + 2e-6 * (x - 256) * (y - 256);
+   }
+
+   private static double polynomialY(double x, double y) {
+      return -2.0 + 0.004 * x + 0.998 * y + 3e-6 * (x - 256) * (x - 256);
+   }
+}
@@ -0,0 +1,42 @@
+package edu.ucsf.valelab.gaussianfit.datasettransformations;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+
+/**
+ * Times the LWM correction of 5 million localizations in one batch, and one
+ * at a time.  Transforming them one at a time would take minutes, so that is
+ * timed on a sample.  Not a unit test; run by hand, with the number of
+ * points as optional argument.
+ */
+public class HelperCoordinateMapperBenchmark {
+
+   public static void main(String[] args) {
+      int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+      int sample = Math.min(n, 20000);
+      Random random = new Random(3);
+      CoordinateMapper mapper = new CoordinateMapper(CoordinateMapperTest.beads(random), 2,
+            CoordinateMapper.LWM, false);
+      double[][] points = CoordinateMapperTest.randomPoints(random, n);
+
+      // warm up
+      mapper.transform(points[0], points[1]);
+      for (int i = 0; i < sample; i++) {
+         mapper.transform(new Point2D.Double(points[0][i], points[1][i]));
+      }
+
+      long start = System.nanoTime();
+      mapper.transform(points[0], points[1]);
+      double batchNs = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < sample; i++) {
+         mapper.transform(new Point2D.Double(points[0][i], points[1][i]));
+      }
+      double perPointNs = (System.nanoTime() - start) / (double) sample * n;
+
+      System.out.println(String.format("%d points: %.0f ms in one batch, %.0f ms one at a time"
+            + " (extrapolated from %d points), speedup %.1f", n, batchNs / 1e6,
+            perPointNs / 1e6, sample, perPointNs / batchNs));
+   }
+}
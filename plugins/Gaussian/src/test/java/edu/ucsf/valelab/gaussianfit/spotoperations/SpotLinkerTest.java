@@ -0,0 +1,259 @@
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.TrackData;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the grid based linker with the KD tree based nearest neighbor search
+ * it replaced.
+ */
+public class SpotLinkerTest {
+
+   private static final double MAX_DISTANCE = 60.0;
+
+   @Test
+   public void gridIndexMatchesKDTree() {
+      Random random = new Random(42);
+      List<SpotData> spots = randomSpots(random, 2000, 1, 1);
+      SpotGridIndex grid = SpotGridIndex.fromSpots(spots, MAX_DISTANCE);
+      NearestPointByData kd = new NearestPointByData(spots, MAX_DISTANCE);
+      for (int i = 0; i < 5000; i++) {
+         // include query points outside of the area covered by the spots
+         Point2D.Double p = new Point2D.Double(random.nextDouble() * 12000 - 1000,
+               random.nextDouble() * 12000 - 1000);
+         SpotData expected = (SpotData) kd.findKDWSE(p);
+         int found = grid.nearest(p.x, p.y);
+         Assert.assertSame(expected, found < 0 ? null : spots.get(found));
+      }
+   }
+
+   @Test
+   public void gridIndexHandlesDegenerateInput() {
+      SpotGridIndex empty = new SpotGridIndex(new double[0], new double[0], 0, 10.0);
+      Assert.assertEquals(-1, empty.nearest(0.0, 0.0));
+
+      double[] xs = {5.0, 5.0, 5.0};
+      double[] ys = {7.0, 7.0, 7.0};
+      SpotGridIndex same = new SpotGridIndex(xs, ys, 3, 10.0);
+      Assert.assertEquals(0, same.nearest(5.0, 8.0));
+      Assert.assertEquals(-1, same.nearest(5.0, 17.0));
+
+      SpotGridIndex unlimited = new SpotGridIndex(xs, ys, 3, Double.POSITIVE_INFINITY);
+      Assert.assertEquals(0, unlimited.nearest(1e9, -1e9));
+   }
+
+   @Test
+   public void linkMatchesReference() {
+      RowData rowData = movingSpots(new Random(7), 400, 25, 2, 2);
+      List<SpotData> expected = referenceLink(rowData, MAX_DISTANCE);
+      List<SpotData> linked = SpotLinker.linkedSpots(rowData, MAX_DISTANCE);
+      Assert.assertEquals(expected.size(), linked.size());
+      for (int i = 0; i < expected.size(); i++) {
+         SpotData e = expected.get(i);
+         SpotData l = linked.get(i);
+         Assert.assertEquals(e.getXCenter(), l.getXCenter(), 0.0);
+         Assert.assertEquals(e.getYCenter(), l.getYCenter(), 0.0);
+         Assert.assertEquals(e.getIntensity(), l.getIntensity(), 0.0);
+         Assert.assertEquals(e.getNrLinks(), l.getNrLinks());
+         Assert.assertEquals(e.getOriginalFrame(), l.getOriginalFrame());
+      }
+   }
+
+   @Test
+   public void trackExtractionMatchesReference() {
+      RowData rowData = movingSpots(new Random(11), 300, 30, 2, 2);
+      List<List<SpotData>> expected = referenceTracks(rowData, 3, 1, MAX_DISTANCE, 10.0);
+      List<List<SpotData>> tracks = SpotLinker.findTracks(rowData, 3, 1, MAX_DISTANCE, 10.0,
+            false, 0.0);
+      Assert.assertEquals(expected.size(), tracks.size());
+      for (int i = 0; i < expected.size(); i++) {
+         Assert.assertEquals(expected.get(i).size(), tracks.get(i).size());
+         for (int j = 0; j < expected.get(i).size(); j++) {
+            // spots of a RowData are views made on demand, so the same spot
+            // can be two objects.  Views are equal only when they show the
+            // same row of the same store, a copy is never equal.
+            Assert.assertEquals(expected.get(i).get(j), tracks.get(i).get(j));
+         }
+      }
+   }
+
+   private static List<SpotData> randomSpots(Random random, int n, int frame, int channel) {
+      List<SpotData> spots = new ArrayList<SpotData>(n);
+      for (int i = 0; i < n; i++) {
+         spots.add(spot(random.nextDouble() * 10000, random.nextDouble() * 10000,
+               frame, channel, 1));
+      }
+      return spots;
+   }
+
+   /**
+    * Spots that diffuse a bit from frame to frame, and blink on and off.
+    */
+   private static RowData movingSpots(Random random, int nrParticles, int nrFrames,
+         int nrChannels, int nrPositions) {
+      List<SpotData> spots = new ArrayList<SpotData>();
+      for (int pos = 1; pos <= nrPositions; pos++) {
+         for (int ch = 1; ch <= nrChannels; ch++) {
+            double[] xs = new double[nrParticles];
+            double[] ys = new double[nrParticles];
+            for (int p = 0; p < nrParticles; p++) {
+               xs[p] = random.nextDouble() * 10000;
+               ys[p] = random.nextDouble() * 10000;
+            }
+            for (int f = 1; f <= nrFrames; f++) {
+               for (int p = 0; p < nrParticles; p++) {
+                  xs[p] += random.nextGaussian() * 20;
+                  ys[p] += random.nextGaussian() * 20;
+                  if (random.nextDouble() < 0.8) {
+                     spots.add(spot(xs[p], ys[p], f, ch, pos));
+                  }
+               }
+            }
+         }
+      }
+      return new RowData.Builder().setName("test").setNrFrames(nrFrames)
+            .setNrChannels(nrChannels).setNrPositions(nrPositions)
+            .setMaxNrSpots(spots.size()).setSpotList(spots).build();
+   }
+
+   private static SpotData spot(double x, double y, int frame, int channel, int position) {
+      SpotData spot = new SpotData(null, channel, 1, frame, position, 0, 0, 0);
+      spot.setData(100.0 + x / 100.0, 10.0, x, y, 0.0, 200.0, 1.0, 0.0, 5.0);
+      return spot;
+   }
+
+   /**
+    * The linking algorithm as it was implemented with a KD tree per frame.
+    */
+   private static List<SpotData> referenceLink(RowData rowData, double maxDistance) {
+      List<SpotData> result = new ArrayList<SpotData>();
+      for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
+         for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
+            for (int s = 1; s <= rowData.nrSlices_; s++) {
+               List<List<SpotData>> tracks = new ArrayList<List<SpotData>>();
+               for (int f = 1; f <= rowData.nrFrames_; f++) {
+                  List<SpotData> spots = rowData.get(f, s, ch, pos);
+                  if (spots == null) {
+                     continue;
+                  }
+                  List<SpotData> markedSpots = new ArrayList<SpotData>();
+                  if (tracks.size() > 0) {
+                     NearestPointByData nsp = new NearestPointByData(spots, maxDistance);
+                     List<List<SpotData>> removedTracks = new ArrayList<List<SpotData>>();
+                     for (List<SpotData> track : tracks) {
+                        SpotData tSpot = track.get(track.size() - 1);
+                        SpotData newSpot = (SpotData) nsp.findKDWSE(new Point2D.Double(
+                              tSpot.getXCenter(), tSpot.getYCenter()));
+                        if (newSpot == null) {
+                           result.add(average(track));
+                           removedTracks.add(track);
+                        } else {
+                           track.add(newSpot);
+                           markedSpots.add(newSpot);
+                        }
+                     }
+                     tracks.removeAll(removedTracks);
+                  }
+                  for (SpotData spot : spots) {
+                     if (!markedSpots.contains(spot)) {
+                        List<SpotData> track = new ArrayList<SpotData>();
+                        track.add(spot);
+                        tracks.add(track);
+                     }
+                  }
+               }
+               for (List<SpotData> track : tracks) {
+                  result.add(average(track));
+               }
+            }
+         }
+      }
+      return result;
+   }
+
+   private static SpotData average(List<SpotData> track) {
+      SpotData sp = new SpotData(track.get(0));
+      double intensity = 0.0;
+      double x = 0.0;
+      double y = 0.0;
+      for (SpotData spot : track) {
+         intensity += spot.getIntensity();
+         x += spot.getXCenter();
+         y += spot.getYCenter();
+      }
+      sp.setData(intensity, 0.0, x / track.size(), y / track.size(), 0.0, 0.0, 0.0, 0.0, 0.0);
+      sp.setNrLinks(track.size());
+      sp.setOriginalFrame(track.get(0).getFrame());
+      return sp;
+   }
+
+   /**
+    * Track extraction as it was implemented with a KD tree per frame.
+    */
+   private static List<List<SpotData>> referenceTracks(RowData rowData, int minNr,
+         int nrMissing, double maxDistance, double minTotalDistance) {
+      List<List<SpotData>> written = new ArrayList<List<SpotData>>();
+      List<List<TrackData>> remaining = new ArrayList<List<TrackData>>();
+      for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
+         for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
+            for (int s = 1; s <= rowData.nrSlices_; s++) {
+               List<TrackData> tracks = new ArrayList<TrackData>();
+               for (int f = 1; f <= rowData.nrFrames_; f++) {
+                  List<SpotData> spots = rowData.get(f, s, ch, pos);
+                  if (spots == null) {
+                     continue;
+                  }
+                  List<SpotData> markedSpots = new ArrayList<SpotData>();
+                  if (tracks.size() > 0) {
+                     NearestPointByData nsp = new NearestPointByData(spots, maxDistance);
+                     List<TrackData> removedTracks = new ArrayList<TrackData>();
+                     for (TrackData track : tracks) {
+                        SpotData tSpot = track.get(track.size() - 1);
+                        SpotData newSpot = (SpotData) nsp.findKDWSE(new Point2D.Double(
+                              tSpot.getXCenter(), tSpot.getYCenter()));
+                        if (newSpot == null || markedSpots.contains(newSpot)) {
+                           track.addMissing();
+                           if (track.missingMoreThan(nrMissing) && track.size() > minNr
+                                 && track.get(0).distance(track.get(track.size() - 1))
+                                 > minTotalDistance) {
+                              written.add(track.getList());
+                              removedTracks.add(track);
+                           }
+                        } else {
+                           track.resetMissing();
+                           track.add(newSpot);
+                           markedSpots.add(newSpot);
+                        }
+                     }
+                     tracks.removeAll(removedTracks);
+                  }
+                  for (SpotData spot : spots) {
+                     if (!markedSpots.contains(spot)) {
+                        TrackData track = new TrackData();
+                        track.add(spot);
+                        tracks.add(track);
+                     }
+                  }
+               }
+               remaining.add(tracks);
+            }
+         }
+      }
+      for (List<TrackData> tracks : remaining) {
+         for (TrackData track : tracks) {
+            if (track.size() > minNr
+                  && track.get(0).distance(track.get(track.size() - 1)) > minTotalDistance) {
+               written.add(track.getList());
+            }
+         }
+      }
+      return written;
+   }
+}
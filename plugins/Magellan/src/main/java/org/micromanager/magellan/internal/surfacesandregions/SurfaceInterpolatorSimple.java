@@ -19,26 +19,78 @@ package org.micromanager.magellan.internal.surfacesandregions;
 
 import delaunay_triangulation.Delaunay_Triangulation;
 import delaunay_triangulation.Point_dt;
-import delaunay_triangulation.Triangle_dt;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.apache.commons.math3.geometry.euclidean.threed.Line;
 import org.apache.commons.math3.geometry.euclidean.threed.Plane;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
-import org.apache.commons.math3.geometry.partitioning.Region;
 import org.micromanager.magellan.internal.main.Magellan;
 
 /**
  * Subclass that implements a particular interpolation method This one creates a
  * plane based on the 3 closest points in XY space using the delaunay
  * triangulation and calculates specific z values in that plane
+ *
+ * <p>Rows of the interpolation are calculated in parallel.  The triangle
+ * containing each point is looked up in a {@link TriangleIndex}, which only
+ * looks at nearby triangles.  When points are added or removed, the values
+ * outside the triangles that changed are copied from the previous
+ * interpolation at the same resolution.
  */
 public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
 
    private static final double TOLERANCE = 0.01;
 
+   // Shared by all surfaces; only used while interpolating
+   private static final ExecutorService ROW_EXECUTOR = Executors.newFixedThreadPool(
+         Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "Interpolation row thread");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+
+   /**
+    * Last interpolation at one resolution, with the triangles it was
+    * calculated from.
+    */
+   private static final class Level {
+      final TriangleIndex triangles;
+      final double[] bounds;
+      final boolean[][] defined;
+      final float[][] values;
+      final float[][] normals;
+
+      Level(TriangleIndex triangles, double[] bounds, boolean[][] defined,
+            float[][] values, float[][] normals) {
+         this.triangles = triangles;
+         this.bounds = bounds;
+         this.defined = defined;
+         this.values = values;
+         this.normals = normals;
+      }
+   }
+
+   // pixels per interpolation point -> last interpolation.  Only used on the
+   // interpolation thread.
+   private final Map<Integer, Level> levels_ = new HashMap<Integer, Level>();
+
    public SurfaceInterpolatorSimple(String xyName, String zName) {
       super(xyName, zName);
    }
@@ -55,6 +107,7 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
          triangulationPoints[i] = new Point_dt(points.get(i).x, points.get(i).y, points.get(i).z);
       }
       Delaunay_Triangulation dTri = new Delaunay_Triangulation(triangulationPoints);
+      final TriangleIndex triangles = new TriangleIndex(dTri);
 
       int maxPixelDimension = (int) (Math.max(boundXMax_ - boundXMin_, boundYMax_ - boundYMin_)
             / pixSize);
@@ -81,54 +134,99 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
          double dx = (boundXMax_ - boundXMin_) / (numInterpPointsX - 1);
          double dy = (boundYMax_ - boundYMin_) / (numInterpPointsY - 1);
 
-         float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
-         float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
-         boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
-         for (int yInd = 0; yInd < interpVals.length; yInd++) {
-            for (int xInd = 0; xInd < interpVals[0].length; xInd++) {
-               if (Thread.interrupted()) {
-                  throw new InterruptedException();
-               }
-               double xVal = boundXMin_ + dx * xInd;
-               double yVal = boundYMin_ + dy * yInd;
-               boolean inHull = convexHullRegion_.checkPoint(new Vector2D(xVal, yVal))
-                     == Region.Location.INSIDE;
-               if (inHull) {
-                  Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal));
-                  //convert to apache commons coordinates to make a plane
-                  Vector3D v1 = new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z());
-                  Vector3D v2 = new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z());
-                  Vector3D v3 = new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z());
-                  Plane plane = new Plane(v1, v2, v3, TOLERANCE);
-                  //intersetion of vertical line at these x+y values with plane gives point in plane
-                  Vector3D pointInPlane = plane.intersection(new Line(
-                        new Vector3D(xVal, yVal, 0), new Vector3D(xVal, yVal, 1), TOLERANCE));
-                  float zVal = (float) pointInPlane.getZ();
-                  interpVals[yInd][xInd] = zVal;
-                  float angle = (float) (Vector3D.angle(plane.getNormal(),
-                        new Vector3D(0, 0, 1)) / Math.PI * 180.0);
-                  interpNormals[yInd][xInd] = angle;
-                  interpDefined[yInd][xInd] = true;
-               } else {
-                  interpDefined[yInd][xInd] = false;
+         final float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
+         final float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
+         final boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
+         final double[] bounds = {boundXMin_, boundXMax_, boundYMin_, boundYMax_};
+
+         // Values outside the changed region can be taken from the previous
+         // interpolation if it covered the same grid
+         Level previous = levels_.get(pixelsPerInterpPoint);
+         if (previous != null && (!Arrays.equals(previous.bounds, bounds)
+               || previous.values.length != numInterpPointsY
+               || previous.values[0].length != numInterpPointsX)) {
+            previous = null;
+         }
+         final Level reuse = previous;
+         final Rectangle2D.Double changed = reuse == null
+               ? null : triangles.changedRegion(reuse.triangles);
+         if (reuse != null && changed == null) {
+            // nothing changed at all
+            publish(pixelsPerInterpPoint, reuse.defined, reuse.values, reuse.normals);
+            pixelsPerInterpPoint /= 2;
+            continue;
+         }
+
+         List<Callable<Void>> rows = new ArrayList<Callable<Void>>(numInterpPointsY);
+         for (int yInd = 0; yInd < numInterpPointsY; yInd++) {
+            final int row = yInd;
+            final double yVal = boundYMin_ + dy * yInd;
+            final double xMin = boundXMin_;
+            rows.add(new Callable<Void>() {
+               @Override
+               public Void call() {
+                  for (int xInd = 0; xInd < interpVals[0].length; xInd++) {
+                     if (Thread.currentThread().isInterrupted()) {
+                        return null;
+                     }
+                     double xVal = xMin + dx * xInd;
+                     if (reuse != null && !changed.contains(xVal, yVal)
+                           && !onEdge(changed, xVal, yVal)) {
+                        interpVals[row][xInd] = reuse.values[row][xInd];
+                        interpNormals[row][xInd] = reuse.normals[row][xInd];
+                        interpDefined[row][xInd] = reuse.defined[row][xInd];
+                        continue;
+                     }
+                     int tri = triangles.find(xVal, yVal);
+                     if (tri >= 0) {
+                        interpVals[row][xInd] = triangles.getValue(tri, xVal, yVal);
+                        interpNormals[row][xInd] = triangles.getNormalAngle(tri);
+                        interpDefined[row][xInd] = true;
+                     } else {
+                        interpDefined[row][xInd] = false;
+                     }
+                  }
+                  return null;
                }
+            });
+         }
+         try {
+            for (Future<Void> f : ROW_EXECUTOR.invokeAll(rows)) {
+               f.get();
             }
+         } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
          }
          if (Thread.interrupted()) {
             throw new InterruptedException();
          }
-         synchronized (interpolationLock_) {
-            currentInterpolation_ = new SingleResolutionInterpolation(pixelsPerInterpPoint,
-                  interpDefined, interpVals, interpNormals,
-                    boundXMin_, boundXMax_, boundYMin_, boundYMax_,
-                    convexHullRegion_, convexHullVertices_);
-            interpolationLock_.notifyAll();
-            manager_.surfaceInterpolationUpdated(this);
-         }
+         levels_.put(pixelsPerInterpPoint, new Level(triangles, bounds, interpDefined,
+               interpVals, interpNormals));
+         publish(pixelsPerInterpPoint, interpDefined, interpVals, interpNormals);
          pixelsPerInterpPoint /= 2;
       }
    }
 
+   private void publish(int pixelsPerInterpPoint, boolean[][] interpDefined,
+         float[][] interpVals, float[][] interpNormals) {
+      synchronized (interpolationLock_) {
+         currentInterpolation_ = new SingleResolutionInterpolation(pixelsPerInterpPoint,
+               interpDefined, interpVals, interpNormals,
+               boundXMin_, boundXMax_, boundYMin_, boundYMax_,
+               convexHullRegion_, convexHullVertices_);
+         interpolationLock_.notifyAll();
+         manager_.surfaceInterpolationUpdated(this);
+      }
+   }
+
+   /**
+    * Rectangle2D.contains excludes the right and bottom edges.
+    */
+   private static boolean onEdge(Rectangle2D.Double r, double x, double y) {
+      return (x == r.getMaxX() && y >= r.getMinY() && y <= r.getMaxY())
+            || (y == r.getMaxY() && x >= r.getMinX() && x <= r.getMaxX());
+   }
+
    @Override
    public float getExtrapolatedValue(double x, double y) {
       // If there are only three points, assume that user wants to extrapolate to do a
@@ -0,0 +1,304 @@
+package org.micromanager.magellan.internal.surfacesandregions;
+
+import delaunay_triangulation.Delaunay_Triangulation;
+import delaunay_triangulation.Point_dt;
+import delaunay_triangulation.Triangle_dt;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only copy of the triangles of a Delaunay triangulation, with the plane
+ * through each triangle and a grid of buckets to find the triangle containing
+ * a point by looking at nearby triangles only.
+ *
+ * <p>Like the convex hull region that was used before, only points strictly
+ * inside the convex hull are found.  Points on the hull boundary are not.
+ *
+ * <p>Unlike the triangulation itself, this can be used from several threads
+ * at once.
+ */
+final class TriangleIndex {
+   // Relative tolerance for points on the edges of triangles
+   private static final double EDGE_TOLERANCE = 1e-9;
+   // Distance from the hull at which a point is on the hull boundary, the
+   // default tolerance of the MonotoneChain that creates the hull region
+   private static final double HULL_TOLERANCE = 1e-10;
+
+   private final int count_;
+   // x and y of the three corners, 6 values per triangle
+   private final double[] corners_;
+   // z = a x + b y + c, 3 values per triangle
+   private final double[] planes_;
+   // angle of the normal to vertical, in degrees
+   private final float[] angles_;
+   // whether edge i (corner i to corner i + 1) is on the convex hull, 3 values
+   // per triangle
+   private final boolean[] hullEdges_;
+   // corners of each triangle, to compare triangulations
+   private final String[] keys_;
+   private final Set<String> keySet_ = new HashSet<String>();
+
+   private final double minX_;
+   private final double minY_;
+   private final double bucketWidth_;
+   private final double bucketHeight_;
+   private final int bucketsX_;
+   private final int bucketsY_;
+   // triangle indices per bucket
+   private final int[][] buckets_;
+
+   TriangleIndex(Delaunay_Triangulation triangulation) {
+      List<Triangle_dt> triangles = new ArrayList<Triangle_dt>();
+      Iterator<Triangle_dt> it = triangulation.trianglesIterator();
+      while (it.hasNext()) {
+         Triangle_dt tri = it.next();
+         if (tri.isHalfplane()) {
+            continue;
+         }
+         // vertical triangles do not define a z value
+         double nz = (tri.p2().x() - tri.p1().x()) * (tri.p3().y() - tri.p1().y())
+               - (tri.p2().y() - tri.p1().y()) * (tri.p3().x() - tri.p1().x());
+         if (nz != 0.0) {
+            triangles.add(tri);
+         }
+      }
+      count_ = triangles.size();
+      corners_ = new double[6 * count_];
+      planes_ = new double[3 * count_];
+      angles_ = new float[count_];
+      hullEdges_ = new boolean[3 * count_];
+      keys_ = new String[count_];
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      for (int t = 0; t < count_; t++) {
+         Triangle_dt tri = triangles.get(t);
+         Point_dt[] p = {tri.p1(), tri.p2(), tri.p3()};
+         for (int i = 0; i < 3; i++) {
+            corners_[6 * t + 2 * i] = p[i].x();
+            corners_[6 * t + 2 * i + 1] = p[i].y();
+            minX = Math.min(minX, p[i].x());
+            minY = Math.min(minY, p[i].y());
+            maxX = Math.max(maxX, p[i].x());
+            maxY = Math.max(maxY, p[i].y());
+         }
+         // normal (v2 - v1) x (v3 - v1), the same as a Plane through p1, p2, p3
+         double ux = p[1].x() - p[0].x();
+         double uy = p[1].y() - p[0].y();
+         double uz = p[1].z() - p[0].z();
+         double vx = p[2].x() - p[0].x();
+         double vy = p[2].y() - p[0].y();
+         double vz = p[2].z() - p[0].z();
+         double nx = uy * vz - uz * vy;
+         double ny = uz * vx - ux * vz;
+         double nz = ux * vy - uy * vx;
+         planes_[3 * t] = -nx / nz;
+         planes_[3 * t + 1] = -ny / nz;
+         planes_[3 * t + 2] = p[0].z() + (nx * p[0].x() + ny * p[0].y()) / nz;
+         angles_[t] = (float) (Math.acos(nz / Math.sqrt(nx * nx + ny * ny + nz * nz))
+               / Math.PI * 180.0);
+         keys_[t] = key(p);
+         keySet_.add(keys_[t]);
+      }
+
+      // Edges of only one triangle are on the hull
+      Map<String, Integer> edgeCounts = new HashMap<String, Integer>();
+      for (int t = 0; t < count_; t++) {
+         for (int i = 0; i < 3; i++) {
+            String key = edgeKey(t, i);
+            Integer count = edgeCounts.get(key);
+            edgeCounts.put(key, count == null ? 1 : count + 1);
+         }
+      }
+      for (int t = 0; t < count_; t++) {
+         for (int i = 0; i < 3; i++) {
+            hullEdges_[3 * t + i] = edgeCounts.get(edgeKey(t, i)) == 1;
+         }
+      }
+
+      int side = Math.max(1, (int) Math.ceil(Math.sqrt(count_)));
+      minX_ = minX;
+      minY_ = minY;
+      bucketsX_ = side;
+      bucketsY_ = side;
+      bucketWidth_ = count_ == 0 ? 1.0 : Math.max(Double.MIN_NORMAL, (maxX - minX) / side);
+      bucketHeight_ = count_ == 0 ? 1.0 : Math.max(Double.MIN_NORMAL, (maxY - minY) / side);
+      int[] sizes = new int[bucketsX_ * bucketsY_];
+      for (int t = 0; t < count_; t++) {
+         for (int b : bucketsOf(t)) {
+            sizes[b]++;
+         }
+      }
+      buckets_ = new int[sizes.length][];
+      for (int b = 0; b < sizes.length; b++) {
+         buckets_[b] = new int[sizes[b]];
+      }
+      for (int t = 0; t < count_; t++) {
+         for (int b : bucketsOf(t)) {
+            buckets_[b][--sizes[b]] = t;
+         }
+      }
+   }
+
+   /**
+    * @return buckets overlapping the bounding box of triangle t
+    */
+   private List<Integer> bucketsOf(int t) {
+      int o = 6 * t;
+      int x0 = bucketX(Math.min(corners_[o], Math.min(corners_[o + 2], corners_[o + 4])));
+      int x1 = bucketX(Math.max(corners_[o], Math.max(corners_[o + 2], corners_[o + 4])));
+      int y0 = bucketY(Math.min(corners_[o + 1], Math.min(corners_[o + 3], corners_[o + 5])));
+      int y1 = bucketY(Math.max(corners_[o + 1], Math.max(corners_[o + 3], corners_[o + 5])));
+      List<Integer> result = new ArrayList<Integer>();
+      for (int by = y0; by <= y1; by++) {
+         for (int bx = x0; bx <= x1; bx++) {
+            result.add(by * bucketsX_ + bx);
+         }
+      }
+      return result;
+   }
+
+   private static String key(Point_dt[] p) {
+      String[] corners = new String[3];
+      for (int i = 0; i < 3; i++) {
+         corners[i] = p[i].x() + "," + p[i].y() + "," + p[i].z();
+      }
+      Arrays.sort(corners);
+      return corners[0] + ";" + corners[1] + ";" + corners[2];
+   }
+
+   private String edgeKey(int t, int i) {
+      int a = 6 * t + 2 * i;
+      int b = 6 * t + 2 * ((i + 1) % 3);
+      String p = corners_[a] + "," + corners_[a + 1];
+      String q = corners_[b] + "," + corners_[b + 1];
+      return p.compareTo(q) < 0 ? p + ";" + q : q + ";" + p;
+   }
+
+   private int bucketX(double x) {
+      return Math.max(0, Math.min(bucketsX_ - 1, (int) ((x - minX_) / bucketWidth_)));
+   }
+
+   private int bucketY(double y) {
+      return Math.max(0, Math.min(bucketsY_ - 1, (int) ((y - minY_) / bucketHeight_)));
+   }
+
+   /**
+    * @return index of a triangle containing the point, or -1 if the point is
+    *     outside the triangulation or on its boundary
+    */
+   int find(double x, double y) {
+      if (count_ == 0) {
+         return -1;
+      }
+      int[] bucket = buckets_[bucketY(y) * bucketsX_ + bucketX(x)];
+      int found = -1;
+      // A hull vertex can also be a corner of triangles without hull edges,
+      // so look at all triangles containing the point
+      for (int t : bucket) {
+         if (contains(t, x, y)) {
+            if (onHull(t, x, y)) {
+               return -1;
+            }
+            if (found < 0) {
+               found = t;
+            }
+         }
+      }
+      return found;
+   }
+
+   private boolean contains(int t, double x, double y) {
+      int o = 6 * t;
+      double d1 = cross(corners_[o], corners_[o + 1], corners_[o + 2], corners_[o + 3], x, y);
+      double d2 = cross(corners_[o + 2], corners_[o + 3], corners_[o + 4], corners_[o + 5], x, y);
+      double d3 = cross(corners_[o + 4], corners_[o + 5], corners_[o], corners_[o + 1], x, y);
+      double area = Math.abs(cross(corners_[o], corners_[o + 1], corners_[o + 2],
+            corners_[o + 3], corners_[o + 4], corners_[o + 5]));
+      double tolerance = EDGE_TOLERANCE * area;
+      boolean hasNegative = d1 < -tolerance || d2 < -tolerance || d3 < -tolerance;
+      boolean hasPositive = d1 > tolerance || d2 > tolerance || d3 > tolerance;
+      return !(hasNegative && hasPositive);
+   }
+
+   /**
+    * @return true if the point is not inside the hull edges of triangle t by
+    *     more than the hull tolerance
+    */
+   private boolean onHull(int t, double x, double y) {
+      int o = 6 * t;
+      for (int i = 0; i < 3; i++) {
+         if (!hullEdges_[3 * t + i]) {
+            continue;
+         }
+         int a = o + 2 * i;
+         int b = o + 2 * ((i + 1) % 3);
+         int c = o + 2 * ((i + 2) % 3);
+         double inside = Math.signum(cross(corners_[a], corners_[a + 1],
+               corners_[b], corners_[b + 1], corners_[c], corners_[c + 1]));
+         double length = Math.hypot(corners_[b] - corners_[a], corners_[b + 1] - corners_[a + 1]);
+         double d = inside * cross(corners_[a], corners_[a + 1], corners_[b], corners_[b + 1],
+               x, y);
+         if (d <= HULL_TOLERANCE * length) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static double cross(double ax, double ay, double bx, double by,
+         double x, double y) {
+      return (bx - ax) * (y - ay) - (by - ay) * (x - ax);
+   }
+
+   /**
+    * @return z of the plane through triangle t at the given point
+    */
+   float getValue(int t, double x, double y) {
+      return (float) (planes_[3 * t] * x + planes_[3 * t + 1] * y + planes_[3 * t + 2]);
+   }
+
+   /**
+    * @return angle of the normal of triangle t to vertical, in degrees
+    */
+   float getNormalAngle(int t) {
+      return angles_[t];
+   }
+
+   /**
+    * Returns the bounding box of the triangles that are in only one of this
+    * and the other index.  Everywhere else, both give the same values.
+    *
+    * @return region that changed, or null if the triangles are the same
+    */
+   Rectangle2D.Double changedRegion(TriangleIndex other) {
+      return addChanged(addChanged(null, this, other), other, this);
+   }
+
+   private static Rectangle2D.Double addChanged(Rectangle2D.Double region,
+         TriangleIndex index, TriangleIndex other) {
+      for (int t = 0; t < index.count_; t++) {
+         if (other.keySet_.contains(index.keys_[t])) {
+            continue;
+         }
+         for (int i = 0; i < 3; i++) {
+            double x = index.corners_[6 * t + 2 * i];
+            double y = index.corners_[6 * t + 2 * i + 1];
+            if (region == null) {
+               region = new Rectangle2D.Double(x, y, 0, 0);
+            } else {
+               region.add(x, y);
+            }
+         }
+      }
+      return region;
+   }
+}
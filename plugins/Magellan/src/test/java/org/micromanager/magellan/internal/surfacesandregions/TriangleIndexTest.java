@@ -0,0 +1,99 @@
+package org.micromanager.magellan.internal.surfacesandregions;
+
+import delaunay_triangulation.Delaunay_Triangulation;
+import delaunay_triangulation.Point_dt;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.math3.geometry.euclidean.twod.Euclidean2D;
+import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
+import org.apache.commons.math3.geometry.euclidean.twod.hull.MonotoneChain;
+import org.apache.commons.math3.geometry.partitioning.Region;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TriangleIndexTest {
+   // corners of the hull, then points inside it
+   private static final double[][] POINTS = {
+         {0, 0}, {10, 1}, {11, 10}, {1, 9}, {5, 5}, {3, 2}, {7, 6}};
+
+   /**
+    * All points lie in the plane z = 2 x + 3 y + 1.
+    */
+   private static double z(double x, double y) {
+      return 2 * x + 3 * y + 1;
+   }
+
+   private static TriangleIndex index() {
+      Point_dt[] points = new Point_dt[POINTS.length];
+      for (int i = 0; i < POINTS.length; i++) {
+         points[i] = new Point_dt(POINTS[i][0], POINTS[i][1], z(POINTS[i][0], POINTS[i][1]));
+      }
+      return new TriangleIndex(new Delaunay_Triangulation(points));
+   }
+
+   /**
+    * The region that SurfaceInterpolator creates for the same points.
+    */
+   private static Region<Euclidean2D> hullRegion() {
+      List<Vector2D> points = new ArrayList<Vector2D>();
+      for (double[] p : POINTS) {
+         points.add(new Vector2D(p[0], p[1]));
+      }
+      return new MonotoneChain(true).generate(points).createRegion();
+   }
+
+   @Test
+   public void insidePointsAreInterpolated() {
+      TriangleIndex index = index();
+      double[][] inside = {{5, 4}, {2, 1.5}, {9.9, 9}, {1.2, 8.5}};
+      for (double[] p : inside) {
+         int t = index.find(p[0], p[1]);
+         Assert.assertTrue(p[0] + ", " + p[1], t >= 0);
+         Assert.assertEquals(z(p[0], p[1]), index.getValue(t, p[0], p[1]), 1e-4);
+         // normal (-2, -3, 1), pointing up or down depending on the order of
+         // the corners, as with the Plane used before
+         double angle = index.getNormalAngle(t);
+         Assert.assertEquals(Math.toDegrees(Math.acos(1 / Math.sqrt(14))),
+               Math.min(angle, 180 - angle), 1e-4);
+      }
+   }
+
+   @Test
+   public void innerVerticesAndEdgesAreInside() {
+      TriangleIndex index = index();
+      // a corner of several triangles, and a point between two inner points
+      Assert.assertTrue(index.find(5, 5) >= 0);
+      Assert.assertTrue(index.find(6, 5.5) >= 0);
+   }
+
+   @Test
+   public void boundaryPointsAreNotInterpolated() {
+      TriangleIndex index = index();
+      double[][] boundary = {{0, 0}, {10, 1}, {11, 10}, {1, 9}, {5, 0.5}, {0.5, 4.5},
+            {6, 9.5}, {10.5, 5.5}};
+      for (double[] p : boundary) {
+         Assert.assertEquals(p[0] + ", " + p[1], -1, index.find(p[0], p[1]));
+      }
+   }
+
+   @Test
+   public void outsidePointsAreNotInterpolated() {
+      TriangleIndex index = index();
+      double[][] outside = {{-1, -1}, {12, 5}, {5, 0.4}, {5, 11}, {0, 9}};
+      for (double[] p : outside) {
+         Assert.assertEquals(p[0] + ", " + p[1], -1, index.find(p[0], p[1]));
+      }
+   }
+
+   @Test
+   public void matchesConvexHullRegion() {
+      TriangleIndex index = index();
+      Region<Euclidean2D> hull = hullRegion();
+      for (double y = -1; y <= 11; y += 0.25) {
+         for (double x = -1; x <= 12; x += 0.25) {
+            boolean inside = hull.checkPoint(new Vector2D(x, y)) == Region.Location.INSIDE;
+            Assert.assertEquals(x + ", " + y, inside, index.find(x, y) >= 0);
+         }
+      }
+   }
+}
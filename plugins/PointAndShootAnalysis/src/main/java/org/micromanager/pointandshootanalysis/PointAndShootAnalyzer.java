@@ -53,6 +53,11 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 import org.jfree.data.xy.XYSeries;
@@ -65,6 +70,7 @@ import org.micromanager.data.Metadata;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DisplayWindow;
 import org.micromanager.imageprocessing.BoofCVUtils;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
 import org.micromanager.internal.utils.imageanalysis.BoofCVImageConverter;
 import org.micromanager.pointandshootanalysis.algorithm.ContourStats;
 import org.micromanager.pointandshootanalysis.data.PASData;
@@ -239,14 +245,18 @@ public class PointAndShootAnalyzer implements Runnable {
          final Point2D_I32 middle = new Point2D_I32(xMiddle, yMiddle);
 
          // create a boofCV Planar that contains all of the MM data (no copy, backed by MM)
+         // The frames are read once, and shared by all bleach events
          Coords.Builder cbb = dataProvider.getAnyImage().getCoords().copyBuilder();
-         Planar bCVStack = new Planar(GrayU16.class, dataProvider.getNextIndex(Coords.T));
+         final int nrFrames = dataProvider.getNextIndex(Coords.T);
+         final ImageGray[] frames = new ImageGray[nrFrames];
+         Planar bCVStack = new Planar(GrayU16.class, nrFrames);
          bCVStack.setWidth(imgWidth);
          bCVStack.setHeight(imgHeight);
          bCVStack.setStride(imgWidth);
-         for (int frame = 0; frame < dataProvider.getNextIndex(Coords.T); frame++) {
-            bCVStack.setBand(frame, BoofCVImageConverter.mmToBoofCV(
-                  dataProvider.getImage(cbb.t(frame).build()), false));
+         for (int frame = 0; frame < nrFrames; frame++) {
+            frames[frame] = BoofCVImageConverter.mmToBoofCV(
+                  dataProvider.getImage(cbb.t(frame).build()), false);
+            bCVStack.setBand(frame, frames[frame]);
          }
          ListIterator<PASData> pasDataIt = pasData.listIterator();
          while (pasDataIt.hasNext()) {
@@ -307,135 +317,42 @@ public class PointAndShootAnalyzer implements Runnable {
          }
          psd_.setStatus("Found " + pasData.size() + " bleach events, now tracking...");
 
-         // Track particle that received the bleach by local thresholding
-         // First go backwards in time, then forward
-         pasDataIt = pasData.listIterator();
-         Coords.Builder cb = dataProvider.getAnyImage().getCoords().copyBuilder();
-         int count = 0;
-         while (pasDataIt.hasNext()) {
-            PASData pasEntry = pasDataIt.next();
-            Map<Integer, ParticleData> track = new TreeMap<>();
-            Point2D_I32 bleachPoint =
-                  new Point2D_I32(pasEntry.pasActual().x, pasEntry.pasActual().y);
-            ParticleData firstParticle = ParticleData.centralParticle(dataProvider, cb,
-                  pasEntry.framePasClicked() + 1, bleachPoint, halfROISize_);
-            if (firstParticle == null) {
-               continue;
-            }
-            Point2D_I32 currentPoint = firstParticle.getCentroid().copy();
-            for (int frame = pasEntry.framePasClicked() + 1; frame >= 0; frame--) {
-               ParticleData nextParticle = ParticleData.centralParticle(dataProvider,
-                     cb, frame, currentPoint, halfROISize_);
-               if (nextParticle != null && (
-                     currentPoint.distance(nextParticle.getCentroid()) < maxDistance)) {
-                  currentPoint = nextParticle.getCentroid();
-                  track.put(frame, nextParticle);
-               } else {
-                  track.put(frame, null);
-                  // TODO: increase counter, give up when too high
-               }
-            }
-
-            // now go forward in time
-            currentPoint = firstParticle.getCentroid().copy();
-            GrayU16 preBleach = (GrayU16) BoofCVImageConverter.subImage(dataProvider, cb,
-                  pasEntry.framePasClicked() + 1, currentPoint, halfROISize_);
-            if (preBleach == null) {
-               continue;
-            }
-            GrayF32 fPreBleach = new GrayF32(preBleach.getWidth(), preBleach.getHeight());
-            ConvertImage.convert(preBleach, fPreBleach);
-            ParticleData previousParticle = null;
-            for (int frame = pasEntry.framePasClicked() + 2;
-                  frame < dataProvider.getNextIndex(Coords.T); frame++) {
-               ParticleData nextParticle = ParticleData.centralParticle(dataProvider,
-                     cb, frame, currentPoint, halfROISize_);
-               if (nextParticle == null || (
-                     currentPoint.distance(nextParticle.getCentroid()) > maxDistance)) {
-                  track.put(frame, null);
-                  if (previousParticle != null) {
-                     nextParticle = previousParticle.copy();
-                  }
-                  // TODO: increase counter, give up when too high
-               }
-
-               previousParticle = nextParticle;
-               if (nextParticle != null) {
-                  currentPoint = nextParticle.getCentroid();
-               }
-               track.put(frame, nextParticle);
-            }
-
-            // Locate the bleachspots in the particle data 
-            int bleachSpotsMissed = 0;
-            currentPoint = track.get(pasEntry.framePasClicked() + 2).getCentroid();
-            final int getCalculateVectorFrame = pasEntry.framePasClicked() + 5
-                  + nrFramesToMeasureBleachToParticleVector;
-            Point2D_I32 offsetVector = null;
-            for (int frame = pasEntry.framePasClicked() + 2;
-                  frame < dataProvider.getNextIndex(Coords.T); frame++) {
-               if (bleachSpotsMissed < 5 || continueBleachSpotTracking) {
-                  ParticleData particle = track.get(frame);
-                  ImageGray current = BoofCVImageConverter.subImage(dataProvider,
-                        cb, frame, currentPoint, halfROISize_);
-                  if (current != null) {
-                     Point2D_I32 offset = new Point2D_I32(currentPoint.x - halfROISize_,
-                           currentPoint.y - halfROISize_);
-                     if (offsetVector != null) {
-                        Point2D_I32 centroid = particle.getCentroid();
-                        Point2D_I32 bp = new Point2D_I32(centroid.x - offsetVector.x,
-                              centroid.y - offsetVector.y);
-                        particle = ParticleData.addBleachSpotToParticle(particle,
-                              (GrayU16) current, offset, bp,
-                              bleachSpotRadius);
-                     } else {
-                        particle = ParticleData.addBleachSpotToParticle(
-                              fPreBleach,
-                              (GrayU16) current,
-                              track,
-                              frame,
-                              particle,
-                              offset,
-                              bleachSpotRadius,
-                              MAXDISTANCE);
-                     }
-                     currentPoint = particle.getCentroid();
-                     track.put(frame, particle);
-                  }
-                  if (particle.getBleachSpot() == null) {
-                     bleachSpotsMissed += 1;
-                  } else {
-                     bleachSpotsMissed = 0;
-                  }
-               }
-               if (continueBleachSpotTracking && frame == getCalculateVectorFrame) {
-                  List<Point2D_I32> vectors = new ArrayList<>(
-                        nrFramesToMeasureBleachToParticleVector);
-                  int startFrame = pasEntry.framePasClicked() + 5;
-                  int endFrame = startFrame + nrFramesToMeasureBleachToParticleVector;
-                  for (int vFrame = startFrame; vFrame < endFrame; vFrame++) {
-                     ParticleData pd = track.get(vFrame);
-                     if (pd != null) {
-                        Point2D_I32 c = pd.getCentroid();
-                        Point2D_I32 b = pd.getBleachSpot();
-                        if (c != null && b != null) {
-                           Point2D_I32 vector = new Point2D_I32(c.x - b.x,
-                                 c.y - b.y);
-                           vectors.add(vector);
-                        }
-                     }
-                  }
-                  if (vectors.size() > 0.8 * nrFramesToMeasureBleachToParticleVector) {
-                     offsetVector = ListUtils.avgPoint2DList(vectors);
-                     // System.out.println("offset: " + offsetVector.x + ", " + offsetVector.y);
+         // Track particle that received the bleach by local thresholding.
+         // Bleach events are independent, so track them in parallel
+         final int nrEvents = pasData.size();
+         final AtomicInteger nrTracked = new AtomicInteger(0);
+         ExecutorService executor = Executors.newFixedThreadPool(
+               Runtime.getRuntime().availableProcessors(),
+               ThreadFactoryFactory.createThreadFactory("PointAndShootAnalyzer"));
+         List<Future<PASData>> trackedEvents = new ArrayList<>(nrEvents);
+         for (final PASData pasEntry : pasData) {
+            trackedEvents.add(executor.submit(() -> {
+               PASData tracked = trackBleachedParticle(pasEntry, frames, maxDistance,
+                     bleachSpotRadius, continueBleachSpotTracking,
+                     nrFramesToMeasureBleachToParticleVector);
+               psd_.setProgress((double) nrTracked.incrementAndGet() / (double) nrEvents);
+               return tracked;
+            }));
+         }
+         executor.shutdown();
+         try {
+            // collect in the original order, so that results do not depend on timing
+            for (int i = 0; i < nrEvents; i++) {
+               try {
+                  PASData tracked = trackedEvents.get(i).get();
+                  if (tracked != null) {
+                     tracks.add(tracked.particleDataTrack());
+                     pasData.set(i, tracked);
                   }
-
+               } catch (ExecutionException ee) {
+                  studio_.logs().logError(ee, "Failed to track bleach event "
+                        + pasData.get(i).id());
                }
             }
-
-            tracks.add(track);
-            pasDataIt.set(pasEntry.copyBuilder().particleDataTrack(track).build());
-            psd_.setProgress((double) ++count / (double) pasData.size());
+         } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return;
          }
 
          // Find duplicate tracks (i.e. the same particle was bleached twice
@@ -514,8 +431,7 @@ public class PointAndShootAnalyzer implements Runnable {
          psd_.setProgress(0.0);
          List<Map<Integer, ParticleData>> controlTracks = new ArrayList<>();
          try {
-            cb = dataProvider.getAnyImage().getCoords().copyBuilder();
-            Coords ct0 = cb.t(0).build();
+            Coords ct0 = dataProvider.getAnyImage().getCoords().copyBuilder().t(0).build();
             GrayU16 img0 = (GrayU16) BoofCVImageConverter.mmToBoofCV(
                   dataProvider.getImage(ct0), false);
             //GrayU16 img0Gauss = new GrayU16(img0.getWidth(), img0.getHeight());
@@ -555,7 +471,7 @@ public class PointAndShootAnalyzer implements Runnable {
             // only analyze the n largest clusters
             // TODO: make n an input variable
             final int nrLargestClusters = 15;
-            count = 0;
+            int count = 0;
             controlClusters = ListUtils.getNLargestLists(controlClusters, nrLargestClusters);
             for (List<Point2D_I32> particle : controlClusters) {
                Point2D_I32 centroid = ContourStats.centroid(particle);
@@ -564,8 +480,8 @@ public class PointAndShootAnalyzer implements Runnable {
                int missing = 0;
                boolean bail = false;
                for (int frame = 0; frame < dataProvider.getNextIndex(Coords.T) && !bail; frame++) {
-                  ParticleData nextParticle = ParticleData.centralParticle(dataProvider,
-                        cb, frame, currentPoint, halfROISize_);
+                  ParticleData nextParticle = ParticleData.centralParticle(frames[frame],
+                        currentPoint, halfROISize_);
                   if (nextParticle != null
                         && (currentPoint.distance(nextParticle.getCentroid()) < maxDistance)) {
                      currentPoint = nextParticle.getCentroid();
@@ -676,6 +592,138 @@ public class PointAndShootAnalyzer implements Runnable {
 
    }
 
+   /**
+    * Tracks the particle that received the bleach, first backwards in time,
+    * then forward, and locates the bleach spot in the particle.
+    * Only reads the frames, so that several events can be tracked at once.
+    *
+    * @return copy of pasEntry with the track of the particle, or null if the
+    *         particle could not be found
+    */
+   PASData trackBleachedParticle(final PASData pasEntry, final ImageGray[] frames,
+                                 final int maxDistance, final int bleachSpotRadius,
+                                 final boolean continueBleachSpotTracking,
+                                 final int nrFramesToMeasureBleachToParticleVector) {
+      final int nrFrames = frames.length;
+      Map<Integer, ParticleData> track = new TreeMap<>();
+      Point2D_I32 bleachPoint =
+            new Point2D_I32(pasEntry.pasActual().x, pasEntry.pasActual().y);
+      ParticleData firstParticle = ParticleData.centralParticle(
+            frames[pasEntry.framePasClicked() + 1], bleachPoint, halfROISize_);
+      if (firstParticle == null) {
+         return null;
+      }
+      Point2D_I32 currentPoint = firstParticle.getCentroid().copy();
+      for (int frame = pasEntry.framePasClicked() + 1; frame >= 0; frame--) {
+         ParticleData nextParticle = ParticleData.centralParticle(frames[frame],
+               currentPoint, halfROISize_);
+         if (nextParticle != null && (
+               currentPoint.distance(nextParticle.getCentroid()) < maxDistance)) {
+            currentPoint = nextParticle.getCentroid();
+            track.put(frame, nextParticle);
+         } else {
+            track.put(frame, null);
+            // TODO: increase counter, give up when too high
+         }
+      }
+
+      // now go forward in time
+      currentPoint = firstParticle.getCentroid().copy();
+      GrayU16 preBleach = (GrayU16) ParticleData.subImage(
+            frames[pasEntry.framePasClicked() + 1], currentPoint, halfROISize_);
+      if (preBleach == null) {
+         return null;
+      }
+      GrayF32 fPreBleach = new GrayF32(preBleach.getWidth(), preBleach.getHeight());
+      ConvertImage.convert(preBleach, fPreBleach);
+      ParticleData previousParticle = null;
+      for (int frame = pasEntry.framePasClicked() + 2; frame < nrFrames; frame++) {
+         ParticleData nextParticle = ParticleData.centralParticle(frames[frame],
+               currentPoint, halfROISize_);
+         if (nextParticle == null || (
+               currentPoint.distance(nextParticle.getCentroid()) > maxDistance)) {
+            track.put(frame, null);
+            if (previousParticle != null) {
+               nextParticle = previousParticle.copy();
+            }
+            // TODO: increase counter, give up when too high
+         }
+
+         previousParticle = nextParticle;
+         if (nextParticle != null) {
+            currentPoint = nextParticle.getCentroid();
+         }
+         track.put(frame, nextParticle);
+      }
+
+      // Locate the bleachspots in the particle data
+      int bleachSpotsMissed = 0;
+      currentPoint = track.get(pasEntry.framePasClicked() + 2).getCentroid();
+      final int getCalculateVectorFrame = pasEntry.framePasClicked() + 5
+            + nrFramesToMeasureBleachToParticleVector;
+      Point2D_I32 offsetVector = null;
+      for (int frame = pasEntry.framePasClicked() + 2; frame < nrFrames; frame++) {
+         if (bleachSpotsMissed < 5 || continueBleachSpotTracking) {
+            ParticleData particle = track.get(frame);
+            ImageGray current = ParticleData.subImage(frames[frame], currentPoint,
+                  halfROISize_);
+            if (current != null) {
+               Point2D_I32 offset = new Point2D_I32(currentPoint.x - halfROISize_,
+                     currentPoint.y - halfROISize_);
+               if (offsetVector != null) {
+                  Point2D_I32 centroid = particle.getCentroid();
+                  Point2D_I32 bp = new Point2D_I32(centroid.x - offsetVector.x,
+                        centroid.y - offsetVector.y);
+                  particle = ParticleData.addBleachSpotToParticle(particle,
+                        (GrayU16) current, offset, bp,
+                        bleachSpotRadius);
+               } else {
+                  particle = ParticleData.addBleachSpotToParticle(
+                        fPreBleach,
+                        (GrayU16) current,
+                        track,
+                        frame,
+                        particle,
+                        offset,
+                        bleachSpotRadius,
+                        MAXDISTANCE);
+               }
+               currentPoint = particle.getCentroid();
+               track.put(frame, particle);
+            }
+            if (particle.getBleachSpot() == null) {
+               bleachSpotsMissed += 1;
+            } else {
+               bleachSpotsMissed = 0;
+            }
+         }
+         if (continueBleachSpotTracking && frame == getCalculateVectorFrame) {
+            List<Point2D_I32> vectors = new ArrayList<>(
+                  nrFramesToMeasureBleachToParticleVector);
+            int startFrame = pasEntry.framePasClicked() + 5;
+            int endFrame = startFrame + nrFramesToMeasureBleachToParticleVector;
+            for (int vFrame = startFrame; vFrame < endFrame; vFrame++) {
+               ParticleData pd = track.get(vFrame);
+               if (pd != null) {
+                  Point2D_I32 c = pd.getCentroid();
+                  Point2D_I32 b = pd.getBleachSpot();
+                  if (c != null && b != null) {
+                     Point2D_I32 vector = new Point2D_I32(c.x - b.x,
+                           c.y - b.y);
+                     vectors.add(vector);
+                  }
+               }
+            }
+            if (vectors.size() > 0.8 * nrFramesToMeasureBleachToParticleVector) {
+               offsetVector = ListUtils.avgPoint2DList(vectors);
+            }
+
+         }
+      }
+
+      return pasEntry.copyBuilder().particleDataTrack(track).build();
+   }
+
    /**
     * Convenience methods to convert a string with expected format to an Instant
     *
@@ -724,22 +772,30 @@ public class PointAndShootAnalyzer implements Runnable {
     */
 
    /**
+    * Scans the pixel array row by row.  When several pixels have the lowest
+    * value, returns the one with the lowest x, and then the lowest y.
+    *
     * @param img image in which to look for minimum pixel
-    * @return
+    * @return position of the minimum pixel
     */
    public static Point2D_I32 findMinPixel(GrayF32 img) {
-      Point2D_I32 p = new Point2D_I32(0, 0);
-      Float val = img.unsafe_get(0, 0);
-      for (int x = 0; x < img.getWidth(); x++) {
-         for (int y = 0; y < img.getHeight(); y++) {
-            if (img.unsafe_get(x, y) < val) {
-               p.x = x;
-               p.y = y;
-               val = img.unsafe_get(x, y);
+      final float[] data = img.data;
+      final int width = img.getWidth();
+      int minX = 0;
+      int minY = 0;
+      float val = data[img.startIndex];
+      for (int y = 0; y < img.getHeight(); y++) {
+         int index = img.startIndex + y * img.stride;
+         for (int x = 0; x < width; x++, index++) {
+            float v = data[index];
+            if (v < val || (v == val && x < minX)) {
+               minX = x;
+               minY = y;
+               val = v;
             }
          }
       }
-      return p;
+      return new Point2D_I32(minX, minY);
    }
 
 
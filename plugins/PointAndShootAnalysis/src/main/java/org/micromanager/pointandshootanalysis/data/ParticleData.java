@@ -264,6 +264,50 @@ public class ParticleData {
                                               final int halfBoxSize) throws IOException {
 
       ImageGray sub = BoofCVImageConverter.subImage(dp, cb, frame, startCenter, halfBoxSize);
+      return particleInSubImage(sub, startCenter, halfBoxSize);
+   }
+
+   /**
+    * Finds the centroid of the particle closest to the given input coordinates
+    * in an image that was read before.  Does not modify the image, so several
+    * threads can look in the same image at the same time.
+    *
+    * @param image       Image of the frame in which to look for the particle centroid
+    * @param startCenter input xy position around which to look
+    * @param halfBoxSize Defines size of the Box in which the code looks for a particle
+    * @return particle (or null if not found)
+    */
+   public static ParticleData centralParticle(final ImageGray image,
+                                              final Point2D_I32 startCenter,
+                                              final int halfBoxSize) {
+      return particleInSubImage(subImage(image, startCenter, halfBoxSize), startCenter,
+            halfBoxSize);
+   }
+
+   /**
+    * Returns the box of the image around the given point, without copying.
+    *
+    * @param image       Image to take the box from
+    * @param p           center of the box
+    * @param halfBoxSize Box is p.x - halfBoxSize, p.y - halfBoxSize; p.x + halfBoxSize,
+    *                    p.y + halfBoxSize
+    * @return box, or null if the box does not fit in the image
+    */
+   public static ImageGray subImage(final ImageGray image, final Point2D_I32 p,
+                                    final int halfBoxSize) {
+      if (p.getX() - halfBoxSize < 0
+            || p.getY() - halfBoxSize < 0
+            || p.getX() + halfBoxSize >= image.getWidth()
+            || p.getY() + halfBoxSize >= image.getHeight()) {
+         return null;
+      }
+      return (ImageGray) image.subimage(p.getX() - halfBoxSize, p.getY() - halfBoxSize,
+            p.getX() + halfBoxSize, p.getY() + halfBoxSize);
+   }
+
+   private static ParticleData particleInSubImage(final ImageGray sub,
+                                                  final Point2D_I32 startCenter,
+                                                  final int halfBoxSize) {
       if (sub == null) {
          return null;
       }
@@ -464,15 +508,16 @@ public class ParticleData {
    private static Double averageIntensity(GrayU16 originalImage,
                                           List<Point2D_I32> cluster, Point2D_I32 offset) {
       try {
+         // index the pixel array directly rather than through unsafe_get
+         final short[] data = originalImage.data;
+         final int stride = originalImage.stride;
+         int start = originalImage.startIndex;
+         if (offset != null) {
+            start -= offset.y * stride + offset.x;
+         }
          long sum = 0;
-         if (offset == null) {
-            for (Point2D_I32 p : cluster) {
-               sum += originalImage.unsafe_get(p.x, p.y) & 0xffff;
-            }
-         } else {
-            for (Point2D_I32 p : cluster) {
-               sum += originalImage.unsafe_get(p.x - offset.x, p.y - offset.y) & 0xffff;
-            }
+         for (Point2D_I32 p : cluster) {
+            sum += data[start + p.y * stride + p.x] & 0xffff;
          }
          return ((double) sum / (double) cluster.size());
       } catch (ArrayIndexOutOfBoundsException aie) {
@@ -0,0 +1,170 @@
+package org.micromanager.pointandshootanalysis;
+
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.ImageGray;
+import georegression.struct.point.Point2D_I32;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.pointandshootanalysis.data.PASData;
+import org.micromanager.pointandshootanalysis.data.ParticleData;
+
+/**
+ * Tracks bleached particles in a small synthetic time series: two bright
+ * discs that move one pixel every other frame, each of which gets a dark
+ * bleach spot.
+ */
+public class PointAndShootAnalyzerTest {
+   private static final int SIZE = 160;
+   private static final int NR_FRAMES = 30;
+   private static final int PARTICLE_RADIUS = 12;
+   // radius of the bleached area in the images, and of the bleach mask
+   private static final int BLEACHED_RADIUS = 5;
+   private static final int BLEACH_RADIUS = 3;
+   // frame after which the bleach is visible (see trackBleachedParticle)
+   private static final int FRAME_PAS_CLICKED = 10;
+   private static final int FIRST_BLEACHED_FRAME = FRAME_PAS_CLICKED + 2;
+   private static final int MAX_DISTANCE = 3;
+
+   /**
+    * Center of a particle in a frame.  Particle 0 moves right, particle 1
+    * moves up.
+    */
+   private static Point2D_I32 center(int particle, int frame) {
+      return particle == 0
+            ? new Point2D_I32(50 + frame / 2, 60)
+            : new Point2D_I32(110, 120 - frame / 2);
+   }
+
+   /**
+    * Position of the bleach spot, at a fixed offset from the particle center.
+    */
+   private static Point2D_I32 bleachSpot(int particle, int frame) {
+      Point2D_I32 c = center(particle, frame);
+      return new Point2D_I32(c.x + 4, c.y + (particle == 0 ? 0 : 3));
+   }
+
+   private static ImageGray[] frames() {
+      Random random = new Random(11);
+      ImageGray[] frames = new ImageGray[NR_FRAMES];
+      for (int frame = 0; frame < NR_FRAMES; frame++) {
+         GrayU16 img = new GrayU16(SIZE, SIZE);
+         for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+               double value = 100.0;
+               for (int particle = 0; particle < 2; particle++) {
+                  if (center(particle, frame).distance(x, y) <= PARTICLE_RADIUS) {
+                     value = 1000.0;
+                     if (frame >= FIRST_BLEACHED_FRAME
+                           && bleachSpot(particle, frame).distance(x, y) <= BLEACHED_RADIUS) {
+                        value = 150.0;
+                     }
+                  }
+               }
+               img.set(x, y, (int) Math.round(value + 5.0 * random.nextGaussian()));
+            }
+         }
+         frames[frame] = img;
+      }
+      return frames;
+   }
+
+   private static PASData event(int particle) {
+      Point2D_I32 spot = bleachSpot(particle, FIRST_BLEACHED_FRAME);
+      return PASData.builder()
+            .framePasClicked(FRAME_PAS_CLICKED)
+            .pasIntended(new Point(spot.x, spot.y))
+            .pasActual(new Point(spot.x, spot.y))
+            .id("particle " + particle)
+            .build();
+   }
+
+   private static PASData track(PointAndShootAnalyzer analyzer, ImageGray[] frames,
+                                PASData event) {
+      return analyzer.trackBleachedParticle(event, frames, MAX_DISTANCE, BLEACH_RADIUS,
+            true, 20);
+   }
+
+   @Test
+   public void tracksParticlesAndBleachSpots() {
+      ImageGray[] frames = frames();
+      PointAndShootAnalyzer analyzer = new PointAndShootAnalyzer(null, null, null);
+      for (int particle = 0; particle < 2; particle++) {
+         PASData tracked = track(analyzer, frames, event(particle));
+         Assert.assertNotNull(tracked);
+         Map<Integer, ParticleData> track = tracked.particleDataTrack();
+         Assert.assertEquals(NR_FRAMES, track.size());
+         for (int frame = 0; frame < NR_FRAMES; frame++) {
+            String msg = "particle " + particle + ", frame " + frame;
+            ParticleData p = track.get(frame);
+            Assert.assertNotNull(msg, p);
+            // the bleached pixels are not part of the particle mask
+            Assert.assertTrue(msg, p.getCentroid().distance(center(particle, frame)) <= 2.5);
+            if (frame < FIRST_BLEACHED_FRAME) {
+               Assert.assertNull(msg, p.getBleachSpot());
+            } else {
+               Assert.assertNotNull(msg, p.getBleachSpot());
+               Assert.assertTrue(msg,
+                     p.getBleachSpot().distance(bleachSpot(particle, frame)) <= 1.5);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void parallelTrackingMatchesSerial() throws Exception {
+      ImageGray[] frames = frames();
+      PointAndShootAnalyzer analyzer = new PointAndShootAnalyzer(null, null, null);
+      List<PASData> serial = new ArrayList<>();
+      for (int particle = 0; particle < 2; particle++) {
+         serial.add(track(analyzer, frames, event(particle)));
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+         List<Future<PASData>> parallel = new ArrayList<>();
+         for (int particle = 0; particle < 2; particle++) {
+            final PASData event = event(particle);
+            parallel.add(executor.submit(() -> track(analyzer, frames, event)));
+         }
+         for (int particle = 0; particle < 2; particle++) {
+            Map<Integer, ParticleData> expected = serial.get(particle).particleDataTrack();
+            Map<Integer, ParticleData> actual = parallel.get(particle).get()
+                  .particleDataTrack();
+            Assert.assertEquals(expected.keySet(), actual.keySet());
+            for (Integer frame : expected.keySet()) {
+               Assert.assertEquals(expected.get(frame).getCentroid(),
+                     actual.get(frame).getCentroid());
+               Assert.assertEquals(expected.get(frame).getBleachSpot(),
+                     actual.get(frame).getBleachSpot());
+               Assert.assertEquals(expected.get(frame).getMask(),
+                     actual.get(frame).getMask());
+            }
+         }
+      } finally {
+         executor.shutdown();
+      }
+   }
+
+   @Test
+   public void findMinPixelPrefersLowestXThenLowestY() {
+      GrayF32 img = new GrayF32(6, 5);
+      for (int i = 0; i < img.data.length; i++) {
+         img.data[i] = 1.0f;
+      }
+      img.set(4, 1, 0.5f);
+      img.set(2, 3, 0.5f);
+      img.set(2, 4, 0.5f);
+      Assert.assertEquals(new Point2D_I32(2, 3), PointAndShootAnalyzer.findMinPixel(img));
+      // also in a sub-image, which does not start at index 0
+      GrayF32 sub = img.subimage(1, 1, 6, 5);
+      Assert.assertEquals(new Point2D_I32(1, 2), PointAndShootAnalyzer.findMinPixel(sub));
+   }
+}
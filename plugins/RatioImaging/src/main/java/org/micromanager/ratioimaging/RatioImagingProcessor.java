@@ -26,13 +26,22 @@ package org.micromanager.ratioimaging;
 import ij.ImagePlus;
 import ij.process.Blitter;
 import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatBlitter;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import java.awt.Rectangle;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.micromanager.PropertyMap;
 import org.micromanager.Studio;
 import org.micromanager.data.Coords;
@@ -46,10 +55,19 @@ import org.micromanager.data.SummaryMetadata;
 // MMStudio API, so it still uses internal classes and interfaces. New code
 // should not imitate this practice.
 import org.micromanager.internal.utils.NumberUtils;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
 
 /**
  * DataProcessor that creates a ration image as instructed in the UI.
  *
+ * <p>The ratio is calculated in a single pass over the raw pixels of both
+ * channels and their backgrounds, split in bands of rows over the available
+ * processors.  The result is the same as that of the equivalent ImageJ
+ * operations (clipped background subtraction, conversion to float,
+ * subtraction of the constants, division and multiplication by the factor).
+ * Backgrounds of another pixel type than the images (e.g. 32 bit or RGB) are
+ * handled by those ImageJ operations.
+ *
  * @author nico
  */
 public class RatioImagingProcessor implements Processor {
@@ -61,8 +79,15 @@ public class RatioImagingProcessor implements Processor {
    private final int bc2Constant_;
    private final String bc1Path_;
    private final String bc2Path_;
-   private ImagePlus bc1_;
-   private ImagePlus bc2_;
+   // Background pixels by binning, ROI and bytes per pixel.  Values may be
+   // null when there is no usable background.
+   private final Map<String, Object> bc1_ = new HashMap<>();
+   private final Map<String, Object> bc2_ = new HashMap<>();
+   // Smaller images are not split over threads
+   private static final int MIN_PARALLEL_PIXELS = 256 * 256;
+   private ExecutorService executor_;
+   // Intermediate result for 8 bit images, kept between images
+   private float[] floatBuffer_;
    private final List<Image> images_;
    private boolean process_;
    private int ch1Index_;
@@ -231,16 +256,6 @@ public class RatioImagingProcessor implements Processor {
          return;
       }
       
-      int binning = newImage.getMetadata().getBinning();
-      Rectangle roi = newImage.getMetadata().getROI();
-      int nrBytesPerPixel = newImage.getBytesPerPixel();
-      if (bc1_ == null) {
-         bc1_ = getBackground(bc1Path_, binning, roi, nrBytesPerPixel);
-      }
-      if (bc2_ == null) {
-         bc2_ = getBackground(bc2Path_, binning, roi, nrBytesPerPixel);
-      }
-      
       if (!process_) {
          return;
       }
@@ -273,48 +288,264 @@ public class RatioImagingProcessor implements Processor {
 
    }
       
+   @Override
+   public void cleanup(ProcessorContext context) {
+      if (executor_ != null) {
+         executor_.shutdown();
+         executor_ = null;
+      }
+   }
+
+   /**
+    * Returns the pixels of a background for images with the given binning,
+    * ROI and bytes per pixel, loading it the first time.
+    */
+   private Object backgroundPixels(Map<String, Object> cache, String path, Image image) {
+      Integer binning = image.getMetadata().getBinning();
+      Rectangle roi = image.getMetadata().getROI();
+      String key = binning + " " + roi + " " + image.getBytesPerPixel();
+      if (!cache.containsKey(key)) {
+         Object pixels = null;
+         if (binning != null && roi != null) {
+            ImagePlus background = getBackground(path, binning, new Rectangle(roi),
+                  image.getBytesPerPixel());
+            if (background != null && background.getWidth() == image.getWidth()
+                  && background.getHeight() == image.getHeight()) {
+               pixels = background.getProcessor().getPixels();
+            }
+         }
+         cache.put(key, pixels);
+      }
+      return cache.get(key);
+   }
+
    private void process(Image ch1Image, Image ch2Image, ProcessorContext context) {
       
       final Coords ratioCoords = ch1Image.getCoords().copyBuilder().c(ratioIndex_).build();
+      final int width = ch1Image.getWidth();
+      final int height = ch1Image.getHeight();
+      final Object ch1 = ch1Image.getRawPixels();
+      final Object ch2 = ch2Image.getRawPixels();
+      final Object bg1 = backgroundPixels(bc1_, bc1Path_, ch1Image);
+      final Object bg2 = backgroundPixels(bc2_, bc2Path_, ch1Image);
+
+      if (!canUseRawPixels(ch1, ch2, bg1, bg2)) {
+         ImageProcessor ch3Proc = ratioProcessor(
+               studio_.data().ij().createProcessor(ch1Image),
+               studio_.data().ij().createProcessor(ch2Image),
+               processor(bg1, width, height), processor(bg2, width, height),
+               ch1Image.getBytesPerPixel());
+         context.outputImage(studio_.data().ij().createImage(ch3Proc, ratioCoords,
+               ch1Image.getMetadata().copyBuilderWithNewUUID()
+                     .bitDepth(bitDepth((int) ch3Proc.getMax(),
+                           ch1Image.getBytesPerPixel())).build()));
+         return;
+      }
+
+      Object ratio;
+      if (ch1 instanceof short[]) {
+         ratio = new short[width * height];
+      } else {
+         if (floatBuffer_ == null || floatBuffer_.length != width * height) {
+            floatBuffer_ = new float[width * height];
+         }
+         ratio = floatBuffer_;
+      }
+      final Object result = ratio;
+      int max = 0;
+      if (width * height < MIN_PARALLEL_PIXELS) {
+         max = ratioRows(ch1, ch2, bg1, bg2, result, 0, width * height);
+      } else {
+         if (executor_ == null) {
+            executor_ = Executors.newFixedThreadPool(
+                  Runtime.getRuntime().availableProcessors(),
+                  ThreadFactoryFactory.createThreadFactory("RatioImaging"));
+         }
+         int bands = Runtime.getRuntime().availableProcessors();
+         int rowsPerBand = (height + bands - 1) / bands;
+         List<Callable<Integer>> tasks = new ArrayList<>(bands);
+         for (int row = 0; row < height; row += rowsPerBand) {
+            final int start = row * width;
+            final int end = Math.min(height, row + rowsPerBand) * width;
+            tasks.add(() -> ratioRows(ch1, ch2, bg1, bg2, result, start, end));
+         }
+         try {
+            for (Future<Integer> f : executor_.invokeAll(tasks)) {
+               max = Math.max(max, f.get());
+            }
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+         } catch (ExecutionException ee) {
+            studio_.logs().logError(ee, "Failed to calculate ratio image");
+            return;
+         }
+      }
+
+      Image ratioImage;
+      if (ch1Image.getBytesPerPixel() == 1) {
+         // check this actually works....
+         ImageProcessor ch3Proc = new FloatProcessor(width, height, floatBuffer_)
+               .convertToByteProcessor();
+         ratioImage = studio_.data().ij().createImage(ch3Proc, ratioCoords,
+               ch1Image.getMetadata().copyBuilderWithNewUUID()
+                     .bitDepth(bitDepth((int) ch3Proc.getMax(), 1)).build());
+      } else {
+         ratioImage = studio_.data().createImage(ratio, width, height, 2, 1, ratioCoords,
+               ch1Image.getMetadata().copyBuilderWithNewUUID()
+                     .bitDepth(bitDepth(max, 2)).build());
+      }
       
-      ImageProcessor ch1Proc = studio_.data().ij().createProcessor(ch1Image);
-      ImageProcessor ch2Proc = studio_.data().ij().createProcessor(ch2Image);
-      if (bc1_ != null) {
-         ch1Proc = subtractImageProcessors(ch1Proc, bc1_.getProcessor());
+      context.outputImage(ratioImage);
+   }
+
+   private static int bitDepth(int max, int bytesPerPixel) {
+      int bitDepth = 1;
+      while ((1 << bitDepth) < max && bitDepth <= bytesPerPixel * 8) {
+         bitDepth += 1;
       }
-      if (bc2_ != null) {
-         ch2Proc = subtractImageProcessors(ch2Proc, bc2_.getProcessor());
+      return bitDepth;
+   }
+
+   /**
+    * @return true if both channels are 8 bit or both are 16 bit, and the
+    *     backgrounds are absent or of the same type, so that ratioRows can be
+    *     used
+    */
+   static boolean canUseRawPixels(Object ch1, Object ch2, Object bg1, Object bg2) {
+      if (!(ch1 instanceof byte[] || ch1 instanceof short[])) {
+         return false;
       }
-      ch1Proc = ch1Proc.convertToFloat();
-      ch2Proc = ch2Proc.convertToFloat();
+      Class<?> type = ch1.getClass();
+      return ch2.getClass() == type
+            && (bg1 == null || bg1.getClass() == type)
+            && (bg2 == null || bg2.getClass() == type);
+   }
+
+   private static ImageProcessor processor(Object pixels, int width, int height) {
+      if (pixels instanceof byte[]) {
+         return new ByteProcessor(width, height, (byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         return new ShortProcessor(width, height, (short[]) pixels, null);
+      } else if (pixels instanceof float[]) {
+         return new FloatProcessor(width, height, (float[]) pixels);
+      } else if (pixels instanceof int[]) {
+         return new ColorProcessor(width, height, (int[]) pixels);
+      }
+      return null;
+   }
+
+   /**
+    * Calculates the ratio image with ImageJ, for pixel types that ratioRows
+    * does not handle.  The backgrounds are subtracted as floats and clipped
+    * at zero.
+    *
+    * @param ch1Proc first channel
+    * @param ch2Proc second channel
+    * @param bg1Proc background of the first channel, or null
+    * @param bg2Proc background of the second channel, or null
+    * @param bytesPerPixel bytes per pixel of the result, 1 or 2
+    * @return ratio image
+    */
+   ImageProcessor ratioProcessor(ImageProcessor ch1Proc, ImageProcessor ch2Proc,
+         ImageProcessor bg1Proc, ImageProcessor bg2Proc, int bytesPerPixel) {
+      ch1Proc = subtractBackground(ch1Proc.convertToFloat(), bg1Proc);
+      ch2Proc = subtractBackground(ch2Proc.convertToFloat(), bg2Proc);
       ch1Proc.subtract(bc1Constant_);
       ch2Proc.subtract(bc2Constant_);
-      ImageProcessor ch3Proc = ch1Proc.createProcessor(ch1Proc.getWidth(), 
-              ch1Proc.getHeight());
+      ImageProcessor ch3Proc = ch1Proc.createProcessor(ch1Proc.getWidth(),
+            ch1Proc.getHeight());
       ch3Proc.insert(ch1Proc, 0, 0);
       ch3Proc.copyBits(ch2Proc, 0, 0, Blitter.DIVIDE);
       ch3Proc.multiply(factor_);
-      
-      if (ch1Image.getBytesPerPixel() == 1) {
-         // check this actually works....
-         ch3Proc = ch3Proc.convertToByteProcessor();
-      } else if (ch1Image.getBytesPerPixel() == 2) {
-         // ImageJ method seems to be broken. Copied code from ImageJ1 here
-         ch3Proc = convertFloatToShort((FloatProcessor) ch3Proc);
+      if (bytesPerPixel == 1) {
+         return ch3Proc.convertToByteProcessor();
       }
-      int max = (int) ch3Proc.getMax();
-      int bitDepth = 1;
-      while ((1 << bitDepth) < max && bitDepth <= ch1Image.getBytesPerPixel() * 8) {
-         bitDepth += 1;
+      return convertFloatToShort((FloatProcessor) ch3Proc);
+   }
+
+   private static ImageProcessor subtractBackground(ImageProcessor proc, ImageProcessor bg) {
+      if (bg != null) {
+         proc.copyBits(bg.convertToFloat(), 0, 0, Blitter.SUBTRACT);
+         proc.min(0.0);
       }
-      
-      Image ratioImage = studio_.data().ij().createImage(ch3Proc, ratioCoords, 
-              ch1Image.getMetadata().copyBuilderWithNewUUID().bitDepth(bitDepth)
-                          .build());
-      
-      context.outputImage(ratioImage);
+      return proc;
    }
-   
+
+   /**
+    * Calculates the ratio of pixels start (inclusive) to end (exclusive).
+    * 16 bit images are rounded and clipped as convertFloatToShort does, 8 bit
+    * images are left as floats for ImageJ to scale.
+    *
+    * @return largest value written to 16 bit results
+    */
+   int ratioRows(Object ch1, Object ch2, Object bg1, Object bg2, Object result,
+         int start, int end) {
+      if (result instanceof short[]) {
+         short[] in1 = (short[]) ch1;
+         short[] in2 = (short[]) ch2;
+         short[] b1 = (short[]) bg1;
+         short[] b2 = (short[]) bg2;
+         short[] out = (short[]) result;
+         int max = 0;
+         for (int i = start; i < end; i++) {
+            int v1 = in1[i] & 0xffff;
+            if (b1 != null) {
+               v1 = Math.max(0, v1 - (b1[i] & 0xffff));
+            }
+            int v2 = in2[i] & 0xffff;
+            if (b2 != null) {
+               v2 = Math.max(0, v2 - (b2[i] & 0xffff));
+            }
+            double value = ratio(v1, v2);
+            if (value < 0.0) {
+               value = 0.0;
+            }
+            if (value > 65535.0) {
+               value = 65535.0;
+            }
+            int v = (short) (value + 0.5) & 0xffff;
+            out[i] = (short) v;
+            max = Math.max(max, v);
+         }
+         return max;
+      }
+      byte[] in1 = (byte[]) ch1;
+      byte[] in2 = (byte[]) ch2;
+      byte[] b1 = (byte[]) bg1;
+      byte[] b2 = (byte[]) bg2;
+      float[] out = (float[]) result;
+      for (int i = start; i < end; i++) {
+         int v1 = in1[i] & 0xff;
+         if (b1 != null) {
+            v1 = Math.max(0, v1 - (b1[i] & 0xff));
+         }
+         int v2 = in2[i] & 0xff;
+         if (b2 != null) {
+            v2 = Math.max(0, v2 - (b2[i] & 0xff));
+         }
+         out[i] = ratio(v1, v2);
+      }
+      return 0;
+   }
+
+   /**
+    * Ratio of two background corrected pixel values, in the same floating
+    * point steps as FloatProcessor subtract, Blitter.DIVIDE and multiply.
+    */
+   private float ratio(int v1, int v2) {
+      float f1 = (float) (v1 - (double) bc1Constant_);
+      float f2 = (float) (v2 - (double) bc2Constant_);
+      float divideByZeroValue = FloatBlitter.divideByZeroValue;
+      float r;
+      if (!Float.isInfinite(divideByZeroValue) && f2 == 0.0f) {
+         r = divideByZeroValue;
+      } else {
+         r = f1 / f2;
+      }
+      return (float) (r * (double) factor_);
+   }
+
    /**
     * Copied from https://github.com/imagej/imagej1/blob/master/ij/process/TypeConverter.java.
     *
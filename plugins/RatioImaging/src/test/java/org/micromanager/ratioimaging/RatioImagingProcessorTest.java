@@ -0,0 +1,176 @@
+package org.micromanager.ratioimaging;
+
+import ij.process.Blitter;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.PropertyMaps;
+
+/**
+ * Compares the ratio calculation with the chain of ImageJ operations it
+ * replaced.
+ */
+public class RatioImagingProcessorTest {
+   private static final int WIDTH = 64;
+   private static final int HEIGHT = 48;
+   private static final int SIZE = WIDTH * HEIGHT;
+
+   private static RatioImagingProcessor processor(int factor, int bc1, int bc2) {
+      return new RatioImagingProcessor(null, PropertyMaps.builder()
+            .putString(RatioImagingFrame.FACTOR, Integer.toString(factor))
+            .putString(RatioImagingFrame.BACKGROUND1CONSTANT, Integer.toString(bc1))
+            .putString(RatioImagingFrame.BACKGROUND2CONSTANT, Integer.toString(bc2))
+            .build());
+   }
+
+   /**
+    * The ImageJ operations the processor used before, up to the float ratio.
+    */
+   private static ImageProcessor oldRatio(ImageProcessor ch1Proc, ImageProcessor ch2Proc,
+         ImageProcessor bg1, ImageProcessor bg2, int factor, int bc1, int bc2) {
+      if (bg1 != null) {
+         ch1Proc = RatioImagingProcessor.subtractImageProcessors(ch1Proc, bg1);
+      }
+      if (bg2 != null) {
+         ch2Proc = RatioImagingProcessor.subtractImageProcessors(ch2Proc, bg2);
+      }
+      ch1Proc = ch1Proc.convertToFloat();
+      ch2Proc = ch2Proc.convertToFloat();
+      ch1Proc.subtract(bc1);
+      ch2Proc.subtract(bc2);
+      ImageProcessor ch3Proc = ch1Proc.createProcessor(ch1Proc.getWidth(),
+            ch1Proc.getHeight());
+      ch3Proc.insert(ch1Proc, 0, 0);
+      ch3Proc.copyBits(ch2Proc, 0, 0, Blitter.DIVIDE);
+      ch3Proc.multiply(factor);
+      return ch3Proc;
+   }
+
+   private static short[] shorts(Random random, int max) {
+      short[] pixels = new short[SIZE];
+      for (int i = 0; i < SIZE; i++) {
+         pixels[i] = (short) random.nextInt(max + 1);
+      }
+      return pixels;
+   }
+
+   private static byte[] bytes(Random random, int max) {
+      byte[] pixels = new byte[SIZE];
+      for (int i = 0; i < SIZE; i++) {
+         pixels[i] = (byte) random.nextInt(max + 1);
+      }
+      return pixels;
+   }
+
+   private static ShortProcessor shortProcessor(short[] pixels) {
+      return new ShortProcessor(WIDTH, HEIGHT, pixels.clone(), null);
+   }
+
+   @Test
+   public void shortRatioMatchesImageJ() {
+      Random random = new Random(5);
+      // includes zero pixels and pixels below the background
+      short[] ch1 = shorts(random, 65535);
+      short[] ch2 = shorts(random, 300);
+      short[] bg1 = shorts(random, 2000);
+      short[] bg2 = shorts(random, 50);
+      int[][] settings = {{1, 0, 0}, {100, 5, 3}, {1000, 0, 20}};
+      for (int[] s : settings) {
+         RatioImagingProcessor processor = processor(s[0], s[1], s[2]);
+         for (boolean withBackground : new boolean[] {false, true}) {
+            ImageProcessor expected = processor.convertFloatToShort((FloatProcessor) oldRatio(
+                  shortProcessor(ch1), shortProcessor(ch2),
+                  withBackground ? shortProcessor(bg1) : null,
+                  withBackground ? shortProcessor(bg2) : null, s[0], s[1], s[2]));
+            short[] actual = new short[SIZE];
+            int max = processor.ratioRows(ch1, ch2, withBackground ? bg1 : null,
+                  withBackground ? bg2 : null, actual, 0, SIZE);
+            Assert.assertArrayEquals((short[]) expected.getPixels(), actual);
+            expected.resetMinAndMax();
+            Assert.assertEquals((int) expected.getMax(), max);
+         }
+      }
+   }
+
+   @Test
+   public void byteRatioMatchesImageJ() {
+      Random random = new Random(6);
+      byte[] ch1 = bytes(random, 255);
+      byte[] ch2 = bytes(random, 40);
+      byte[] bg1 = bytes(random, 30);
+      byte[] bg2 = bytes(random, 10);
+      RatioImagingProcessor processor = processor(10, 2, 1);
+      ImageProcessor expected = oldRatio(new ByteProcessor(WIDTH, HEIGHT, ch1.clone()),
+            new ByteProcessor(WIDTH, HEIGHT, ch2.clone()),
+            new ByteProcessor(WIDTH, HEIGHT, bg1.clone()),
+            new ByteProcessor(WIDTH, HEIGHT, bg2.clone()), 10, 2, 1);
+      float[] actual = new float[SIZE];
+      processor.ratioRows(ch1, ch2, bg1, bg2, actual, 0, SIZE);
+      Assert.assertArrayEquals((float[]) expected.getPixels(), actual, 0.0f);
+   }
+
+   @Test
+   public void rowBandsMatchWholeImage() {
+      Random random = new Random(7);
+      short[] ch1 = shorts(random, 4000);
+      short[] ch2 = shorts(random, 4000);
+      RatioImagingProcessor processor = processor(100, 0, 0);
+      short[] whole = new short[SIZE];
+      processor.ratioRows(ch1, ch2, null, null, whole, 0, SIZE);
+      short[] bands = new short[SIZE];
+      for (int start = 0; start < SIZE; start += 5 * WIDTH) {
+         processor.ratioRows(ch1, ch2, null, null, bands, start,
+               Math.min(SIZE, start + 5 * WIDTH));
+      }
+      Assert.assertArrayEquals(whole, bands);
+   }
+
+   @Test
+   public void otherPixelTypesAreLeftToImageJ() {
+      Assert.assertTrue(RatioImagingProcessor.canUseRawPixels(
+            new short[1], new short[1], null, new short[1]));
+      Assert.assertTrue(RatioImagingProcessor.canUseRawPixels(
+            new byte[1], new byte[1], new byte[1], null));
+      Assert.assertFalse(RatioImagingProcessor.canUseRawPixels(
+            new short[1], new byte[1], null, null));
+      Assert.assertFalse(RatioImagingProcessor.canUseRawPixels(
+            new short[1], new short[1], new float[1], null));
+      Assert.assertFalse(RatioImagingProcessor.canUseRawPixels(
+            new byte[1], new byte[1], null, new int[1]));
+      Assert.assertFalse(RatioImagingProcessor.canUseRawPixels(
+            new float[1], new float[1], null, null));
+   }
+
+   @Test
+   public void floatAndRgbBackgroundsMatchShortBackgrounds() {
+      Random random = new Random(8);
+      short[] ch1 = shorts(random, 10000);
+      short[] ch2 = shorts(random, 1000);
+      short[] bg1 = shorts(random, 255);
+      short[] bg2 = shorts(random, 255);
+      RatioImagingProcessor processor = processor(100, 5, 3);
+      short[] expected = new short[SIZE];
+      processor.ratioRows(ch1, ch2, bg1, bg2, expected, 0, SIZE);
+
+      float[] floatBg1 = new float[SIZE];
+      int[] rgbBg2 = new int[SIZE];
+      for (int i = 0; i < SIZE; i++) {
+         floatBg1[i] = bg1[i];
+         // gray, so that the luminance is the value
+         rgbBg2[i] = (bg2[i] << 16) | (bg2[i] << 8) | bg2[i];
+      }
+      ImageProcessor actual = processor.ratioProcessor(shortProcessor(ch1),
+            shortProcessor(ch2), new FloatProcessor(WIDTH, HEIGHT, floatBg1),
+            new ColorProcessor(WIDTH, HEIGHT, rgbBg2), 2);
+      Assert.assertArrayEquals(expected, (short[]) actual.getPixels());
+
+      ImageProcessor same = processor.ratioProcessor(shortProcessor(ch1),
+            shortProcessor(ch2), shortProcessor(bg1), shortProcessor(bg2), 2);
+      Assert.assertArrayEquals(expected, (short[]) same.getPixels());
+   }
+}
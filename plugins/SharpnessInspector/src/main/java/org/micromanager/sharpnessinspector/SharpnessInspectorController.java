@@ -26,8 +26,12 @@ import com.google.common.eventbus.Subscribe;
 import ij.gui.Roi;
 import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
+import java.util.List;
+import java.util.function.Consumer;
 import javax.swing.JPanel;
 import javax.swing.SwingWorker;
+import mmcorej.CMMCore;
+import mmcorej.DoubleVector;
 import org.micromanager.Studio;
 import org.micromanager.data.DataProviderHasNewImageEvent;
 import org.micromanager.data.Image;
@@ -197,28 +201,15 @@ public class SharpnessInspectorController extends AbstractInspectorPanelControll
             r.setSize(r.width, 5);
          }
       }
+      final Rectangle scoredRect = r;
+      ZScan<Image> scan = new ZScan<>(new CoreScanHardware(),
+            img -> eval_.evaluate(img, scoredRect), Runtime.getRuntime().availableProcessors());
       try {
-         long numSteps = Math.round(rangeUm / intervalUm);
-         final double startingPos = studio_.core().getPosition();
-         // Move down by half of the range so that the scan is centered at the starting point.
-         studio_.core().setRelativePosition(-(rangeUm / 2.0));
-         while (studio_.core().deviceBusy(studio_.core().getFocusDevice())) { // make sure we moved
-            Thread.sleep(50);
-         }
-         for (int i = 0; i < numSteps; i++) {
-            studio_.core().setRelativePosition(intervalUm);
-            // make sure we moved
-            while (studio_.core().deviceBusy(studio_.core().getFocusDevice())) {
-               Thread.sleep(50);
-            }
-
-            Image img = studio_.live().snap(true).get(0);
-            double sharpness = eval_.evaluate(img, r);
-
-            double pos = studio_.core().getPosition();
-            panel_.setValue(pos, System.currentTimeMillis(), sharpness);
-         }
-         studio_.core().setPosition(startingPos);
+         scan.scan(ZScan.Mode.PIPELINED, intervalUm, rangeUm,
+               (z, sharpness) -> panel_.setValue(z, System.currentTimeMillis(), sharpness));
+         studio_.logs().logMessage("Sharpness scan of " + Math.round(rangeUm / intervalUm)
+               + " positions took " + scan.getLastScanTimeMs() + " ms"
+               + (scan.wasLastScanSequenced() ? " (hardware sequence)" : ""));
       } catch (Exception e) {
          studio_.logs().showError(e);
       } finally {
@@ -226,6 +217,86 @@ public class SharpnessInspectorController extends AbstractInspectorPanelControll
       }
    }
 
+   /**
+    * Scans with the default focus drive and camera.
+    */
+   private class CoreScanHardware implements ZScan.Hardware<Image> {
+      private final CMMCore core_ = studio_.core();
+
+      @Override
+      public double getPosition() throws Exception {
+         return core_.getPosition();
+      }
+
+      @Override
+      public void setPosition(double z) throws Exception {
+         core_.setPosition(z);
+      }
+
+      @Override
+      public void setRelativePosition(double dz) throws Exception {
+         core_.setRelativePosition(dz);
+      }
+
+      @Override
+      public boolean isFocusBusy() throws Exception {
+         return core_.deviceBusy(core_.getFocusDevice());
+      }
+
+      @Override
+      public void waitForFocus() throws Exception {
+         core_.waitForDevice(core_.getFocusDevice());
+      }
+
+      @Override
+      public Image snapImage() throws Exception {
+         return studio_.live().snap(true).get(0);
+      }
+
+      @Override
+      public int getMaxSequenceLength() throws Exception {
+         String focus = core_.getFocusDevice();
+         if (focus.isEmpty() || !core_.isStageSequenceable(focus)) {
+            return 0;
+         }
+         return core_.getStageSequenceMaxLength(focus);
+      }
+
+      @Override
+      public void runSequence(List<Double> positions, Consumer<Image> receiver)
+            throws Exception {
+         String focus = core_.getFocusDevice();
+         DoubleVector sequence = new DoubleVector();
+         for (double z : positions) {
+            sequence.add(z);
+         }
+         core_.loadStageSequence(focus, sequence);
+         core_.startStageSequence(focus);
+         try {
+            core_.startSequenceAcquisition(positions.size(), 0, true);
+            int received = 0;
+            while (received < positions.size()) {
+               if (core_.getRemainingImageCount() > 0) {
+                  receiver.accept(studio_.data().convertTaggedImage(core_.popNextTaggedImage()));
+                  received++;
+               } else if (!core_.isSequenceRunning()) {
+                  if (core_.getRemainingImageCount() == 0) {
+                     throw new Exception("Camera stopped after " + received + " of "
+                           + positions.size() + " images");
+                  }
+               } else {
+                  Thread.sleep(1);
+               }
+            }
+         } finally {
+            if (core_.isSequenceRunning()) {
+               core_.stopSequenceAcquisition();
+            }
+            core_.stopStageSequence(focus);
+         }
+      }
+   }
+
    public static class RequestScanEvent extends ActionEvent {
       private final double interval;
       private final double range;
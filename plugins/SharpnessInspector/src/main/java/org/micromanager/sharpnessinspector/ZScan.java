@@ -0,0 +1,267 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     SharpnessInspector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2026
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.sharpnessinspector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Images a range of Z positions around the current position of the focus
+ * drive and scores the sharpness of each image.
+ *
+ * <p>In {@link Mode#STEP} the focus drive is moved, polled until it is no
+ * longer busy, and imaged one position at a time, and every image is scored
+ * before moving on.  {@link Mode#PIPELINED} loads all positions into the
+ * focus drive as a sequence and runs a camera sequence acquisition when the
+ * drive supports sequences of that length.  Otherwise it waits for the drive
+ * with {@link Hardware#waitForFocus()} and moves on to the next position
+ * while earlier images are being scored.  Either way, images are scored in
+ * parallel and the scores are reported in order of position.  Both modes
+ * visit, and report, the same positions.
+ *
+ * @param <I> type of the images
+ */
+public final class ZScan<I> {
+   public enum Mode {
+      STEP,
+      PIPELINED
+   }
+
+   /**
+    * Hardware used by the scan.  Called from the thread that runs the scan.
+    * The receiver passed to {@link #runSequence} must be called on that
+    * thread too, before runSequence returns.
+    *
+    * @param <I> type of the images
+    */
+   public interface Hardware<I> {
+      double getPosition() throws Exception;
+
+      void setPosition(double z) throws Exception;
+
+      void setRelativePosition(double dz) throws Exception;
+
+      boolean isFocusBusy() throws Exception;
+
+      void waitForFocus() throws Exception;
+
+      I snapImage() throws Exception;
+
+      /**
+       * @return the longest sequence of positions the focus drive can be
+       *     loaded with, or 0 when it does not support sequences
+       */
+      int getMaxSequenceLength() throws Exception;
+
+      /**
+       * Loads the positions into the focus drive and takes one image at
+       * each of them with a camera sequence acquisition.
+       *
+       * @param positions Z positions, in order
+       * @param receiver  called with each image, in order, on the calling
+       *                  thread
+       */
+      void runSequence(List<Double> positions, Consumer<I> receiver) throws Exception;
+   }
+
+   /**
+    * Is told the score of each position, in order, on the scanning thread.
+    */
+   public interface ProfileListener {
+      void scored(double z, double sharpness);
+   }
+
+   private final Hardware<I> hardware_;
+   private final Function<I, Double> scorer_;
+   private final int nrThreads_;
+   private long lastScanTimeMs_;
+   private boolean lastScanSequenced_;
+
+   /**
+    * @param hardware  moves the focus drive and takes images
+    * @param scorer    sharpness of an image; must be thread safe
+    * @param nrThreads number of threads scoring images in
+    *                  {@link Mode#PIPELINED}
+    */
+   public ZScan(Hardware<I> hardware, Function<I, Double> scorer, int nrThreads) {
+      hardware_ = hardware;
+      scorer_ = scorer;
+      nrThreads_ = Math.max(1, nrThreads);
+   }
+
+   /**
+    * @return duration of the last scan in ms, including the return to the
+    *     starting position
+    */
+   public long getLastScanTimeMs() {
+      return lastScanTimeMs_;
+   }
+
+   /**
+    * @return whether the last scan ran as a hardware sequence
+    */
+   public boolean wasLastScanSequenced() {
+      return lastScanSequenced_;
+   }
+
+   /**
+    * Takes round(rangeUm / intervalUm) images, intervalUm apart, centered on
+    * the current position, and returns the focus drive to the current
+    * position afterwards.
+    *
+    * @param mode       how to move and image
+    * @param intervalUm distance between positions
+    * @param rangeUm    full width of the scan
+    * @param listener   receives the scores
+    * @throws Exception when the hardware or the scoring fails
+    */
+   public void scan(Mode mode, double intervalUm, double rangeUm, ProfileListener listener)
+         throws Exception {
+      long start = System.nanoTime();
+      lastScanSequenced_ = false;
+      final double startingPos = hardware_.getPosition();
+      try {
+         if (mode == Mode.STEP) {
+            scanStepwise(intervalUm, rangeUm, listener);
+         } else {
+            scanPipelined(startingPos, intervalUm, rangeUm, listener);
+         }
+      } finally {
+         hardware_.setPosition(startingPos);
+         lastScanTimeMs_ = (System.nanoTime() - start) / 1000000;
+      }
+   }
+
+   private void scanStepwise(double intervalUm, double rangeUm, ProfileListener listener)
+         throws Exception {
+      long numSteps = Math.round(rangeUm / intervalUm);
+      // Move down by half of the range so that the scan is centered at the starting point.
+      hardware_.setRelativePosition(-(rangeUm / 2.0));
+      while (hardware_.isFocusBusy()) { // make sure we moved
+         Thread.sleep(50);
+      }
+      for (int i = 0; i < numSteps; i++) {
+         hardware_.setRelativePosition(intervalUm);
+         // make sure we moved
+         while (hardware_.isFocusBusy()) {
+            Thread.sleep(50);
+         }
+         I img = hardware_.snapImage();
+         double sharpness = scorer_.apply(img);
+         listener.scored(hardware_.getPosition(), sharpness);
+      }
+   }
+
+   private void scanPipelined(double startingPos, double intervalUm, double rangeUm,
+         final ProfileListener listener) throws Exception {
+      int numSteps = (int) Math.round(rangeUm / intervalUm);
+      ExecutorService scorers = Executors.newFixedThreadPool(nrThreads_, r -> {
+         Thread t = new Thread(r, "Sharpness scoring");
+         t.setDaemon(true);
+         return t;
+      });
+      final Scores scores = new Scores(scorers, listener);
+      try {
+         int maxLength = numSteps > 1 ? hardware_.getMaxSequenceLength() : 0;
+         if (maxLength >= numSteps) {
+            // The same positions the stepwise scan reaches by relative moves
+            List<Double> positions = new ArrayList<>(numSteps);
+            double z = startingPos + (-(rangeUm / 2.0));
+            for (int i = 0; i < numSteps; i++) {
+               z += intervalUm;
+               positions.add(z);
+            }
+            final int[] received = {0};
+            hardware_.runSequence(positions, img -> scores.add(positions.get(received[0]++), img));
+            if (received[0] != numSteps) {
+               throw new Exception("Received " + received[0] + " of " + numSteps + " images");
+            }
+            lastScanSequenced_ = true;
+         } else {
+            hardware_.setRelativePosition(-(rangeUm / 2.0));
+            hardware_.waitForFocus();
+            for (int i = 0; i < numSteps; i++) {
+               hardware_.setRelativePosition(intervalUm);
+               hardware_.waitForFocus();
+               I img = hardware_.snapImage();
+               scores.add(hardware_.getPosition(), img);
+            }
+         }
+         scores.finish();
+      } finally {
+         scorers.shutdownNow();
+      }
+   }
+
+   /**
+    * Scores images in parallel and reports the scores in order, with at most
+    * a few images per thread waiting to be scored.
+    */
+   private final class Scores {
+      private final ExecutorService scorers_;
+      private final ProfileListener listener_;
+      private final ArrayDeque<Future<Double>> inFlight_ = new ArrayDeque<>();
+      private final ArrayDeque<Double> positions_ = new ArrayDeque<>();
+
+      Scores(ExecutorService scorers, ProfileListener listener) {
+         scorers_ = scorers;
+         listener_ = listener;
+      }
+
+      void add(double z, final I img) {
+         inFlight_.add(scorers_.submit(() -> scorer_.apply(img)));
+         positions_.add(z);
+         try {
+            while (!inFlight_.isEmpty()
+                  && (inFlight_.peek().isDone() || inFlight_.size() > 2 * nrThreads_)) {
+               report();
+            }
+         } catch (Exception e) {
+            throw new RuntimeException(e);
+         }
+      }
+
+      void finish() throws Exception {
+         while (!inFlight_.isEmpty()) {
+            report();
+         }
+      }
+
+      private void report() throws Exception {
+         double sharpness;
+         try {
+            sharpness = inFlight_.poll().get();
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+               throw (Exception) cause;
+            }
+            throw e;
+         }
+         listener_.scored(positions_.poll(), sharpness);
+      }
+   }
+}
@@ -0,0 +1,144 @@
+package org.micromanager.sharpnessinspector;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.imageprocessing.ImgSharpnessAnalysis;
+
+/**
+ * Scans a simulated focus drive and camera that behave like the demo stage
+ * and camera, and compares the profiles of the stepwise and pipelined scans.
+ */
+public class ZScanTest {
+   private static final int SIZE = 512;
+   private static final double FOCUS_UM = 10.3;
+   private static final long SETTLE_MS = 20;
+   private static final long EXPOSURE_MS = 10;
+
+   /**
+    * Focus drive that is busy for a while after every move, and a camera
+    * that images a texture with a contrast that depends on the distance to
+    * focus.
+    */
+   private static class DemoHardware implements ZScan.Hardware<ImageProcessor> {
+      private final short[] texture_ = new short[SIZE * SIZE];
+      private final int maxSequenceLength_;
+      private double position_ = 10.0;
+      private long busyUntilNs_;
+      private int nrSnaps_;
+
+      DemoHardware(int maxSequenceLength) {
+         maxSequenceLength_ = maxSequenceLength;
+         Random random = new Random(1);
+         for (int i = 0; i < texture_.length; i++) {
+            texture_[i] = (short) random.nextInt(1000);
+         }
+      }
+
+      @Override
+      public double getPosition() {
+         return position_;
+      }
+
+      @Override
+      public void setPosition(double z) {
+         position_ = z;
+         busyUntilNs_ = System.nanoTime() + SETTLE_MS * 1000000;
+      }
+
+      @Override
+      public void setRelativePosition(double dz) {
+         // The way device adapters implement relative moves by default
+         setPosition(getPosition() + dz);
+      }
+
+      @Override
+      public boolean isFocusBusy() {
+         return System.nanoTime() < busyUntilNs_;
+      }
+
+      @Override
+      public void waitForFocus() throws InterruptedException {
+         long remainingNs = busyUntilNs_ - System.nanoTime();
+         if (remainingNs > 0) {
+            Thread.sleep(remainingNs / 1000000, (int) (remainingNs % 1000000));
+         }
+      }
+
+      @Override
+      public ImageProcessor snapImage() throws InterruptedException {
+         Thread.sleep(EXPOSURE_MS);
+         nrSnaps_++;
+         double contrast = Math.exp(-(position_ - FOCUS_UM) * (position_ - FOCUS_UM) / 0.5);
+         short[] pixels = new short[SIZE * SIZE];
+         for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) (1000 + contrast * texture_[i]);
+         }
+         return new ShortProcessor(SIZE, SIZE, pixels, null);
+      }
+
+      @Override
+      public int getMaxSequenceLength() {
+         return maxSequenceLength_;
+      }
+
+      @Override
+      public void runSequence(List<Double> positions, Consumer<ImageProcessor> receiver)
+            throws InterruptedException {
+         for (double z : positions) {
+            position_ = z;
+            receiver.accept(snapImage());
+         }
+      }
+   }
+
+   private static List<double[]> scan(ZScan.Mode mode, DemoHardware hardware,
+         boolean expectSequence) throws Exception {
+      final List<double[]> profile = new ArrayList<>();
+      ZScan<ImageProcessor> scan = new ZScan<>(hardware,
+            ImgSharpnessAnalysis::computeRedondo, Runtime.getRuntime().availableProcessors());
+      scan.scan(mode, 0.1, 2.0, (z, sharpness) -> profile.add(new double[] {z, sharpness}));
+      Assert.assertEquals(expectSequence, scan.wasLastScanSequenced());
+      Assert.assertEquals(10.0, hardware.getPosition(), 0.0);
+      return profile;
+   }
+
+   @Test
+   public void pipelinedProfileMatchesStepwise() throws Exception {
+      List<double[]> stepwise = scan(ZScan.Mode.STEP, new DemoHardware(0), false);
+      Assert.assertEquals(20, stepwise.size());
+
+      DemoHardware unsequenced = new DemoHardware(0);
+      List<double[]> pipelined = scan(ZScan.Mode.PIPELINED, unsequenced, false);
+      Assert.assertEquals(20, unsequenced.nrSnaps_);
+      List<double[]> sequenced = scan(ZScan.Mode.PIPELINED, new DemoHardware(100), true);
+
+      for (List<double[]> profile : Arrays.asList(pipelined, sequenced)) {
+         Assert.assertEquals(stepwise.size(), profile.size());
+         for (int i = 0; i < stepwise.size(); i++) {
+            Assert.assertArrayEquals(stepwise.get(i), profile.get(i), 0.0);
+         }
+      }
+
+      // The sharpest image is the one closest to focus
+      int best = 0;
+      for (int i = 0; i < stepwise.size(); i++) {
+         if (stepwise.get(i)[1] > stepwise.get(best)[1]) {
+            best = i;
+         }
+      }
+      Assert.assertEquals(FOCUS_UM, stepwise.get(best)[0], 0.05 + 1e-9);
+   }
+
+   @Test
+   public void sequenceThatIsTooShortIsNotUsed() throws Exception {
+      List<double[]> profile = scan(ZScan.Mode.PIPELINED, new DemoHardware(10), false);
+      Assert.assertEquals(20, profile.size());
+   }
+}
@@ -40,12 +40,15 @@ import java.util.GregorianCalendar;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JRadioButton;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.border.BevelBorder;
+import mmcorej.CMMCore;
 import mmcorej.MMCoreJ;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONException;
@@ -55,6 +58,7 @@ import org.micromanager.UserProfile;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
 import org.micromanager.display.DisplayWindow;
+import org.micromanager.imageprocessing.PhaseCorrelator;
 import org.micromanager.internal.utils.FileDialogs;
 import org.micromanager.internal.utils.MDUtils;
 import org.micromanager.internal.utils.TextUtils;
@@ -99,6 +103,11 @@ public class TrackerControl extends JFrame {
    private int imageCounter_;
    private String acqName_;
    private XYSeries xySeries_;
+   private PhaseCorrelator correlator_;
+   private volatile boolean streaming_ = false;
+   // System.nanoTime() at which the stage last finished moving
+   private volatile long settledNanos_;
+   private double elapsedMs_;
 
    private static final String RESOLUTION_PIX = "resolution_pix";
    private static final String OFFSET_PIX = "offset_pix";
@@ -106,6 +115,7 @@ public class TrackerControl extends JFrame {
    private static final String DISK_RECORDING = "disk_recording";
    private static final String ROOT = "root";
    private static final String NAME = "name";
+   private static final String FAST_TRACKING = "fast_tracking";
    private static final String TRACK_Y = "TRACK_X_UM";
    private static final String TRACK_X = "TRACK_Y_UM";
    private static final String TRACK_DY = "TRACK_DX_PIX";
@@ -123,6 +133,7 @@ public class TrackerControl extends JFrame {
    private final JRadioButton memoryRadioButton_;
    private JRadioButton diskRadioButton_;
    private final JLabel speedLabel_;
+   private final JCheckBox fastCheckBox_;
    private double distUm_;
    private final JButton topLeftButton_;
    private final JButton bottomRightButton_;
@@ -198,6 +209,8 @@ public class TrackerControl extends JFrame {
                   DISK_RECORDING, diskRadioButton_.isSelected()));
             rootField_.setText(up.getString(TrackerControl.this.getClass(), ROOT, ""));
             nameField_.setText(up.getString(TrackerControl.this.getClass(), NAME, ""));
+            fastCheckBox_.setSelected(up.getBoolean(TrackerControl.this.getClass(),
+                  FAST_TRACKING, fastCheckBox_.isSelected()));
 
             resField_.setText(Integer.toString(resolutionPix_));
             offsetField_.setText(Integer.toString(offsetPix_));
@@ -214,6 +227,8 @@ public class TrackerControl extends JFrame {
                   diskRadioButton_.isSelected());
             up.setString(TrackerControl.this.getClass(), ROOT, rootField_.getText());
             up.setString(TrackerControl.this.getClass(), NAME, nameField_.getText());
+            up.setBoolean(TrackerControl.this.getClass(), FAST_TRACKING,
+                  fastCheckBox_.isSelected());
          }
       });
 
@@ -330,6 +345,14 @@ public class TrackerControl extends JFrame {
       diskRadioButton_.setBounds(240, 203, 160, 24);
       getContentPane().add(diskRadioButton_);
 
+      fastCheckBox_ = new JCheckBox();
+      fastCheckBox_.setText("Phase correlation");
+      fastCheckBox_.setToolTipText("<html>Estimate the shift from the Fourier transforms of the "
+            + "region,<br>using images from a running sequence acquisition.<br>"
+            + "Set the interval to 0 to track at the frame rate of the camera.</html>");
+      fastCheckBox_.setBounds(240, 125, 160, 24);
+      getContentPane().add(fastCheckBox_);
+
       final JLabel sequenceDataLabel = new JLabel();
       sequenceDataLabel.setText("Sequence data:");
       sequenceDataLabel.setBounds(240, 170, 160, 16);
@@ -427,8 +450,13 @@ public class TrackerControl extends JFrame {
    }
 
    public void track() {
+      if (timer_.isRunning() || streaming_) {
+         app_.logs().showMessage("Tracking is already running.", this);
+         return;
+      }
       imageCounter_ = 0;
       distUm_ = 0.0;
+      elapsedMs_ = 0.0;
 
       // Detect desired ROI in Snap/Live Window
       ImagePlus implus = null;
@@ -447,9 +475,24 @@ public class TrackerControl extends JFrame {
          return;
       }
 
+      final boolean fast = fastCheckBox_.isSelected();
+      if (fast) {
+         Rectangle r = roi_.getBounds();
+         try {
+            correlator_ = new PhaseCorrelator(r.width, r.height);
+         } catch (IllegalArgumentException e) {
+            app_.logs().showError(e.getMessage(), this);
+            return;
+         }
+      }
+
       // Set up new ImageJ window to display the correlation image
       int kCount = 2 * offsetPix_ / resolutionPix_;
       int lCount = 2 * offsetPix_ / resolutionPix_;
+      if (fast) {
+         kCount = 2 * getPhaseCorrelationRange() + 1;
+         lCount = kCount;
+      }
       corrStack_ = new ij.ImageStack(lCount, kCount);
       ImageProcessor corrImproc = new ij.process.FloatProcessor(lCount, kCount);
       corrStack_.addSlice(corrImproc);
@@ -477,7 +520,19 @@ public class TrackerControl extends JFrame {
       xySeries_ = new XYSeries("Track", false);
       TrackerUtils.plotData("Cell Track: " + acqName_, xySeries_, "X (micron)",
             "Y (micron)", 100, 100);
-      timer_.start();
+      if (fast) {
+         final Rectangle r = roi_.getBounds();
+         streaming_ = true;
+         Thread streamThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               streamFrames(r);
+            }
+         }, "Live Tracking");
+         streamThread.start();
+      } else {
+         timer_.start();
+      }
    }
 
 
@@ -485,20 +540,111 @@ public class TrackerControl extends JFrame {
 
       app_.logs().logMessage("Tracking stopped at " + GregorianCalendar.getInstance().getTime());
       timer_.stop();
+      streaming_ = false;
       roi_ = null;
    }
 
+   /**
+    * Largest shift, in pixels, looked for by phase correlation.
+    */
+   private int getPhaseCorrelationRange() {
+      return Math.max(1, Math.min(offsetPix_, correlator_.getMaxShift()));
+   }
+
+   /**
+    * Tracks using the images of a continuous sequence acquisition.  Always
+    * uses the newest image in the circular buffer, so that tracking keeps up
+    * with the camera when processing is slower than the frame rate.  Images
+    * whose exposure started before the stage had settled are discarded.
+    *
+    * <p>A frame is timestamped when it is first seen in the circular buffer.
+    * The buffer is polled every millisecond while waiting for frames, so
+    * after a move this is close to the time the camera delivered the frame,
+    * and its exposure started one exposure time earlier.
+    *
+    * <p>Runs on its own thread.  Displays are updated on the EDT.
+    *
+    * @param r region to track
+    */
+   private void streamFrames(Rectangle r) {
+      CMMCore core = app_.core();
+      boolean wasLive = app_.live().isLiveModeOn();
+      final int range = getPhaseCorrelationRange();
+      final float[] corrPixels = (float[]) corrStack_.getProcessor(1).getPixels();
+      final double[] shift = new double[2];
+      long lastNanos = 0;
+      settledNanos_ = 0;
+      try {
+         if (wasLive) {
+            app_.live().setLiveModeOn(false);
+         }
+         int width = (int) core.getImageWidth();
+         long exposureNanos = Math.round(core.getExposure() * 1.0e6);
+         core.startContinuousSequenceAcquisition(0.0);
+         while (streaming_) {
+            if (core.getRemainingImageCount() == 0) {
+               if (!core.isSequenceRunning()) {
+                  throw new Exception("Sequence acquisition stopped unexpectedly");
+               }
+               Thread.sleep(1);
+               continue;
+            }
+            TaggedImage tagged = core.popNextTaggedImage();
+            while (core.getRemainingImageCount() > 0) {
+               tagged = core.popNextTaggedImage();
+            }
+            long now = System.nanoTime();
+            if (now - exposureNanos < settledNanos_) {
+               // exposed, at least in part, while the stage was moving
+               continue;
+            }
+            if (lastNanos != 0 && now - lastNanos < intervalMs_ * 1000000L) {
+               continue;
+            }
+            double frameMs = lastNanos == 0 ? 0.0 : (now - lastNanos) / 1.0e6;
+            lastNanos = now;
+
+            storeImage(tagged);
+            if (!correlator_.shift(tagged.pix, width, r, range, shift)) {
+               dxUmPrev_ = 0.0;
+               dyUmPrev_ = 0.0;
+               continue;
+            }
+            final float[] correlation = new float[corrPixels.length];
+            correlator_.getCorrelation(correlation, range);
+            SwingUtilities.invokeLater(() -> {
+               System.arraycopy(correlation, 0, corrPixels, 0, corrPixels.length);
+               corrImplus_.updateAndDraw();
+            });
+            applyShift(tagged, r, shift[0], shift[1], true, frameMs);
+            // Frames exposed before or during the move no longer show the
+            // stage at its current position
+            core.clearCircularBuffer();
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (Exception e) {
+         IJ.error(e.getMessage());
+      } finally {
+         streaming_ = false;
+         try {
+            core.stopSequenceAcquisition();
+         } catch (Exception e) {
+            app_.logs().logError(e, "Failed to stop sequence acquisition");
+         }
+         if (wasLive) {
+            app_.live().setLiveModeOn(true);
+         }
+      }
+   }
+
    private TaggedImage snapSingleImage() {
       try {
          app_.core().snapImage();
          TaggedImage tagged = app_.core().getTaggedImage();
 
          if (acqName_ != null) {
-            MDUtils.setFrameIndex(tagged.tags, imageCounter_);
-            Image image = app_.data().convertTaggedImage(tagged);
-            image = image.copyAtCoords(app_.data().getCoordsBuilder()
-                  .time(imageCounter_).build());
-            store_.putImage(image);
+            Image image = storeImage(tagged);
             int size = image.getWidth() * image.getHeight();
             if (tagged.pix instanceof byte[]) {
                pixelsCur_ = new float[size];
@@ -517,7 +663,6 @@ public class TrackerControl extends JFrame {
             if (tagged.pix instanceof float[]) {
                pixelsCur_ = java.util.Arrays.copyOf((float[]) tagged.pix, size);
             }
-            imWidth_ = image.getWidth();
          }
          return tagged;
       } catch (Exception e) {
@@ -527,6 +672,16 @@ public class TrackerControl extends JFrame {
       }
    }
 
+   private Image storeImage(TaggedImage tagged) throws Exception {
+      MDUtils.setFrameIndex(tagged.tags, imageCounter_);
+      Image image = app_.data().convertTaggedImage(tagged);
+      image = image.copyAtCoords(app_.data().getCoordsBuilder()
+            .time(imageCounter_).build());
+      store_.putImage(image);
+      imWidth_ = image.getWidth();
+      return image;
+   }
+
 
    private void processOneFrame(TaggedImage tagged, boolean moveStage) {
       if (pixelsPrev_ == null) {
@@ -601,9 +756,25 @@ public class TrackerControl extends JFrame {
       //IJ.write("maxc=" + maxCor + ", offset=(" + lMax + "," + kMax + ")");
       pixelsPrev_ = pixelsCur_;
 
+      applyShift(tagged, r, lMax, kMax, moveStage, intervalMs_);
+   }
+
+   /**
+    * Steers the stage (or moves the roi) to follow the measured movement,
+    * and records the result in the image tags and the track plot.
+    *
+    * @param tagged     image the shift was measured in
+    * @param r          tracked region
+    * @param dxPix      movement of the image contents since the previous image
+    * @param dyPix      movement of the image contents since the previous image
+    * @param moveStage  move the stage when true, the roi otherwise
+    * @param intervalMs time since the previous image
+    */
+   private void applyShift(TaggedImage tagged, Rectangle r, double dxPix, double dyPix,
+         boolean moveStage, double intervalMs) {
       // offset in um
-      double shiftXUm = -lMax * pixelSizeUm_;
-      double shiftYUm = -kMax * pixelSizeUm_;
+      double shiftXUm = -dxPix * pixelSizeUm_;
+      double shiftYUm = -dyPix * pixelSizeUm_;
 
       // apply image transposition
       if (mirrorX_) {
@@ -633,8 +804,8 @@ public class TrackerControl extends JFrame {
             app_.core().getXYPosition(stage_, xCur, yCur);
             tagged.tags.put(TRACK_X, xCur[0]);
             tagged.tags.put(TRACK_Y, yCur[0]);
-            tagged.tags.put(TRACK_DX, lMax);
-            tagged.tags.put(TRACK_DY, kMax);
+            tagged.tags.put(TRACK_DX, dxPix);
+            tagged.tags.put(TRACK_DY, dyPix);
             tagged.tags.put(RECT_X, r.x);
             tagged.tags.put(RECT_Y, r.y);
             tagged.tags.put(RECT_W, r.width);
@@ -645,15 +816,18 @@ public class TrackerControl extends JFrame {
             double newY = yCur[0] + dyUm;
 
             // Plot relative coordinates, swap Y axis to match image direction
-            if (xySeries_.isEmpty()) {
-               firstX_ = newX;
-               firstY_ = newY;
-            }
-            xySeries_.add(firstX_ - newX, firstY_ - newY);
+            SwingUtilities.invokeLater(() -> {
+               if (xySeries_.isEmpty()) {
+                  firstX_ = newX;
+                  firstY_ = newY;
+               }
+               xySeries_.add(firstX_ - newX, firstY_ - newY);
+            });
 
             if ((limits_.isValid() && limits_.isWithin(newX, newY)) || (!limits_.isValid())) {
                app_.core().setXYPosition(stage_, newX, newY);
                app_.core().waitForDevice(stage_);
+               settledNanos_ = System.nanoTime();
                app_.core().getXYPosition(stage_, xCur, yCur);
                app_.logs().logMessage(xCur[0] + "," + yCur[0]);
             } else {
@@ -662,21 +836,23 @@ public class TrackerControl extends JFrame {
          } catch (Exception e) {
             IJ.error(e.getMessage());
             timer_.stop();
+            streaming_ = false;
          } // relative motion
       } else {
          // move the roi
-         roi_.setLocation(r.x + lMax, r.y + kMax);
-
-         display_.getImagePlus().setRoi(roi_, true);
+         final Roi roi = roi_;
+         roi.setLocation(r.x + (int) Math.round(dxPix), r.y + (int) Math.round(dyPix));
+         SwingUtilities.invokeLater(() -> display_.getImagePlus().setRoi(roi, true));
       }
 
       double d = Math.sqrt(dxUm * dxUm + dyUm * dyUm);
       distUm_ += d;
-      double v = d / intervalMs_ * 1000.0;
-      speedLabel_.setText("n=" + imageCounter_ + ", t="
-            + TextUtils.FMT2.format(((double) imageCounter_ * intervalMs_) / 1000.0)
+      double v = intervalMs > 0.0 ? d / intervalMs * 1000.0 : 0.0;
+      final String speed = "n=" + imageCounter_ + ", t="
+            + TextUtils.FMT2.format(elapsedMs_ / 1000.0)
             + " s, d=" + TextUtils.FMT2.format(d) + " um, l=" + TextUtils.FMT2.format(distUm_)
-            + " um, v=" + TextUtils.FMT2.format(v) + " um/s");
+            + " um, v=" + TextUtils.FMT2.format(v) + " um/s";
+      SwingUtilities.invokeLater(() -> speedLabel_.setText(speed));
       try {
          tagged.tags.put(D, d);
          tagged.tags.put(V, v);
@@ -685,6 +861,7 @@ public class TrackerControl extends JFrame {
          app_.logs().showError(ex, "Problem adding tags to image", this);
       }
 
+      elapsedMs_ += intervalMs;
       imageCounter_++;
    }
 
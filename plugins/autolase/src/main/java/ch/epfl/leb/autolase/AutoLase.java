@@ -212,6 +212,24 @@ public enum AutoLase {
       return densityThread.getCamera();
    }
 
+   /**
+    * Get the average time needed to process a camera frame.
+    *
+    * @return processing time in milliseconds
+    */
+   public double getDensityLatencyMs() {
+      return densityThread.getLatencyMs();
+   }
+
+   /**
+    * Get the longest time needed to process a recent camera frame.
+    *
+    * @return processing time in milliseconds
+    */
+   public double getMaxDensityLatencyMs() {
+      return densityThread.getMaxLatencyMs();
+   }
+
    ////////////////////////////////////////////////
    // Monitors management                        //
    ////////////////////////////////////////////////
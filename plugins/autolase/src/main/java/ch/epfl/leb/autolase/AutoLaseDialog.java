@@ -71,6 +71,9 @@ public class AutoLaseDialog extends JDialog
 
       jpbDensity.setValue(v);
       jlCurrentDensity.setText(String.valueOf(density));
+      jlCurrentDensity.setToolTipText(String.format(
+            "Processing time per frame: %.2f ms (max %.2f ms)",
+            autoLase.getDensityLatencyMs(), autoLase.getMaxDensityLatencyMs()));
    }
 
    void setMaxDensity(double density) {
@@ -6,13 +6,15 @@ import ij.gui.Overlay;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.LUT;
-import java.util.Arrays;
 
 /**
  * Gives a visual feedback for the current density levels. Green indicates
  * density above 0 and below minimum. White indicates above minimum and below
  * maximum. Red indicates above maximum.
  *
+ * <p>The density thread only copies the map into a buffer that is kept
+ * between frames; the overlay is made on this thread, at the update rate.
+ *
  * @author Thomas Pengo
  */
 public class DensityMap implements DensityMapMonitor, Runnable {
@@ -21,6 +23,9 @@ public class DensityMap implements DensityMapMonitor, Runnable {
    ImagePlus theImage;
 
    float[] density;
+   // Latest map received from the density thread, guarded by this
+   float[] pending;
+   byte[] overlay;
    int width;
    int height;
    private float minGoodDensity = 1;
@@ -55,8 +60,8 @@ public class DensityMap implements DensityMapMonitor, Runnable {
    /**
     * Reset the density map.
     */
-   public void clearMap() {
-      density = null;
+   public synchronized void clearMap() {
+      pending = null;
       if (theImage != null) {
          theImage.setHideOverlay(true);
       }
@@ -110,13 +115,35 @@ public class DensityMap implements DensityMapMonitor, Runnable {
     * @param density
     */
    @Override
-   public void densityMapChanged(int width, int height, float[] density) {
-      this.density = Arrays.copyOf(density, density.length);
+   public synchronized void densityMapChanged(int width, int height, float[] density) {
+      if (pending == null || pending.length != density.length) {
+         pending = new float[density.length];
+      }
+      System.arraycopy(density, 0, pending, 0, density.length);
       this.width = width;
       this.height = height;
 
+      changed = true;
+   }
+
+   /**
+    * Copies the latest map and updates the image overlay with the appropriate
+    * color code.
+    *
+    * @return false if there is no map
+    */
+   synchronized boolean takeMap() {
+      if (pending == null) {
+         return false;
+      }
+      if (density == null || density.length != pending.length) {
+         density = new float[pending.length];
+         overlay = new byte[pending.length];
+      }
+      System.arraycopy(pending, 0, density, 0, pending.length);
+      changed = false;
+
       // Create color overlay
-      byte[] overlay = new byte[density.length];
       for (int i = 0; i < density.length; i++) {
          if (density[i] > 0 && density[i] < minGoodDensity) {
             overlay[i] = 2;
@@ -130,8 +157,7 @@ public class DensityMap implements DensityMapMonitor, Runnable {
       densityOverlay = new Overlay(
             new ImageRoi(0, 0,
                   new ByteProcessor(width, height, overlay, buildLUT())));
-
-      changed = true;
+      return true;
    }
 
    boolean visible = false;
@@ -167,7 +193,7 @@ public class DensityMap implements DensityMapMonitor, Runnable {
       long lastTime = System.currentTimeMillis();
       while (!stopping) {
 
-         if (running && changed) {
+         if (running && changed && takeMap()) {
             // Draw the density
             FloatProcessor fp = new FloatProcessor(width, height, density, null);
 
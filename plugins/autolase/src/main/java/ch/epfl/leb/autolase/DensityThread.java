@@ -1,12 +1,15 @@
 package ch.epfl.leb.autolase;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
 
 /**
  * This class estimates the density of activations by sampling a Camera at
@@ -14,6 +17,11 @@ import java.util.logging.Logger;
  * to the maximum time a certain pixel is "on", or above a certain threshold.
  * The density is calculated as a moving average (default 1s).
  *
+ * <p>Each frame is thresholded and added to the accumulator in a single pass,
+ * split in bands over the available processors.  All buffers are kept from
+ * one frame to the next, so that the time spent per frame (see
+ * {@link #getLatencyMs()}) stays well below the camera frame time.
+ *
  * <p>The code only works for 2 bytes per pixel cameras for now.
  *
  * @author Thomas Pengo
@@ -22,6 +30,8 @@ public class DensityThread implements Runnable {
    public static final int DEFAULT_THRESHOLD = 500;
    public static final int DEFAULT_WAIT_TIME = 20;
    public static final int NUM_ELEMS = 50;
+   // Smaller images are processed on the density thread only
+   static final int MIN_BAND_PIXELS = 65536;
 
    boolean running = true;
    boolean stopping = false;
@@ -34,7 +44,22 @@ public class DensityThread implements Runnable {
    long timeInterval = DEFAULT_WAIT_TIME;
    int fifoNumElems = NUM_ELEMS;
 
-   Queue<Double> densityFifo = new ArrayDeque<Double>(fifoNumElems);
+   // Ring buffers of the last fifoNumElems densities and processing times
+   double[] densityFifo = new double[fifoNumElems];
+   double[] latencyFifo = new double[fifoNumElems];
+   int fifoSize = 0;
+   int fifoNext = 0;
+
+   volatile double latencyMs = 0;
+   volatile double maxLatencyMs = 0;
+
+   // Reused between frames
+   float[] accumulator = null;
+   short[] frame;
+   float frameIncrement;
+   int frameThreshold;
+   final List<Band> bands = new ArrayList<Band>();
+   ExecutorService executor;
 
    List<DensityMonitor> monitors =
          Collections.synchronizedList(new ArrayList<DensityMonitor>());
@@ -105,14 +130,95 @@ public class DensityThread implements Runnable {
       return currentDensity;
    }
 
-   @Override
-   public void run() {
-      // Current image
-      float[] accumulator = null;
+   /**
+    * Average time needed to process a frame, from the moment it was received
+    * until all monitors were notified, over the last frames.
+    *
+    * @return processing time in milliseconds
+    */
+   public double getLatencyMs() {
+      return latencyMs;
+   }
+
+   /**
+    * Longest time needed to process a frame, over the last frames.
+    *
+    * @return processing time in milliseconds
+    */
+   public double getMaxLatencyMs() {
+      return maxLatencyMs;
+   }
 
-      // Start timer
-      long lastTime = System.currentTimeMillis();
+   /**
+    * Thresholds part of the current frame and updates the accumulator:
+    * A_i = (I_i > t) (dt + A_i-1).
+    */
+   class Band implements Callable<Float> {
+      int start;
+      int end;
+
+      @Override
+      public Float call() {
+         return accumulate(start, end);
+      }
+   }
+
+   float accumulate(int start, int end) {
+      final short[] image = frame;
+      final float[] acc = accumulator;
+      final float dt = frameIncrement;
+      final int t = frameThreshold;
+      float max = 0;
+      for (int i = start; i < end; i++) {
+         float a = image[i] > t ? acc[i] + dt : 0;
+         acc[i] = a;
+         if (a > max) {
+            max = a;
+         }
+      }
+      return max;
+   }
+
+   /**
+    * Divides the frame in as many bands as there are processors, but not
+    * in bands smaller than MIN_BAND_PIXELS.
+    */
+   void layoutBands(int length) {
+      int count = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+            length / MIN_BAND_PIXELS));
+      bands.clear();
+      for (int b = 0; b < count; b++) {
+         Band band = new Band();
+         band.start = (int) ((long) length * b / count);
+         band.end = (int) ((long) length * (b + 1) / count);
+         bands.add(band);
+      }
+   }
 
+   double maxDensity(short[] image) throws Exception {
+      frame = image;
+      frameIncrement = timeInterval;
+      frameThreshold = threshold;
+      try {
+         if (bands.size() == 1) {
+            return accumulate(0, image.length);
+         }
+         if (executor == null) {
+            executor = Executors.newFixedThreadPool(bands.size(),
+                  ThreadFactoryFactory.createThreadFactory("AutoLase density"));
+         }
+         float max = 0;
+         for (Future<Float> f : executor.invokeAll(bands)) {
+            max = Math.max(max, f.get());
+         }
+         return max;
+      } finally {
+         frame = null;
+      }
+   }
+
+   @Override
+   public void run() {
       while (!stopping) {
          // Only works with 2 bpp
          if (camera.getBytesPerPixel() != 2) {
@@ -124,58 +230,28 @@ public class DensityThread implements Runnable {
             // Get the current image
             try {
                short[] image = camera.getNewImage();
+               long start = System.nanoTime();
 
                // Reset accumulator if image size has changed
-               if (image != null && accumulator != null
-                     && (image.length != accumulator.length)) {
-                  accumulator = null;
-               }
-
-               // Threshold the image
-               boolean[] curMask = new boolean[image.length];
-               for (int i = 0; i < curMask.length; i++) {
-                  curMask[i] = image[i] > threshold;
-               }
-
-               // Calculate accumulator
-               if (accumulator == null) {
-                  // A_0 = I_0 > t;
+               if (accumulator == null || image.length != accumulator.length) {
                   accumulator = new float[image.length];
-                  for (int i = 0; i < accumulator.length; i++) {
-                     if (curMask[i]) {
-                        accumulator[i] = timeInterval;
-                     }
-                  }
-               } else {
-                  // A_i = (I_i > t) (1 + A_i-1)
-                  for (int i = 0; i < accumulator.length; i++) {
-                     if (!curMask[i]) {
-                        accumulator[i] = 0;
-                     } else {
-                        accumulator[i] += timeInterval;
-                     }
-                  }
+                  layoutBands(image.length);
                }
 
                // Density measure: max(A_i)
-               double curd = 0;
-               for (int i = 0; i < image.length; i++) {
-                  if (accumulator[i] > curd) {
-                     curd = accumulator[i];
-                  }
-               }
+               double curd = maxDensity(image);
 
                // Moving average estimate
-               if (densityFifo.size() == fifoNumElems) {
-                  densityFifo.remove();
+               densityFifo[fifoNext] = curd;
+               if (fifoSize < fifoNumElems) {
+                  fifoSize++;
                }
-               densityFifo.offer(curd);
 
                double meanDensity = 0;
-               for (Double d : densityFifo) {
-                  meanDensity += d;
+               for (int i = 0; i < fifoSize; i++) {
+                  meanDensity += densityFifo[i];
                }
-               meanDensity /= densityFifo.size();
+               meanDensity /= fifoSize;
 
                currentDensity = meanDensity;
 
@@ -187,6 +263,17 @@ public class DensityThread implements Runnable {
                   m.densityMapChanged(camera.getWidth(), camera.getHeight(), accumulator);
                }
 
+               latencyFifo[fifoNext] = (System.nanoTime() - start) / 1e6;
+               double sum = 0;
+               double max = 0;
+               for (int i = 0; i < fifoSize; i++) {
+                  sum += latencyFifo[i];
+                  max = Math.max(max, latencyFifo[i]);
+               }
+               latencyMs = sum / fifoSize;
+               maxLatencyMs = max;
+               fifoNext = (fifoNext + 1) % fifoNumElems;
+
             } catch (Exception ex) {
                Logger.getLogger(DensityThread.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -201,6 +288,10 @@ public class DensityThread implements Runnable {
          }
       }
 
+      if (executor != null) {
+         executor.shutdown();
+         executor = null;
+      }
       stopping = false;
    }
 }